@@ -0,0 +1,376 @@
+package mpicbg.stitching;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Phase correlation of two tile regions whose forward Fourier transforms are taken from a
+ * {@link FourierTransformCache}. Once the transforms are known, a pair only needs the cross-power
+ * spectrum and one inverse transform. As {@link mpicbg.imglib.algorithm.fft.PhaseCorrelation}, the
+ * highest peaks of the phase correlation matrix are tested with all possible shifts (the matrix is periodic)
+ * by computing the cross correlation of the overlapping pixels, the shift with the highest correlation wins.
+ *
+ * The images are zero-padded instead of extended by mirroring, so the results can differ slightly from
+ * the ImgLib1 phase correlation used by {@link PairWiseStitchingImgLib} without cache.
+ */
+public class CachedPhaseCorrelation
+{
+	/**
+	 * Computes the shift of the second tile region relative to the first one
+	 *
+	 * @param imp1 - the first image
+	 * @param imp2 - the second image
+	 * @param roi1 - the rectangular roi of the first image or null
+	 * @param roi2 - the rectangular roi of the second image or null
+	 * @param channel1 - the channel of the first image (0 means the average of all channels)
+	 * @param channel2 - the channel of the second image
+	 * @param timepoint1 - the timepoint of the first image
+	 * @param timepoint2 - the timepoint of the second image
+	 * @param numPeaks - how many peaks of the phase correlation matrix are tested
+	 * @param subpixelAccuracy - if the peak is localized with subpixel accuracy
+	 * @param cache - the forward transforms
+	 * @return - the shift of roi2 relative to roi1 with its cross correlation, null if there was no overlap for any peak
+	 */
+	public static PairWiseStitchingResult compute( final ImagePlus imp1, final ImagePlus imp2, final Roi roi1, final Roi roi2,
+			final int channel1, final int channel2, final int timepoint1, final int timepoint2, final int numPeaks, final boolean subpixelAccuracy,
+			final FourierTransformCache cache )
+	{
+		final int[] size1 = getSize( imp1, roi1 );
+		final int[] size2 = getSize( imp2, roi2 );
+
+		final float[] image1 = getImage( imp1, roi1, channel1, timepoint1 );
+		final float[] image2 = getImage( imp2, roi2, channel2, timepoint2 );
+
+		final int[] paddedSize = FourierTransformCache.getPaddedSize( size1, size2 );
+
+		final float[] spectrum1 = cache.getSpectrum( new FourierTransformCache.Key( imp1, roi1, channel1, timepoint1, paddedSize ), image1, size1 );
+		final float[] spectrum2 = cache.getSpectrum( new FourierTransformCache.Key( imp2, roi2, channel2, timepoint2, paddedSize ), image2, size2 );
+
+		return compute( image1, size1, image2, size2, getPhaseCorrelationMatrix( spectrum1, spectrum2, paddedSize ), paddedSize, numPeaks, subpixelAccuracy );
+	}
+
+	/**
+	 * @param spectrum1 - the normalized spectrum of the first image (see {@link FourierTransformCache#computeSpectrum(float[], int[], int[])})
+	 * @param spectrum2 - the normalized spectrum of the second image
+	 * @param paddedSize - the padded size of both
+	 * @return - the phase correlation matrix, the inverse transform of the cross-power spectrum
+	 */
+	public static float[] getPhaseCorrelationMatrix( final float[] spectrum1, final float[] spectrum2, final int[] paddedSize )
+	{
+		// the cross-power spectrum, both spectra are normalized already
+		final float[] crossPower = new float[ spectrum1.length ];
+
+		for ( int i = 0; i < crossPower.length; i += 2 )
+		{
+			final float a = spectrum1[ i ], b = spectrum1[ i + 1 ];
+			final float c = spectrum2[ i ], d = -spectrum2[ i + 1 ];
+
+			crossPower[ i ] = a * c - b * d;
+			crossPower[ i + 1 ] = a * d + b * c;
+		}
+
+		return FourierTransformCache.inverse( crossPower, paddedSize );
+	}
+
+	/**
+	 * Tests the highest peaks of the phase correlation matrix of two images
+	 *
+	 * @param image1 - the pixels of the first image
+	 * @param size1 - the size of the first image
+	 * @param image2 - the pixels of the second image
+	 * @param size2 - the size of the second image
+	 * @param pcm - the phase correlation matrix (see {@link #getPhaseCorrelationMatrix(float[], float[], int[])})
+	 * @param paddedSize - the size of the phase correlation matrix
+	 * @param numPeaks - how many peaks of the phase correlation matrix are tested
+	 * @param subpixelAccuracy - if the peak is localized with subpixel accuracy
+	 * @return - the shift of the second image relative to the first one with its cross correlation, null if there was no overlap for any peak
+	 */
+	public static PairWiseStitchingResult compute( final float[] image1, final int[] size1, final float[] image2, final int[] size2,
+			final float[] pcm, final int[] paddedSize, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		final int n = size1.length;
+
+		// a peak at p means that the second padded image has to be moved by p, the images are centered in the padded images
+		final int[] peaks = findPeaks( pcm, paddedSize, numPeaks );
+		final int[] position = new int[ n ];
+		final int[] shift = new int[ n ];
+
+		int bestPeak = -1;
+		int[] bestShift = null;
+		double bestR = -Double.MAX_VALUE;
+
+		for ( final int peak : peaks )
+		{
+			if ( peak < 0 )
+				continue;
+
+			getPosition( peak, paddedSize, position );
+
+			// test all possible shifts, the matrix is periodic
+			for ( int combination = 0; combination < ( 1 << n ); ++combination )
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					shift[ d ] = position[ d ] + FourierTransformCache.getPaddingOffset( size2, paddedSize, d ) - FourierTransformCache.getPaddingOffset( size1, paddedSize, d );
+					shift[ d ] = ( ( shift[ d ] % paddedSize[ d ] ) + paddedSize[ d ] ) % paddedSize[ d ];
+
+					if ( ( combination & ( 1 << d ) ) != 0 )
+						shift[ d ] -= paddedSize[ d ];
+				}
+
+				final double r = testCrossCorrelation( shift, image1, size1, image2, size2 );
+
+				if ( r > bestR )
+				{
+					bestR = r;
+					bestPeak = peak;
+					bestShift = shift.clone();
+				}
+			}
+		}
+
+		if ( bestShift == null )
+			return null;
+
+		final float[] offset = new float[ n ];
+
+		getPosition( bestPeak, paddedSize, position );
+
+		for ( int d = 0; d < n; ++d )
+			offset[ d ] = bestShift[ d ] + ( subpixelAccuracy ? getSubpixelOffset( pcm, paddedSize, position, d ) : 0 );
+
+		return new PairWiseStitchingResult( offset, (float)bestR, pcm[ bestPeak ] );
+	}
+
+	/**
+	 * @return - the size of the roi (or the image) in x, y (and z if the image has more than one slice)
+	 */
+	public static int[] getSize( final ImagePlus imp, final Roi roi )
+	{
+		final Rectangle r = getRectangle( imp, roi );
+
+		if ( imp.getNSlices() > 1 )
+			return new int[] { r.width, r.height, imp.getNSlices() };
+		else
+			return new int[] { r.width, r.height };
+	}
+
+	/**
+	 * @param imp - the image
+	 * @param roi - a rectangular roi or null for the whole image
+	 * @param channel - which channel (0 means the average of all channels)
+	 * @param timepoint - which timepoint
+	 * @return - the pixels of the roi as float, x is the fastest dimension
+	 */
+	public static float[] getImage( final ImagePlus imp, final Roi roi, final int channel, final int timepoint )
+	{
+		final Rectangle r = getRectangle( imp, roi );
+		final int depth = imp.getNSlices();
+		final float[] image = new float[ r.width * r.height * depth ];
+
+		final int firstChannel = channel == 0 ? 1 : channel;
+		final int lastChannel = channel == 0 ? imp.getNChannels() : channel;
+
+		for ( int c = firstChannel; c <= lastChannel; ++c )
+			for ( int z = 0; z < depth; ++z )
+			{
+				final ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex( c, z + 1, timepoint ) );
+				int i = z * r.width * r.height;
+
+				for ( int y = 0; y < r.height; ++y )
+					for ( int x = 0; x < r.width; ++x )
+						image[ i++ ] += ip.getf( x + r.x, y + r.y );
+			}
+
+		if ( lastChannel > firstChannel )
+		{
+			final float numChannels = lastChannel - firstChannel + 1;
+
+			for ( int i = 0; i < image.length; ++i )
+				image[ i ] /= numChannels;
+		}
+
+		return image;
+	}
+
+	protected static Rectangle getRectangle( final ImagePlus imp, final Roi roi )
+	{
+		if ( roi == null || roi.getBounds().width <= 0 || roi.getBounds().height <= 0 )
+			return new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() );
+		else
+			return roi.getBounds();
+	}
+
+	/**
+	 * @return - the indices of the highest local maxima (compared to the direct neighbors, the matrix is periodic),
+	 * the highest first, -1 if there are less
+	 */
+	protected static int[] findPeaks( final float[] pcm, final int[] size, final int numPeaks )
+	{
+		final int n = size.length;
+		final int[] peaks = new int[ Math.max( 1, numPeaks ) ];
+		final int[] position = new int[ n ];
+
+		for ( int i = 0; i < peaks.length; ++i )
+			peaks[ i ] = -1;
+
+		for ( int i = 0; i < pcm.length; ++i )
+		{
+			final float value = pcm[ i ];
+
+			// not higher than the lowest peak
+			if ( peaks[ peaks.length - 1 ] >= 0 && value <= pcm[ peaks[ peaks.length - 1 ] ] )
+				continue;
+
+			getPosition( i, size, position );
+
+			boolean isMaximum = true;
+			int step = 1;
+
+			for ( int d = 0; d < n && isMaximum; ++d )
+			{
+				final int before = position[ d ] == 0 ? i + ( size[ d ] - 1 ) * step : i - step;
+				final int after = position[ d ] == size[ d ] - 1 ? i - ( size[ d ] - 1 ) * step : i + step;
+
+				if ( pcm[ before ] > value || pcm[ after ] > value )
+					isMaximum = false;
+
+				step *= size[ d ];
+			}
+
+			if ( !isMaximum )
+				continue;
+
+			// insert sorted
+			int j = peaks.length - 1;
+
+			while ( j > 0 && ( peaks[ j - 1 ] < 0 || pcm[ peaks[ j - 1 ] ] < value ) )
+			{
+				peaks[ j ] = peaks[ j - 1 ];
+				--j;
+			}
+
+			peaks[ j ] = i;
+		}
+
+		return peaks;
+	}
+
+	protected static void getPosition( int index, final int[] size, final int[] position )
+	{
+		for ( int d = 0; d < size.length; ++d )
+		{
+			position[ d ] = index % size[ d ];
+			index /= size[ d ];
+		}
+	}
+
+	/**
+	 * Fits a parabola through the peak and its two neighbors in dimension d
+	 */
+	protected static float getSubpixelOffset( final float[] pcm, final int[] size, final int[] position, final int d )
+	{
+		int step = 1;
+		for ( int e = 0; e < d; ++e )
+			step *= size[ e ];
+
+		int index = 0;
+		for ( int e = size.length - 1; e >= 0; --e )
+			index = index * size[ e ] + position[ e ];
+
+		final float before = pcm[ position[ d ] == 0 ? index + ( size[ d ] - 1 ) * step : index - step ];
+		final float after = pcm[ position[ d ] == size[ d ] - 1 ? index - ( size[ d ] - 1 ) * step : index + step ];
+		final float denominator = before - 2 * pcm[ index ] + after;
+
+		if ( denominator >= 0 )
+			return 0;
+
+		return Math.max( -0.5f, Math.min( 0.5f, 0.5f * ( before - after ) / denominator ) );
+	}
+
+	/**
+	 * The cross correlation of the overlapping pixels if the second image is placed at the shift in the first one
+	 *
+	 * @return - the correlation coefficient, 0 if less than 1% of the smaller image overlap or if one of them is constant
+	 */
+	public static double testCrossCorrelation( final int[] shift, final float[] image1, final int[] size1, final float[] image2, final int[] size2 )
+	{
+		final int n = size1.length;
+		final int[] min = new int[ 3 ];
+		final int[] max = new int[ 3 ];
+
+		long minOverlap = 1;
+
+		// the overlap in coordinates of the second image
+		for ( int d = 0; d < 3; ++d )
+		{
+			if ( d < n )
+			{
+				min[ d ] = Math.max( 0, -shift[ d ] );
+				max[ d ] = Math.min( size2[ d ], size1[ d ] - shift[ d ] ) - 1;
+				minOverlap *= Math.min( size1[ d ], size2[ d ] );
+
+				if ( max[ d ] < min[ d ] )
+					return 0;
+			}
+			else
+			{
+				min[ d ] = max[ d ] = 0;
+			}
+		}
+
+		final int sx = shift[ 0 ], sy = shift[ 1 ], sz = n == 3 ? shift[ 2 ] : 0;
+		final int w1 = size1[ 0 ], h1 = size1[ 1 ];
+		final int w2 = size2[ 0 ], h2 = size2[ 1 ];
+
+		double sum1 = 0, sum2 = 0;
+		long count = 0;
+
+		for ( int z = min[ 2 ]; z <= max[ 2 ]; ++z )
+			for ( int y = min[ 1 ]; y <= max[ 1 ]; ++y )
+			{
+				final int i1 = ( ( z + sz ) * h1 + y + sy ) * w1 + sx;
+				final int i2 = ( z * h2 + y ) * w2;
+
+				for ( int x = min[ 0 ]; x <= max[ 0 ]; ++x )
+				{
+					sum1 += image1[ i1 + x ];
+					sum2 += image2[ i2 + x ];
+					++count;
+				}
+			}
+
+		if ( count <= minOverlap * 0.01 )
+			return 0;
+
+		final double avg1 = sum1 / count;
+		final double avg2 = sum2 / count;
+
+		double var1 = 0, var2 = 0, coVar = 0;
+
+		for ( int z = min[ 2 ]; z <= max[ 2 ]; ++z )
+			for ( int y = min[ 1 ]; y <= max[ 1 ]; ++y )
+			{
+				final int i1 = ( ( z + sz ) * h1 + y + sy ) * w1 + sx;
+				final int i2 = ( z * h2 + y ) * w2;
+
+				for ( int x = min[ 0 ]; x <= max[ 0 ]; ++x )
+				{
+					final double dist1 = image1[ i1 + x ] - avg1;
+					final double dist2 = image2[ i2 + x ] - avg2;
+
+					coVar += dist1 * dist2;
+					var1 += dist1 * dist1;
+					var2 += dist2 * dist2;
+				}
+			}
+
+		if ( var1 == 0 || var2 == 0 )
+			return 0;
+
+		return coVar / Math.sqrt( var1 * var2 );
+	}
+}
@@ -5,11 +5,10 @@ import ij.gui.Roi;
 
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import stitching.utils.Log;
-import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.util.Util;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
@@ -33,62 +32,82 @@ public class CollectionStitchingImgLib
 				return null;
 			}
 			
-			// compute all compare pairs
-			// compute all matchings
-			final AtomicInteger ai = new AtomicInteger(0);
+			// reuse the Fourier transforms if a tile region takes part in several pairs
+			final FourierTransformCache cache = createFourierTransformCache( pairs, params, false );
 			
-			final int numThreads;
+			// where do we approximately overlap?
+			final Roi[] rois1 = new Roi[ pairs.size() ];
+			final Roi[] rois2 = new Roi[ pairs.size() ];
+			final double[] costs = new double[ pairs.size() ];
+			final long[] bytes = new long[ pairs.size() ];
+			
+			for ( int i = 0; i < pairs.size(); ++i )
+			{
+				final ComparePair pair = pairs.get( i );
+				
+				rois1[ i ] = getROI( pair.getTile1().getElement(), pair.getTile2().getElement() );
+				rois2[ i ] = getROI( pair.getTile2().getElement(), pair.getTile1().getElement() );
+				
+				final int[] size1 = CachedPhaseCorrelation.getSize( pair.getImagePlus1(), PairWiseStitchingImgLib.getOnlyRectangularRoi( rois1[ i ] ) );
+				final int[] size2 = CachedPhaseCorrelation.getSize( pair.getImagePlus2(), PairWiseStitchingImgLib.getOnlyRectangularRoi( rois2[ i ] ) );
+				
+				costs[ i ] = PairwiseScheduler.estimateCost( size1, size2 );
+				bytes[ i ] = PairwiseScheduler.estimateBytes( size1, size2 );
+			}
+			
+			// split the processors between pairs and Fourier transforms, only the ImgLib1 phase correlation transforms multithreaded
+			final int numProcessors = Runtime.getRuntime().availableProcessors();
+			final boolean parallelFFT = cache == null && !StitchingParameters.coarseToFine;
+			final ParallelismPolicy policy;
 			
 			if ( params.cpuMemChoice == 0 )
-				numThreads = 1;
+				policy = new ParallelismPolicy( 1, parallelFFT ? numProcessors : 1 );
 			else
-				numThreads = Runtime.getRuntime().availableProcessors();
-			
-	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-	    	
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ ithread ] = new Thread(new Runnable()
-	            {
-	                @Override
-	                public void run()
-	                {		
-	                   	final int myNumber = ai.getAndIncrement();
-	                    
-	                    for ( int i = 0; i < pairs.size(); i++ )
-	                    {
-	                    	if ( i % numThreads == myNumber )
-	                    	{
-	                    		final ComparePair pair = pairs.get( i );
-	                    		
-	                    		long start = System.currentTimeMillis();			
-	                			
-	                    		// where do we approximately overlap?
-	                			final Roi roi1 = getROI( pair.getTile1().getElement(), pair.getTile2().getElement() );
-	                			final Roi roi2 = getROI( pair.getTile2().getElement(), pair.getTile1().getElement() );
-	                			
-	            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), roi1, roi2, pair.getTimePoint1(), pair.getTimePoint2(), params );			
-	            				if ( result == null )
-	            				{
-	            					Log.error( "Collection stitching failed" );
-	            					return;
-	            				}
-	
-	            				if ( params.dimensionality == 2 )
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
-	            				else
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
-	            				
-	            				pair.setCrossCorrelation( result.getCrossCorrelation() );
-	
-	            				Log.info( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
-	            						Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
-	                    	}
-	                    }
-	                }
-	            });
+				policy = ParallelismPolicy.decide( costs, numProcessors, parallelFFT );
+			
+			Log.info( "Pairwise stitching: " + policy );
+			
+			final int numThreads = policy.getPairThreads();
+			params.fftThreads = policy.getFFTThreads();
+			
+			// compute all compare pairs, the largest first, as many at once as fit into the memory
+			final long time = System.currentTimeMillis();
+			
+			new PairwiseScheduler( numThreads, PairwiseScheduler.getDefaultBudget( cache ) ).run( costs, bytes, new PairwiseScheduler.PairTask()
+			{
+				@Override
+				public boolean process( final int i )
+				{
+					final ComparePair pair = pairs.get( i );
+					
+					long start = System.currentTimeMillis();
+					
+					final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), rois1[ i ], rois2[ i ], pair.getTimePoint1(), pair.getTimePoint2(), params, cache );
+					if ( result == null )
+					{
+						Log.error( "Collection stitching failed" );
+						return false;
+					}
+					
+					if ( params.dimensionality == 2 )
+						pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
+					else
+						pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
+					
+					pair.setCrossCorrelation( result.getCrossCorrelation() );
+					
+					Log.info( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
+							Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
+					
+					return true;
+				}
+			});
 	        
-	        final long time = System.currentTimeMillis();
-	        SimpleMultiThreading.startAndJoin( threads );
+	        if ( cache != null )
+	        {
+	        	cache.logStatistics();
+	        	cache.clear();
+	        }
 	        
 	        // get the final positions of all tiles
 			optimized = GlobalOptimization.optimize( pairs, pairs.get( 0 ).getTile1(), params );
@@ -155,6 +174,59 @@ public class CollectionStitchingImgLib
 		return new Roi( new Rectangle( start[ 0 ], start[ 1 ], end[ 0 ] - start[ 0 ], end[ 1 ] - start[ 1 ] ) );
 	}
 
+	/**
+	 * Creates a {@link FourierTransformCache} if the same region of a tile (same roi, channel and timepoint, padded to
+	 * the same size) is compared in more than one pair. This is the case if the layout is unknown and all tiles are compared
+	 * completely, or for the timepoints of a timeseries. With a known layout each pair uses its own overlap region and
+	 * the phase correlation of {@link PairWiseStitchingImgLib} is used as before.
+	 * 
+	 * @param pairs - all pairs that will be compared
+	 * @param params - the channels that are compared
+	 * @param useImageRois - if the rois of the ImagePlus are compared (pairwise stitching of a timeseries),
+	 * otherwise the approximate overlap of the tiles (see {@link #getROI(ImageCollectionElement, ImageCollectionElement)})
+	 * @return - the cache or null if no transform would be reused
+	 */
+	public static FourierTransformCache createFourierTransformCache( final Vector< ComparePair > pairs, final StitchingParameters params, final boolean useImageRois )
+	{
+		if ( !StitchingParameters.reuseFourierTransforms )
+			return null;
+		
+		final HashSet< FourierTransformCache.Key > keys = new HashSet< FourierTransformCache.Key >();
+		int reused = 0;
+		
+		for ( final ComparePair pair : pairs )
+		{
+			final Roi roi1, roi2;
+			
+			if ( useImageRois )
+			{
+				roi1 = PairWiseStitchingImgLib.getOnlyRectangularRoi( pair.getImagePlus1().getRoi() );
+				roi2 = PairWiseStitchingImgLib.getOnlyRectangularRoi( pair.getImagePlus2().getRoi() );
+			}
+			else
+			{
+				roi1 = PairWiseStitchingImgLib.getOnlyRectangularRoi( getROI( pair.getTile1().getElement(), pair.getTile2().getElement() ) );
+				roi2 = PairWiseStitchingImgLib.getOnlyRectangularRoi( getROI( pair.getTile2().getElement(), pair.getTile1().getElement() ) );
+			}
+			
+			final int[] paddedSize = FourierTransformCache.getPaddedSize(
+					CachedPhaseCorrelation.getSize( pair.getImagePlus1(), roi1 ), CachedPhaseCorrelation.getSize( pair.getImagePlus2(), roi2 ) );
+			
+			if ( !keys.add( new FourierTransformCache.Key( pair.getImagePlus1(), roi1, params.channel1, pair.getTimePoint1(), paddedSize ) ) )
+				++reused;
+			
+			if ( !keys.add( new FourierTransformCache.Key( pair.getImagePlus2(), roi2, params.channel2, pair.getTimePoint2(), paddedSize ) ) )
+				++reused;
+		}
+		
+		if ( reused == 0 )
+			return null;
+		
+		Log.info( "Reusing Fourier transforms: " + keys.size() + " tile regions in " + pairs.size() + " pairs, " + reused + " transforms saved." );
+		
+		return FourierTransformCache.createDefault();
+	}
+	
 	protected static Vector< ComparePair > findOverlappingTiles( final ArrayList< ImageCollectionElement > elements, final StitchingParameters params )
 	{		
 		for ( final ImageCollectionElement element : elements )
@@ -0,0 +1,395 @@
+package mpicbg.stitching;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import stitching.utils.Log;
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+/**
+ * A least-recently-used cache of the forward Fourier transforms of the tile regions that are compared
+ * in a collection. Each tile takes part in several pairs, if the same region of a tile (same roi, channel
+ * and timepoint) is padded to the same size for several pairs, it is only transformed once.
+ * The cache evicts transforms once the sum of their sizes exceeds a byte budget.
+ *
+ * The images are extended (see {@link #relativeExtension}) to a size that can be transformed fast, the image
+ * is centered in it as in {@link stitching.CommonFunctions#zeroPad(stitching.FloatArray2D, int, int)}. To avoid
+ * edges, the mean is subtracted and the image fades out to zero towards its borders (see {@link #relativeFadeOutDistance}).
+ * The spectra are normalized to unit length, so the phase correlation of a pair is just the product of both and one
+ * inverse transform (see {@link CachedPhaseCorrelation}).
+ */
+public class FourierTransformCache
+{
+	/**
+	 * The default memory budget of the cache as fraction of the maximal heap size
+	 */
+	public static double defaultCacheFraction = 0.2;
+
+	/**
+	 * By how much the larger image is extended in each dimension before the transform, relative to its size
+	 */
+	public static double relativeExtension = 0.25;
+
+	/**
+	 * Over which distance the images fade out towards their borders, relative to their size
+	 */
+	public static double relativeFadeOutDistance = 0.15;
+
+	final long maxBytes;
+
+	final LinkedHashMap< Key, float[] > cache;
+	long bytes = 0;
+	long computed = 0, hits = 0;
+
+	/**
+	 * @param maxBytes - the memory budget for all cached transforms
+	 */
+	public FourierTransformCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+
+		// access-ordered, the eldest entry is the least recently used one
+		this.cache = new LinkedHashMap< Key, float[] >( 16, 0.75f, true );
+	}
+
+	/**
+	 * @return - a cache with the default memory budget (see {@link #defaultCacheFraction})
+	 */
+	public static FourierTransformCache createDefault()
+	{
+		return new FourierTransformCache( (long)( Runtime.getRuntime().maxMemory() * defaultCacheFraction ) );
+	}
+
+	/**
+	 * Returns the normalized spectrum of a tile region, computes it if it is not cached yet.
+	 * Several threads may compute the same spectrum at the same time, only one of them is kept.
+	 *
+	 * @param key - the tile region and the padded size
+	 * @param image - the pixels of the tile region (see {@link CachedPhaseCorrelation#getImage(ImagePlus, Roi, int, int)}),
+	 * they are only read if the spectrum is not cached
+	 * @param size - the size of the tile region
+	 * @return - the spectrum, it must not be modified
+	 */
+	public float[] getSpectrum( final Key key, final float[] image, final int[] size )
+	{
+		synchronized ( this )
+		{
+			final float[] spectrum = cache.get( key );
+
+			if ( spectrum != null )
+			{
+				++hits;
+				return spectrum;
+			}
+		}
+
+		final float[] spectrum = computeSpectrum( image, size, key.paddedSize );
+
+		synchronized ( this )
+		{
+			++computed;
+
+			final long size2 = spectrum.length * 4l;
+
+			// the spectrum is used even if it does not fit into the budget
+			if ( size2 <= maxBytes && !cache.containsKey( key ) )
+			{
+				evict( maxBytes - size2 );
+				cache.put( key, spectrum );
+				bytes += size2;
+			}
+		}
+
+		return spectrum;
+	}
+
+	protected void evict( final long maxRemaining )
+	{
+		final Iterator< Entry< Key, float[] > > i = cache.entrySet().iterator();
+
+		while ( bytes > maxRemaining && i.hasNext() )
+		{
+			bytes -= i.next().getValue().length * 4l;
+			i.remove();
+		}
+	}
+
+	/**
+	 * Removes all transforms
+	 */
+	public synchronized void clear()
+	{
+		cache.clear();
+		bytes = 0;
+	}
+
+	public long getMaxBytes() { return maxBytes; }
+	public synchronized long getNumComputed() { return computed; }
+	public synchronized long getNumHits() { return hits; }
+
+	/**
+	 * Logs how many transforms were computed and reused
+	 */
+	public synchronized void logStatistics()
+	{
+		Log.info( "Fourier transforms: " + computed + " computed, " + hits + " reused." );
+	}
+
+	/**
+	 * @param size1 - the size of the first image in x, y (and z)
+	 * @param size2 - the size of the second image
+	 * @return - a size that can be transformed fast, it is large enough for both images (x is the real dimension)
+	 */
+	public static int[] getPaddedSize( final int[] size1, final int[] size2 )
+	{
+		final int[] padded = new int[ size1.length ];
+
+		for ( int d = 0; d < padded.length; ++d )
+		{
+			final int size = Math.max( size1[ d ], size2[ d ] );
+			final int extended = size + (int)Math.ceil( size * relativeExtension );
+
+			padded[ d ] = d == 0 ? FftReal.nfftFast( extended ) : FftComplex.nfftFast( extended );
+		}
+
+		return padded;
+	}
+
+	/**
+	 * @return - where the image starts in the padded image in dimension d (it is centered)
+	 */
+	public static int getPaddingOffset( final int[] size, final int[] paddedSize, final int d )
+	{
+		return ( paddedSize[ d ] - size[ d ] ) / 2;
+	}
+
+	/**
+	 * Subtracts the mean, fades the image out towards its borders, zero-pads it, transforms it and normalizes every complex number to unit length
+	 *
+	 * @param image - the pixels, x is the fastest dimension
+	 * @param size - the size of the image
+	 * @param paddedSize - the size to pad to (see {@link #getPaddedSize(int[], int[])})
+	 * @return - the spectrum, (paddedSize[0]/2+1) complex numbers in x, then y (and z)
+	 */
+	public static float[] computeSpectrum( final float[] image, final int[] size, final int[] paddedSize )
+	{
+		final int n = size.length;
+		final int nx = paddedSize[ 0 ];
+		final int ny = paddedSize[ 1 ];
+		final int nz = n == 3 ? paddedSize[ 2 ] : 1;
+		final int w = size[ 0 ];
+		final int h = size[ 1 ];
+		final int depth = n == 3 ? size[ 2 ] : 1;
+
+		final int ox = getPaddingOffset( size, paddedSize, 0 );
+		final int oy = getPaddingOffset( size, paddedSize, 1 );
+		final int oz = n == 3 ? getPaddingOffset( size, paddedSize, 2 ) : 0;
+
+		final int complexWidth = nx + 2;
+		final float[] spectrum = new float[ complexWidth * ny * nz ];
+
+		double mean = 0;
+		for ( final float v : image )
+			mean += v;
+		mean /= image.length;
+
+		final float[] fadeX = getFadeOut( w );
+		final float[] fadeY = getFadeOut( h );
+		final float[] fadeZ = n == 3 ? getFadeOut( depth ) : new float[] { 1 };
+
+		// real-to-complex transforms in x, rows outside of the image stay zero
+		final FftReal fft = new FftReal( nx );
+		final float[] row = new float[ nx ];
+		final float[] rowOut = new float[ complexWidth ];
+
+		for ( int z = 0; z < depth; ++z )
+			for ( int y = 0; y < h; ++y )
+			{
+				final int i = ( z * h + y ) * w;
+				final float fade = fadeY[ y ] * fadeZ[ z ];
+
+				for ( int x = 0; x < w; ++x )
+					row[ x + ox ] = (float)( image[ i + x ] - mean ) * fade * fadeX[ x ];
+
+				fft.realToComplex( -1, row, rowOut );
+				System.arraycopy( rowOut, 0, spectrum, ( ( z + oz ) * ny + y + oy ) * complexWidth, complexWidth );
+			}
+
+		transformComplex( spectrum, complexWidth, ny, nz, -1 );
+
+		// normalize to unit vectors
+		for ( int i = 0; i < spectrum.length; i += 2 )
+		{
+			final double length = Math.sqrt( spectrum[ i ] * spectrum[ i ] + spectrum[ i + 1 ] * spectrum[ i + 1 ] );
+
+			if ( length > 1E-5 )
+			{
+				spectrum[ i ] /= length;
+				spectrum[ i + 1 ] /= length;
+			}
+			else
+			{
+				spectrum[ i ] = spectrum[ i + 1 ] = 0;
+			}
+		}
+
+		return spectrum;
+	}
+
+	/**
+	 * @return - a weight for each pixel along one dimension, it rises smoothly (cosine) from 0 to 1 within the fade out distance
+	 */
+	protected static float[] getFadeOut( final int size )
+	{
+		final float[] weights = new float[ size ];
+		final int distance = (int)Math.round( size * relativeFadeOutDistance );
+
+		for ( int i = 0; i < size; ++i )
+		{
+			final int border = Math.min( i, size - 1 - i );
+
+			if ( border >= distance )
+				weights[ i ] = 1;
+			else
+				weights[ i ] = (float)( 0.5 * ( 1 - Math.cos( Math.PI * ( border + 0.5 ) / distance ) ) );
+		}
+
+		return weights;
+	}
+
+	/**
+	 * Inverse transform of a spectrum as computed by {@link #computeSpectrum(float[], int[], int[])}, the
+	 * spectrum is overwritten. The result is scaled, so that the inverse of the forward transform is the
+	 * original image.
+	 *
+	 * @return - the real image of the padded size, x is the fastest dimension
+	 */
+	public static float[] inverse( final float[] spectrum, final int[] paddedSize )
+	{
+		final int nx = paddedSize[ 0 ];
+		final int ny = paddedSize[ 1 ];
+		final int nz = paddedSize.length == 3 ? paddedSize[ 2 ] : 1;
+		final int complexWidth = nx + 2;
+
+		transformComplex( spectrum, complexWidth, ny, nz, 1 );
+
+		final float[] image = new float[ nx * ny * nz ];
+		final FftReal fft = new FftReal( nx );
+		final float[] row = new float[ complexWidth ];
+		final float[] rowOut = new float[ nx ];
+		final float scale = 1.0f / ( (float)nx * ny * nz );
+
+		for ( int zy = 0; zy < ny * nz; ++zy )
+		{
+			System.arraycopy( spectrum, zy * complexWidth, row, 0, complexWidth );
+			fft.complexToReal( 1, row, rowOut );
+
+			for ( int x = 0; x < nx; ++x )
+				image[ zy * nx + x ] = rowOut[ x ] * scale;
+		}
+
+		return image;
+	}
+
+	/**
+	 * Complex-to-complex transforms in y (and z) of the rows of complex numbers
+	 */
+	protected static void transformComplex( final float[] data, final int complexWidth, final int ny, final int nz, final int sign )
+	{
+		final float[] in = new float[ Math.max( ny, nz ) * 2 ];
+		final float[] out = new float[ Math.max( ny, nz ) * 2 ];
+
+		final FftComplex fftY = new FftComplex( ny );
+
+		for ( int z = 0; z < nz; ++z )
+			for ( int x = 0; x < complexWidth; x += 2 )
+			{
+				for ( int y = 0; y < ny; ++y )
+				{
+					final int i = ( z * ny + y ) * complexWidth + x;
+					in[ y * 2 ] = data[ i ];
+					in[ y * 2 + 1 ] = data[ i + 1 ];
+				}
+
+				fftY.complexToComplex( sign, in, out );
+
+				for ( int y = 0; y < ny; ++y )
+				{
+					final int i = ( z * ny + y ) * complexWidth + x;
+					data[ i ] = out[ y * 2 ];
+					data[ i + 1 ] = out[ y * 2 + 1 ];
+				}
+			}
+
+		if ( nz == 1 )
+			return;
+
+		final FftComplex fftZ = new FftComplex( nz );
+
+		for ( int y = 0; y < ny; ++y )
+			for ( int x = 0; x < complexWidth; x += 2 )
+			{
+				for ( int z = 0; z < nz; ++z )
+				{
+					final int i = ( z * ny + y ) * complexWidth + x;
+					in[ z * 2 ] = data[ i ];
+					in[ z * 2 + 1 ] = data[ i + 1 ];
+				}
+
+				fftZ.complexToComplex( sign, in, out );
+
+				for ( int z = 0; z < nz; ++z )
+				{
+					final int i = ( z * ny + y ) * complexWidth + x;
+					data[ i ] = out[ z * 2 ];
+					data[ i + 1 ] = out[ z * 2 + 1 ];
+				}
+			}
+	}
+
+	/**
+	 * Identifies the transform of a tile region: the {@link ImagePlus}, the rectangular roi (or null for the
+	 * whole image), the channel (0 means the average of all channels), the timepoint and the padded size
+	 */
+	public static class Key
+	{
+		final ImagePlus imp;
+		final Rectangle roi;
+		final int channel, timepoint;
+		final int[] paddedSize;
+
+		public Key( final ImagePlus imp, final Roi roi, final int channel, final int timepoint, final int[] paddedSize )
+		{
+			this.imp = imp;
+			this.roi = roi == null ? null : roi.getBounds();
+			this.channel = channel;
+			this.timepoint = timepoint;
+			this.paddedSize = paddedSize;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+
+			final Key k = (Key)o;
+
+			return imp == k.imp && ( roi == null ? k.roi == null : roi.equals( k.roi ) ) && channel == k.channel &&
+					timepoint == k.timepoint && Arrays.equals( paddedSize, k.paddedSize );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ( ( System.identityHashCode( imp ) * 31 + ( roi == null ? 0 : roi.hashCode() ) ) * 31 + channel * 17 + timepoint ) * 31 + Arrays.hashCode( paddedSize );
+		}
+	}
+}
@@ -39,6 +39,17 @@ import mpicbg.imglib.type.numeric.real.FloatType;
 public class PairWiseStitchingImgLib 
 {
 	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params )
+	{
+		return stitchPairwise( imp1, imp2, roi1, roi2, timepoint1, timepoint2, params, null );
+	}
+
+	/**
+	 * @param cache - if not null, the phase correlation is computed by {@link CachedPhaseCorrelation} and the Fourier
+	 * transforms of both regions are taken from (and added to) the cache. Large regions are registered by
+	 * {@link PyramidPhaseCorrelation} instead if {@link StitchingParameters#coarseToFine} is set, if it fails
+	 * the full resolution phase correlation is used.
+	 */
+	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params, final FourierTransformCache cache )
 	{
 		PairWiseStitchingResult result = null;
 		roi1 = getOnlyRectangularRoi( roi1 );
@@ -48,10 +59,26 @@ public class PairWiseStitchingImgLib
 		final boolean canWrap = !StitchingParameters.alwaysCopy && canWrapIntoImgLib( imp1, roi1, params.channel1 ) && canWrapIntoImgLib( imp2, roi2, params.channel2 );
 		
 		
+		// large overlaps are registered coarse-to-fine, at full resolution only if that fails or to verify it
+		final PairWiseStitchingResult coarseToFine;
+		
+		if ( StitchingParameters.coarseToFine && PyramidPhaseCorrelation.isWorthwhile( CachedPhaseCorrelation.getSize( imp1, roi1 ), CachedPhaseCorrelation.getSize( imp2, roi2 ) ) )
+			coarseToFine = PyramidPhaseCorrelation.compute( imp1, imp2, roi1, roi2, params.channel1, params.channel2, timepoint1, timepoint2, params.checkPeaks, params.subpixelAccuracy );
+		else
+			coarseToFine = null;
+		
 		//
 		// the ugly but correct way into generic programming...
 		//
-		if ( canWrap )
+		if ( coarseToFine != null && !PyramidPhaseCorrelation.verify )
+		{
+			result = coarseToFine;
+		}
+		else if ( cache != null )
+		{
+			result = CachedPhaseCorrelation.compute( imp1, imp2, roi1, roi2, params.channel1, params.channel2, timepoint1, timepoint2, params.checkPeaks, params.subpixelAccuracy, cache );
+		}
+		else if ( canWrap )
 		{
 			if ( imp1.getType() == ImagePlus.GRAY32 )
 			{
@@ -153,6 +180,10 @@ public class PairWiseStitchingImgLib
 				Log.error( "Unknown image type: " + imp1.getType() );			
 			}
 		}
+		
+		if ( coarseToFine != null && PyramidPhaseCorrelation.verify )
+			result = PyramidPhaseCorrelation.verify( imp1, imp2, coarseToFine, result );
+		
 		if ( result == null )
 		{
 			Log.error( "Pairwise stitching failed." );
@@ -193,12 +224,21 @@ public class PairWiseStitchingImgLib
 			return null;
 		}
 		
-		final PairWiseStitchingResult result = computePhaseCorrelation( img1, img2, params.checkPeaks, params.subpixelAccuracy );
+		final PairWiseStitchingResult result = computePhaseCorrelation( img1, img2, params.checkPeaks, params.subpixelAccuracy, params.fftThreads );
 		
 		return result;
 	}
 	
 	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult computePhaseCorrelation( final Image<T> img1, final Image<S> img2, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		return computePhaseCorrelation( img1, img2, numPeaks, subpixelAccuracy, 0 );
+	}
+	
+	/**
+	 * @param numThreads - how many threads compute the Fourier transforms, 0 means all processors
+	 * (both images are transformed at the same time if there are at least two)
+	 */
+	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult computePhaseCorrelation( final Image<T> img1, final Image<S> img2, final int numPeaks, final boolean subpixelAccuracy, final int numThreads )
 	{
 		final PhaseCorrelation< T, S > phaseCorr = new PhaseCorrelation<T, S>( img1, img2 );
 		phaseCorr.setInvestigateNumPeaks( numPeaks );
@@ -206,7 +246,10 @@ public class PairWiseStitchingImgLib
 		if ( subpixelAccuracy )
 			phaseCorr.setKeepPhaseCorrelationMatrix( true );
 		
-		phaseCorr.setComputeFFTinParalell( true );
+		if ( numThreads > 0 )
+			phaseCorr.setNumThreads( numThreads );
+		
+		phaseCorr.setComputeFFTinParalell( numThreads != 1 );
 		if ( !phaseCorr.process() )
 		{
 			Log.error( "Could not compute phase correlation: " + phaseCorr.getErrorMessage() );
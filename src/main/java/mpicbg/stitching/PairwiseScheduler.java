@@ -0,0 +1,434 @@
+package mpicbg.stitching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import mpicbg.stitching.fusion.FusionMemoryPlanner;
+import stitching.utils.Log;
+
+/**
+ * Distributes the pairs of a collection over a number of threads. The pairs are sorted by their
+ * estimated cost (the size of the Fourier transform, see {@link #estimateCost(int[], int[])}), the
+ * largest first, and every thread fetches the next pair as soon as it is done with the previous one.
+ * The big overlaps are started first and the small ones fill the gaps at the end, instead of one
+ * thread being left with several big pairs while the others are idle.
+ *
+ * Each phase correlation needs memory for the padded Fourier transforms of both images (see
+ * {@link #estimateBytes(int[], int[])}). A pair is only started if its working set fits into the
+ * memory budget together with the pairs that are running already, otherwise the thread takes the
+ * largest pending pair that still fits. If none fits, it waits until a running pair is finished.
+ * A pair that is larger than the whole budget is started once no other pair is running. The spectra
+ * kept by a {@link FourierTransformCache} are not part of the working set, the memory the cache may
+ * fill is subtracted from the budget instead (see {@link #getDefaultBudget(FourierTransformCache)}).
+ *
+ * The time of every pair is recorded, the summary with a histogram of the times per pair is written
+ * to the log after each run (see {@link Statistics}).
+ */
+public class PairwiseScheduler
+{
+	/**
+	 * Processes one pair
+	 */
+	public static interface PairTask
+	{
+		/**
+		 * @param pair - the index of the pair
+		 * @return - false if it failed, the thread does not process any further pairs then
+		 */
+		public boolean process( int pair );
+	}
+
+	/**
+	 * Which fraction of the free heap the phase correlations that run at the same time may use
+	 */
+	public static double memoryFraction = 0.5;
+
+	final int numThreads;
+	final long maxBytes;
+
+	// the pairs that were not started yet (largest first), the bytes and number of the running pairs
+	ArrayList< Integer > pending;
+	long usedBytes, peakBytes;
+	int running;
+
+	/**
+	 * @param numThreads - how many pairs are processed at the same time
+	 * @param maxBytes - the memory budget of all pairs that run at the same time
+	 */
+	public PairwiseScheduler( final int numThreads, final long maxBytes )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param numThreads - how many pairs are processed at the same time, without memory budget
+	 */
+	public PairwiseScheduler( final int numThreads )
+	{
+		this( numThreads, Long.MAX_VALUE );
+	}
+
+	/**
+	 * @return - the default memory budget, {@link #memoryFraction} of the free heap
+	 */
+	public static long getDefaultBudget()
+	{
+		return (long)( FusionMemoryPlanner.getAvailableBytes() * memoryFraction );
+	}
+
+	/**
+	 * @param cache - the cache the pairs take their Fourier transforms from, or null
+	 * @return - the default memory budget (see {@link #getDefaultBudget()}) without the memory the cache may fill
+	 */
+	public static long getDefaultBudget( final FourierTransformCache cache )
+	{
+		final long budget = getDefaultBudget();
+
+		if ( cache == null )
+			return budget;
+
+		return Math.max( 0, budget - cache.getMaxBytes() );
+	}
+
+	public int numThreads() { return numThreads; }
+	public long getMaxBytes() { return maxBytes; }
+
+	/**
+	 * @param size1 - the size of the first image (roi) in x, y (and z)
+	 * @param size2 - the size of the second image (roi)
+	 * @return - the estimated cost of the phase correlation, n*log(n) of the padded size
+	 */
+	public static double estimateCost( final int[] size1, final int[] size2 )
+	{
+		double n = 1;
+
+		for ( final int s : FourierTransformCache.getPaddedSize( size1, size2 ) )
+			n *= s;
+
+		return n * Math.log( n ) / Math.log( 2 );
+	}
+
+	/**
+	 * The working set of one phase correlation: both images are copied to float, padded and transformed
+	 * (complex, half of the padded size in x), the phase correlation matrix is computed in place in one of
+	 * the transforms and transformed back to a real image.
+	 *
+	 * @param size1 - the size of the first image (roi) in x, y (and z)
+	 * @param size2 - the size of the second image (roi)
+	 * @return - the estimated bytes that are needed while the pair is processed
+	 */
+	public static long estimateBytes( final int[] size1, final int[] size2 )
+	{
+		final int[] padded = FourierTransformCache.getPaddedSize( size1, size2 );
+
+		long complex = padded[ 0 ] / 2 + 1, real = padded[ 0 ], input1 = size1[ 0 ], input2 = size2[ 0 ];
+
+		for ( int d = 1; d < padded.length; ++d )
+		{
+			complex *= padded[ d ];
+			real *= padded[ d ];
+			input1 *= size1[ d ];
+			input2 *= size2[ d ];
+		}
+
+		return ( input1 + input2 ) * 4 + 2 * complex * 8 + real * 4;
+	}
+
+	/**
+	 * @param costs - the cost of each pair
+	 * @return - the indices of the pairs, the most expensive first
+	 */
+	public static Integer[] getOrder( final double[] costs )
+	{
+		final Integer[] order = new Integer[ costs.length ];
+
+		for ( int i = 0; i < order.length; ++i )
+			order[ i ] = i;
+
+		// stable, pairs of the same cost keep their order
+		Arrays.sort( order, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer o1, final Integer o2 )
+			{
+				return Double.compare( costs[ o2 ], costs[ o1 ] );
+			}
+		});
+
+		return order;
+	}
+
+	/**
+	 * Processes all pairs, largest first, and returns once they are done
+	 *
+	 * @param costs - the estimated cost of each pair (see {@link #estimateCost(int[], int[])})
+	 * @param task - processes one pair, it is called concurrently
+	 * @return - the times of all pairs and threads
+	 */
+	public Statistics run( final double[] costs, final PairTask task )
+	{
+		return run( costs, new long[ costs.length ], task );
+	}
+
+	/**
+	 * Processes all pairs, largest first, while the pairs that run at the same time fit into the memory budget.
+	 * Returns once all pairs are done.
+	 *
+	 * @param costs - the estimated cost of each pair (see {@link #estimateCost(int[], int[])})
+	 * @param bytes - the estimated working set of each pair (see {@link #estimateBytes(int[], int[])})
+	 * @param task - processes one pair, it is called concurrently
+	 * @return - the times of all pairs and threads
+	 */
+	public Statistics run( final double[] costs, final long[] bytes, final PairTask task )
+	{
+		final Integer[] order = getOrder( costs );
+		final int numWorkers = Math.max( 1, Math.min( numThreads, order.length ) );
+
+		synchronized ( this )
+		{
+			pending = new ArrayList< Integer >( Arrays.asList( order ) );
+			usedBytes = peakBytes = 0;
+			running = 0;
+		}
+
+		final long[] pairTime = new long[ order.length ];
+		final long[] busyTime = new long[ numWorkers ];
+		final int[] numProcessed = new int[ numWorkers ];
+
+		final long start = System.nanoTime();
+
+		final Thread[] threads = new Thread[ numWorkers ];
+
+		for ( int w = 0; w < numWorkers; ++w )
+		{
+			final int workerId = w;
+
+			threads[ w ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for ( int pair = next( bytes ); pair >= 0; pair = next( bytes ) )
+					{
+						final long t = System.nanoTime();
+
+						boolean success = false;
+
+						try
+						{
+							success = task.process( pair );
+						}
+						finally
+						{
+							release( bytes[ pair ] );
+						}
+
+						pairTime[ pair ] = System.nanoTime() - t;
+						busyTime[ workerId ] += pairTime[ pair ];
+						++numProcessed[ workerId ];
+
+						if ( !success )
+							return;
+					}
+				}
+			}, "Pairwise-" + w );
+		}
+
+		if ( numWorkers == 1 )
+		{
+			threads[ 0 ].run();
+		}
+		else
+		{
+			for ( final Thread thread : threads )
+				thread.start();
+
+			try
+			{
+				for ( final Thread thread : threads )
+					thread.join();
+			}
+			catch ( InterruptedException e )
+			{
+				Log.error( "Pairwise stitching was interrupted: " + e );
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		final Statistics statistics;
+
+		synchronized ( this )
+		{
+			statistics = new Statistics( System.nanoTime() - start, pairTime, busyTime, numProcessed, peakBytes, maxBytes );
+		}
+
+		Log.info( statistics.toString() );
+
+		return statistics;
+	}
+
+	/**
+	 * @param bytes - the working set of each pair
+	 * @return - the largest pending pair that fits into the memory budget (any if no other pair is running),
+	 * waits until one fits, -1 if there are no more pairs
+	 */
+	protected synchronized int next( final long[] bytes )
+	{
+		while ( pending.size() > 0 )
+		{
+			for ( int i = 0; i < pending.size(); ++i )
+			{
+				final int pair = pending.get( i );
+
+				if ( running == 0 || usedBytes + bytes[ pair ] <= maxBytes )
+				{
+					pending.remove( i );
+					usedBytes += bytes[ pair ];
+					peakBytes = Math.max( peakBytes, usedBytes );
+					++running;
+
+					return pair;
+				}
+			}
+
+			try
+			{
+				wait();
+			}
+			catch ( InterruptedException e )
+			{
+				Log.error( "Pairwise stitching was interrupted: " + e );
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+		}
+
+		return -1;
+	}
+
+	protected synchronized void release( final long bytes )
+	{
+		usedBytes -= bytes;
+		--running;
+
+		notifyAll();
+	}
+
+	/**
+	 * The time of every pair and how long each thread was busy
+	 */
+	public static class Statistics
+	{
+		final long wallTime, peakBytes, maxBytes;
+		final long[] pairTime, busyTime;
+		final int[] numPairs;
+
+		public Statistics( final long wallTime, final long[] pairTime, final long[] busyTime, final int[] numPairs, final long peakBytes, final long maxBytes )
+		{
+			this.wallTime = wallTime;
+			this.pairTime = pairTime;
+			this.busyTime = busyTime;
+			this.numPairs = numPairs;
+			this.peakBytes = peakBytes;
+			this.maxBytes = maxBytes;
+		}
+
+		public Statistics( final long wallTime, final long[] pairTime, final long[] busyTime, final int[] numPairs )
+		{
+			this( wallTime, pairTime, busyTime, numPairs, 0, Long.MAX_VALUE );
+		}
+
+		public int numWorkers() { return busyTime.length; }
+		public long getWallTime() { return wallTime; }
+		public long getPairTime( final int pair ) { return pairTime[ pair ]; }
+		public long getBusyTime( final int worker ) { return busyTime[ worker ]; }
+		public int getNumPairs( final int worker ) { return numPairs[ worker ]; }
+
+		/**
+		 * @return - the largest sum of the working sets of the pairs that ran at the same time
+		 */
+		public long getPeakBytes() { return peakBytes; }
+
+		/**
+		 * @return - the busy time of the longest running thread relative to the average, 1 means perfectly balanced
+		 */
+		public double getImbalance()
+		{
+			long max = 0, sum = 0;
+
+			for ( final long t : busyTime )
+			{
+				max = Math.max( max, t );
+				sum += t;
+			}
+
+			return sum == 0 ? 1 : (double)max * numWorkers() / (double)sum;
+		}
+
+		/**
+		 * @return - the number of pairs per bin, bin 0 contains the pairs that took less than 1 ms, bin b the ones
+		 * that took between 2^(b-1) and 2^b ms
+		 */
+		public int[] getHistogram()
+		{
+			int numBins = 1;
+			final int[] bins = new int[ pairTime.length ];
+
+			for ( int i = 0; i < pairTime.length; ++i )
+			{
+				final long ms = pairTime[ i ] / 1000000;
+
+				// the number of bits of ms
+				bins[ i ] = 64 - Long.numberOfLeadingZeros( ms );
+				numBins = Math.max( numBins, bins[ i ] + 1 );
+			}
+
+			final int[] histogram = new int[ numBins ];
+
+			for ( final int b : bins )
+				++histogram[ b ];
+
+			return histogram;
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder s = new StringBuilder();
+
+			s.append( "Pairwise stitching: " + pairTime.length + " pairs, " + numWorkers() + " threads, " + wallTime / 1000000 +
+					" ms, imbalance (max/mean busy time) " + String.format( "%.2f", getImbalance() ) );
+
+			if ( maxBytes != Long.MAX_VALUE )
+				s.append( "\n  peak working set " + peakBytes / ( 1024 * 1024 ) + " MB of " + maxBytes / ( 1024 * 1024 ) + " MB" );
+
+			for ( int w = 0; w < numWorkers(); ++w )
+				s.append( "\n  thread " + w + ": " + numPairs[ w ] + " pairs, busy " + busyTime[ w ] / 1000000 + " ms" );
+
+			s.append( "\n  time per pair:" );
+
+			final int[] histogram = getHistogram();
+			int max = 1;
+
+			for ( final int h : histogram )
+				max = Math.max( max, h );
+
+			for ( int b = 0; b < histogram.length; ++b )
+			{
+				final String range = b == 0 ? "< 1 ms" : ( 1l << ( b - 1 ) ) + "-" + ( 1l << b ) + " ms";
+
+				s.append( "\n  " + String.format( "%14s", range ) + ": " );
+
+				// at most 40 characters per bar
+				for ( int i = 0; i < ( histogram[ b ] * 40 + max - 1 ) / max; ++i )
+					s.append( '#' );
+
+				s.append( " " + histogram[ b ] );
+			}
+
+			return s.toString();
+		}
+	}
+}
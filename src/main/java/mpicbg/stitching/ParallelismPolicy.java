@@ -0,0 +1,85 @@
+package mpicbg.stitching;
+
+/**
+ * Decides how the processors are split between pairs that are registered at the same time and the
+ * threads of the Fourier transforms within one pair, so that their product does not exceed the number
+ * of processors. Threads inside one transform share its memory and only pay off for large transforms,
+ * threads across pairs scale as long as there are enough pairs of similar size.
+ *
+ * - if all transforms are small (see {@link #minParallelFFTCost}) the pairs run in parallel, each with one thread
+ * - otherwise as many pairs run in parallel as the total cost allows, i.e. the total cost divided by the cost of the
+ *   largest pair (no schedule can finish before the largest pair), the remaining processors go to the transforms
+ *
+ * A few large pairs are therefore transformed with many threads each, many small pairs are
+ * processed in parallel with one thread each. Only the ImgLib1 phase correlation uses several threads
+ * per transform, {@link CachedPhaseCorrelation} and {@link PyramidPhaseCorrelation} transform with one
+ * thread, so if they are used every processor computes its own pair.
+ */
+public class ParallelismPolicy
+{
+	/**
+	 * Transforms below this cost (see {@link PairwiseScheduler#estimateCost(int[], int[])}), about a
+	 * 512x512 transform, are not worth splitting into several threads
+	 */
+	public static double minParallelFFTCost = 512 * 512 * 18;
+
+	final int pairThreads, fftThreads;
+
+	public ParallelismPolicy( final int pairThreads, final int fftThreads )
+	{
+		this.pairThreads = Math.max( 1, pairThreads );
+		this.fftThreads = Math.max( 1, fftThreads );
+	}
+
+	/**
+	 * @return - how many pairs are processed at the same time
+	 */
+	public int getPairThreads() { return pairThreads; }
+
+	/**
+	 * @return - how many threads compute the Fourier transforms of one pair
+	 */
+	public int getFFTThreads() { return fftThreads; }
+
+	/**
+	 * @param costs - the estimated cost of each pair (see {@link PairwiseScheduler#estimateCost(int[], int[])})
+	 * @param numProcessors - the number of processors that may be used
+	 * @return - the split between pairs and transforms
+	 */
+	public static ParallelismPolicy decide( final double[] costs, final int numProcessors )
+	{
+		return decide( costs, numProcessors, true );
+	}
+
+	/**
+	 * @param costs - the estimated cost of each pair (see {@link PairwiseScheduler#estimateCost(int[], int[])})
+	 * @param numProcessors - the number of processors that may be used
+	 * @param parallelFFT - if the Fourier transforms of one pair can use several threads
+	 * @return - the split between pairs and transforms
+	 */
+	public static ParallelismPolicy decide( final double[] costs, final int numProcessors, final boolean parallelFFT )
+	{
+		double total = 0, max = 0;
+
+		for ( final double cost : costs )
+		{
+			total += cost;
+			max = Math.max( max, cost );
+		}
+
+		final int maxPairThreads = Math.max( 1, Math.min( numProcessors, costs.length ) );
+
+		if ( max < minParallelFFTCost || !parallelFFT )
+			return new ParallelismPolicy( maxPairThreads, 1 );
+
+		final int pairThreads = Math.max( 1, Math.min( maxPairThreads, (int)Math.floor( total / max ) ) );
+
+		return new ParallelismPolicy( pairThreads, numProcessors / pairThreads );
+	}
+
+	@Override
+	public String toString()
+	{
+		return pairThreads + " pair(s) in parallel, " + fftThreads + " thread(s) per Fourier transform";
+	}
+}
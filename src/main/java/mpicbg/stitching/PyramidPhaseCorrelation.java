@@ -0,0 +1,324 @@
+package mpicbg.stitching;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import stitching.utils.Log;
+
+/**
+ * Coarse-to-fine phase correlation for large overlaps. Both tile regions are downsampled by averaging
+ * (see {@link #getDownsampling(int[], int[])}) and the phase correlation of the downsampled images
+ * (see {@link CachedPhaseCorrelation}) gives a coarse shift. At full resolution only a window in the
+ * middle of the overlap of this shift is correlated (see {@link #refineSize}), and the peak is only searched
+ * within the uncertainty of the coarse shift (a few pixels). The cross correlation of the final shift is computed
+ * over the complete overlap, as without downsampling.
+ *
+ * If the coarse shift is not found, its overlap is too small to be refined, the refined peak is at the border of
+ * the search range (the coarse shift was off by more than its uncertainty) or the cross correlation of the refined
+ * shift is clearly lower than the coarse one (see {@link #maxCorrelationLoss}), no result is returned and
+ * {@link PairWiseStitchingImgLib} uses the full resolution phase correlation instead. If {@link #verify} is set,
+ * the full resolution phase correlation is computed as well, the difference is logged and the full resolution
+ * result is used if they disagree by more than {@link #maxError} (see {@link #verify(ImagePlus, ImagePlus,
+ * PairWiseStitchingResult, PairWiseStitchingResult)}).
+ */
+public class PyramidPhaseCorrelation
+{
+	/**
+	 * The downsampled images are at least this large in every dimension that is downsampled
+	 */
+	public static int minCoarseSize = 64;
+
+	/**
+	 * The largest downsampling factor per dimension
+	 */
+	public static int maxDownsampling = 8;
+
+	/**
+	 * The size of the window that is correlated at full resolution in every dimension
+	 */
+	public static int refineSize = 256;
+
+	/**
+	 * If the full resolution phase correlation is computed as well to check the accuracy
+	 */
+	public static boolean verify = false;
+
+	/**
+	 * The largest distance between the coarse-to-fine and the full resolution shift that is accepted
+	 */
+	public static double maxError = 1.0;
+
+	/**
+	 * The refined shift is rejected if its cross correlation is lower than the one of the coarse shift by more than this,
+	 * the downsampled images are smoother so the coarse cross correlation is usually a bit higher
+	 */
+	public static double maxCorrelationLoss = 0.2;
+
+	/**
+	 * @param size1 - the size of the first image (roi) in x, y (and z)
+	 * @param size2 - the size of the second image (roi)
+	 * @return - the downsampling factor of each dimension (a power of two), all of them 1 if the images are too small
+	 */
+	public static int[] getDownsampling( final int[] size1, final int[] size2 )
+	{
+		final int[] factor = new int[ size1.length ];
+
+		for ( int d = 0; d < factor.length; ++d )
+		{
+			final int size = Math.min( size1[ d ], size2[ d ] );
+
+			factor[ d ] = 1;
+
+			while ( factor[ d ] * 2 <= maxDownsampling && size / ( factor[ d ] * 2 ) >= minCoarseSize )
+				factor[ d ] *= 2;
+		}
+
+		return factor;
+	}
+
+	/**
+	 * @return - if the images are large enough to be downsampled in at least one dimension
+	 */
+	public static boolean isWorthwhile( final int[] size1, final int[] size2 )
+	{
+		for ( final int f : getDownsampling( size1, size2 ) )
+			if ( f > 1 )
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Computes the shift of the second tile region relative to the first one, see
+	 * {@link CachedPhaseCorrelation#compute(ImagePlus, ImagePlus, Roi, Roi, int, int, int, int, int, boolean, FourierTransformCache)}
+	 * for the parameters
+	 *
+	 * @return - the shift, null if the coarse-to-fine phase correlation failed and the full resolution has to be used
+	 */
+	public static PairWiseStitchingResult compute( final ImagePlus imp1, final ImagePlus imp2, final Roi roi1, final Roi roi2,
+			final int channel1, final int channel2, final int timepoint1, final int timepoint2, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		final int[] size1 = CachedPhaseCorrelation.getSize( imp1, roi1 );
+		final int[] size2 = CachedPhaseCorrelation.getSize( imp2, roi2 );
+
+		final float[] image1 = CachedPhaseCorrelation.getImage( imp1, roi1, channel1, timepoint1 );
+		final float[] image2 = CachedPhaseCorrelation.getImage( imp2, roi2, channel2, timepoint2 );
+
+		final PairWiseStitchingResult result = compute( image1, size1, image2, size2, numPeaks, subpixelAccuracy );
+
+		if ( result == null )
+			Log.info( "Coarse-to-fine phase correlation of " + imp1.getTitle() + " and " + imp2.getTitle() + " failed, using full resolution." );
+
+		return result;
+	}
+
+	/**
+	 * Compares the coarse-to-fine shift of a pair with its full resolution shift
+	 *
+	 * @param coarseToFine - the result of {@link #compute(ImagePlus, ImagePlus, Roi, Roi, int, int, int, int, int, boolean)}
+	 * @param full - the result of the full resolution phase correlation of the same pair, or null if it failed
+	 * @return - the full resolution result if they differ by more than {@link #maxError}, otherwise the coarse-to-fine result
+	 */
+	public static PairWiseStitchingResult verify( final ImagePlus imp1, final ImagePlus imp2, final PairWiseStitchingResult coarseToFine, final PairWiseStitchingResult full )
+	{
+		if ( full == null )
+			return coarseToFine;
+
+		final double error = getDistance( coarseToFine.getOffset(), full.getOffset() );
+
+		if ( error > maxError )
+		{
+			Log.warn( "Coarse-to-fine phase correlation of " + imp1.getTitle() + " and " + imp2.getTitle() + " differs from full resolution by " +
+					String.format( "%.2f", error ) + " px, using the full resolution result." );
+			return full;
+		}
+
+		Log.info( "Coarse-to-fine phase correlation of " + imp1.getTitle() + " and " + imp2.getTitle() + " differs from full resolution by " +
+				String.format( "%.2f", error ) + " px." );
+
+		return coarseToFine;
+	}
+
+	/**
+	 * @param image1 - the pixels of the first image, x is the fastest dimension
+	 * @param size1 - the size of the first image
+	 * @param image2 - the pixels of the second image
+	 * @param size2 - the size of the second image
+	 * @param numPeaks - how many peaks of the coarse phase correlation matrix are tested
+	 * @param subpixelAccuracy - if the peak is localized with subpixel accuracy at full resolution
+	 * @return - the shift of the second image relative to the first one with its cross correlation, null if no coarse
+	 * shift was found, its overlap is too small to refine it or the refined shift is not reliable
+	 */
+	public static PairWiseStitchingResult compute( final float[] image1, final int[] size1, final float[] image2, final int[] size2,
+			final int numPeaks, final boolean subpixelAccuracy )
+	{
+		final int n = size1.length;
+		final int[] factor = getDownsampling( size1, size2 );
+
+		// the coarse shift
+		final int[] coarseSize1 = getDownsampledSize( size1, factor );
+		final int[] coarseSize2 = getDownsampledSize( size2, factor );
+		final float[] coarse1 = downsample( image1, size1, factor );
+		final float[] coarse2 = downsample( image2, size2, factor );
+
+		final int[] coarsePadded = FourierTransformCache.getPaddedSize( coarseSize1, coarseSize2 );
+		final float[] coarsePCM = CachedPhaseCorrelation.getPhaseCorrelationMatrix(
+				FourierTransformCache.computeSpectrum( coarse1, coarseSize1, coarsePadded ), FourierTransformCache.computeSpectrum( coarse2, coarseSize2, coarsePadded ), coarsePadded );
+
+		final PairWiseStitchingResult coarse = CachedPhaseCorrelation.compute( coarse1, coarseSize1, coarse2, coarseSize2, coarsePCM, coarsePadded, numPeaks, false );
+
+		if ( coarse == null )
+			return null;
+
+		final int[] shift = new int[ n ];
+		final int[] radius = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			shift[ d ] = Math.round( coarse.getOffset( d ) ) * factor[ d ];
+			radius[ d ] = factor[ d ] + 1;
+		}
+
+		// a window in the middle of the overlap, in coordinates of the first image
+		final int[] windowMin = new int[ n ];
+		final int[] windowSize = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final int min = Math.max( 0, shift[ d ] );
+			final int max = Math.min( size1[ d ], shift[ d ] + size2[ d ] );
+
+			if ( max - min <= 2 * radius[ d ] )
+				return null;
+
+			windowSize[ d ] = Math.min( max - min, refineSize );
+			windowMin[ d ] = min + ( max - min - windowSize[ d ] ) / 2;
+		}
+
+		final float[] window1 = crop( image1, size1, windowMin, windowSize );
+
+		for ( int d = 0; d < n; ++d )
+			windowMin[ d ] -= shift[ d ];
+
+		final float[] window2 = crop( image2, size2, windowMin, windowSize );
+
+		// the residual shift, only within the uncertainty of the coarse shift
+		final int[] paddedSize = FourierTransformCache.getPaddedSize( windowSize, windowSize );
+		final float[] pcm = CachedPhaseCorrelation.getPhaseCorrelationMatrix(
+				FourierTransformCache.computeSpectrum( window1, windowSize, paddedSize ), FourierTransformCache.computeSpectrum( window2, windowSize, paddedSize ), paddedSize );
+
+		final int[] position = new int[ n ];
+		final int[] residual = new int[ n ];
+		int bestPeak = -1;
+
+		for ( int i = 0; i < pcm.length; ++i )
+		{
+			CachedPhaseCorrelation.getPosition( i, paddedSize, position );
+
+			boolean inside = true;
+
+			for ( int d = 0; d < n && inside; ++d )
+			{
+				residual[ d ] = position[ d ] > paddedSize[ d ] / 2 ? position[ d ] - paddedSize[ d ] : position[ d ];
+				inside = Math.abs( residual[ d ] ) <= radius[ d ];
+			}
+
+			if ( inside && ( bestPeak < 0 || pcm[ i ] > pcm[ bestPeak ] ) )
+				bestPeak = i;
+		}
+
+		CachedPhaseCorrelation.getPosition( bestPeak, paddedSize, position );
+
+		final float[] offset = new float[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			residual[ d ] = position[ d ] > paddedSize[ d ] / 2 ? position[ d ] - paddedSize[ d ] : position[ d ];
+
+			// the peak is probably outside of the search range, the coarse shift was wrong
+			if ( Math.abs( residual[ d ] ) == radius[ d ] )
+				return null;
+
+			shift[ d ] += residual[ d ];
+			offset[ d ] = shift[ d ] + ( subpixelAccuracy ? CachedPhaseCorrelation.getSubpixelOffset( pcm, paddedSize, position, d ) : 0 );
+		}
+
+		final double r = CachedPhaseCorrelation.testCrossCorrelation( shift, image1, size1, image2, size2 );
+
+		if ( r < coarse.getCrossCorrelation() - maxCorrelationLoss )
+			return null;
+
+		return new PairWiseStitchingResult( offset, (float)r, pcm[ bestPeak ] );
+	}
+
+	public static int[] getDownsampledSize( final int[] size, final int[] factor )
+	{
+		final int[] downsampled = new int[ size.length ];
+
+		for ( int d = 0; d < size.length; ++d )
+			downsampled[ d ] = size[ d ] / factor[ d ];
+
+		return downsampled;
+	}
+
+	/**
+	 * @return - the image downsampled by averaging blocks of factor[ 0 ] x factor[ 1 ] (x factor[ 2 ]) pixels,
+	 * the remaining pixels at the end of each dimension are ignored
+	 */
+	public static float[] downsample( final float[] image, final int[] size, final int[] factor )
+	{
+		final int n = size.length;
+		final int[] downsampledSize = getDownsampledSize( size, factor );
+
+		final int w = downsampledSize[ 0 ], h = downsampledSize[ 1 ], depth = n == 3 ? downsampledSize[ 2 ] : 1;
+		final int fx = factor[ 0 ], fy = factor[ 1 ], fz = n == 3 ? factor[ 2 ] : 1;
+		final float[] downsampled = new float[ w * h * depth ];
+
+		for ( int z = 0; z < depth * fz; ++z )
+			for ( int y = 0; y < h * fy; ++y )
+			{
+				final int i = ( z * size[ 1 ] + y ) * size[ 0 ];
+				final int j = ( z / fz * h + y / fy ) * w;
+
+				for ( int x = 0; x < w * fx; ++x )
+					downsampled[ j + x / fx ] += image[ i + x ];
+			}
+
+		final float norm = 1.0f / ( fx * fy * fz );
+
+		for ( int i = 0; i < downsampled.length; ++i )
+			downsampled[ i ] *= norm;
+
+		return downsampled;
+	}
+
+	/**
+	 * @return - the pixels of the block starting at min with the given size
+	 */
+	protected static float[] crop( final float[] image, final int[] size, final int[] min, final int[] cropSize )
+	{
+		final int n = size.length;
+		final int depth = n == 3 ? cropSize[ 2 ] : 1, z0 = n == 3 ? min[ 2 ] : 0;
+		final float[] cropped = new float[ cropSize[ 0 ] * cropSize[ 1 ] * depth ];
+
+		int j = 0;
+
+		for ( int z = 0; z < depth; ++z )
+			for ( int y = 0; y < cropSize[ 1 ]; ++y )
+			{
+				System.arraycopy( image, ( ( z + z0 ) * size[ 1 ] + y + min[ 1 ] ) * size[ 0 ] + min[ 0 ], cropped, j, cropSize[ 0 ] );
+				j += cropSize[ 0 ];
+			}
+
+		return cropped;
+	}
+
+	protected static double getDistance( final float[] a, final float[] b )
+	{
+		double sum = 0;
+
+		for ( int d = 0; d < a.length; ++d )
+			sum += ( a[ d ] - b[ d ] ) * ( a[ d ] - b[ d ] );
+
+		return Math.sqrt( sum );
+	}
+}
@@ -15,6 +15,19 @@ public class StitchingParameters
 	 */
 	public static boolean alwaysCopy = false;
 	
+	/**
+	 * If the same tile region takes part in several pairs of a collection, compute its Fourier transform only once
+	 * (see {@link FourierTransformCache}). The phase correlation is then computed by {@link CachedPhaseCorrelation}
+	 * instead of the ImgLib1 PhaseCorrelation, so it is off by default.
+	 */
+	public static boolean reuseFourierTransforms = false;
+	
+	/**
+	 * If large overlaps are registered on downsampled images first and only refined at full resolution
+	 * (see {@link PyramidPhaseCorrelation})
+	 */
+	public static boolean coarseToFine = false;
+	
 	public int dimensionality;
 	public int fusionMethod;
 	public String fusedName;
@@ -34,9 +47,15 @@ public class StitchingParameters
 	public int timeSelect;
 	
 	public int cpuMemChoice = 0;
-	// 0 == fuse&display, 1 == writeToDisk
+	// how many threads compute the ImgLib1 Fourier transforms of one pair, 0 == all processors (see ParallelismPolicy)
+	public int fftThreads = 0;
+	// 0 == fuse&display, 1 == writeToDisk, 2 == writeToDisk blockwise (see StreamingFusion), 3 == writeToDisk blockwise into one BigTIFF, 4 == writeToDisk blockwise into N5 chunks, 5 == display a virtual stack that is fused on demand (see LazyFusion)
 	public int outputVariant = 0;
 	public String outputDirectory = null;
+	// how many 2x downsampled levels are written next to the fused image on disk
+	public int downsampledLevels = 0;
+	// fuse only a region of the fused image, the first and last pixel (inclusive), null means everything
+	public long[] fusionRegionMin = null, fusionRegionMax = null;
 	
 	public double regThreshold = -2;
 	public double relativeThreshold = 2.5;
@@ -0,0 +1,249 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+
+/**
+ * A {@link SpanKernel} for {@link UnsignedByteType}, {@link UnsignedShortType} and {@link FloatType} images
+ * that are stored plane by plane (e.g. wrapped {@link ij.ImagePlus}). Instead of going through the
+ * interpolators and the output {@link net.imglib2.RandomAccess}, which are generic over the type, it reads
+ * the pixels directly from the primitive arrays of the input planes and writes directly into the
+ * primitive arrays of the output.
+ *
+ * It only applies to nearest neighbor interpolation of translated images (no subpixel resolution), spans
+ * that contain other images are fused by the {@link SpanKernel}. Nearest neighbor interpolation and the
+ * conversion into the output type are done as ImgLib2 does it, so the result is identical.
+ *
+ * Use {@link SpanKernel#create(ArrayList, Img, PixelFusion, ArrayList, double[][], double[])}, which
+ * decides if this kernel can be used.
+ *
+ * @param <T> - the type of the output
+ */
+public class ArraySpanKernel< T extends RealType< T > > extends SpanKernel< T >
+{
+	final static int UNSIGNED_BYTE = 0, UNSIGNED_SHORT = 1, FLOAT = 2;
+
+	// the type, the planes ( byte[], short[] or float[] ) and the size of each input image
+	final int[] inType;
+	final Object[][] inPlanes;
+	final long[][] inSize;
+
+	// the type, the planes and the width of the output
+	final int outType;
+	Object[] outPlanes;
+	int outWidth;
+
+	// the plane and the index of the first pixel of the row each image contributes to a span, the plane is null outside of the image
+	final Object[] row;
+	final int[] rowIndex;
+
+	/**
+	 * Use {@link SpanKernel#create(ArrayList, Img, PixelFusion, ArrayList, double[][], double[])} to
+	 * make sure the input and output are supported.
+	 */
+	protected ArraySpanKernel( final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final Img< T > output,
+			final PixelFusion fusion, final ArrayList< InvertibleBoundable > models, final double[][] translations, final double[] offset )
+	{
+		super( input, output, fusion, models, translations, offset );
+
+		final int numImages = input.size();
+
+		this.inType = new int[ numImages ];
+		this.inPlanes = new Object[ numImages ][];
+		this.inSize = new long[ numImages ][ numDimensions ];
+		this.row = new Object[ numImages ];
+		this.rowIndex = new int[ numImages ];
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			final Img< ? > img = input.get( i ).getImg();
+
+			inType[ i ] = getType( img );
+			inPlanes[ i ] = getPlanes( img );
+			img.dimensions( inSize[ i ] );
+		}
+
+		this.outType = getType( output );
+		setOutput( output );
+	}
+
+	@Override
+	public void setOutput( final Img< T > output )
+	{
+		super.setOutput( output );
+
+		this.outPlanes = getPlanes( output );
+		this.outWidth = (int)output.dimension( 0 );
+	}
+
+	@Override
+	protected void fuseSpan( final int x0, final int x1, final int numClasses, final int n ) throws NoninvertibleModelException
+	{
+		for ( int i = 0; i < numClasses; ++i )
+			if ( translation[ images[ i ] ] == null )
+			{
+				super.fuseSpan( x0, x1, numClasses, n );
+				return;
+			}
+
+		for ( int d = 1; d < n; ++d )
+			global[ d ] = pos[ d ] + offset[ d ];
+
+		// the row of each input image, the position in all dimensions but x is constant along the span
+		for ( int i = 0; i < numClasses; ++i )
+		{
+			final int image = images[ i ];
+			final double[] p = inPos[ image ];
+			final double[] t = translation[ image ];
+			final long[] size = inSize[ image ];
+
+			long z = 0, y = 0;
+			boolean inside = true;
+
+			for ( int d = 1; d < numDimensions; ++d )
+			{
+				p[ d ] = global[ d ] - t[ d ];
+
+				final long l = Util.round( p[ d ] );
+
+				if ( l < 0 || l >= size[ d ] )
+					inside = false;
+				else if ( d == 1 )
+					y = l;
+				else
+					z = l;
+			}
+
+			if ( inside )
+			{
+				row[ i ] = inPlanes[ image ][ (int)z ];
+				rowIndex[ i ] = (int)( y * size[ 0 ] );
+			}
+			else
+			{
+				row[ i ] = null;
+			}
+		}
+
+		final Object outPlane = outPlanes[ n > 2 ? pos[ 2 ] : 0 ];
+		int outIndex = pos[ 1 ] * outWidth + x0;
+
+		for ( int x = x0; x <= x1; ++x, ++outIndex )
+		{
+			fusion.clear();
+
+			global[ 0 ] = x + offset[ 0 ];
+
+			for ( int k = 0; k < numClasses; ++k )
+			{
+				final int i = reverse ? numClasses - 1 - k : k;
+				final int image = images[ i ];
+				final double[] p = inPos[ image ];
+
+				p[ 0 ] = global[ 0 ] - translation[ image ][ 0 ];
+
+				final Object plane = row[ i ];
+				final long l = Util.round( p[ 0 ] );
+				final float value;
+
+				// the images are extended with zeros
+				if ( plane == null || l < 0 || l >= inSize[ image ][ 0 ] )
+					value = 0;
+				else if ( inType[ image ] == UNSIGNED_SHORT )
+					value = ( (short[])plane )[ rowIndex[ i ] + (int)l ] & 0xffff;
+				else if ( inType[ image ] == UNSIGNED_BYTE )
+					value = ( (byte[])plane )[ rowIndex[ i ] + (int)l ] & 0xff;
+				else
+					value = ( (float[])plane )[ rowIndex[ i ] + (int)l ];
+
+				fusion.addValue( value, image, p );
+
+				if ( shortCircuit != null && shortCircuit.isSaturated() )
+					break;
+			}
+
+			// the same conversion as setReal() of the types
+			if ( outType == UNSIGNED_SHORT )
+				( (short[])outPlane )[ outIndex ] = (short)Util.round( fusion.getValue() );
+			else if ( outType == UNSIGNED_BYTE )
+				( (byte[])outPlane )[ outIndex ] = (byte)Util.round( fusion.getValue() );
+			else
+				( (float[])outPlane )[ outIndex ] = (float)fusion.getValue();
+		}
+	}
+
+	/**
+	 * @return - if all inputs are interpolated with nearest neighbor, and all inputs and the output are
+	 * {@link PlanarImg}s of a supported type
+	 */
+	public static boolean supports( final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final Img< ? > output )
+	{
+		if ( output.numDimensions() > 3 || getType( output ) < 0 || getPlanes( output ) == null )
+			return false;
+
+		for ( final ImageInterpolation< ? extends RealType< ? > > i : input )
+		{
+			if ( i.isMirrored() || !( i.getInterpolatorFactory() instanceof NearestNeighborInterpolatorFactory ) )
+				return false;
+
+			final Img< ? > img = i.getImg();
+
+			if ( img.numDimensions() > 3 || getType( img ) < 0 || getPlanes( img ) == null )
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return - the type code, or -1 if the type is not supported
+	 */
+	protected static int getType( final Img< ? > img )
+	{
+		final Object type = img.firstElement();
+
+		if ( type instanceof UnsignedShortType )
+			return UNSIGNED_SHORT;
+		else if ( type instanceof UnsignedByteType )
+			return UNSIGNED_BYTE;
+		else if ( type instanceof FloatType )
+			return FLOAT;
+		else
+			return -1;
+	}
+
+	/**
+	 * @return - the primitive array of each plane, or null if it is not a {@link PlanarImg} of the expected arrays
+	 */
+	protected static Object[] getPlanes( final Img< ? > img )
+	{
+		if ( !( img instanceof PlanarImg ) )
+			return null;
+
+		final int type = getType( img );
+		final int numPlanes = img.numDimensions() > 2 ? (int)img.dimension( 2 ) : 1;
+		final Object[] planes = new Object[ numPlanes ];
+
+		for ( int z = 0; z < numPlanes; ++z )
+		{
+			planes[ z ] = ( (PlanarImg< ?, ? >)img ).getPlane( z ).getCurrentStorageArray();
+
+			if ( !( type == UNSIGNED_SHORT && planes[ z ] instanceof short[] ||
+					type == UNSIGNED_BYTE && planes[ z ] instanceof byte[] ||
+					type == FLOAT && planes[ z ] instanceof float[] ) )
+				return null;
+		}
+
+		return planes;
+	}
+}
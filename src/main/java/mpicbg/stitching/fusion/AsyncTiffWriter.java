@@ -0,0 +1,149 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import stitching.utils.Log;
+
+/**
+ * Writes images as TIFF files on a separate thread, so that fusion and disk I/O overlap.
+ * Images are queued by {@link #write(ImagePlus, String)}; once the queue is full the calling
+ * thread blocks until the writer caught up, which limits the number of fused images
+ * waiting in memory.
+ */
+public class AsyncTiffWriter
+{
+	/**
+	 * The default number of images that may wait for being written
+	 */
+	public static int defaultQueueLength = 4;
+
+	// marks the end of the queue
+	private static final Job POISON = new Job( null, null );
+
+	final BlockingQueue< Job > queue;
+	final Thread thread;
+
+	volatile IOException error = null;
+	long waitTime = 0;
+	int numWritten = 0;
+
+	/**
+	 * @param queueLength - how many images may wait for being written before {@link #write(ImagePlus, String)} blocks
+	 */
+	public AsyncTiffWriter( final int queueLength )
+	{
+		this.queue = new ArrayBlockingQueue< Job >( Math.max( 1, queueLength ) );
+
+		this.thread = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for ( Job job = queue.take(); job != POISON; job = queue.take() )
+					{
+						// keep emptying the queue after an error so that nobody blocks forever
+						if ( error != null )
+							continue;
+
+						final boolean success;
+
+						if ( job.imp.getStackSize() > 1 )
+							success = new FileSaver( job.imp ).saveAsTiffStack( job.path );
+						else
+							success = new FileSaver( job.imp ).saveAsTiff( job.path );
+
+						if ( success )
+							++numWritten;
+						else
+							error = new IOException( "Could not write '" + job.path + "'" );
+					}
+				}
+				catch ( InterruptedException e )
+				{
+					error = new IOException( "TIFF writer was interrupted." );
+				}
+			}
+		}, "AsyncTiffWriter" );
+
+		this.thread.setDaemon( true );
+		this.thread.start();
+	}
+
+	/**
+	 * Queues an image for writing, blocks if the queue is full.
+	 *
+	 * @param imp - the image, it must not be modified anymore
+	 * @param path - the file to write
+	 * @throws IOException - if a previous write failed
+	 */
+	public void write( final ImagePlus imp, final String path ) throws IOException
+	{
+		if ( error != null )
+			throw error;
+
+		final long t = System.nanoTime();
+
+		try
+		{
+			queue.put( new Job( imp, path ) );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while waiting for the TIFF writer." );
+		}
+
+		synchronized ( this )
+		{
+			waitTime += System.nanoTime() - t;
+		}
+	}
+
+	/**
+	 * Waits until all queued images are written.
+	 *
+	 * @throws IOException - if any write failed
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			queue.put( POISON );
+			thread.join();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while waiting for the TIFF writer." );
+		}
+
+		Log.debug( "TIFF writer: " + numWritten + " files, fusion waited " + getWaitTime() / 1000000 + " ms for the disk." );
+
+		if ( error != null )
+			throw error;
+	}
+
+	/**
+	 * @return - the total time in ns the callers of {@link #write(ImagePlus, String)} were blocked by a full queue
+	 */
+	public synchronized long getWaitTime() { return waitTime; }
+
+	private static class Job
+	{
+		final ImagePlus imp;
+		final String path;
+
+		Job( final ImagePlus imp, final String path )
+		{
+			this.imp = imp;
+			this.path = path;
+		}
+	}
+}
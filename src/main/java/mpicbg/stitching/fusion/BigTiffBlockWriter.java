@@ -0,0 +1,313 @@
+package mpicbg.stitching.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Writes all fused blocks into one tiled BigTIFF file, so the fused image is not limited by the
+ * 2^31 pixels of an ImageJ plane or by the heap. Every xy-plane of a block becomes one TIFF tile,
+ * it is appended to the file as soon as the block is written. The directories (one per z-slice,
+ * channel and timepoint, in the XYCZT order of ImageJ) are written by {@link #close()}, once the
+ * size of the fused image is known.
+ *
+ * The blocks have to be aligned to a grid of the tile size, which is the case for the blocks of
+ * {@link StreamingFusion} if it uses the same block size. Blocks at the border may be smaller,
+ * they are padded with zeros.
+ *
+ * The file can be opened with Bio-Formats, ImageJ itself does not read BigTIFF.
+ */
+public class BigTiffBlockWriter implements BlockWriter
+{
+	final static int UNSIGNED_BYTE = 0, UNSIGNED_SHORT = 1, FLOAT = 2;
+
+	// TIFF field types
+	final static short ASCII = 2, SHORT = 3, LONG = 4, LONG8 = 16;
+
+	final File file;
+	final RandomAccessFile raf;
+	final FileChannel channel;
+	final int tileWidth, tileHeight;
+
+	// all tiles written so far
+	final ArrayList< Tile > tiles = new ArrayList< Tile >();
+
+	int type = -1;
+	long width = 0, height = 0, depth = 1;
+	int numChannels = 1, numTimePoints = 1;
+
+	/**
+	 * @param file - the BigTIFF file, it is overwritten
+	 * @param blockSize - the size of the blocks in x and y (see {@link StreamingFusion#defaultBlockSize}), it is also the tile size
+	 * @throws IOException
+	 */
+	public BigTiffBlockWriter( final File file, final int[] blockSize ) throws IOException
+	{
+		if ( blockSize[ 0 ] % 16 != 0 || blockSize[ 1 ] % 16 != 0 )
+			throw new IllegalArgumentException( "The block size in x and y has to be a multiple of 16 for TIFF tiles: " + blockSize[ 0 ] + "x" + blockSize[ 1 ] );
+
+		this.file = file;
+		this.tileWidth = blockSize[ 0 ];
+		this.tileHeight = blockSize[ 1 ];
+
+		if ( file.exists() && !file.delete() )
+			throw new IOException( "Could not overwrite '" + file.getAbsolutePath() + "'" );
+
+		this.raf = new RandomAccessFile( file, "rw" );
+		this.channel = raf.getChannel();
+
+		// the header, the offset of the first directory is set by close()
+		final ByteBuffer header = buffer( 16 );
+		header.put( (byte)'I' ).put( (byte)'I' ).putShort( (short)43 ).putShort( (short)8 ).putShort( (short)0 ).putLong( 0 );
+		write( header, 0 );
+	}
+
+	@Override
+	public synchronized < T extends RealType< T > & NativeType< T > > void write( final Img< T > block, final long[] min, final int t, final int c ) throws IOException
+	{
+		final int blockType = getType( block.firstElement() );
+
+		if ( blockType < 0 )
+			throw new IOException( "Unsupported type for BigTIFF: " + block.firstElement().getClass().getSimpleName() );
+
+		if ( type < 0 )
+			type = blockType;
+		else if ( type != blockType )
+			throw new IOException( "All blocks must have the same type." );
+
+		if ( min[ 0 ] % tileWidth != 0 || min[ 1 ] % tileHeight != 0 || block.dimension( 0 ) > tileWidth || block.dimension( 1 ) > tileHeight )
+			throw new IOException( "Block at " + min[ 0 ] + "," + min[ 1 ] + " is not aligned to the " + tileWidth + "x" + tileHeight + " tiles." );
+
+		final int w = (int)block.dimension( 0 );
+		final int h = (int)block.dimension( 1 );
+		final int d = block.numDimensions() > 2 ? (int)block.dimension( 2 ) : 1;
+		final long z0 = min.length > 2 ? min[ 2 ] : 0;
+
+		width = Math.max( width, min[ 0 ] + w );
+		height = Math.max( height, min[ 1 ] + h );
+		depth = Math.max( depth, z0 + d );
+		numChannels = Math.max( numChannels, c );
+		numTimePoints = Math.max( numTimePoints, t );
+
+		final RandomAccess< T > ra = block.randomAccess();
+		final ByteBuffer tile = buffer( tileWidth * tileHeight * bytesPerPixel( type ) );
+
+		for ( int z = 0; z < d; ++z )
+		{
+			// zeros outside of the block
+			Arrays.fill( tile.array(), (byte)0 );
+
+			if ( d > 1 )
+				ra.setPosition( z, 2 );
+
+			for ( int y = 0; y < h; ++y )
+			{
+				ra.setPosition( 0, 0 );
+				ra.setPosition( y, 1 );
+				tile.position( y * tileWidth * bytesPerPixel( type ) );
+
+				for ( int x = 0; x < w; ++x )
+				{
+					final double value = ra.get().getRealDouble();
+
+					if ( type == UNSIGNED_SHORT )
+						tile.putShort( (short)(int)value );
+					else if ( type == UNSIGNED_BYTE )
+						tile.put( (byte)(int)value );
+					else
+						tile.putFloat( (float)value );
+
+					ra.fwd( 0 );
+				}
+			}
+
+			tile.clear();
+
+			final long offset = channel.size();
+			write( tile, offset );
+
+			tiles.add( new Tile( t, c, z0 + z, min[ 0 ] / tileWidth, min[ 1 ] / tileHeight, offset, tile.capacity() ) );
+		}
+	}
+
+	/**
+	 * Writes the directories of all planes and closes the file
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			if ( type < 0 )
+				throw new IOException( "No blocks were written to '" + file.getAbsolutePath() + "'" );
+
+			final long tilesAcross = ( width + tileWidth - 1 ) / tileWidth;
+			final long tilesDown = ( height + tileHeight - 1 ) / tileHeight;
+			final int tilesPerPlane = (int)( tilesAcross * tilesDown );
+			final int numPlanes = (int)( depth * numChannels * numTimePoints );
+
+			// the offset and size of each tile of each plane, missing tiles remain empty
+			final long[][] offsets = new long[ numPlanes ][ tilesPerPlane ];
+			final long[][] byteCounts = new long[ numPlanes ][ tilesPerPlane ];
+
+			for ( final Tile tile : tiles )
+			{
+				final int plane = (int)( ( ( tile.t - 1 ) * depth + tile.z ) * numChannels + ( tile.c - 1 ) );
+				final int index = (int)( tile.y * tilesAcross + tile.x );
+
+				offsets[ plane ][ index ] = tile.offset;
+				byteCounts[ plane ][ index ] = tile.byteCount;
+			}
+
+			final String description = "ImageJ=1.47\nimages=" + numPlanes + "\nchannels=" + numChannels + "\nslices=" + depth +
+					"\nframes=" + numTimePoints + "\nhyperstack=true\n\0";
+
+			// where the offset of the next directory has to be stored, first in the header
+			long next = 8;
+
+			for ( int plane = 0; plane < numPlanes; ++plane )
+			{
+				final long offsetsPos = append( longs( offsets[ plane ] ) );
+				final long byteCountsPos = append( longs( byteCounts[ plane ] ) );
+				final long descriptionPos = plane == 0 ? append( ascii( description ) ) : 0;
+
+				final int numEntries = plane == 0 ? 13 : 12;
+				final ByteBuffer ifd = buffer( 8 + numEntries * 20 + 8 );
+
+				ifd.putLong( numEntries );
+				entry( ifd, 256, LONG, 1, width );
+				entry( ifd, 257, LONG, 1, height );
+				entry( ifd, 258, SHORT, 1, bytesPerPixel( type ) * 8 );
+				entry( ifd, 259, SHORT, 1, 1 ); // no compression
+				entry( ifd, 262, SHORT, 1, 1 ); // black is zero
+				if ( plane == 0 )
+					entry( ifd, 270, ASCII, description.length(), descriptionPos );
+				entry( ifd, 277, SHORT, 1, 1 );
+				entry( ifd, 284, SHORT, 1, 1 );
+				entry( ifd, 322, LONG, 1, tileWidth );
+				entry( ifd, 323, LONG, 1, tileHeight );
+				entry( ifd, 324, LONG8, tilesPerPlane, tilesPerPlane == 1 ? offsets[ plane ][ 0 ] : offsetsPos );
+				entry( ifd, 325, LONG8, tilesPerPlane, tilesPerPlane == 1 ? byteCounts[ plane ][ 0 ] : byteCountsPos );
+				entry( ifd, 339, SHORT, 1, type == FLOAT ? 3 : 1 );
+				ifd.putLong( 0 );
+
+				ifd.flip();
+				final long ifdPos = append( ifd );
+
+				// link it from the previous directory
+				final ByteBuffer link = buffer( 8 );
+				link.putLong( ifdPos ).flip();
+				write( link, next );
+
+				next = ifdPos + 8 + numEntries * 20;
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	protected static void entry( final ByteBuffer ifd, final int tag, final short type, final long count, final long value )
+	{
+		ifd.putShort( (short)tag ).putShort( type ).putLong( count );
+
+		// values that fit into the entry are left-aligned
+		if ( type == SHORT && count == 1 )
+			ifd.putShort( (short)value ).putShort( (short)0 ).putInt( 0 );
+		else if ( type == LONG && count == 1 )
+			ifd.putInt( (int)value ).putInt( 0 );
+		else
+			ifd.putLong( value );
+	}
+
+	protected long append( final ByteBuffer buffer ) throws IOException
+	{
+		final long pos = channel.size();
+		write( buffer, pos );
+		return pos;
+	}
+
+	protected void write( final ByteBuffer buffer, final long pos ) throws IOException
+	{
+		buffer.rewind();
+
+		long p = pos;
+		while ( buffer.hasRemaining() )
+			p += channel.write( buffer, p );
+	}
+
+	protected static ByteBuffer longs( final long[] values )
+	{
+		final ByteBuffer buffer = buffer( values.length * 8 );
+
+		for ( final long v : values )
+			buffer.putLong( v );
+
+		buffer.flip();
+		return buffer;
+	}
+
+	protected static ByteBuffer ascii( final String s )
+	{
+		final ByteBuffer buffer = buffer( s.length() );
+
+		for ( int i = 0; i < s.length(); ++i )
+			buffer.put( (byte)s.charAt( i ) );
+
+		buffer.flip();
+		return buffer;
+	}
+
+	protected static ByteBuffer buffer( final int size )
+	{
+		return ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	protected static int bytesPerPixel( final int type )
+	{
+		return type == UNSIGNED_BYTE ? 1 : type == UNSIGNED_SHORT ? 2 : 4;
+	}
+
+	protected static int getType( final Object type )
+	{
+		if ( type instanceof UnsignedShortType )
+			return UNSIGNED_SHORT;
+		else if ( type instanceof UnsignedByteType )
+			return UNSIGNED_BYTE;
+		else if ( type instanceof FloatType )
+			return FLOAT;
+		else
+			return -1;
+	}
+
+	private static class Tile
+	{
+		final int t, c;
+		final long z, x, y, offset, byteCount;
+
+		Tile( final int t, final int c, final long z, final long x, final long y, final long offset, final long byteCount )
+		{
+			this.t = t;
+			this.c = c;
+			this.z = z;
+			this.x = x;
+			this.y = y;
+			this.offset = offset;
+			this.byteCount = byteCount;
+		}
+	}
+}
@@ -91,23 +91,36 @@ public class BlendingPixelFusion implements PixelFusion
 		double minDistance = 1;
 		
 		for ( int dim = 0; dim < location.length; ++dim )
-		{
-			// the position in the image
-			final double localImgPos = location[ dim ];
-			
-			// the distance to the border that is closer
-			double value = Math.max( 1, Math.min( localImgPos - border[ dim ] + 1, (dimensions[ dim ] - 1) - localImgPos - border[ dim ] + 1 ) );
-						
-			final float imgAreaBlend = Math.round( percentScaling * 0.5f * dimensions[ dim ] );
-			
-			if ( value < imgAreaBlend )
-				value = value / imgAreaBlend;
-			else
-				value = 1;
-			
-			minDistance *= value;
-		}
+			minDistance *= computeDistance( location[ dim ], dimensions[ dim ], border[ dim ], percentScaling );
 		
+		return computeWeight( minDistance );
+	}
+
+	/**
+	 * The relative distance to the closer border along one dimension
+	 * 
+	 * @return - [0...1], 1 if outside of the blending area
+	 */
+	final public static double computeDistance( final double localImgPos, final long dimension, final double border, final double percentScaling )
+	{
+		// the distance to the border that is closer
+		double value = Math.max( 1, Math.min( localImgPos - border + 1, (dimension - 1) - localImgPos - border + 1 ) );
+				
+		final float imgAreaBlend = Math.round( percentScaling * 0.5f * dimension );
+		
+		if ( value < imgAreaBlend )
+			value = value / imgAreaBlend;
+		else
+			value = 1;
+		
+		return value;
+	}
+
+	/**
+	 * The blending weight for the product of the relative distances of all dimensions
+	 */
+	final public static double computeWeight( final double minDistance )
+	{
 		if ( minDistance == 1 )
 			return 1;
 		else if ( minDistance <= 0 )
@@ -115,5 +128,4 @@ public class BlendingPixelFusion implements PixelFusion
 		else
 			return ( Math.cos( (1 - minDistance) * Math.PI ) + 1 ) / 2;				
 	}
-
 }
@@ -0,0 +1,31 @@
+package mpicbg.stitching.fusion;
+
+import java.io.IOException;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Receives finished blocks of a fused image, e.g. to write them to disk as soon as they are computed.
+ */
+public interface BlockWriter
+{
+	/**
+	 * Stores one fused block
+	 * 
+	 * @param block - the fused pixels of the block
+	 * @param min - the position of the first pixel of the block in the fused image
+	 * @param t - the timepoint (starting at 1)
+	 * @param c - the channel (starting at 1)
+	 * @throws IOException
+	 */
+	< T extends RealType< T > & NativeType< T > > void write( Img< T > block, long[] min, int t, int c ) throws IOException;
+
+	/**
+	 * Called once all blocks have been written
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,103 @@
+package mpicbg.stitching.fusion;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * One channel and timepoint of the fused image as ImgLib2 {@link RandomAccessibleInterval}, the planes
+ * are fused when a pixel of them is accessed for the first time (see {@link LazyFusion}). It is read-only,
+ * the pixels are copies of the cached planes and writing to them does not change the fused image.
+ *
+ * @param <T> - the type of the fused image
+ */
+public class FusedRandomAccessibleInterval< T extends RealType< T > & NativeType< T > > extends AbstractInterval implements RandomAccessibleInterval< T >
+{
+	final LazyFusion< T > fusion;
+	final int c, t;
+
+	/**
+	 * @param fusion - fuses the planes
+	 * @param c - the channel (starting at 1)
+	 * @param t - the timepoint (starting at 1)
+	 */
+	public FusedRandomAccessibleInterval( final LazyFusion< T > fusion, final int c, final int t )
+	{
+		super( toLong( fusion.getPlan().getSize() ) );
+
+		this.fusion = fusion;
+		this.c = c;
+		this.t = t;
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess() { return new FusedRandomAccess(); }
+
+	@Override
+	public RandomAccess< T > randomAccess( final Interval interval ) { return randomAccess(); }
+
+	/**
+	 * Keeps the plane it is currently in, so only a change of the z-slice asks the {@link LazyFusion} for another plane
+	 */
+	protected class FusedRandomAccess extends Point implements RandomAccess< T >
+	{
+		int z = -1;
+		RandomAccess< T > plane = null;
+
+		// the pixel is copied, the planes are shared with all other accesses and the cache
+		final T value = fusion.getType().createVariable();
+
+		public FusedRandomAccess()
+		{
+			super( FusedRandomAccessibleInterval.this.numDimensions() );
+		}
+
+		@Override
+		public T get()
+		{
+			final int planeZ = n == 3 ? (int)position[ 2 ] : 0;
+
+			if ( planeZ != z || plane == null )
+			{
+				final Img< T > img = fusion.getPlane( planeZ, c, t );
+
+				plane = img.randomAccess();
+				z = planeZ;
+			}
+
+			plane.setPosition( position[ 0 ], 0 );
+			plane.setPosition( position[ 1 ], 1 );
+
+			value.set( plane.get() );
+
+			return value;
+		}
+
+		@Override
+		public FusedRandomAccess copy()
+		{
+			final FusedRandomAccess copy = new FusedRandomAccess();
+			copy.setPosition( this );
+
+			return copy;
+		}
+
+		@Override
+		public FusedRandomAccess copyRandomAccess() { return copy(); }
+	}
+
+	private static long[] toLong( final int[] size )
+	{
+		final long[] dim = new long[ size.length ];
+
+		for ( int d = 0; d < size.length; ++d )
+			dim[ d ] = size[ d ];
+
+		return dim;
+	}
+}
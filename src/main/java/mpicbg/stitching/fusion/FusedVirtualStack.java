@@ -0,0 +1,120 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+
+import mpicbg.models.InvertibleBoundable;
+import net.imglib2.exception.ImgLibException;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import stitching.utils.Log;
+
+/**
+ * A {@link VirtualStack} of the fused image whose planes are fused when ImageJ displays them
+ * (see {@link LazyFusion}). The planes are in the XYCZT order of ImageJ, use {@link #createImagePlus(String)}
+ * to get a hyperstack with the right dimensions.
+ */
+public class FusedVirtualStack extends VirtualStack
+{
+	final LazyFusion< ? > fusion;
+	final int numSlices, numChannels, numTimePoints;
+
+	public FusedVirtualStack( final LazyFusion< ? > fusion )
+	{
+		super( fusion.getPlan().getSize()[ 0 ], fusion.getPlan().getSize()[ 1 ], null, null );
+
+		this.fusion = fusion;
+		this.numSlices = fusion.numSlices();
+		this.numChannels = fusion.numChannels();
+		this.numTimePoints = fusion.numTimePoints();
+	}
+
+	/**
+	 * @return - an {@link ImagePlus} showing this stack with the channels, slices and timepoints set
+	 */
+	public ImagePlus createImagePlus( final String title )
+	{
+		final ImagePlus imp = new ImagePlus( title, this );
+		imp.setDimensions( numChannels, numSlices, numTimePoints );
+
+		if ( numChannels > 1 || numTimePoints > 1 )
+			imp.setOpenAsHyperStack( true );
+
+		return imp;
+	}
+
+	/**
+	 * Fuses the plane if it is not cached. Returns a copy of the cached plane, so that changes made
+	 * in ImageJ do not end up in the cache.
+	 *
+	 * @param n - the index of the plane, starting at 1
+	 */
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		final int i = n - 1;
+		final int c = i % numChannels + 1;
+		final int z = ( i / numChannels ) % numSlices;
+		final int t = i / ( numChannels * numSlices ) + 1;
+
+		final Img< ? > plane = fusion.getPlane( z, c, t );
+
+		try
+		{
+			return ( (ImagePlusImg< ?, ? >)plane ).getImagePlus().getStack().getProcessor( 1 ).duplicate();
+		}
+		catch ( ImgLibException e )
+		{
+			Log.error( "Fused plane has no ImageJ type: " + e );
+			return null;
+		}
+	}
+
+	@Override
+	public Object getPixels( final int n )
+	{
+		final ImageProcessor ip = getProcessor( n );
+		return ip == null ? null : ip.getPixels();
+	}
+
+	/**
+	 * The planes are computed, they cannot be changed
+	 */
+	@Override
+	public void setPixels( final Object pixels, final int n ) {}
+
+	@Override
+	public int getSize() { return numSlices * numChannels * numTimePoints; }
+
+	@Override
+	public String getSliceLabel( final int n )
+	{
+		final int i = n - 1;
+		return "c:" + ( i % numChannels + 1 ) + " z:" + ( ( i / numChannels ) % numSlices + 1 ) + " t:" + ( i / ( numChannels * numSlices ) + 1 );
+	}
+
+	/**
+	 * @return - the {@link LazyFusion} that computes the planes
+	 */
+	public LazyFusion< ? > getFusion() { return fusion; }
+
+	/**
+	 * Creates a lazily fused image with the default cache sizes.
+	 *
+	 * @return - the {@link ImagePlus}, no plane is fused yet
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images,
+			final ArrayList< InvertibleBoundable > models, final int dimensionality, final boolean subpixelResolution,
+			final int fusionType, final boolean ignoreZeroValues, final long[] regionMin, final long[] regionMax )
+	{
+		final LazyFusion< T > fusion = new LazyFusion< T >( targetType, images, models, dimensionality, subpixelResolution, fusionType, ignoreZeroValues,
+				regionMin, regionMax, LazyFusion.defaultPlaneCacheBytes(), StreamingFusion.defaultCacheBytes() );
+
+		return new FusedVirtualStack( fusion ).createImagePlus( "Fused" );
+	}
+}
@@ -6,25 +6,20 @@ import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.io.FileSaver;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 import java.util.Stack;
-import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import mpicbg.imglib.cursor.LocalizableByDimCursor;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.NoninvertibleModelException;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RealRandomAccess;
 import net.imglib2.exception.ImgLibException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
@@ -32,10 +27,8 @@ import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
-import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
-import net.imglib2.multithreading.Chunk;
 import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
@@ -66,17 +59,50 @@ public class Fusion
 	public static < T extends RealType< T > & NativeType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
 			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final boolean noOverlap, final boolean ignoreZeroValues, final boolean displayImages )
 	{
-		// first we need to estimate the boundaries of the new image
-		final double[] offset = new double[ dimensionality ];
-		final int[] size = new int[ dimensionality ];
+		return fuse( targetType, images, models, dimensionality, subpixelResolution, fusionType, outputDirectory, noOverlap, ignoreZeroValues, displayImages, null, null );
+	}
+
+	/**
+	 * Fuses only a region of the fused image, only the tiles that intersect it are read.
+	 * 
+	 * @param targetType
+	 * @param images
+	 * @param models
+	 * @param dimensionality
+	 * @param subpixelResolution - if there is no subpixel resolution, we do not need to convert to float as no interpolation is necessary, we can compute everything with RealType
+	 * @param regionMin - the first pixel of the region in the coordinates of the complete fused image, or null to fuse everything
+	 * @param regionMax - the last pixel of the region (inclusive), or null to fuse everything
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final boolean noOverlap, final boolean ignoreZeroValues, final boolean displayImages,
+			final long[] regionMin, final long[] regionMax )
+	{
+		return fuse( targetType, images, models, dimensionality, subpixelResolution, fusionType, outputDirectory, noOverlap, ignoreZeroValues, displayImages, regionMin, regionMax, 0 );
+	}
+
+	/**
+	 * Fuses a region of the fused image and writes downsampled levels of every slice next to it if it is written to disk.
+	 * 
+	 * @param regionMin - the first pixel of the region in the coordinates of the complete fused image, or null to fuse everything
+	 * @param regionMax - the last pixel of the region (inclusive), or null to fuse everything
+	 * @param downsampledLevels - how many 2x downsampled levels of each slice are written when fusing to disk, level k goes into
+	 * the subdirectory s[k] of the output directory (see {@link PyramidBlockWriter#downsample(Img)}), ignored for display
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final boolean noOverlap, final boolean ignoreZeroValues, final boolean displayImages,
+			final long[] regionMin, final long[] regionMax, final int downsampledLevels )
+	{
 		final int numTimePoints = images.get( 0 ).getNFrames();
 		final int numChannels = images.get( 0 ).getNChannels();
-		
-		estimateBounds( offset, size, images, models, dimensionality );
-		
-		if ( subpixelResolution )
-			for ( int d = 0; d < size.length; ++d )
-				++size[ d ];
+
+		// the boundaries of the new image and the decomposition into regions are the same
+		// for all channels and timepoints, so we compute them only once
+		final FusionPlan plan = getPlan( images, models, dimensionality, subpixelResolution, regionMin, regionMax );
+		final double[] offset = plan.getOffset();
+		final int[] size = plan.getSize();
+
+		// only the images that contribute to the fused region
+		final ArrayList< ImagePlus > tiles = plan.select( images );
 		
 		// for output
 		final ImgFactory<T> f = new ImagePlusImgFactory<T>();
@@ -106,124 +132,33 @@ public class Fusion
 				else
 					out = f.create( new int[] { size[ 0 ], size[ 1 ] }, targetType ); // just create a slice
 
-				// init the fusion
-				PixelFusion fusion = null;
-				
-				if ( fusionType == 1 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new AveragePixelFusionIgnoreZero();
-					else
-						fusion = new AveragePixelFusion();
-				}
-				else if ( fusionType == 2 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MedianPixelFusionIgnoreZero();
-					else
-						fusion = new MedianPixelFusion();
-				}
-				else if ( fusionType == 3 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MaxPixelFusionIgnoreZero();
-					else
-						fusion = new MaxPixelFusion();
-				}
-				else if ( fusionType == 4 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MinPixelFusionIgnoreZero();
-					else
-						fusion = new MinPixelFusion();	
-				}
-				else if ( fusionType == 5 )
-				{
-					fusion = new OverlapFusion();
-				}
-				
 				// extract the complete blockdata
-				if ( subpixelResolution )
-				{
-					final ArrayList< ImageInterpolation< FloatType > > blockData = new ArrayList< ImageInterpolation< FloatType > >();
+				// can be a mixture of different RealTypes if there is no subpixel resolution
+				final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
 
-					// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
-					final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory = new NLinearInterpolatorFactory< FloatType >();// new OutOfBoundsStrategyMirrorFactory<FloatType>() );
-					
-					for ( final ImagePlus imp : images )
-						blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory, true ) );
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );
-					}
-					
-					if ( outputDirectory == null )
-					{
-						fuseBlock( out, blockData, offset, models, fusion, displayImages );
-					}
+				for ( final ImagePlus imp : tiles )
+					blockData.add( getImageInterpolation( imp, c, t, subpixelResolution ) );
+
+				// init the fusion (blending needs the images)
+				final PixelFusion fusion = getPixelFusion( fusionType, ignoreZeroValues, blockData, plan.getMaxOverlap(), plan.getOffset(), plan.getTranslations() );
+
+				if ( outputDirectory == null )
+				{
+					if ( noOverlap && !subpixelResolution )
+						fuseBlockNoOverlap( out, blockData, offset, plan.getModels(), displayImages );
 					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-					}
+						plan.fuse( out, blockData, fusion, displayImages );
 				}
 				else
 				{
-					// can be a mixture of different RealTypes
-					final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
-
-					final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactoryFloat = new NearestNeighborInterpolatorFactory< FloatType >();// new OutOfBoundsStrategyValueFactory<FloatType>() );
-					final InterpolatorFactory< UnsignedShortType, RandomAccessible< UnsignedShortType > > interpolatorFactoryShort = new NearestNeighborInterpolatorFactory< UnsignedShortType >();// new OutOfBoundsStrategyValueFactory<UnsignedShortType>() );
-					final InterpolatorFactory< UnsignedByteType, RandomAccessible< UnsignedByteType > > interpolatorFactoryByte = new NearestNeighborInterpolatorFactory< UnsignedByteType >();// new OutOfBoundsStrategyValueFactory<UnsignedByteType>() );
-
-					for ( final ImagePlus imp : images )
-					{
-						if ( imp.getType() == ImagePlus.GRAY32 )
-							blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryFloat, false ) );
-						else if ( imp.getType() == ImagePlus.GRAY16 )
-							blockData.add( new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryShort, false ) );
-						else
-							blockData.add( new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryByte, false ) );
-					}
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );					
-					}
+					final int numSlices;
 					
-					if ( outputDirectory == null )
-					{
-						if ( noOverlap )
-							fuseBlockNoOverlap( out, blockData, offset, models, displayImages );
-						else
-							fuseBlock( out, blockData, offset, models, fusion, displayImages );
-					}
+					if ( dimensionality == 2 )
+						numSlices = 1;
 					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-					}
+						numSlices = size[ 2 ];
+					
+					writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, plan, fusion, outputDirectory, downsampledLevels );
 				}
 				
 				// add to stack
@@ -272,6 +207,168 @@ public class Fusion
 		return result;
 	}
 	
+	/**
+	 * Computes the {@link FusionPlan} of all images, cropped to a region if one is given
+	 * 
+	 * @param min - the first pixel of the region in the coordinates of the complete fused image, or null
+	 * @param max - the last pixel of the region (inclusive), or null
+	 * @return - the plan, its images are a subset of all images if it is cropped (see {@link FusionPlan#select(List)})
+	 */
+	public static FusionPlan getPlan( final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final long[] min, final long[] max )
+	{
+		final FusionPlan plan = new FusionPlan( images, models, dimensionality, subpixelResolution );
+
+		if ( min == null || max == null )
+			return plan;
+
+		final FusionPlan cropped = plan.crop( min, max );
+		final int[] size = cropped.getSize();
+
+		Log.info( "Fusing a region of " + size[ 0 ] + "x" + size[ 1 ] + ( dimensionality == 3 ? "x" + size[ 2 ] : "" ) + "px, " +
+				cropped.numImages() + " of " + plan.numImages() + " tiles contribute to it." );
+
+		return cropped;
+	}
+
+	/**
+	 * Creates the {@link PixelFusion} for a certain fusion type
+	 * 
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min, 5 == overlap, 6 == ownership (nearest image center)
+	 * @param ignoreZeroValues - if zero values should not contribute to the fused pixel
+	 * @param images - all input images, needed for blending, ownership and the saturation of max and min
+	 * @return - the {@link PixelFusion} or null if the fusion type is unknown
+	 */
+	protected static PixelFusion getPixelFusion( final int fusionType, final boolean ignoreZeroValues, final ArrayList< ? extends ImageInterpolation< ? > > images )
+	{
+		return getPixelFusion( fusionType, ignoreZeroValues, images, images.size() );
+	}
+
+	/**
+	 * Creates the {@link PixelFusion} for a certain fusion type
+	 * 
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min, 5 == overlap, 6 == ownership (nearest image center)
+	 * @param ignoreZeroValues - if zero values should not contribute to the fused pixel
+	 * @param images - all input images, needed for blending, ownership and the saturation of max and min
+	 * @param maxOverlap - the maximal number of images contributing to one pixel (see {@link FusionPlan#getMaxOverlap()})
+	 * @return - the {@link PixelFusion} or null if the fusion type is unknown
+	 */
+	protected static PixelFusion getPixelFusion( final int fusionType, final boolean ignoreZeroValues, final ArrayList< ? extends ImageInterpolation< ? > > images, final int maxOverlap )
+	{
+		return getPixelFusion( fusionType, ignoreZeroValues, images, maxOverlap, null, null );
+	}
+
+	/**
+	 * Creates the {@link PixelFusion} for a certain fusion type, blending looks up the weights of translated
+	 * images in precomputed tables (see {@link TabulatedBlendingPixelFusion})
+	 * 
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min, 5 == overlap, 6 == ownership (nearest image center)
+	 * @param ignoreZeroValues - if zero values should not contribute to the fused pixel
+	 * @param images - all input images, needed for blending, ownership and the saturation of max and min
+	 * @param maxOverlap - the maximal number of images contributing to one pixel (see {@link FusionPlan#getMaxOverlap()})
+	 * @param offset - global position of the first pixel of the output, or null
+	 * @param translations - the translation of each image (see {@link FusionPlan#getTranslations()}), or null
+	 * @return - the {@link PixelFusion} or null if the fusion type is unknown
+	 */
+	protected static PixelFusion getPixelFusion( final int fusionType, final boolean ignoreZeroValues, final ArrayList< ? extends ImageInterpolation< ? > > images, final int maxOverlap,
+			final double[] offset, final double[][] translations )
+	{
+		if ( fusionType == 0 && offset != null && translations != null )
+		{
+			if ( ignoreZeroValues )
+				return new TabulatedBlendingPixelFusionIgnoreZero( images, offset, translations );
+			else
+				return new TabulatedBlendingPixelFusion( images, offset, translations );
+		}
+		else if ( fusionType == 0 )
+		{
+			if ( ignoreZeroValues )
+				return new BlendingPixelFusionIgnoreZero( images );
+			else
+				return new BlendingPixelFusion( images );
+		}
+		else if ( fusionType == 1 )
+		{
+			if ( ignoreZeroValues )
+				return new AveragePixelFusionIgnoreZero();
+			else
+				return new AveragePixelFusion();
+		}
+		else if ( fusionType == 2 )
+		{
+			if ( ignoreZeroValues )
+				return new QuickMedianPixelFusionIgnoreZero( maxOverlap );
+			else
+				return new QuickMedianPixelFusion( maxOverlap );
+		}
+		else if ( fusionType == 3 )
+		{
+			// no image can have a higher value than its type allows
+			double saturation = -Double.MAX_VALUE;
+			for ( final ImageInterpolation< ? > image : images )
+				saturation = Math.max( saturation, image.getImg().firstElement().getMaxValue() );
+
+			if ( ignoreZeroValues )
+				return new MaxPixelFusionIgnoreZero( saturation );
+			else
+				return new MaxPixelFusion( saturation );
+		}
+		else if ( fusionType == 4 )
+		{
+			double saturation = Double.MAX_VALUE;
+			for ( final ImageInterpolation< ? > image : images )
+				saturation = Math.min( saturation, image.getImg().firstElement().getMinValue() );
+
+			if ( ignoreZeroValues )
+				return new MinPixelFusionIgnoreZero( saturation );
+			else
+				return new MinPixelFusion( saturation );	
+		}
+		else if ( fusionType == 5 )
+		{
+			return new OverlapFusion();
+		}
+		else if ( fusionType == 6 )
+		{
+			return new OwnershipPixelFusion( images );
+		}
+
+		return null;
+	}
+
+	/**
+	 * Wraps (or converts) one channel and timepoint of an input {@link ImagePlus} for fusion.
+	 * 
+	 * @param imp - the input image
+	 * @param c - the channel (starting at 1)
+	 * @param t - the timepoint (starting at 1)
+	 * @param subpixelResolution - if true, the image is converted to {@link FloatType} and linearly interpolated,
+	 * otherwise it is wrapped with its own type and nearest neighbor interpolation
+	 * @return - the interpolatable image
+	 */
+	protected static ImageInterpolation< ? extends RealType< ? > > getImageInterpolation( final ImagePlus imp, final int c, final int t, final boolean subpixelResolution )
+	{
+		final ImagePlus chunk = Hyperstack_rearranger.getImageChunk( imp, c, t );
+
+		if ( subpixelResolution )
+		{
+			// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
+			return new ImageInterpolation< FloatType >( ImageJFunctions.convertFloat( chunk ), new NLinearInterpolatorFactory< FloatType >(), true );
+		}
+		else if ( imp.getType() == ImagePlus.GRAY32 )
+		{
+			return new ImageInterpolation< FloatType >( ImageJFunctions.wrapFloat( chunk ), new NearestNeighborInterpolatorFactory< FloatType >(), false );
+		}
+		else if ( imp.getType() == ImagePlus.GRAY16 )
+		{
+			return new ImageInterpolation< UnsignedShortType >( ImageJFunctions.wrapShort( chunk ), new NearestNeighborInterpolatorFactory< UnsignedShortType >(), false );
+		}
+		else
+		{
+			return new ImageInterpolation< UnsignedByteType >( ImageJFunctions.wrapByte( chunk ), new NearestNeighborInterpolatorFactory< UnsignedByteType >(), false );
+		}
+	}
+
 	/**
 	 * Fuse one slice/volume (one channel)
 	 * 
@@ -282,19 +379,46 @@ public class Fusion
 	protected static <T extends RealType<T>> void fuseBlock( final Img<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
 			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final boolean displayFusion )
 	{
-		final int numDimensions = output.numDimensions();
-		final int numImages = input.size();
-		long size = output.dimension( 0 );
+		final List<ClassifiedRegion> tiles =
+			buildTileList(input.size(), output.numDimensions(), transform, input, offset);
 
-		for (int d = 1; d < output.numDimensions(); ++d) {
-			size *= output.dimension(d);
-		}
+		fuseRegions( output, input, offset, transform, fusion, tiles, displayFusion );
+	}
 
-		final List<ClassifiedRegion> tiles =
-			buildTileList(numImages, numDimensions, transform, input, offset);
+	/**
+	 * Fuse a given list of non-overlapping {@link ClassifiedRegion}s into the
+	 * output. The regions are defined in the coordinates of the output image,
+	 * the offset maps them into the global coordinates of the models.
+	 * 
+	 * @param output - the output image (or block of it)
+	 * @param input - all input images, their index corresponds to the classes of the regions
+	 * @param offset - global position of the first pixel of the output
+	 * @param transform - the transformation of each input image
+	 * @param tiles - the regions to fuse, all must lie inside the output
+	 */
+	protected static <T extends RealType<T>> void fuseRegions( final Img<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final List<ClassifiedRegion> tiles, final boolean displayFusion )
+	{
+		fuseRegions( output, input, offset, transform, null, fusion, tiles, displayFusion );
+	}
+
+	/**
+	 * Same as {@link #fuseRegions(Img, ArrayList, double[], ArrayList, PixelFusion, List, boolean)},
+	 * but with the translations of the images already resolved (see {@link FusionPlan#getTranslations()}).
+	 * 
+	 * @param translations - the translation of each input image, null entries (or null) for models that are no pure translation
+	 */
+	protected static <T extends RealType<T>> void fuseRegions( final Img<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
+			final ArrayList< InvertibleBoundable > transform, final double[][] translations, final PixelFusion fusion, final List<ClassifiedRegion> tiles, final boolean displayFusion )
+	{
+		final FusionScheduler scheduler = FusionScheduler.getInstance();
 
 		IJ.showProgress( 0 );
 
+		// regions that are owned by one image only need to read this image
+		final List<ClassifiedRegion> regions = fusion instanceof OwnershipPixelFusion ?
+			((OwnershipPixelFusion) fusion).assignOwners(tiles, offset, translations) : tiles;
+
 		final ImagePlus[] fusionImp = new ImagePlus[1];
 
 		if (displayFusion) {
@@ -308,58 +432,123 @@ public class Fusion
 			}
 		}
 
-    final Thread[] threads = SimpleMultiThreading.newThreads();
-		final TileProcessor<T>[] processors = new TileProcessor[threads.length];
-		final List<ArrayList<RealRandomAccess<? extends RealType<?>>>> interpolators =
-				new ArrayList<ArrayList<RealRandomAccess<? extends RealType<?>>>>();
-		final long positionsPerThread = size / threads.length;
-
-		// These fields need to be used within each thread, but modified from
-    // the outer loop. Thus the use of arrays/vectors.
-		final int[] count = new int[1]; // positions processed
-		final ClassifiedRegion[] currentTile = new ClassifiedRegion[1]; // current region being processed
-		final Vector<Chunk> threadChunks = new Vector<Chunk>(); // work divisions for current region
-		final int[] loopDim = new int[1]; // Dimension to split up work on
-
-		// Initialize the TileProcessors. These will be reused by each thread.
-		for (int i = 0; i < threads.length; ++i) {
-			processors[i] =
-				new TileProcessor<T>(i, interpolators, input, threadChunks, numImages,
-					output, fusion, currentTile, transform, fusionImp, count,
-					positionsPerThread, offset, loopDim);
+		// Split all regions into units of similar size that are handed out to
+		// the workers dynamically, so that many tiny overlap regions do not
+		// require a barrier each and a huge region does not stall one thread.
+		long size = 0;
+		for (final ClassifiedRegion r : regions) {
+			size += numPixels(r);
 		}
 
-		// Process each tile
-		for (int tileIndex = 0; tileIndex < tiles.size(); tileIndex++) {
-			currentTile[0] = tiles.get(tileIndex);
+		final long maxUnitSize =
+			Math.max(minUnitSize, size / (scheduler.numThreads() * unitsPerWorker));
+		final List<ClassifiedRegion> units = splitIntoWorkUnits(regions, maxUnitSize);
+		final double positionsPerThread =
+			(double) size / Math.min(scheduler.numThreads(), Math.max(1, units.size()));
+
+		scheduler.run(units.size(), new FusionScheduler.WorkerFactory() {
+
+			@Override
+			public FusionScheduler.Worker createWorker(final int workerId) {
+				return new TileProcessor<T>(workerId, units, input, output, fusion,
+					transform, translations, fusionImp[0], positionsPerThread, offset);
+			}
+		});
+
+		if (fusionImp[0] != null) fusionImp[0].hide();
+	}
+
+	/**
+	 * The minimal number of pixels of a work unit, smaller units only
+	 * cause scheduling overhead.
+	 */
+	public static long minUnitSize = 4096;
+
+	/**
+	 * How many units each worker should get on average, more units give a
+	 * better balance at the end of a fusion.
+	 */
+	public static int unitsPerWorker = 16;
+
+	/**
+	 * Recursively halves each region along its largest dimension until it has
+	 * at most {@code maxUnitSize} pixels. The resulting units keep the classes
+	 * of their region and are sorted by decreasing size, so the largest ones
+	 * are processed first and the small ones fill up the gaps at the end.
+	 */
+	static List<ClassifiedRegion> splitIntoWorkUnits(
+		final List<ClassifiedRegion> regions, final long maxUnitSize)
+	{
+		final ArrayList<ClassifiedRegion> units = new ArrayList<ClassifiedRegion>();
+		final Stack<ClassifiedRegion> toSplit = new Stack<ClassifiedRegion>();
+
+		toSplit.addAll(regions);
 
-			// Initialize each thread for this tile
-			for (int threadID = 0; threadID < threads.length; ++threadID) {
-				threads[threadID] = new Thread(processors[threadID]);
+		while (!toSplit.isEmpty()) {
+			final ClassifiedRegion r = toSplit.pop();
+
+			int splitDim = 0;
+			for (int d = 1; d < r.size(); d++) {
+				if (length(r.get(d)) > length(r.get(splitDim))) {
+					splitDim = d;
+				}
+			}
+
+			if (numPixels(r) <= maxUnitSize || length(r.get(splitDim)) < 2) {
+				units.add(r);
+				continue;
 			}
 
-			// Decide which dimension to use to split up work for each thread.
-			// We want to pick the largest dimension as this gives us the best chance
-			// of evenly dividing work when using multiple threads
-			int dimensionSize = -1;
-			for (int d=0; d<currentTile[0].size(); d++) {
-				int tmpSize = currentTile[0].get(d).max() - currentTile[0].get(d).min() + 1;
-				if (tmpSize > dimensionSize) {
-					dimensionSize = tmpSize;
-					loopDim[0] = d;
+			final Interval ival = r.get(splitDim);
+			final int mid = ival.min() + length(ival) / 2;
+
+			final ClassifiedRegion lower = new ClassifiedRegion(r.size());
+			final ClassifiedRegion upper = new ClassifiedRegion(r.size());
+
+			for (int d = 0; d < r.size(); d++) {
+				if (d == splitDim) {
+					lower.set(new Interval(ival.min(), mid - 1), d);
+					upper.set(new Interval(mid, ival.max()), d);
+				}
+				else {
+					lower.set(r.get(d), d);
+					upper.set(r.get(d), d);
 				}
 			}
 
-			// Specify the loop ranges for each thread
-			threadChunks.clear();
-			threadChunks.addAll(SimpleMultiThreading.divideIntoChunks(dimensionSize,
-				threads.length));
+			lower.addAllClasses(r);
+			upper.addAllClasses(r);
 
-			// Start the work for this tile
-			SimpleMultiThreading.startAndJoin(threads);
+			toSplit.push(lower);
+			toSplit.push(upper);
 		}
 
-		if (fusionImp[0] != null) fusionImp[0].hide();
+		Collections.sort(units, new Comparator<ClassifiedRegion>() {
+
+			@Override
+			public int compare(final ClassifiedRegion o1, final ClassifiedRegion o2) {
+				final long s1 = numPixels(o1);
+				final long s2 = numPixels(o2);
+				return s1 < s2 ? 1 : s1 == s2 ? 0 : -1;
+			}
+		});
+
+		return units;
+	}
+
+	private static int length(final Interval ival) {
+		return ival.max() - ival.min() + 1;
+	}
+
+	/**
+	 * @return The number of pixels covered by a region
+	 */
+	static long numPixels(final ClassifiedRegion r) {
+		long size = 1;
+		for (int d = 0; d < r.size(); d++) {
+			size *= length(r.get(d));
+		}
+		return size;
 	}
 
 	/**
@@ -367,13 +556,33 @@ public class Fusion
 	 * dimensions and position of each tile are based on the input and offset
 	 * parameters. From these, all overlaps are computed, and ultimately a list of
 	 * {@link ClassifiedRegion}s is created such that no region overlaps. Each
-	 * region is classified based on what source images overlapped with it.
+	 * region is classified based on what source images overlapped with it (see
+	 * {@link RegionDecomposition}).
 	 */
 	private static List<ClassifiedRegion> buildTileList(int numImages,
 		int numDimensions, ArrayList<InvertibleBoundable> transform,
 		ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input, double[] offset)
 	{
-		Stack<ClassifiedRegion> rawTiles = new Stack<ClassifiedRegion>();
+		final long[][] dimensions = new long[numImages][numDimensions];
+
+		for (int i = 0; i < numImages; ++i) {
+			input.get(i).getImg().dimensions(dimensions[i]);
+		}
+
+		return buildTileList(numImages, numDimensions, transform, dimensions, offset);
+	}
+
+	/**
+	 * Same as
+	 * {@link #buildTileList(int, int, ArrayList, ArrayList, double[])}, but
+	 * only needs the dimensions of the input images (so they do not have to be
+	 * loaded yet).
+	 */
+	static List<ClassifiedRegion> buildTileList(int numImages,
+		int numDimensions, ArrayList<InvertibleBoundable> transform,
+		long[][] dimensions, double[] offset)
+	{
+		final List<ClassifiedRegion> rawTiles = new ArrayList<ClassifiedRegion>();
 
 		for ( int i = 0; i < numImages; ++i ){
 				final double[] min = new double[ numDimensions ];
@@ -385,399 +594,71 @@ public class Fusion
 				// Sets each interval to the smallest possible, by rounding the min up and the max down
 				Interval ival =
 					new Interval((int) Math.ceil(min[d]), (int) Math.floor(min[d] +
-						input.get(i).getImg().dimension(d) - 1));
+						dimensions[i][d] - 1));
 				// Build our list of positions
 				shape.set(ival, d);
 			}
-			rawTiles.push(shape);
+			rawTiles.add(shape);
 		}
 
-		// Set of placed tiles. Goal is to move all of the known positions
-		// to this set, creating new regions as needed such that there is no
-		// overlap between regions. Then use this set to drive iteration and
-		// fusion.
-		final Set<ClassifiedRegion> placedTiles = new HashSet<ClassifiedRegion>();
-
-		// Process each position. We need to look through all placed regions and
-		// if we find an intersection, create a new set of regions, add them
-		// to the appropriate sets, and continue
-		while (!rawTiles.isEmpty()) {
-			// Get the next tile to process
-			ClassifiedRegion queryTile = rawTiles.pop();
-			ClassifiedRegion toRemove = null;
-			//TODO instead of iterating we really should use a look up tree structure, as this
-			// is still quite slow with larger datasets.
-			// Iterate over all placed shapes.
-			for (ClassifiedRegion placedTile : placedTiles) {
-				if (queryTile.intersects(placedTile)) {
-					// can't remove while iterating
-					toRemove = placedTile;
-					// The first time we find an overlapping between tiles, we split the
-					// two tiles into tile components and place them in the appropriate
-					// lists. Then quit this loop (as our query shape is no longer valid)
-					// and continue the process
-					splitOverlappingRegions(placedTiles, rawTiles, queryTile, placedTile);
-					break;
-				}
-			}
-			// If we found an intersection, the query tile and placed tile were broken
-			// down and should be discarded
-			if (toRemove != null) {
-				placedTiles.remove(toRemove);
-			}
-			// No intersections found, so just place the tile and continue.
-			else {
-				placedTiles.add(queryTile);
-			}
-		}
-		return new ArrayList<ClassifiedRegion>(placedTiles);
+		return RegionDecomposition.decompose(rawTiles);
 	}
 
 	/**
-	 * Takes two overlapping regions and deconstructs them into a set of non-overlapping regions.
-	 * Each resulting region gains the classification(s) of its parent(s). Parents are differentiated
-	 * by "query" and "placed" - where "placed" is assumed to come from the {@code placedTiles} set,
-	 * and thus will not overlap with any other tile in that set. The "query" tile is what we are
-	 * currently investigating for overlap, so any children of the query tile must be added back to
-	 * the set of tiles that will be used for further overlap checks.
+	 * Helper class to perform tile processing (iteration through a region, fusion
+	 * of input pixels, and population of output pixels). One is created per
+	 * worker of the {@link FusionScheduler}, it processes whichever work units
+	 * the worker fetches.
 	 */
-	private static void splitOverlappingRegions(Set<ClassifiedRegion> placedTiles,
-		Stack<ClassifiedRegion> rawTiles, ClassifiedRegion queryTile, ClassifiedRegion placedTile)
-	{
-		// Tiles are different but overlapping. So we need to identify the start and end points of
-		// all potential sub tiles, for each dimension.
-		List<Interval>[] allIntervals = new List[queryTile.size()];
-		for (int i=0; i<allIntervals.length; i++) {
-			List<Interval> intervals = new ArrayList<Interval>();
-			List<Integer> points = new ArrayList<Integer>();
-			points.add(queryTile.get(i).min());
-			points.add(queryTile.get(i).max());
-			points.add(placedTile.get(i).min());
-			points.add(placedTile.get(i).max());
-			// Which tiles the points belong to doesn't matter. We just need to make intervals of the adjacent points
-			Collections.sort(points);
-
-			if (points.get(0).equals(points.get(1))) {
-				// First two points are equal
-				if (points.get(2).equals(points.get(3))) {
-					// Last two points are equal. Intervals overlap exactly
-					intervals.add(new Interval(points.get(0), points.get(2)));
-				}
-				else if (points.get(1).equals(points.get(2))) {
-					// First three points are equal, but last one is different. Single point shares edge
-					intervals.add(new Interval(points.get(0)));
-					intervals.add(new Interval(points.get(0) + 1, points.get(3)));
-				}
-				else {
-					// Overlap at first point, other two are unique (partial overlap with shared edge)
-					intervals.add(new Interval(points.get(0), points.get(2)));
-					intervals.add(new Interval(points.get(2) + 1, points.get(3)));
-				}
-			}
-			else if (points.get(1).equals(points.get(2))) {
-				if (points.get(2).equals(points.get(3))) {
-					// Last three points are equal, first is different. Single point shares edge
-					intervals.add(new Interval(points.get(3)));
-					intervals.add(new Interval(points.get(0), points.get(3) - 1));
-				}
-				else {
-					// Mid 2 points are equal. Two distinct tiles share an edge.
-					intervals.add(new Interval(points.get(0), points.get(1)  - 1));
-					intervals.add(new Interval(points.get(1)));
-					intervals.add(new Interval(points.get(1) + 1, points.get(3)));
-				}
-			}
-			else if (points.get(2).equals(points.get(3))) {
-				// Last 2 points are equal, other two are unique (partial overlap with shared edge)
-				intervals.add(new Interval(points.get(0), points.get(1) - 1));
-				intervals.add(new Interval(points.get(1), points.get(3)));
-			}
-			else {
-				// Overlap, zero shared edges
-				intervals.add(new Interval(points.get(0), points.get(1) - 1));
-				intervals.add(new Interval(points.get(1), points.get(2)));
-				intervals.add(new Interval(points.get(2) + 1, points.get(3)));
-			}
-
-			allIntervals[i] = intervals;
-		}
+	private static class TileProcessor<T extends RealType<T>> implements FusionScheduler.Worker {
 
-		// Now that we know our potential intervals, we need to enumerate a list of all regions constructable from those intervals
-		int[] pos = new int[allIntervals.length];
+		private final int threadNumber; // worker id
+		private final List<ClassifiedRegion> units;
+		private final SpanKernel<T> kernel;
+		private final ImagePlus fusionImp;
+		private final double positionsPerThread;
+		private long count = 0;
+		private long lastDraw = 0;
 
-		// Build and place all regions
-		buildAllRegions(allIntervals, pos, 0, queryTile, placedTile,
-			placedTiles, rawTiles);
-	}
-
-	/**
-	 * Helper class to perform tile processing (iteration through a region, fusion
-	 * of input pixels, and population of output pixels). Array fields allow one
-	 * to be created per thread, then have values modified externally.
-	 */
-	private static class TileProcessor<T extends RealType<T>> implements Runnable {
-
-			private int loopOffset;
-			private int loopSize;
-			private final int[] loopDim;
-
-			private Vector<Chunk> threadChunks;
-			private final int threadNumber; // thread id
-			private ClassifiedRegion[] currentTile;
-			private ArrayList<InvertibleBoundable> transform;
-			private ImagePlus[] fusionImp;
-			private int[] count;
-			private double positionsPerThread;
-			private double[] offset;
-			private long[] lastDraw = new long[1];
-			private final ArrayList<RealRandomAccess<? extends RealType<?>>> in;
-			private final double[][] inPos;
-			private final PixelFusion myFusion;
-			private final RandomAccess<T> out;
-
-		public TileProcessor(int threadNumber,
-			List<ArrayList<RealRandomAccess<? extends RealType<?>>>> interpolators,
+		public TileProcessor(int threadNumber, List<ClassifiedRegion> units,
 			ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
-			Vector<Chunk> threadChunks, int numImages, Img<T> output,
-			PixelFusion fusion, ClassifiedRegion[] currentTile,
-			ArrayList<InvertibleBoundable> transform, ImagePlus[] fusionImp,
-			int[] count, double positionsPerThread, double[] offset, int[] loopDim)
+			Img<T> output, PixelFusion fusion,
+			ArrayList<InvertibleBoundable> transform, double[][] translations,
+			ImagePlus fusionImp, double positionsPerThread, double[] offset)
 		{
 			this.threadNumber = threadNumber;
-			this.threadChunks = threadChunks;
-			this.currentTile = currentTile;
-			this.transform = transform;
+			this.units = units;
 			this.fusionImp = fusionImp;
-			this.count = count;
 			this.positionsPerThread = positionsPerThread;
-			this.offset = offset;
-			this.loopDim = loopDim;
-
-			in = getThreadInterpolators(interpolators, threadNumber, input, numImages);
-			inPos = new double[numImages][output.numDimensions()];
-			myFusion = fusion.copy();
-			out = output.randomAccess();
-		}
-
-			@Override
-			public void run() {
-
-				// get chunk of pixels to process
-				final Chunk myChunk = threadChunks.get(threadNumber);
-				loopOffset = (int) myChunk.getStartPosition();
-				loopSize = (int) myChunk.getLoopSize();
-
-				try {
-					// Process each tile index assigned to this thread
-					// For each position in this tile, fuse its pixels across the
-					// appropriate images
-					// NB: recursion is necessary because there are an arbitrary
-					// number of dimensions in the tile
-					processTile(currentTile[0], 0, myFusion, transform, in, out, inPos,
-						threadNumber, count, lastDraw, fusionImp[0]);
-				}
-				catch (NoninvertibleModelException e) {
-					Log.error("Cannot invert model, qutting.");
-					return;
-				}
-
-			}
 
-			/**
-		 * Helper method to lazily initialize the input image interpolators,
-		 * creating one list per thread.
-		 */
-			private
-				ArrayList<RealRandomAccess<? extends RealType<?>>>
-				getThreadInterpolators(
-					List<ArrayList<RealRandomAccess<? extends RealType<?>>>> interpolators,
-					int threadNumber,
-					ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
-					int numImages)
-			{
-				ArrayList<RealRandomAccess<? extends RealType<?>>> in = null;
-				if (threadNumber >= interpolators.size()) {
-					in = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
-					for (int i = 0; i < numImages; ++i) {
-						in.add(input.get(i).createInterpolator());
-					}
-					interpolators.add(in);
-				}
-				else {
-					in = interpolators.get(threadNumber);
-				}
-				return in;
-			}
-
-			/**
-			 * Intermediate helper method to delegate to
-			 * {@link #processTile(ClassifiedRegion, int[], int, PixelFusion, ArrayList, ArrayList, LocalizableByDimCursor, float[], int[], int, int[], long[], ImagePlus)}
-			 */
-		private void processTile(ClassifiedRegion r, int depth,
-			PixelFusion myFusion, ArrayList<InvertibleBoundable> transform,
-			ArrayList<RealRandomAccess<? extends RealType<?>>> in,
-			RandomAccess<T> out, double[][] inPos,
-			int threadNumber, int[] count, long[] lastDraw, ImagePlus fusionImp)
-			throws NoninvertibleModelException
-		{
-			processTile(r, r.classArray(), depth, myFusion, transform, in, out,
-				inPos, threadNumber, count, lastDraw, fusionImp);
+			kernel = SpanKernel.create(input, output, fusion, transform, translations, offset);
 		}
 
-		/**
-		 * Helper method to fuse all the positions of a given
-		 * {@link ClassifiedRegion}. Since we do not know the dimensionality of the
-		 * region, we recurse over each position of each dimension. The tail step of
-		 * each descent iterates over all the images (classes) of the given region,
-		 * fusing the pixel values at the current position of each associated image.
-		 * This final value is then set in the output.
-		 */
-		private void processTile(ClassifiedRegion r, int[] images, int depth,
-			PixelFusion myFusion, ArrayList<InvertibleBoundable> transform,
-			ArrayList<RealRandomAccess<? extends RealType<?>>> in,
-			RandomAccess<T> out, double[][] inPos,
-			int threadNumber, int[] count, long[] lastDraw, ImagePlus fusionImp)
-			throws NoninvertibleModelException
-		{
-			// NB: there are two process tile methods, one for in-memory fusion
-			// and one for writing to disk. They are slightly different, but
-			// if one is updated the other should be as well!
-			if (depth < r.size()) {
-				Interval d = r.get(depth);
-
-				// The intervals of the given region define the bounds of
-				// iteration
-				// So we are recursively defining a nested iteration order to
-				// cover each position of the region
-				int start = d.min();
-				int end = d.max();
-
-				// If this is the dimension being split up for multi-threading we
-				// need to update the iteration bounds.
-				if (depth == loopDim[0]) {
-					start += loopOffset;
-					end = start + loopSize - 1;
-				}
-
-				out.setPosition(start, depth);
-
-				// NB: can't make this loop inclusive since we don't want the out.fwd
-				// call to go out of bounds, and we can't setPosition (-1) or we
-				// get AIOOB exceptions. So we loop 1 time less than desired, then
-				// do a straight read after the loop.
-				for (int i = start; i < end; i++) {
-					// Recurse to the next depth (dimension)
-					processTile(r, images, depth + 1, myFusion, transform, in, out,
-						inPos, threadNumber, count, lastDraw, fusionImp);
-					// move forward
-					out.fwd(depth);
-				}
+		@Override
+		public long process(final int unit) {
+			final long pixels;
 
-				// Need to read the final position.
-				processTile(r, images, depth + 1, myFusion, transform, in, out,
-					inPos, threadNumber, count, lastDraw, fusionImp);
-				return;
-			}
-
-			// compute fusion for this position
-			myFusion.clear();
-
-			// Loop over the images in this region
-			for (int d = 0; d < r.size(); d++) {
-				final double value = out.getDoublePosition(d) + offset[d];
-
-				for (int index = 0; index < images.length; index++) {
-					// Get the positions for the current image
-					inPos[images[index]][d] = value;
-				}
+			try {
+				// For each position in this unit, fuse its pixels across the
+				// appropriate images
+				pixels = kernel.fuse(units.get(unit), 0);
 			}
-
-			// Get the value at each input position
-			for (int index = 0; index < images.length; index++) {
-				final int image = images[index];
-				// Transform to get input position
-				transform.get(image).applyInverseInPlace(inPos[image]);
-				in.get(image).setPosition(inPos[image]);
-				// fuse
-				myFusion.addValue(in.get(image).get().getRealFloat(), image, inPos[image]);
+			catch (NoninvertibleModelException e) {
+				Log.error("Cannot invert model, qutting.");
+				return 0;
 			}
 
-			// set value
-			out.get().setReal(myFusion.getValue());
-
 			// Display progress if on thread 0
 			if (threadNumber == 0) {
-				count[0]++;
-				// just every 10000'th pixel
-				if (count[0] % 10000 == 0) {
-					lastDraw[0] = drawFusion(lastDraw[0], fusionImp);
-					IJ.showProgress(count[0] / positionsPerThread);
-				}
-			}
-		}
-	}
-	
-	/**
-	 * Recursive method to construct all possible {@link ClassifiedRegion}
-	 * combinations from an arbitrary number of {@link Interval} lists. One list
-	 * is required for each dimension of the final regions. The {@code allRegions}
-	 * list is then populated with these combinations.
-	 * @param rawTiles 
-	 * @param placedTiles 
-	 */
-	private static void buildAllRegions(List<Interval>[] allIntervals,
-		int[] ivalIndices, int depth, ClassifiedRegion queryTile,
-		ClassifiedRegion placedTile, Set<ClassifiedRegion> placedTiles,
-		Stack<ClassifiedRegion> rawTiles)
-	{
-		if (depth != ivalIndices.length) {
-			for (int i = 0; i < allIntervals[depth].size(); i++) {
-				buildAllRegions(allIntervals, ivalIndices, depth + 1, queryTile,
-					placedTile, placedTiles, rawTiles);
-				// increment the index at this position in the intervals array
-				ivalIndices[depth]++;
+				count += pixels;
+				lastDraw = drawFusion(lastDraw, fusionImp);
+				IJ.showProgress(count / positionsPerThread);
 			}
-			ivalIndices[depth] = 0;
-			return;
-		}
 
-		// Build a new region using the current specified indices
-		ClassifiedRegion region = new ClassifiedRegion(allIntervals.length);
-
-		boolean inQuery = true;
-		boolean inPlaced = true;
-		boolean validIval = true;
-		for (int i = 0; validIval && i < allIntervals.length; i++)
-		{
-			Interval newIval = new Interval(allIntervals[i].get(ivalIndices[i]));
-			Interval queryIval = queryTile.get(i);
-			Interval placedIval = placedTile.get(i);
-			region.set(newIval, i);
-			// Each sub-region must be fully contained in at least one parent,
-			// otherwise it is invalid.
-			inQuery =
-				inQuery && queryIval.contains(newIval.min()) == 0 &&
-					queryIval.contains(newIval.max()) == 0;
-			inPlaced =
-				inPlaced && placedIval.contains(newIval.min()) == 0 &&
-					placedIval.contains(newIval.max()) == 0;
-			validIval = inQuery || inPlaced;
-		}
-
-		if (validIval) {
-			if (inQuery) {
-				region.addAllClasses(queryTile);
-				rawTiles.push(region);
-			}
-			if (inPlaced) {
-				region.addAllClasses(placedTile);
-				if (!inQuery) {
-					placedTiles.add(region);
-				}
-			}
+			return pixels;
 		}
 	}
-
+	
 	/**
 	 * Fuse one slice/volume (one channel)
 	 * 
@@ -788,12 +669,16 @@ public class Fusion
 	protected static <T extends RealType<T>> void fuseBlockNoOverlap( final Img<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
 			final ArrayList< InvertibleBoundable > transform, final boolean displayFusion )
 	{
+		// whole rows are copied if the pixel arrays can be accessed directly
+		if ( copyRowsNoOverlap( output, input, offset, transform, displayFusion ) )
+			return;
+
 		final int numDimensions = output.numDimensions();
 		final int numImages = input.size();
 				
-		// run multithreaded
+		// run multithreaded, every thread fetches the next image until all are done
 		final AtomicInteger ai = new AtomicInteger(0);					
-        final Thread[] threads = SimpleMultiThreading.newThreads( numImages );
+        final Thread[] threads = SimpleMultiThreading.newThreads( Math.min( numImages, Runtime.getRuntime().availableProcessors() ) );
         
         for (int ithread = 0; ithread < threads.length; ++ithread)
             threads[ithread] = new Thread( new Runnable()
@@ -801,10 +686,13 @@ public class Fusion
                 @Override
                 public void run()
                 {
-                	// Thread ID
-                	final int myImage = ai.getAndIncrement();
-                	
-                	// only the first thread does preview and update the status bar
+                	for ( int myImage = ai.getAndIncrement(); myImage < numImages; myImage = ai.getAndIncrement() )
+                		copyImage( myImage );
+                }
+
+                private void copyImage( final int myImage )
+                {
+                	// only the thread of the first image does preview and update the status bar
                 	// this requires no synchronized stuff
             		long lastDraw = 0;
             		ImagePlus fusionImp = null;
@@ -830,8 +718,9 @@ public class Fusion
             		final double[] tmp = new double[ numDimensions ];
             		t.applyInPlace( tmp );
  
+            		// the nearest pixel of the output, as in the fusion of each pixel
             		for ( int d = 0; d < numDimensions; ++d )
-            			translation[ d ] = (int) Math.round( tmp[ d ] );
+            			translation[ d ] = (int) Math.round( tmp[ d ] - offset[ d ] );
 
             		final Cursor< ? extends RealType<?> > cursor = image.localizingCursor();
             		final RandomAccess< ? extends RealType<?> > randomAccess = output.randomAccess();
@@ -843,7 +732,7 @@ public class Fusion
             			cursor.fwd();
             			cursor.localize( pos );
             			
-        				// just thread 0
+        				// just image 0
         				if ( myImage == 0 )
         				{
         					// just every 10000'th pixel
@@ -854,11 +743,19 @@ public class Fusion
         					}
         				}
           				
+                		boolean inside = true;
+
                 		for ( int d = 0; d < numDimensions; ++d )
                 		{
                 			pos[ d ] += translation[ d ];
-                			pos[ d ] -= offset[ d ];
+
+                			// the output might only be a region of the fused image
+                			if ( pos[ d ] < 0 || pos[ d ] >= output.dimension( d ) )
+                				inside = false;
                 		}
+
+                		if ( !inside )
+                			continue;
                 		
                 		randomAccess.setPosition( pos );
                 		randomAccess.get().setReal( cursor.get().getRealFloat() );
@@ -873,159 +770,301 @@ public class Fusion
 	}
 
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * Fast path of {@link #fuseBlockNoOverlap(Img, ArrayList, double[], ArrayList, boolean)} if the output and all
+	 * inputs are {@link net.imglib2.img.planar.PlanarImg}s of the same type (e.g. wrapped {@link ImagePlus}):
+	 * every row of a tile is copied into the output with one {@link System#arraycopy(Object, int, Object, int, int)}.
+	 * Bands of rows are handed out to the workers of the {@link FusionScheduler}, so that the number of threads
+	 * does not depend on the number of tiles and a few large tiles still keep all threads busy.
 	 * 
-	 * @param outputSlice - same the type of the ImagePlus input, just one slice which will be written to the output directory
-	 * @param input - FloatType, because of Interpolation that needs to be done
-	 * @param transform - the transformation
+	 * @return - false if the images are not supported, nothing was copied then
 	 */
-	protected static <T extends RealType<T>> void writeBlock( final Img<T> outputSlice, final int numSlices, final int t, final int numTimePoints, final int c, final int numChannels, 
-			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
-			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final String outputDirectory )
+	protected static boolean copyRowsNoOverlap( final Img< ? > output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset,
+			final ArrayList< InvertibleBoundable > transform, final boolean displayFusion )
 	{
+		final int n = output.numDimensions();
 		final int numImages = input.size();
-		final int numDimensions = offset.length;
+		final int type = ArraySpanKernel.getType( output );
+		final Object[] outPlanes = ArraySpanKernel.getPlanes( output );
+
+		if ( n > 3 || type < 0 || outPlanes == null )
+			return false;
+
+		final Object[][] inPlanes = new Object[ numImages ][];
+		final long[][] inSize = new long[ numImages ][ n ];
 
-		final List<ClassifiedRegion> tiles =
-				buildTileList(numImages, numDimensions, transform, input, offset);
-		
-		final ArrayList<RealRandomAccess<? extends RealType<?>>> in = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
-		
 		for ( int i = 0; i < numImages; ++i )
-			in.add( input.get( i ).createInterpolator() );
-		
-		final PixelFusion myFusion = fusion.copy();
-		
-		try 
 		{
-			final long sliceSize = outputSlice.size();
-			for ( int slice = 0; slice < numSlices; ++slice )
-			{
-				IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
-						"channel: " + c + " of " + numChannels + ", slice: " + (slice + 1) + " of " +
-						numSlices + "...");
+			final Img< ? > img = input.get( i ).getImg();
 
-				final RandomAccess<T> out = outputSlice.randomAccess();
-				final double[][] inPos = new double[ numImages ][ numDimensions ];
-				final int[] count = new int[1];
+			if ( img.numDimensions() != n || ArraySpanKernel.getType( img ) != type )
+				return false;
 
-				IJ.showProgress(0);
-				
-				// just like fuseBlock but pin to the current slice #
-				for (long tileIndex=0; tileIndex<tiles.size(); tileIndex++) {
-					ClassifiedRegion currentTile = tiles.get((int) tileIndex);
-					writeTile(currentTile, 0, slice, myFusion, transform, offset, in, out, inPos, count, sliceSize, numSlices);
-				}
-				
-				
-				// write the slice
-				final ImagePlus outImp = ((ImagePlusImg<?,?>)outputSlice).getImagePlus();
-				final FileSaver fs = new FileSaver( outImp );
-				fs.saveAsTiff( new File( outputDirectory, "img_t" + lz( t, numTimePoints ) + "_z" + lz( slice+1, numSlices ) + "_c" + lz( c, numChannels ) ).getAbsolutePath() );
-				}
-		} 
-		catch ( NoninvertibleModelException e ) 
+			inPlanes[ i ] = ArraySpanKernel.getPlanes( img );
+
+			if ( inPlanes[ i ] == null )
+				return false;
+
+			img.dimensions( inSize[ i ] );
+		}
+
+		final long[] outSize = new long[ n ];
+		output.dimensions( outSize );
+
+		// where each tile starts in the output, the same as the rounding of the pixelwise copy
+		final long[][] shift = new long[ numImages ][ n ];
+
+		for ( int i = 0; i < numImages; ++i )
 		{
-			Log.error( "Cannot invert model, qutting." );
-			return;
-		} 
-		catch ( ImgLibException e ) 
+			final double[] tmp = new double[ n ];
+			transform.get( i ).applyInPlace( tmp );
+
+			for ( int d = 0; d < n; ++d )
+				shift[ i ][ d ] = Math.round( tmp[ d ] - offset[ d ] );
+		}
+
+		// bands of rows of one plane of one tile that are inside of the output
+		final ArrayList< int[] > units = new ArrayList< int[] >();
+
+		for ( int i = 0; i < numImages; ++i )
 		{
-			Log.error( "Output image has no ImageJ type: " + e );
-			return;
+			final int rowsPerUnit = (int)Math.max( 1, minUnitSize / inSize[ i ][ 0 ] );
+			final long numPlanes = n > 2 ? inSize[ i ][ 2 ] : 1;
+
+			for ( int z = 0; z < numPlanes; ++z )
+			{
+				if ( n > 2 && ( z + shift[ i ][ 2 ] < 0 || z + shift[ i ][ 2 ] >= outSize[ 2 ] ) )
+					continue;
+
+				final int y0 = (int)Math.max( 0, -shift[ i ][ 1 ] );
+				final int y1 = (int)Math.min( inSize[ i ][ 1 ], outSize[ 1 ] - shift[ i ][ 1 ] );
+
+				for ( int y = y0; y < y1; y += rowsPerUnit )
+					units.add( new int[] { i, z, y, Math.min( y + rowsPerUnit, y1 ) } );
+			}
+		}
+
+		final ImagePlus[] fusionImp = new ImagePlus[ 1 ];
+
+		if ( displayFusion )
+		{
+			try
+			{
+				fusionImp[ 0 ] = ((ImagePlusImg<?, ?>) output).getImagePlus();
+				fusionImp[ 0 ].setTitle( "fusing..." );
+				fusionImp[ 0 ].show();
+			}
+			catch ( ImgLibException e )
+			{
+				Log.error( "Output image has no ImageJ type: " + e );
+			}
 		}
+
+		final AtomicInteger unitsDone = new AtomicInteger( 0 );
+		final int outWidth = (int)outSize[ 0 ];
+
+		FusionScheduler.getInstance().run( units.size(), new FusionScheduler.WorkerFactory()
+		{
+			@Override
+			public FusionScheduler.Worker createWorker( final int workerId )
+			{
+				return new FusionScheduler.Worker()
+				{
+					long lastDraw = 0;
+
+					@Override
+					public long process( final int u )
+					{
+						final int[] unit = units.get( u );
+						final int i = unit[ 0 ];
+						final long[] s = shift[ i ];
+						final int width = (int)inSize[ i ][ 0 ];
+
+						final Object inPlane = inPlanes[ i ][ unit[ 1 ] ];
+						final Object outPlane = outPlanes[ n > 2 ? (int)( unit[ 1 ] + s[ 2 ] ) : 0 ];
+
+						// the part of the rows that is inside of the output
+						final int x0 = (int)Math.max( 0, -s[ 0 ] );
+						final int x1 = (int)Math.min( width, outSize[ 0 ] - s[ 0 ] );
+
+						if ( x1 <= x0 )
+							return 0;
+
+						for ( int y = unit[ 2 ]; y < unit[ 3 ]; ++y )
+							System.arraycopy( inPlane, y * width + x0, outPlane, (int)( ( y + s[ 1 ] ) * outWidth + x0 + s[ 0 ] ), x1 - x0 );
+
+						final int done = unitsDone.incrementAndGet();
+
+						if ( workerId == 0 )
+						{
+							lastDraw = drawFusion( lastDraw, fusionImp[ 0 ] );
+							IJ.showProgress( (double)done / (double)units.size() );
+						}
+
+						return (long)( unit[ 3 ] - unit[ 2 ] ) * ( x1 - x0 );
+					}
+				};
+			}
+		});
+
+		if ( fusionImp[ 0 ] != null )
+			fusionImp[ 0 ].hide();
+
+		return true;
 	}
 
 	/**
-	 * Helper method to fuse all the positions of a given
-	 * {@link ClassifiedRegion}. Since we do not know the dimensionality of
-	 * the region, we recurse over each position of each dimension. The tail
-	 * step of each descent iterates over all the images (classes) of the
-	 * given region, fusing the pixel values at the current position of each
-	 * associated image. This final value is then set in the output.
+	 * Fuse one slice/volume (one channel)
+	 * 
+	 * @param outputSlice - same the type of the ImagePlus input, just one slice which will be written to the output directory
+	 * @param input - FloatType, because of Interpolation that needs to be done
+	 * @param transform - the transformation
 	 */
-	private static <T extends RealType<T>> void writeTile(ClassifiedRegion r,
-		int depth, final int slice, PixelFusion myFusion,
-		ArrayList<InvertibleBoundable> transform, double[] offset,
-		ArrayList<RealRandomAccess<? extends RealType<?>>> in,
-		RandomAccess<T> out, double[][] inPos, int[] count,
-		final long sliceSize, final int numSlices)
-		throws NoninvertibleModelException
+	protected static <T extends RealType<T>> void writeBlock( final Img<T> outputSlice, final int numSlices, final int t, final int numTimePoints, final int c, final int numChannels, 
+			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final String outputDirectory )
 	{
-		//NB: there are two process tile methods, one for in-memory fusion
-		// and one for writing to disk. They are slightly different, but
-		// if one is updated the other should be as well!
-		// For 3D datasets, we fix the last dimension to the given slice #
-		if (depth < out.numDimensions()) {
-			Interval d = r.get(depth);
-			// The intervals of the given region define the bounds of iteration
-			// So we are recursively defining a nested iteration order to cover
-			// each position of the region
-			int start = d.min();
-			int end = d.max();
-
-			out.setPosition(start, depth);
-
-			for (int i=start; i < end; i++) {
-				// The position array will be used to set the in and out positions.
-				// It specifies where we are in the output image
-				// Recurse to the next depth (dimension)
-				writeTile(r, depth+1, slice, myFusion, transform, offset, in, out, inPos,
-					count, sliceSize, numSlices );
-				out.fwd(depth);
-			}
+		final long[][] dimensions = new long[ input.size() ][ offset.length ];
 
-			writeTile(r, depth+1, slice, myFusion, transform, offset, in, out, inPos,
-				count, sliceSize, numSlices );
-			return;
-		}
+		for ( int i = 0; i < input.size(); ++i )
+			input.get( i ).getImg().dimensions( dimensions[ i ] );
 
-		// compute fusion for this position
-		myFusion.clear();
+		final List<ClassifiedRegion> tiles = buildTileList( input.size(), offset.length, transform, dimensions, offset );
 
-		final int[] images = r.classArray();
+		writeBlock( outputSlice, numSlices, t, numTimePoints, c, numChannels, input, offset, transform, null, tiles,
+				offset.length > outputSlice.numDimensions() ? new RegionSliceIndex( tiles, offset.length - 1 ) : null, fusion, outputDirectory, 0 );
+	}
 
-		// Loop over the images in this region
-		for (int d = 0; d < out.numDimensions(); d++) {
-			final double value = out.getDoublePosition(d) + offset[d];
+	/**
+	 * Fuse one slice/volume (one channel) using a precomputed {@link FusionPlan}
+	 * 
+	 * @param downsampledLevels - how many 2x downsampled levels of each slice are written next to it
+	 */
+	protected static <T extends RealType<T>> void writeBlock( final Img<T> outputSlice, final int numSlices, final int t, final int numTimePoints, final int c, final int numChannels, 
+			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final FusionPlan plan, final PixelFusion fusion, final String outputDirectory,
+			final int downsampledLevels )
+	{
+		writeBlock( outputSlice, numSlices, t, numTimePoints, c, numChannels, input, plan.getOffset(), plan.getModels(), plan.getTranslations(), plan.getRegions(),
+				plan.numDimensions() > outputSlice.numDimensions() ? plan.getSliceIndex() : null, fusion, outputDirectory, downsampledLevels );
+	}
 
-			for (int index = 0; index < images.length; index++) {
-				// Get the positions for the current image
-				inPos[images[index]][d] = value;
-			}
+	/**
+	 * Fuse one slice/volume (one channel)
+	 * 
+	 * @param tiles - all regions
+	 * @param sliceIndex - finds the regions covering a slice, only needed for 3d
+	 * @param downsampledLevels - how many 2x downsampled levels of each slice are written next to it
+	 */
+	protected static <T extends RealType<T>> void writeBlock( final Img<T> outputSlice, final int numSlices, final int t, final int numTimePoints, final int c, final int numChannels, 
+			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, final ArrayList< InvertibleBoundable > transform,
+			final double[][] translations, final List<ClassifiedRegion> tiles, final RegionSliceIndex sliceIndex, final PixelFusion fusion, final String outputDirectory,
+			final int downsampledLevels )
+	{
+		final AsyncTiffWriter writer = new AsyncTiffWriter( AsyncTiffWriter.defaultQueueLength );
+
+		IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
+				"channel: " + c + " of " + numChannels + "...");
+		IJ.showProgress( 0 );
+
+		if ( offset.length == outputSlice.numDimensions() )
+		{
+			// 2d, there is just one slice, so the regions are fused in parallel
+			fuseRegions( outputSlice, input, offset, transform, translations, fusion, tiles, false );
+			writeSlice( writer, outputSlice, getSliceFile( outputDirectory, t, numTimePoints, 0, numSlices, c, numChannels ), downsampledLevels );
 		}
+		else
+		{
+			// 3d, the slices are fused in parallel, each one goes to the writer as soon as it is done
+			final AtomicInteger slicesDone = new AtomicInteger( 0 );
+			final T type = outputSlice.firstElement().createVariable();
+			final long[] sliceDim = new long[ outputSlice.numDimensions() ];
+			outputSlice.dimensions( sliceDim );
 
-		if (r.size() > out.numDimensions()) {
-			final int dim = r.size() - 1;
-			final double value = slice + offset[dim];
-			for (int index = 0; index < images.length; index++) {
-				// Get the positions for the current image
-				inPos[images[index]][dim] = value;
-			}
+			FusionScheduler.getInstance().run( numSlices, new FusionScheduler.WorkerFactory()
+			{
+				@Override
+				public FusionScheduler.Worker createWorker( final int workerId )
+				{
+					final SpanKernel<T> kernel = SpanKernel.create( input, outputSlice, fusion, transform, translations, offset );
+
+					return new FusionScheduler.Worker()
+					{
+						@Override
+						public long process( final int slice )
+						{
+							// every slice needs its own image as the writer might still hold the previous one
+							final Img<T> out = outputSlice.factory().create( sliceDim, type );
+							kernel.setOutput( out );
+
+							long count = 0;
+
+							try
+							{
+								// just like fuseBlock but pin to the current slice #,
+								// only the regions that cover this slice contribute
+								for ( final ClassifiedRegion currentTile : sliceIndex.getRegions( slice ) )
+									count += kernel.fuse( currentTile, slice );
+
+								// blocks if the writer is too far behind
+								writeSlice( writer, out, getSliceFile( outputDirectory, t, numTimePoints, slice, numSlices, c, numChannels ), downsampledLevels );
+							}
+							catch ( NoninvertibleModelException e )
+							{
+								Log.error( "Cannot invert model, qutting." );
+							}
+
+							IJ.showProgress( (double)slicesDone.incrementAndGet() / (double)numSlices );
+
+							return count;
+						}
+					};
+				}
+			});
 		}
 
-		// Get the value at each input position
-		for (int index = 0; index < images.length; index++) {
-			final int image = images[index];
-			// Transform to get input position
-			transform.get(image).applyInverseInPlace(inPos[image]);
-			in.get(image).setPosition(inPos[image]);
-			// fuse
-			myFusion.addValue(in.get(image).get().getRealFloat(), image, inPos[image]);
+		try
+		{
+			writer.close();
 		}
+		catch ( IOException e )
+		{
+			Log.error( "Cannot write slice: " + e );
+		}
+	}
+
+	/**
+	 * Queues one fused slice and its downsampled levels for writing, level k goes into the subdirectory s[k]
+	 */
+	private static <T extends RealType<T>> void writeSlice( final AsyncTiffWriter writer, final Img<T> slice, final File file, final int downsampledLevels )
+	{
+		try
+		{
+			writer.write( ((ImagePlusImg<?,?>)slice).getImagePlus(), file.getAbsolutePath() );
+
+			Img<T> downsampled = slice;
 
-		// set value
-		out.get().setReal(myFusion.getValue());
+			for ( int level = 1; level <= downsampledLevels; ++level )
+			{
+				downsampled = PyramidBlockWriter.downsample( downsampled );
 
-		// set value
-		out.get().setReal(myFusion.getValue());
+				final File directory = new File( file.getParentFile(), "s" + level );
+				directory.mkdirs();
 
-		// Update progress if necessary
-		count[0]++;
-		if (count[0] % 10000 == 0) {
-			IJ.showProgress( (double)( count[0] + ( slice * sliceSize ) ) / (double)( numSlices * sliceSize ) );
+				writer.write( ((ImagePlusImg<?,?>)downsampled).getImagePlus(), new File( directory, file.getName() ).getAbsolutePath() );
+			}
+		}
+		catch ( ImgLibException e )
+		{
+			Log.error( "Output image has no ImageJ type: " + e );
+		}
+		catch ( IOException e )
+		{
+			Log.error( "Cannot write slice: " + e );
 		}
+	}
 
+	private static File getSliceFile( final String outputDirectory, final int t, final int numTimePoints, final int slice, final int numSlices, final int c, final int numChannels )
+	{
+		return new File( outputDirectory, "img_t" + lz( t, numTimePoints ) + "_z" + lz( slice+1, numSlices ) + "_c" + lz( c, numChannels ) );
 	}
 
 	private static final String lz( final int num, final int max )
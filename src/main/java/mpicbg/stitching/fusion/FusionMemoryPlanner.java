@@ -0,0 +1,240 @@
+package mpicbg.stitching.fusion;
+
+import java.util.List;
+
+import mpicbg.stitching.ImageCollectionElement;
+import stitching.utils.Log;
+
+/**
+ * Estimates the memory the fusion will need before the tiles are registered, and chooses the way the
+ * fused image is produced so that it fits into the heap. The estimate is based on the size and the
+ * approximate position of each {@link ImageCollectionElement}:
+ *
+ * - {@link #IN_MEMORY}: the complete fused image (all channels and timepoints) is kept in memory
+ * - {@link #DISK}: the fused image is written slice by slice (see {@link Fusion}), but all tiles of one
+ *   channel are accessed at once
+ * - {@link #STREAMING}: the fused image is written blockwise (see {@link StreamingFusion}), the tiles are
+ *   held in a {@link TileCache} of bounded size
+ *
+ * The pixel fusions themselves only keep a few values per thread, so the fusion method only matters
+ * for whether there is any fusion at all. With subpixel accuracy every tile is converted to float for
+ * interpolation, which is the largest part of the working set.
+ */
+public class FusionMemoryPlanner
+{
+	/**
+	 * The modes, they are the same as the first output variants of the grid stitching
+	 */
+	public static final int IN_MEMORY = 0, DISK = 1, STREAMING = 2;
+
+	public static String[] modeNames = { "in memory", "write to disk", "blockwise streaming to disk" };
+
+	/**
+	 * Which fraction of the free heap the fusion may use, the rest is left for ImageJ and fragmentation
+	 */
+	public static double memoryFraction = 0.8;
+
+	final int numDimensions;
+	final boolean subpixelResolution, virtual;
+	final int bytesPerPixel, numChannels, numTimePoints, downsampledLevels;
+
+	// voxels of all tiles (one channel and timepoint), of the largest tile, and of the fused image (one slice)
+	long tileVoxels = 0, maxTileVoxels = 0, outputVoxels = 1, sliceVoxels = 1;
+
+	/**
+	 * @param elements - all tiles, they have to be opened already so that their size is known
+	 * @param bytesPerPixel - the bytes per pixel of the largest input type, which is also the output type
+	 * @param numChannels - the number of channels of each tile
+	 * @param numTimePoints - the number of timepoints of each tile
+	 * @param subpixelResolution - if the tiles are interpolated
+	 * @param virtual - if the input images are virtual, i.e. not in memory
+	 */
+	public FusionMemoryPlanner( final List< ImageCollectionElement > elements, final int bytesPerPixel, final int numChannels,
+			final int numTimePoints, final boolean subpixelResolution, final boolean virtual )
+	{
+		this( elements, bytesPerPixel, numChannels, numTimePoints, subpixelResolution, virtual, 0 );
+	}
+
+	/**
+	 * @param downsampledLevels - how many downsampled levels are written next to the fused image (see {@link PyramidBlockWriter})
+	 */
+	public FusionMemoryPlanner( final List< ImageCollectionElement > elements, final int bytesPerPixel, final int numChannels,
+			final int numTimePoints, final boolean subpixelResolution, final boolean virtual, final int downsampledLevels )
+	{
+		this.downsampledLevels = downsampledLevels;
+		this.numDimensions = elements.get( 0 ).getDimensions().length;
+		this.bytesPerPixel = bytesPerPixel;
+		this.numChannels = numChannels;
+		this.numTimePoints = numTimePoints;
+		this.subpixelResolution = subpixelResolution;
+		this.virtual = virtual;
+
+		final double[] min = new double[ numDimensions ];
+		final double[] max = new double[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			min[ d ] = Double.MAX_VALUE;
+			max[ d ] = -Double.MAX_VALUE;
+		}
+
+		boolean knownLayout = false;
+
+		for ( final ImageCollectionElement element : elements )
+		{
+			long voxels = 1;
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				final double offset = element.getOffset() == null ? 0 : element.getOffset( d );
+
+				min[ d ] = Math.min( min[ d ], offset );
+				max[ d ] = Math.max( max[ d ], offset + element.getDimension( d ) );
+
+				if ( offset != 0 )
+					knownLayout = true;
+
+				voxels *= element.getDimension( d );
+			}
+
+			tileVoxels += voxels;
+			maxTileVoxels = Math.max( maxTileVoxels, voxels );
+		}
+
+		// if all tiles are at the same position the layout is not known before the registration,
+		// assume that they are placed next to each other without overlap
+		if ( knownLayout )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				outputVoxels *= (long)Math.ceil( max[ d ] - min[ d ] );
+
+				if ( d < 2 )
+					sliceVoxels *= (long)Math.ceil( max[ d ] - min[ d ] );
+			}
+		}
+		else
+		{
+			outputVoxels = tileVoxels;
+			sliceVoxels = numDimensions == 2 ? tileVoxels : tileVoxels / elements.get( 0 ).getDimension( 2 );
+		}
+	}
+
+	/**
+	 * @return - the bytes of all input tiles, all channels and timepoints
+	 */
+	public long getInputBytes() { return tileVoxels * bytesPerPixel * numChannels * numTimePoints; }
+
+	/**
+	 * @return - the bytes of the fused image, all channels and timepoints
+	 */
+	public long getFusedBytes() { return outputVoxels * bytesPerPixel * numChannels * numTimePoints; }
+
+	/**
+	 * @param mode - {@link #IN_MEMORY}, {@link #DISK} or {@link #STREAMING}
+	 * @return - the bytes of the fused image that are held in memory
+	 */
+	public long getOutputBytes( final int mode )
+	{
+		if ( mode == IN_MEMORY )
+			return getFusedBytes();
+		else if ( mode == DISK )
+			return sliceVoxels * bytesPerPixel;
+		else
+			return 0;
+	}
+
+	/**
+	 * @param mode - {@link #IN_MEMORY}, {@link #DISK} or {@link #STREAMING}
+	 * @return - the bytes that are needed while fusing one channel and timepoint, on top of the input
+	 * images that are not virtual (they are already in memory)
+	 */
+	public long getWorkingSetBytes( final int mode )
+	{
+		if ( mode == STREAMING )
+		{
+			// the tile cache holds at least one tile, the threads fuse one block together, the
+			// blocks of this mode are written as TIFFs before the next one is fused (no block waits
+			// for the writer), and the pyramid keeps one unfinished block per downsampled level
+			long blockVoxels = 1;
+			for ( int d = 0; d < numDimensions; ++d )
+				blockVoxels *= StreamingFusion.defaultBlockSize[ d ];
+
+			final long maxTileBytes = maxTileVoxels * ( subpixelResolution ? 4 : bytesPerPixel );
+
+			return Math.max( StreamingFusion.defaultCacheBytes(), maxTileBytes ) +
+					( 1 + downsampledLevels ) * blockVoxels * bytesPerPixel;
+		}
+
+		long bytes = 0;
+
+		// all tiles of one channel are read when they are virtual
+		if ( virtual )
+			bytes += tileVoxels * bytesPerPixel;
+
+		// all tiles of one channel are converted to float for interpolation
+		if ( subpixelResolution )
+			bytes += tileVoxels * 4;
+
+		return bytes;
+	}
+
+	/**
+	 * @param mode - {@link #IN_MEMORY}, {@link #DISK} or {@link #STREAMING}
+	 * @return - the additional bytes the fusion will need
+	 */
+	public long getRequiredBytes( final int mode ) { return getOutputBytes( mode ) + getWorkingSetBytes( mode ); }
+
+	/**
+	 * @return - the bytes that can still be allocated on the heap
+	 */
+	public static long getAvailableBytes()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+
+		return runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+	}
+
+	/**
+	 * Chooses the mode that fits into the memory, starting with the requested one. It only falls back
+	 * to a mode that needs less memory, in the order in memory, write to disk, blockwise streaming.
+	 * Blockwise streaming is kept if nothing fits, as it needs the least memory.
+	 *
+	 * @param requested - the mode selected by the user
+	 * @param availableBytes - the bytes that can be allocated (see {@link #getAvailableBytes()})
+	 * @return - the mode to use
+	 */
+	public int choose( final int requested, final long availableBytes )
+	{
+		final long budget = (long)( availableBytes * memoryFraction );
+
+		Log.info( "Fusion memory estimate: input " + toMB( getInputBytes() ) + " (" + ( virtual ? "virtual" : "in memory" ) + "), " +
+				"fused image " + toMB( getFusedBytes() ) + ", available " + toMB( budget ) + " (" + Math.round( memoryFraction * 100 ) + "% of the free heap)." );
+
+		for ( int mode = requested; mode <= STREAMING; ++mode )
+		{
+			final long required = getRequiredBytes( mode );
+
+			Log.info( "Fusion " + modeNames[ mode ] + " needs " + toMB( getOutputBytes( mode ) ) + " for the output and " +
+					toMB( getWorkingSetBytes( mode ) ) + " working set." );
+
+			if ( required <= budget )
+			{
+				if ( mode != requested )
+					Log.warn( "Fusion " + modeNames[ requested ] + " needs " + toMB( getRequiredBytes( requested ) ) + ", but only " + toMB( budget ) +
+							" are available. Using " + modeNames[ mode ] + " instead." );
+				else
+					Log.info( "Fusion " + modeNames[ mode ] + " fits into memory." );
+
+				return mode;
+			}
+		}
+
+		Log.warn( "Even " + modeNames[ STREAMING ] + " might not fit into memory" + ( virtual ? "" : ", use virtual input images" ) +
+				". Using " + modeNames[ STREAMING ] + "." );
+
+		return STREAMING;
+	}
+
+	protected static String toMB( final long bytes ) { return ( bytes / ( 1024 * 1024 ) ) + " MB"; }
+}
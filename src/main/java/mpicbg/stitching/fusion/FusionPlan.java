@@ -0,0 +1,293 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import mpicbg.models.InvertibleBoundable;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Everything about a fusion that only depends on the geometry of the tiles: the bounding box
+ * of the fused image, the decomposition into non-overlapping {@link ClassifiedRegion}s and the
+ * offset of each image if it is only translated. All channels and timepoints share the same
+ * models, so the plan is computed once and then run against each of them.
+ *
+ * A plan can be cropped to a region of the fused image (see {@link #crop(long[], long[])}), it then
+ * only contains the regions and images that intersect it.
+ */
+public class FusionPlan
+{
+	final int numImages, numDimensions;
+	final ArrayList< InvertibleBoundable > models;
+
+	// the index of each image of the plan in the list of images it was computed for
+	final int[] imageIndices;
+
+	final double[] offset;
+	final int[] size;
+	final long[][] dimensions;
+	final double[][] translations;
+	final List< ClassifiedRegion > regions;
+	final int maxOverlap;
+
+	RegionSliceIndex sliceIndex = null;
+	RegionDecomposition.RegionIndex regionIndex = null;
+
+	/**
+	 * Computes the plan for fusing all images.
+	 *
+	 * @param images - all input images, only their dimensions are used
+	 * @param models - the transformation of each input image
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - if the tiles are interpolated, which makes the output one pixel larger
+	 */
+	public FusionPlan( final List< ImagePlus > images, final ArrayList< InvertibleBoundable > models, final int dimensionality, final boolean subpixelResolution )
+	{
+		this.numImages = images.size();
+		this.numDimensions = dimensionality;
+		this.models = models;
+		this.imageIndices = new int[ numImages ];
+
+		for ( int i = 0; i < numImages; ++i )
+			imageIndices[ i ] = i;
+
+		// the bounding box of the fused image
+		this.offset = new double[ dimensionality ];
+		this.size = new int[ dimensionality ];
+
+		Fusion.estimateBounds( offset, size, images, models, dimensionality );
+
+		if ( subpixelResolution )
+			for ( int d = 0; d < size.length; ++d )
+				++size[ d ];
+
+		this.dimensions = new long[ numImages ][ dimensionality ];
+		this.translations = new double[ numImages ][];
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			dimensions[ i ][ 0 ] = images.get( i ).getWidth();
+			dimensions[ i ][ 1 ] = images.get( i ).getHeight();
+			if ( dimensionality == 3 )
+				dimensions[ i ][ 2 ] = images.get( i ).getNSlices();
+
+			translations[ i ] = SpanKernel.getTranslation( models.get( i ), dimensionality );
+		}
+
+		this.regions = Fusion.buildTileList( numImages, dimensionality, models, dimensions, offset );
+
+		int maxOverlap = 0;
+		for ( final ClassifiedRegion r : regions )
+			maxOverlap = Math.max( maxOverlap, r.classArray().length );
+
+		this.maxOverlap = maxOverlap;
+	}
+
+	/**
+	 * A plan for a region of the fused image of another plan, see {@link #crop(long[], long[])}
+	 */
+	protected FusionPlan( final FusionPlan plan, final int[] min, final int[] max )
+	{
+		final int n = plan.numDimensions;
+		final ClassifiedRegion roi = new ClassifiedRegion( n );
+
+		this.numDimensions = n;
+		this.offset = new double[ n ];
+		this.size = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			offset[ d ] = plan.offset[ d ] + min[ d ];
+			size[ d ] = max[ d ] - min[ d ] + 1;
+			roi.set( new Interval( min[ d ], max[ d ] ), d );
+		}
+
+		// which regions and images intersect the region of interest
+		final List< ClassifiedRegion > cropped = plan.getIntersectingRegions( roi );
+		final TreeSet< Integer > images = new TreeSet< Integer >();
+
+		for ( final ClassifiedRegion region : cropped )
+			for ( final int image : region.classArray() )
+				images.add( image );
+
+		// the images that are kept are numbered consecutively
+		final int[] localIndex = new int[ plan.numImages ];
+
+		this.numImages = images.size();
+		this.imageIndices = new int[ numImages ];
+		this.models = new ArrayList< InvertibleBoundable >();
+		this.dimensions = new long[ numImages ][];
+		this.translations = new double[ numImages ][];
+
+		for ( final int image : images )
+		{
+			final int i = models.size();
+
+			localIndex[ image ] = i;
+			imageIndices[ i ] = plan.imageIndices[ image ];
+			models.add( plan.models.get( image ) );
+			dimensions[ i ] = plan.dimensions[ image ];
+			translations[ i ] = plan.translations[ image ];
+		}
+
+		// clip the regions to the region of interest in its local coordinates
+		this.regions = new ArrayList< ClassifiedRegion >();
+
+		int maxOverlap = 0;
+
+		for ( final ClassifiedRegion region : cropped )
+		{
+			final ClassifiedRegion local = new ClassifiedRegion( n );
+
+			for ( int d = 0; d < n; ++d )
+				local.set( new Interval(
+						Math.max( region.get( d ).min(), min[ d ] ) - min[ d ],
+						Math.min( region.get( d ).max(), max[ d ] ) - min[ d ] ), d );
+
+			for ( final int image : region.classArray() )
+				local.addClass( localIndex[ image ] );
+
+			regions.add( local );
+			maxOverlap = Math.max( maxOverlap, region.classArray().length );
+		}
+
+		this.maxOverlap = maxOverlap;
+	}
+
+	/**
+	 * Restricts the plan to a region of the fused image. Only the regions and images that intersect it
+	 * are kept, so fusing it only costs as much as the region is large.
+	 *
+	 * @param min - the first pixel of the region in the coordinates of the fused image of this plan
+	 * @param max - the last pixel of the region, it is clipped to the fused image
+	 * @return - the plan of the region, its images are a subset of the images of this plan (see {@link #getImageIndices()})
+	 */
+	public FusionPlan crop( final long[] min, final long[] max )
+	{
+		final int[] cropMin = new int[ numDimensions ];
+		final int[] cropMax = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			cropMin[ d ] = (int)Math.max( 0, min[ d ] );
+			cropMax[ d ] = (int)Math.min( size[ d ] - 1, max[ d ] );
+
+			if ( cropMax[ d ] < cropMin[ d ] )
+				throw new IllegalArgumentException( "The region [" + min[ d ] + ", " + max[ d ] + "] in dimension " + d +
+						" does not intersect the fused image [0, " + ( size[ d ] - 1 ) + "]" );
+		}
+
+		return new FusionPlan( this, cropMin, cropMax );
+	}
+
+	/**
+	 * @param list - one entry for each image the plan was originally computed for (e.g. the {@link ImagePlus}s)
+	 * @return - the entries of the images of this plan, in the order of the plan
+	 */
+	public < E > ArrayList< E > select( final List< E > list )
+	{
+		final ArrayList< E > selected = new ArrayList< E >();
+
+		for ( final int i : imageIndices )
+			selected.add( list.get( i ) );
+
+		return selected;
+	}
+
+	/**
+	 * Fuses one channel and timepoint into the output using the precomputed regions.
+	 *
+	 * @param output - the output image of size {@link #getSize()}
+	 * @param input - one channel and timepoint of all input images, in the same order as the images of the plan
+	 * @param fusion - how to fuse overlapping pixels
+	 * @param displayFusion - show the output while it is fused
+	 */
+	public < T extends RealType< T > > void fuse( final Img< T > output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input,
+			final PixelFusion fusion, final boolean displayFusion )
+	{
+		Fusion.fuseRegions( output, input, offset, models, translations, fusion, regions, displayFusion );
+	}
+
+	public int numImages() { return numImages; }
+	public int numDimensions() { return numDimensions; }
+	public ArrayList< InvertibleBoundable > getModels() { return models; }
+
+	/**
+	 * @return - the index of each image of this plan in the list of images it was originally computed for,
+	 * differs from 0, 1, 2, ... only for a cropped plan
+	 */
+	public int[] getImageIndices() { return imageIndices; }
+
+	/**
+	 * @return - global position of the first pixel of the fused image
+	 */
+	public double[] getOffset() { return offset; }
+
+	/**
+	 * @return - the size of the fused image
+	 */
+	public int[] getSize() { return size; }
+
+	/**
+	 * @return - the dimensions of each input image, dimensions[ image ][ x, y, (z) ]
+	 */
+	public long[][] getDimensions() { return dimensions; }
+
+	/**
+	 * @return - the translation of each image, or null for images whose model is not a pure translation
+	 */
+	public double[][] getTranslations() { return translations; }
+
+	/**
+	 * @return - all non-overlapping regions in the coordinates of the fused image
+	 */
+	public List< ClassifiedRegion > getRegions() { return regions; }
+
+	/**
+	 * @return - the maximal number of images that overlap in one pixel
+	 */
+	public int getMaxOverlap() { return maxOverlap; }
+
+	/**
+	 * Finds the regions through a spatial index (see {@link RegionDecomposition}), so that cropping many
+	 * small parts of the plan (e.g. the blocks of {@link StreamingFusion}) does not compare each of them to all regions.
+	 * The index is created on the first call.
+	 *
+	 * @param roi - a part of the fused image
+	 * @return - all regions that intersect it
+	 */
+	public List< ClassifiedRegion > getIntersectingRegions( final ClassifiedRegion roi )
+	{
+		final RegionDecomposition.RegionIndex index;
+
+		synchronized ( this )
+		{
+			if ( regionIndex == null )
+			{
+				regionIndex = regions.isEmpty() ? new RegionDecomposition.RegionIndex( numDimensions ) : new RegionDecomposition.RegionIndex( regions );
+
+				for ( final ClassifiedRegion region : regions )
+					regionIndex.add( region );
+			}
+
+			index = regionIndex;
+		}
+
+		return index.findAllIntersecting( roi );
+	}
+
+	/**
+	 * @return - finds the regions covering a z-slice of the fused image, it is created on the first call
+	 */
+	public synchronized RegionSliceIndex getSliceIndex()
+	{
+		if ( sliceIndex == null )
+			sliceIndex = new RegionSliceIndex( regions, numDimensions - 1 );
+
+		return sliceIndex;
+	}
+}
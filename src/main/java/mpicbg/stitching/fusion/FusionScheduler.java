@@ -0,0 +1,288 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import stitching.utils.Log;
+
+/**
+ * A long-lived pool of worker threads that is shared by all fusions. Work is handed out
+ * as a number of independent units, every worker of a run fetches the next unprocessed unit
+ * as soon as it is done with the previous one. Therefore a worker that got small units simply
+ * takes over more of them, nobody waits at a barrier until the very last unit is finished.
+ *
+ * Each run records how long every worker was busy, which is summarized in a {@link Utilisation}.
+ */
+public class FusionScheduler
+{
+	/**
+	 * If true, the utilisation of the workers is written to the log after each run, otherwise only in debug mode
+	 */
+	public static boolean logUtilisation = false;
+
+	/**
+	 * Processes the units of one run, every worker thread gets its own instance
+	 */
+	public static interface Worker
+	{
+		/**
+		 * @param unit - the index of the unit to process
+		 * @return - the number of pixels processed
+		 */
+		public long process( int unit );
+	}
+
+	/**
+	 * Creates the {@link Worker} for each thread of a run
+	 */
+	public static interface WorkerFactory
+	{
+		public Worker createWorker( int workerId );
+	}
+
+	private static FusionScheduler instance = null;
+
+	final int numThreads;
+	final ExecutorService pool;
+	final ThreadLocal< Boolean > isPoolThread = new ThreadLocal< Boolean >();
+
+	Utilisation lastUtilisation = null;
+
+	/**
+	 * @param numThreads - the number of worker threads of the pool
+	 */
+	public FusionScheduler( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+
+		final AtomicInteger threadCount = new AtomicInteger( 0 );
+
+		this.pool = Executors.newFixedThreadPool( this.numThreads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread( final Runnable r )
+			{
+				final Thread thread = new Thread( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						isPoolThread.set( true );
+						r.run();
+					}
+				}, "Fusion-" + threadCount.getAndIncrement() );
+
+				// the pool lives as long as the application, it must not keep it from exiting
+				thread.setDaemon( true );
+
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return - the shared scheduler with one worker per available processor
+	 */
+	public static synchronized FusionScheduler getInstance()
+	{
+		if ( instance == null )
+			instance = new FusionScheduler( Runtime.getRuntime().availableProcessors() );
+
+		return instance;
+	}
+
+	/**
+	 * @return - the number of worker threads
+	 */
+	public int numThreads() { return numThreads; }
+
+	/**
+	 * @return - the utilisation of the last run, or null if nothing has run yet
+	 */
+	public synchronized Utilisation getLastUtilisation() { return lastUtilisation; }
+
+	/**
+	 * Processes all units and returns once they are done. If called from within one of the pool's
+	 * threads, all units are processed by the calling thread (no nested parallelism, which could
+	 * otherwise deadlock the pool). If a unit fails, the exception is rethrown once all workers are done.
+	 *
+	 * @param numUnits - the number of units, ideally sorted by decreasing size
+	 * @param factory - creates one {@link Worker} per thread
+	 * @return - the {@link Utilisation} of the workers
+	 */
+	public Utilisation run( final int numUnits, final WorkerFactory factory )
+	{
+		final int numWorkers;
+
+		if ( isPoolThread.get() != null )
+			numWorkers = 1;
+		else
+			numWorkers = Math.max( 1, Math.min( numThreads, numUnits ) );
+
+		final AtomicInteger nextUnit = new AtomicInteger( 0 );
+
+		final long[] busyTime = new long[ numWorkers ];
+		final long[] numPixels = new long[ numWorkers ];
+		final int[] numProcessed = new int[ numWorkers ];
+
+		final long start = System.nanoTime();
+
+		if ( numWorkers == 1 )
+		{
+			process( factory, 0, numUnits, nextUnit, busyTime, numPixels, numProcessed );
+		}
+		else
+		{
+			final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >();
+			Throwable failure = null;
+
+			for ( int w = 0; w < numWorkers; ++w )
+			{
+				final int workerId = w;
+
+				futures.add( pool.submit( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						process( factory, workerId, numUnits, nextUnit, busyTime, numPixels, numProcessed );
+					}
+				}));
+			}
+
+			for ( final Future< ? > future : futures )
+			{
+				try
+				{
+					future.get();
+				}
+				catch ( InterruptedException e )
+				{
+					Log.error( "Fusion was interrupted: " + e );
+					Thread.currentThread().interrupt();
+				}
+				catch ( ExecutionException e )
+				{
+					// the other workers are still joined, so that none of them runs after this call
+					if ( failure == null )
+						failure = e.getCause();
+				}
+			}
+
+			// fail like the single worker does
+			if ( failure instanceof RuntimeException )
+				throw (RuntimeException)failure;
+			else if ( failure instanceof Error )
+				throw (Error)failure;
+			else if ( failure != null )
+				throw new RuntimeException( failure );
+		}
+
+		final Utilisation utilisation = new Utilisation( System.nanoTime() - start, busyTime, numPixels, numProcessed );
+
+		synchronized ( this )
+		{
+			lastUtilisation = utilisation;
+		}
+
+		if ( logUtilisation )
+			Log.info( utilisation.toString() );
+		else
+			Log.debug( utilisation.toString() );
+
+		return utilisation;
+	}
+
+	protected static void process( final WorkerFactory factory, final int workerId, final int numUnits, final AtomicInteger nextUnit,
+			final long[] busyTime, final long[] numPixels, final int[] numProcessed )
+	{
+		final Worker worker = factory.createWorker( workerId );
+
+		for ( int unit = nextUnit.getAndIncrement(); unit < numUnits; unit = nextUnit.getAndIncrement() )
+		{
+			final long t = System.nanoTime();
+
+			numPixels[ workerId ] += worker.process( unit );
+
+			busyTime[ workerId ] += System.nanoTime() - t;
+			++numProcessed[ workerId ];
+		}
+	}
+
+	/**
+	 * Shuts the pool down, it cannot be used afterwards
+	 */
+	public static synchronized void shutdown()
+	{
+		if ( instance != null )
+		{
+			instance.pool.shutdown();
+			instance = null;
+		}
+	}
+
+	/**
+	 * How much of the wall-clock time of one run each worker was busy
+	 */
+	public static class Utilisation
+	{
+		final long wallTime;
+		final long[] busyTime, numPixels;
+		final int[] numUnits;
+
+		public Utilisation( final long wallTime, final long[] busyTime, final long[] numPixels, final int[] numUnits )
+		{
+			this.wallTime = wallTime;
+			this.busyTime = busyTime;
+			this.numPixels = numPixels;
+			this.numUnits = numUnits;
+		}
+
+		public int numWorkers() { return busyTime.length; }
+		public long getWallTime() { return wallTime; }
+		public long getBusyTime( final int worker ) { return busyTime[ worker ]; }
+		public long getNumPixels( final int worker ) { return numPixels[ worker ]; }
+		public int getNumUnits( final int worker ) { return numUnits[ worker ]; }
+
+		/**
+		 * @return - the fraction of the wall-clock time the worker was busy
+		 */
+		public double getUtilisation( final int worker )
+		{
+			return wallTime == 0 ? 1 : (double)busyTime[ worker ] / (double)wallTime;
+		}
+
+		/**
+		 * @return - the average utilisation of all workers
+		 */
+		public double getMeanUtilisation()
+		{
+			double sum = 0;
+
+			for ( int w = 0; w < numWorkers(); ++w )
+				sum += getUtilisation( w );
+
+			return sum / numWorkers();
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder s = new StringBuilder();
+
+			s.append( "Fusion: " + numWorkers() + " workers, " + wallTime / 1000000 + " ms, mean utilisation " +
+					Math.round( getMeanUtilisation() * 100 ) + "%" );
+
+			for ( int w = 0; w < numWorkers(); ++w )
+				s.append( "\n  worker " + w + ": " + numUnits[ w ] + " units, " + numPixels[ w ] + " px, busy " +
+						busyTime[ w ] / 1000000 + " ms (" + Math.round( getUtilisation( w ) * 100 ) + "%)" );
+
+			return s.toString();
+		}
+	}
+}
@@ -20,11 +20,13 @@ public class ImageInterpolation< T extends RealType< T > >
 	final Img< T > image;
 	final RealRandomAccessible< T > interpolated;
 	final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory;
+	final boolean mirror;
 	
 	public ImageInterpolation( final Img< T > image, final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory, final boolean mirror )
 	{
 		this.image = image;
 		this.interpolatorFactory = interpolatorFactory;
+		this.mirror = mirror;
 		if ( mirror )
 			this.interpolated = Views.interpolate( Views.extendMirrorSingle( image ), interpolatorFactory );
 		else
@@ -32,5 +34,7 @@ public class ImageInterpolation< T extends RealType< T > >
 	}
 	
 	public Img< T > getImg() { return image; }
+	public InterpolatorFactory< T, RandomAccessible< T > > getInterpolatorFactory() { return interpolatorFactory; }
+	public boolean isMirrored() { return mirror; }
 	public RealRandomAccess< T > createInterpolator() { return interpolated.realRandomAccess(); }
 }
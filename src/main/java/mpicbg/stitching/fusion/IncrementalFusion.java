@@ -0,0 +1,271 @@
+package mpicbg.stitching.fusion;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+import mpicbg.models.InvertibleBoundable;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.imageplus.ImagePlusImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import stitching.utils.Log;
+
+/**
+ * Updates an existing blockwise fused image (see {@link StreamingFusion}) after the models of some
+ * tiles changed, e.g. because one tile was moved by hand. The old and new models are compared, only
+ * the {@link ClassifiedRegion}s that contain a moved tile (where it was before or where it is now) can
+ * change, so only the blocks intersecting them are fused and written again.
+ *
+ * The writer has to overwrite single blocks of the existing output (see {@link UpdatableBlockWriter}), which
+ * is the case for {@link N5BlockWriter} and {@link TiffBlockWriter} on the same directory with the same block size.
+ * Outputs with a resolution pyramid are rejected by the writer, as their coarser levels would not be updated.
+ * If the bounding box of the fused image changes, all pixels move and everything is fused again.
+ */
+public class IncrementalFusion
+{
+	/**
+	 * Fuses the blocks that changed between the old and the new models into the {@link BlockWriter}
+	 *
+	 * @param targetType - the type of the fused image
+	 * @param images - all input images
+	 * @param oldModels - the transformation of each input image the existing output was fused with
+	 * @param newModels - the new transformation of each input image
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - if the tiles are interpolated
+	 * @param fusionType - see {@link Fusion#getPixelFusion(int, boolean, ArrayList)}
+	 * @param ignoreZeroValues - if zero values should not contribute to the fused pixel
+	 * @param blockSize - the size of the blocks in x, y (and z), the same as for the existing output
+	 * @param cacheBytes - the memory budget of the tile cache
+	 * @param writer - receives the fused blocks and replaces them in the existing output
+	 * @return - true if successful
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean fuse( final T targetType, final ArrayList< ImagePlus > images,
+			final ArrayList< InvertibleBoundable > oldModels, final ArrayList< InvertibleBoundable > newModels,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues,
+			final int[] blockSize, final long cacheBytes, final UpdatableBlockWriter writer )
+	{
+		final FusionPlan oldPlan = new FusionPlan( images, oldModels, dimensionality, subpixelResolution );
+		final FusionPlan newPlan = new FusionPlan( images, newModels, dimensionality, subpixelResolution );
+
+		final long[] fusedSize = new long[ dimensionality ];
+		for ( int d = 0; d < dimensionality; ++d )
+			fusedSize[ d ] = newPlan.getSize()[ d ];
+
+		try
+		{
+			writer.startUpdate( fusedSize );
+		}
+		catch ( IOException e )
+		{
+			Log.error( "Could not update the fused image: " + e );
+			return false;
+		}
+
+		for ( int d = 0; d < dimensionality; ++d )
+		{
+			if ( oldPlan.getOffset()[ d ] != newPlan.getOffset()[ d ] || oldPlan.getSize()[ d ] != newPlan.getSize()[ d ] )
+			{
+				Log.info( "The bounding box of the fused image changed, fusing everything again." );
+				return StreamingFusion.fuse( targetType, images, newModels, dimensionality, subpixelResolution, fusionType, ignoreZeroValues, blockSize, cacheBytes, writer );
+			}
+		}
+
+		final boolean[] changed = getChangedTiles( oldPlan, newPlan );
+		final long[] blocks = getDirtyBlocks( oldPlan, newPlan, changed, blockSize );
+
+		final int numTimePoints = images.get( 0 ).getNFrames();
+		final int numChannels = images.get( 0 ).getNChannels();
+		final int[] size = newPlan.getSize();
+
+		final int[] numBlocks = new int[ dimensionality ];
+		long totalBlocks = 1;
+
+		for ( int d = 0; d < dimensionality; ++d )
+		{
+			numBlocks[ d ] = ( size[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			totalBlocks *= numBlocks[ d ];
+		}
+
+		int numChanged = 0;
+		for ( final boolean c : changed )
+			if ( c )
+				++numChanged;
+
+		Log.info( numChanged + " of " + changed.length + " tiles moved, fusing " + blocks.length + " of " + totalBlocks + " blocks again." );
+
+		final TileCache cache = new TileCache( images, subpixelResolution, cacheBytes );
+		final ImgFactory< T > factory = new ImagePlusImgFactory< T >();
+
+		final int[] blockMin = new int[ dimensionality ];
+		final int[] blockMax = new int[ dimensionality ];
+
+		try
+		{
+			for ( int t = 1; t <= numTimePoints; ++t )
+			{
+				for ( int c = 1; c <= numChannels; ++c )
+				{
+					for ( int i = 0; i < blocks.length; ++i )
+					{
+						IJ.showStatus( "Fusing time point: " + t + " of " + numTimePoints + ", " +
+								"channel: " + c + " of " + numChannels + ", changed block " + ( i + 1 ) + " of " + blocks.length + "..." );
+						IJ.showProgress( (double)i / (double)blocks.length );
+
+						long tmp = blocks[ i ];
+						for ( int d = 0; d < dimensionality; ++d )
+						{
+							blockMin[ d ] = (int)( tmp % numBlocks[ d ] ) * blockSize[ d ];
+							blockMax[ d ] = Math.min( size[ d ], blockMin[ d ] + blockSize[ d ] ) - 1;
+							tmp /= numBlocks[ d ];
+						}
+
+						final Img< T > out = StreamingFusion.fuseBlock( factory, targetType, blockMin, blockMax, newPlan, cache, t, c, fusionType, ignoreZeroValues );
+
+						final long[] min = new long[ dimensionality ];
+						for ( int d = 0; d < dimensionality; ++d )
+							min[ d ] = blockMin[ d ];
+
+						writer.write( out, min, t, c );
+					}
+
+					cache.clear();
+				}
+			}
+
+			writer.close();
+		}
+		catch ( IOException e )
+		{
+			Log.error( "Could not write fused block: " + e );
+			return false;
+		}
+
+		IJ.showStatus( "Fusion complete." );
+		IJ.showProgress( 1.01 );
+
+		return true;
+	}
+
+	/**
+	 * A tile changed if any corner of it is transformed to a different position, for affine models
+	 * this is the case if and only if the models differ.
+	 *
+	 * @return - for each image if its model differs between the two plans
+	 */
+	public static boolean[] getChangedTiles( final FusionPlan oldPlan, final FusionPlan newPlan )
+	{
+		final int numImages = newPlan.numImages();
+		final int n = newPlan.numDimensions();
+		final boolean[] changed = new boolean[ numImages ];
+
+		final double[] p1 = new double[ n ];
+		final double[] p2 = new double[ n ];
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			final long[] dim = newPlan.getDimensions()[ i ];
+
+			for ( int corner = 0; corner < ( 1 << n ) && !changed[ i ]; ++corner )
+			{
+				for ( int d = 0; d < n; ++d )
+					p1[ d ] = p2[ d ] = ( corner & ( 1 << d ) ) == 0 ? 0 : dim[ d ];
+
+				oldPlan.getModels().get( i ).applyInPlace( p1 );
+				newPlan.getModels().get( i ).applyInPlace( p2 );
+
+				for ( int d = 0; d < n; ++d )
+					if ( p1[ d ] != p2[ d ] )
+						changed[ i ] = true;
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Finds all blocks that intersect a region containing a changed tile, in the old or in the new plan.
+	 *
+	 * @param oldPlan - the plan of the existing output
+	 * @param newPlan - the plan with the new models, it has the same bounding box
+	 * @param changed - which tiles changed (see {@link #getChangedTiles(FusionPlan, FusionPlan)})
+	 * @param blockSize - the size of the blocks
+	 * @return - the index of each block that has to be fused again, x is the fastest dimension
+	 */
+	public static long[] getDirtyBlocks( final FusionPlan oldPlan, final FusionPlan newPlan, final boolean[] changed, final int[] blockSize )
+	{
+		final int n = newPlan.numDimensions();
+		final int[] size = newPlan.getSize();
+		final int[] numBlocks = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			numBlocks[ d ] = ( size[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		final TreeSet< Long > dirty = new TreeSet< Long >();
+
+		addDirtyBlocks( oldPlan, changed, blockSize, numBlocks, dirty );
+		addDirtyBlocks( newPlan, changed, blockSize, numBlocks, dirty );
+
+		final long[] blocks = new long[ dirty.size() ];
+		int i = 0;
+		for ( final long b : dirty )
+			blocks[ i++ ] = b;
+
+		return blocks;
+	}
+
+	protected static void addDirtyBlocks( final FusionPlan plan, final boolean[] changed, final int[] blockSize, final int[] numBlocks, final TreeSet< Long > dirty )
+	{
+		final int n = numBlocks.length;
+		final int[] min = new int[ n ];
+		final int[] max = new int[ n ];
+		final int[] block = new int[ n ];
+
+		for ( final ClassifiedRegion region : plan.getRegions() )
+		{
+			boolean isDirty = false;
+			for ( final int tile : region.classArray() )
+				isDirty |= changed[ tile ];
+
+			if ( !isDirty )
+				continue;
+
+			// the range of blocks the region intersects, clipped to the fused image
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = Math.max( 0, region.get( d ).min() ) / blockSize[ d ];
+				max[ d ] = Math.min( numBlocks[ d ] * blockSize[ d ] - 1, region.get( d ).max() ) / blockSize[ d ];
+
+				if ( max[ d ] < min[ d ] )
+					isDirty = false;
+
+				block[ d ] = min[ d ];
+			}
+
+			if ( !isDirty )
+				continue;
+
+			while ( true )
+			{
+				long index = 0;
+				for ( int d = n - 1; d >= 0; --d )
+					index = index * numBlocks[ d ] + block[ d ];
+
+				dirty.add( index );
+
+				int d = 0;
+				while ( d < n && block[ d ] == max[ d ] )
+					block[ d ] = min[ d++ ];
+
+				if ( d == n )
+					break;
+
+				++block[ d ];
+			}
+		}
+	}
+}
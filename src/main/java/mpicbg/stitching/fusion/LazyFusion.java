@@ -0,0 +1,246 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import mpicbg.models.InvertibleBoundable;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.imageplus.ImagePlusImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Fuses single planes (one z-slice of one channel and timepoint) of the fused image when they are
+ * requested, instead of fusing the complete image up front. Only the {@link FusionPlan} is computed
+ * in advance, a plane is fused from the tiles that intersect it (see {@link StreamingFusion}), which are
+ * kept in a {@link TileCache}. The most recently used planes are cached within a memory budget, so that
+ * going back and forth between some planes does not fuse them again.
+ *
+ * Use {@link FusedVirtualStack} to display it in ImageJ and {@link FusedRandomAccessibleInterval} to
+ * access it with ImgLib2.
+ *
+ * @param <T> - the type of the fused image
+ */
+public class LazyFusion< T extends RealType< T > & NativeType< T > >
+{
+	/**
+	 * Which fraction of the maximal heap the fused planes may use by default
+	 */
+	public static double defaultPlaneCacheFraction = 0.1;
+
+	final T targetType;
+	final FusionPlan plan;
+	final TileCache tiles;
+	final int fusionType;
+	final boolean ignoreZeroValues;
+	final int numChannels, numTimePoints;
+
+	final ImgFactory< T > factory = new ImagePlusImgFactory< T >();
+	final long planeCacheBytes;
+
+	// access-ordered, the first entry is the least recently used plane
+	final LinkedHashMap< Long, Img< T > > planes = new LinkedHashMap< Long, Img< T > >( 16, 0.75f, true );
+	final HashMap< Long, Long > sizes = new HashMap< Long, Long >();
+
+	// the planes that are currently fused by some thread
+	final HashSet< Long > fusing = new HashSet< Long >();
+	long bytes = 0;
+	long numFused = 0;
+
+	/**
+	 * @param targetType - the type of the fused image
+	 * @param images - all input images, should be virtual to bound the memory
+	 * @param models - the transformation of each input image
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - if the tiles are interpolated
+	 * @param fusionType - see {@link Fusion#getPixelFusion(int, boolean, ArrayList)}
+	 * @param ignoreZeroValues - if zero values should not contribute to the fused pixel
+	 * @param regionMin - the first pixel of the region in the coordinates of the complete fused image, or null for everything
+	 * @param regionMax - the last pixel of the region (inclusive), or null for everything
+	 * @param planeCacheBytes - the memory budget of the fused planes, the last plane is always kept
+	 * @param cacheBytes - the memory budget of the tile cache
+	 */
+	public LazyFusion( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues,
+			final long[] regionMin, final long[] regionMax, final long planeCacheBytes, final long cacheBytes )
+	{
+		this.targetType = targetType;
+		this.fusionType = fusionType;
+		this.ignoreZeroValues = ignoreZeroValues;
+		this.numChannels = images.get( 0 ).getNChannels();
+		this.numTimePoints = images.get( 0 ).getNFrames();
+		this.planeCacheBytes = planeCacheBytes;
+
+		this.plan = Fusion.getPlan( images, models, dimensionality, subpixelResolution, regionMin, regionMax );
+		this.tiles = new TileCache( images, subpixelResolution, cacheBytes );
+
+	}
+
+	/**
+	 * Convenience constructor that fuses everything with the default cache sizes
+	 */
+	public LazyFusion( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues )
+	{
+		this( targetType, images, models, dimensionality, subpixelResolution, fusionType, ignoreZeroValues, null, null,
+				defaultPlaneCacheBytes(), StreamingFusion.defaultCacheBytes() );
+	}
+
+	/**
+	 * @return - the default memory budget of the fused planes, see {@link #defaultPlaneCacheFraction}
+	 */
+	public static long defaultPlaneCacheBytes()
+	{
+		return (long)( Runtime.getRuntime().maxMemory() * defaultPlaneCacheFraction );
+	}
+
+	/**
+	 * Returns a plane of the fused image, it is fused if it is not cached. Different planes are fused
+	 * in parallel, a thread that requests a plane which is being fused waits for it.
+	 *
+	 * @param z - the z-slice (starting at 0), 0 for 2d
+	 * @param c - the channel (starting at 1)
+	 * @param t - the timepoint (starting at 1)
+	 * @return - the fused plane, it is 3d with a depth of 1 if the fused image is 3d
+	 */
+	public Img< T > getPlane( final int z, final int c, final int t )
+	{
+		final Long key = key( z, c, t );
+
+		synchronized ( this )
+		{
+			Img< T > plane = planes.get( key );
+
+			while ( plane == null && fusing.contains( key ) )
+			{
+				try
+				{
+					wait();
+				}
+				catch ( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new RuntimeException( "Interrupted while waiting for plane " + z + " to be fused." );
+				}
+
+				plane = planes.get( key );
+			}
+
+			if ( plane != null )
+				return plane;
+
+			fusing.add( key );
+		}
+
+		// fused outside of the lock, the tile cache is thread-safe
+		final int[] size = plan.getSize();
+		final int n = size.length;
+		final int[] min = new int[ n ];
+		final int[] max = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			max[ d ] = size[ d ] - 1;
+
+		if ( n == 3 )
+			min[ 2 ] = max[ 2 ] = z;
+
+		Img< T > plane = null;
+
+		try
+		{
+			plane = StreamingFusion.fuseBlock( factory, targetType, min, max, plan, tiles, t, c, fusionType, ignoreZeroValues );
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				fusing.remove( key );
+
+				if ( plane != null )
+				{
+					++numFused;
+
+					planes.put( key, plane );
+					sizes.put( key, bytesPerPlane() );
+					bytes += bytesPerPlane();
+
+					evict( key );
+				}
+
+				notifyAll();
+			}
+		}
+
+		return plane;
+	}
+
+	/**
+	 * Removes the least recently used planes until the planes fit into the budget, the plane
+	 * that was just fused is kept even if it alone is bigger than the budget
+	 *
+	 * @param newest - the key of the plane that was just fused
+	 */
+	protected void evict( final Long newest )
+	{
+		final Iterator< Long > it = planes.keySet().iterator();
+
+		while ( bytes > planeCacheBytes && it.hasNext() )
+		{
+			final Long key = it.next();
+
+			if ( key.equals( newest ) )
+				continue;
+
+			it.remove();
+			bytes -= sizes.remove( key );
+		}
+	}
+
+	/**
+	 * @return - the number of bytes of one fused plane
+	 */
+	protected long bytesPerPlane()
+	{
+		final int[] size = plan.getSize();
+
+		return (long)size[ 0 ] * size[ 1 ] * Math.max( 1, targetType.getBitsPerPixel() / 8 );
+	}
+
+	/**
+	 * Removes all fused planes and tiles from the caches
+	 */
+	public synchronized void clear()
+	{
+		planes.clear();
+		sizes.clear();
+		bytes = 0;
+		tiles.clear();
+	}
+
+	public FusionPlan getPlan() { return plan; }
+	public T getType() { return targetType; }
+	public int numChannels() { return numChannels; }
+	public int numTimePoints() { return numTimePoints; }
+	public int numSlices() { return plan.numDimensions() == 3 ? plan.getSize()[ 2 ] : 1; }
+
+	/**
+	 * @return - how many planes were fused so far
+	 */
+	public synchronized long getNumFused() { return numFused; }
+
+	/**
+	 * @return - how many bytes the cached planes use
+	 */
+	public synchronized long getCachedBytes() { return bytes; }
+
+	protected static Long key( final int z, final int c, final int t )
+	{
+		return ( ( (long)t * 65536l + c ) << 32 ) + z;
+	}
+}
@@ -1,11 +1,24 @@
 package mpicbg.stitching.fusion;
 
-public class MaxPixelFusion implements PixelFusion 
+/**
+ * The maximum of all values, it is saturated once a value reaches the maximal value the input can have.
+ */
+public class MaxPixelFusion implements ShortCircuitPixelFusion 
 {
+	final double saturation;
 	double max;
 	boolean set;
 	
-	public MaxPixelFusion() { clear(); }
+	public MaxPixelFusion() { this( Double.POSITIVE_INFINITY ); }
+
+	/**
+	 * @param saturation - the maximal value of the input images (e.g. 255 for 8-bit), no value can exceed it
+	 */
+	public MaxPixelFusion( final double saturation )
+	{
+		this.saturation = saturation;
+		clear();
+	}
 	
 	@Override
 	public void clear()
@@ -33,5 +46,11 @@ public class MaxPixelFusion implements PixelFusion
 	public double getValue() { return max; }
 
 	@Override
-	public PixelFusion copy() { return new MaxPixelFusion(); }
+	public PixelFusion copy() { return new MaxPixelFusion( saturation ); }
+
+	@Override
+	public boolean isReverseOrder() { return false; }
+
+	@Override
+	public boolean isSaturated() { return set && max >= saturation; }
 }
@@ -3,6 +3,8 @@ package mpicbg.stitching.fusion;
 public class MaxPixelFusionIgnoreZero extends MaxPixelFusion 
 {
 	public MaxPixelFusionIgnoreZero() { super(); }
+
+	public MaxPixelFusionIgnoreZero( final double saturation ) { super( saturation ); }
 	
 	@Override
 	public void addValue( final double value, final int imageId, final double[] localPosition ) 
@@ -22,5 +24,5 @@ public class MaxPixelFusionIgnoreZero extends MaxPixelFusion
 	}
 
 	@Override
-	public PixelFusion copy() { return new MaxPixelFusionIgnoreZero(); }
+	public PixelFusion copy() { return new MaxPixelFusionIgnoreZero( saturation ); }
 }
@@ -1,11 +1,24 @@
 package mpicbg.stitching.fusion;
 
-public class MinPixelFusion implements PixelFusion 
+/**
+ * The minimum of all values, it is saturated once a value reaches the minimal value the input can have.
+ */
+public class MinPixelFusion implements ShortCircuitPixelFusion 
 {
+	final double saturation;
 	double min;
 	boolean set;
 	
-	public MinPixelFusion() { clear(); }
+	public MinPixelFusion() { this( Double.NEGATIVE_INFINITY ); }
+
+	/**
+	 * @param saturation - the minimal value of the input images (e.g. 0 for 8-bit), no value can be below it
+	 */
+	public MinPixelFusion( final double saturation )
+	{
+		this.saturation = saturation;
+		clear();
+	}
 	
 	@Override
 	public void clear() 
@@ -32,5 +45,11 @@ public class MinPixelFusion implements PixelFusion
 	public double getValue() { return min; }
 
 	@Override
-	public PixelFusion copy() { return new MinPixelFusion(); }
+	public PixelFusion copy() { return new MinPixelFusion( saturation ); }
+
+	@Override
+	public boolean isReverseOrder() { return false; }
+
+	@Override
+	public boolean isSaturated() { return set && min <= saturation; }
 }
@@ -3,6 +3,8 @@ package mpicbg.stitching.fusion;
 public class MinPixelFusionIgnoreZero extends MinPixelFusion 
 {
 	public MinPixelFusionIgnoreZero() { super(); }
+
+	public MinPixelFusionIgnoreZero( final double saturation ) { super( saturation ); }
 	
 	@Override
 	public void addValue( final double value, final int imageId, final double[] localPosition )
@@ -22,5 +24,5 @@ public class MinPixelFusionIgnoreZero extends MinPixelFusion
 	}
 
 	@Override
-	public PixelFusion copy() { return new MinPixelFusionIgnoreZero(); }
+	public PixelFusion copy() { return new MinPixelFusionIgnoreZero( saturation ); }
 }
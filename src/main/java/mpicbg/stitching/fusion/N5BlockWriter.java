@@ -0,0 +1,529 @@
+package mpicbg.stitching.fusion;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import stitching.utils.Log;
+
+/**
+ * Writes the fused blocks as chunks of an N5 container on the local filesystem
+ * (https://github.com/saalfeldlab/n5), one dataset per channel and timepoint in the layout
+ * BigDataViewer uses: setup[channel-1]/timepoint[timepoint-1]/s[level]. Every block is one chunk
+ * in its own file, so chunks are written independently and viewers only load the chunks
+ * they display.
+ *
+ * Chunks are optionally gzip-compressed. Serializing, compressing and writing happens on a
+ * pool of threads ({@link WriteQueue}), {@link #write(Img, long[], int, int)} only blocks if the
+ * chunks waiting for them exceed a memory budget. The attributes of the datasets are written by {@link #close()}, once the size of
+ * the fused image is known. When an existing container is updated (see {@link #startUpdate(long[])}) the size
+ * is given, and the attributes of the setups stay as they are.
+ *
+ * The blocks have to be aligned to a grid of the chunk size, which is the case for the blocks of
+ * {@link StreamingFusion} if it uses the same block size. Blocks at the border may be smaller.
+ */
+public class N5BlockWriter implements UpdatableBlockWriter
+{
+	/**
+	 * If the chunks are gzip-compressed by default
+	 */
+	public static boolean defaultCompression = true;
+
+	/**
+	 * The fraction of the maximal memory the blocks waiting to be written may use by default
+	 */
+	public static double defaultQueueFraction = 0.05;
+
+	final static int UNSIGNED_BYTE = 0, UNSIGNED_SHORT = 1, FLOAT = 2;
+	final static String[] dataTypes = { "uint8", "uint16", "float32" };
+
+	final File root;
+	final int[] blockSize;
+	final boolean compress;
+	final int level, numLevels;
+
+	final WriteQueue queue;
+	final boolean ownsQueue;
+
+	// the chunks of this writer that are not written yet
+	int numPending = 0;
+
+	// the size of each dataset, by its path
+	final HashMap< String, long[] > datasets = new HashMap< String, long[] >();
+	final List< IOException > errors = Collections.synchronizedList( new ArrayList< IOException >() );
+
+	int type = -1;
+
+	// the size of the fused image if an existing container is updated
+	long[] updateSize = null;
+
+	/**
+	 * @param root - the directory of the N5 container, it is created if it does not exist
+	 * @param blockSize - the size of the blocks (see {@link StreamingFusion#defaultBlockSize}), it is also the chunk size
+	 * @param compress - gzip-compress the chunks
+	 * @param numThreads - how many chunks are serialized, compressed and written at the same time
+	 * @throws IOException
+	 */
+	public N5BlockWriter( final File root, final int[] blockSize, final boolean compress, final int numThreads ) throws IOException
+	{
+		this( root, blockSize, compress, new WriteQueue( numThreads, defaultQueueBytes() ), true, 0, 1 );
+	}
+
+	/**
+	 * Writes one level of a resolution pyramid (see {@link PyramidBlockWriter}), all levels go into the same container
+	 *
+	 * @param root - the directory of the N5 container, it is created if it does not exist
+	 * @param blockSize - the size of the blocks (see {@link StreamingFusion#defaultBlockSize}), it is also the chunk size
+	 * @param compress - gzip-compress the chunks
+	 * @param queue - writes the chunks, it is shared by the writers of all levels and has to be shut down after they are closed
+	 * @param level - the level of this writer, the dataset is s[level] and it is downsampled by 2^level
+	 * @param numLevels - the number of levels of the pyramid
+	 * @throws IOException
+	 */
+	public N5BlockWriter( final File root, final int[] blockSize, final boolean compress, final WriteQueue queue, final int level, final int numLevels ) throws IOException
+	{
+		this( root, blockSize, compress, queue, false, level, numLevels );
+	}
+
+	protected N5BlockWriter( final File root, final int[] blockSize, final boolean compress, final WriteQueue queue, final boolean ownsQueue, final int level, final int numLevels ) throws IOException
+	{
+		this.root = root;
+		this.blockSize = blockSize.clone();
+		this.compress = compress;
+		this.level = level;
+		this.numLevels = numLevels;
+
+		if ( !root.exists() && !root.mkdirs() )
+			throw new IOException( "Could not create '" + root.getAbsolutePath() + "'" );
+
+		writeText( new File( root, "attributes.json" ), "{\"n5\":\"2.0.0\"}" );
+
+		this.queue = queue;
+		this.ownsQueue = ownsQueue;
+	}
+
+	/**
+	 * Gzip-compresses depending on {@link #defaultCompression}, uses all available processors
+	 *
+	 * @param root - the directory of the N5 container, it is created if it does not exist
+	 * @param blockSize - the size of the blocks (see {@link StreamingFusion#defaultBlockSize}), it is also the chunk size
+	 * @throws IOException
+	 */
+	public N5BlockWriter( final File root, final int[] blockSize ) throws IOException
+	{
+		this( root, blockSize, defaultCompression, Runtime.getRuntime().availableProcessors() );
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > void write( final Img< T > block, final long[] min, final int t, final int c ) throws IOException
+	{
+		final int n = block.numDimensions();
+		final long[] size = new long[ n ];
+		final long[] gridPosition = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( min[ d ] % blockSize[ d ] != 0 || block.dimension( d ) > blockSize[ d ] )
+				throw new IOException( "Block at " + min[ d ] + " in dimension " + d + " is not aligned to the chunks of size " + blockSize[ d ] );
+
+			size[ d ] = min[ d ] + block.dimension( d );
+			gridPosition[ d ] = min[ d ] / blockSize[ d ];
+		}
+
+		final String dataset = getDatasetPath( t, c, level );
+		final long bytes;
+
+		synchronized ( this )
+		{
+			if ( errors.size() > 0 )
+				throw errors.get( 0 );
+
+			final int blockType = getType( block.firstElement() );
+
+			if ( blockType < 0 )
+				throw new IOException( "Unsupported type for N5: " + block.firstElement().getClass().getSimpleName() );
+
+			if ( type < 0 )
+				type = blockType;
+			else if ( type != blockType )
+				throw new IOException( "All blocks must have the same type." );
+
+			final long[] datasetSize = datasets.get( dataset );
+
+			if ( datasetSize == null )
+				datasets.put( dataset, size );
+			else
+				for ( int d = 0; d < n; ++d )
+					datasetSize[ d ] = Math.max( datasetSize[ d ], size[ d ] );
+
+			// the block is held until its chunk is written
+			bytes = block.size() * getBytesPerPixel( type );
+			++numPending;
+		}
+
+		try
+		{
+			queue.acquire( bytes );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			finished();
+			throw new IOException( "Interrupted while waiting for the N5 writer." );
+		}
+
+		queue.service.submit( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					writeChunk( block, dataset, gridPosition );
+				}
+				catch ( IOException e )
+				{
+					errors.add( e );
+				}
+				catch ( RuntimeException e )
+				{
+					errors.add( new IOException( "Could not write chunk: " + e ) );
+				}
+				finally
+				{
+					queue.release( bytes );
+					finished();
+				}
+			}
+		} );
+	}
+
+	protected synchronized void finished()
+	{
+		--numPending;
+		notifyAll();
+	}
+
+	/**
+	 * Only the full resolution of a container without a pyramid can be updated, the coarser levels would keep the old pixels
+	 */
+	@Override
+	public synchronized void startUpdate( final long[] size ) throws IOException
+	{
+		if ( level != 0 || numLevels != 1 )
+			throw new IOException( "Only the full resolution of an N5 container without a resolution pyramid can be updated." );
+
+		final File[] setups = root.listFiles();
+
+		if ( setups != null )
+			for ( final File setup : setups )
+			{
+				final File[] timepoints = setup.listFiles();
+
+				if ( timepoints != null )
+					for ( final File timepoint : timepoints )
+						if ( new File( timepoint, "s1" ).isDirectory() )
+							throw new IOException( "'" + root.getAbsolutePath() + "' has a resolution pyramid, it can not be updated." );
+			}
+
+		this.updateSize = size.clone();
+	}
+
+	/**
+	 * Waits until all chunks are written and writes the attributes of all datasets
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		synchronized ( this )
+		{
+			try
+			{
+				while ( numPending > 0 )
+					wait();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException( "Interrupted while waiting for the N5 writer." );
+			}
+		}
+
+		if ( ownsQueue )
+			queue.shutdown();
+
+		if ( errors.size() > 0 )
+			throw errors.get( 0 );
+
+		for ( final String dataset : datasets.keySet() )
+		{
+			// the blocks of an update do not necessarily reach the end of the fused image
+			final long[] size = updateSize == null ? datasets.get( dataset ) : updateSize;
+
+			writeAttributes( dataset, size, blockSize );
+
+			if ( updateSize != null )
+				continue;
+
+			// the setup needs the type and the downsampling factors for BigDataViewer
+			final String setup = dataset.substring( 0, dataset.indexOf( '/' ) );
+			writeText( new File( root, setup + "/attributes.json" ), "{\"dataType\":\"" + dataTypes[ type ] + "\",\"downsamplingFactors\":[" + factors( numLevels, size.length ) + "]}" );
+		}
+
+		Log.debug( "N5 writer: " + datasets.size() + " datasets in '" + root.getAbsolutePath() + "'" );
+	}
+
+	/**
+	 * @return - the path of a dataset relative to the root
+	 */
+	public static String getDatasetPath( final int t, final int c, final int level )
+	{
+		return "setup" + ( c - 1 ) + "/timepoint" + ( t - 1 ) + "/s" + level;
+	}
+
+	/**
+	 * Serializes, compresses and writes one chunk, row by row so that there is no second copy of the block
+	 */
+	protected < T extends RealType< T > > void writeChunk( final Img< T > block, final String dataset, final long[] gridPosition ) throws IOException
+	{
+		final int n = block.numDimensions();
+
+		// the header is not compressed: mode, number of dimensions, size of the chunk
+		final ByteBuffer header = ByteBuffer.allocate( 4 + 4 * n ).order( ByteOrder.BIG_ENDIAN );
+		header.putShort( (short)0 ).putShort( (short)n );
+
+		for ( int d = 0; d < n; ++d )
+			header.putInt( (int)block.dimension( d ) );
+
+		String path = dataset;
+		for ( int d = 0; d < n; ++d )
+			path += "/" + gridPosition[ d ];
+
+		final File file = new File( root, path );
+		file.getParentFile().mkdirs();
+
+		final OutputStream out = new BufferedOutputStream( new FileOutputStream( file ) );
+
+		try
+		{
+			out.write( header.array() );
+
+			final GZIPOutputStream gzip = compress ? new GZIPOutputStream( out ) : null;
+
+			// big endian, x is the fastest dimension
+			final DataOutputStream data = new DataOutputStream( new BufferedOutputStream( compress ? gzip : out ) );
+			final RandomAccess< T > ra = block.randomAccess();
+			final int[] pos = new int[ n ];
+			final int width = (int)block.dimension( 0 );
+
+			do
+			{
+				ra.setPosition( pos );
+
+				for ( int x = 0; x < width; ++x )
+				{
+					final double value = ra.get().getRealDouble();
+
+					if ( type == UNSIGNED_SHORT )
+						data.writeShort( (int)value );
+					else if ( type == UNSIGNED_BYTE )
+						data.writeByte( (int)value );
+					else
+						data.writeFloat( (float)value );
+
+					ra.fwd( 0 );
+				}
+			}
+			while ( next( pos, block ) );
+
+			data.flush();
+
+			if ( compress )
+				gzip.finish();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * The attributes of one dataset
+	 */
+	protected void writeAttributes( final String dataset, final long[] size, final int[] chunkSize ) throws IOException
+	{
+		String dimensions = "", blocks = "";
+
+		for ( int d = 0; d < size.length; ++d )
+		{
+			dimensions += ( d > 0 ? "," : "" ) + size[ d ];
+			blocks += ( d > 0 ? "," : "" ) + chunkSize[ d ];
+		}
+
+		final String compression = compress ? "{\"type\":\"gzip\",\"level\":-1}" : "{\"type\":\"raw\"}";
+
+		writeText( new File( root, dataset + "/attributes.json" ),
+				"{\"dimensions\":[" + dimensions + "],\"blockSize\":[" + blocks + "],\"dataType\":\"" + dataTypes[ type ] + "\",\"compression\":" + compression + "}" );
+	}
+
+	/**
+	 * @return - the downsampling factors of all levels up to numLevels, e.g. [1,1,1],[2,2,2]
+	 */
+	protected static String factors( final int numLevels, final int n )
+	{
+		String factors = "";
+
+		for ( int level = 0; level < numLevels; ++level )
+		{
+			factors += ( level > 0 ? "," : "" ) + "[";
+
+			for ( int d = 0; d < n; ++d )
+				factors += ( d > 0 ? "," : "" ) + ( 1 << level );
+
+			factors += "]";
+		}
+
+		return factors;
+	}
+
+	protected static void writeText( final File file, final String text ) throws IOException
+	{
+		file.getParentFile().mkdirs();
+
+		final Writer writer = new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" );
+
+		try
+		{
+			writer.write( text );
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Moves to the next row in all dimensions but x
+	 */
+	private static boolean next( final int[] pos, final Img< ? > block )
+	{
+		for ( int d = 1; d < pos.length; ++d )
+		{
+			if ( pos[ d ] < block.dimension( d ) - 1 )
+			{
+				++pos[ d ];
+				return true;
+			}
+
+			pos[ d ] = 0;
+		}
+
+		return false;
+	}
+
+	protected static int getBytesPerPixel( final int type )
+	{
+		return type == UNSIGNED_BYTE ? 1 : type == UNSIGNED_SHORT ? 2 : 4;
+	}
+
+	/**
+	 * @return - the default memory budget of the blocks waiting to be written
+	 */
+	public static long defaultQueueBytes()
+	{
+		return (long)( Runtime.getRuntime().maxMemory() * defaultQueueFraction );
+	}
+
+	/**
+	 * The threads that serialize, compress and write the chunks, and the memory budget of the blocks
+	 * waiting for them. One queue can be shared by the writers of all levels of a pyramid, so that the
+	 * number of threads and the memory do not grow with the number of levels.
+	 */
+	public static class WriteQueue
+	{
+		final ExecutorService service;
+		final long maxBytes;
+
+		long pendingBytes = 0;
+
+		/**
+		 * @param numThreads - how many chunks are serialized, compressed and written at the same time
+		 * @param maxBytes - how many bytes of blocks may wait to be written (see {@link N5BlockWriter#defaultQueueBytes()})
+		 */
+		public WriteQueue( final int numThreads, final long maxBytes )
+		{
+			this.maxBytes = maxBytes;
+			this.service = Executors.newFixedThreadPool( Math.max( 1, numThreads ), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread thread = new Thread( r, "N5BlockWriter" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+		}
+
+		/**
+		 * Blocks until the budget has room for the block, a block larger than the budget is accepted if nothing else is waiting
+		 */
+		protected synchronized void acquire( final long bytes ) throws InterruptedException
+		{
+			while ( pendingBytes > 0 && pendingBytes + bytes > maxBytes )
+				wait();
+
+			pendingBytes += bytes;
+		}
+
+		protected synchronized void release( final long bytes )
+		{
+			pendingBytes -= bytes;
+			notifyAll();
+		}
+
+		/**
+		 * @return - the memory budget of the blocks waiting to be written
+		 */
+		public long getMaxBytes() { return maxBytes; }
+
+		/**
+		 * Stops the threads once all chunks are written, call it after all writers using this queue are closed
+		 */
+		public void shutdown() { service.shutdown(); }
+	}
+
+	protected static int getType( final Object type )
+	{
+		if ( type instanceof UnsignedShortType )
+			return UNSIGNED_SHORT;
+		else if ( type instanceof UnsignedByteType )
+			return UNSIGNED_BYTE;
+		else if ( type instanceof FloatType )
+			return FLOAT;
+		else
+			return -1;
+	}
+}
@@ -5,23 +5,29 @@ package mpicbg.stitching.fusion;
  * of one of the images is used. In fact, there is no fusion
  * but a simple overlap of one image over the others. 
  * 
+ * As only the last image counts, the values are added in reverse
+ * order and the fusion is saturated after the first one.
+ * 
  * @author Ignacio Arganda Carreras (iarganda at mit.edu)
  *
  */
-public class OverlapFusion implements PixelFusion {
+public class OverlapFusion implements ShortCircuitPixelFusion {
 
 	double lastValue;
+	boolean set;
 	
 	public OverlapFusion() { clear(); }
 	
 	@Override
 	public void clear() {
 		lastValue = 0;
+		set = false;
 	}
 
 	@Override
 	public void addValue(double value, int imageId, double[] localPosition) {
 		lastValue = value;	
+		set = true;
 	}
 
 	@Override
@@ -34,4 +40,14 @@ public class OverlapFusion implements PixelFusion {
 		return new OverlapFusion();
 	}
 
+	@Override
+	public boolean isReverseOrder() {
+		return true;
+	}
+
+	@Override
+	public boolean isSaturated() {
+		return set;
+	}
+
 }
@@ -0,0 +1,169 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every pixel is owned by exactly one of the overlapping images, the one whose center is closest
+ * (a Voronoi split of the overlaps), and takes the value of that image. This gives clean seams in
+ * the middle of the overlaps instead of blurring misaligned structures.
+ *
+ * The {@link SpanKernel} determines the owner before reading any pixel, so only the owner is read
+ * (see {@link #getDistance(int, double[])}). For images that are only translated, the regions that
+ * lie completely inside the Voronoi cell of one image are reduced to that image up front
+ * (see {@link #assignOwners(List, double[], double[][])}). Used in another way, it keeps the value
+ * of the closest image of all values added for a pixel, which gives the same result.
+ */
+public class OwnershipPixelFusion implements PixelFusion
+{
+	final int numDimensions;
+
+	// the center of each image in its local coordinates
+	final double[][] center;
+
+	double value, minDistance;
+
+	/**
+	 * @param images - all input images (the position in the list has to be the same as Id provided by addValue!)
+	 */
+	public OwnershipPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > > images )
+	{
+		this.numDimensions = images.get( 0 ).getImg().numDimensions();
+		this.center = new double[ images.size() ][ numDimensions ];
+
+		for ( int i = 0; i < images.size(); ++i )
+			for ( int d = 0; d < numDimensions; ++d )
+				center[ i ][ d ] = ( images.get( i ).getImg().dimension( d ) - 1 ) / 2.0;
+
+		clear();
+	}
+
+	protected OwnershipPixelFusion( final OwnershipPixelFusion fusion )
+	{
+		this.numDimensions = fusion.numDimensions;
+		this.center = fusion.center;
+
+		clear();
+	}
+
+	@Override
+	public void clear()
+	{
+		value = 0;
+		minDistance = Double.MAX_VALUE;
+	}
+
+	@Override
+	public void addValue( final double value, final int imageId, final double[] localPosition )
+	{
+		final double distance = getDistance( imageId, localPosition );
+
+		if ( distance < minDistance )
+		{
+			this.value = value;
+			this.minDistance = distance;
+		}
+	}
+
+	@Override
+	public double getValue() { return value; }
+
+	@Override
+	public PixelFusion copy() { return new OwnershipPixelFusion( this ); }
+
+	/**
+	 * @param imageId - the image
+	 * @param localPosition - a position in local coordinates of the image
+	 * @return - the squared distance to the center of the image, the owner has the smallest one
+	 */
+	public double getDistance( final int imageId, final double[] localPosition )
+	{
+		final double[] c = center[ imageId ];
+		double distance = 0;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final double diff = localPosition[ d ] - c[ d ];
+			distance += diff * diff;
+		}
+
+		return distance;
+	}
+
+	/**
+	 * Reduces all regions that are owned by one image to just this image. As the Voronoi cells are
+	 * convex, a region is owned by an image if all its corners are strictly closer to its center than to
+	 * the centers of the other images of the region. Only regions of translated images are checked.
+	 *
+	 * @param regions - the regions in output coordinates
+	 * @param offset - global position of the first pixel of the output
+	 * @param translations - the translation of each image, null entries (or null) for models that are no pure translation
+	 * @return - the regions, the ones owned by one image are replaced by a copy that only contains the owner
+	 */
+	public List< ClassifiedRegion > assignOwners( final List< ClassifiedRegion > regions, final double[] offset, final double[][] translations )
+	{
+		if ( translations == null )
+			return regions;
+
+		final int n = offset.length;
+		final double[] p = new double[ n ];
+		final ArrayList< ClassifiedRegion > assigned = new ArrayList< ClassifiedRegion >( regions.size() );
+
+		for ( final ClassifiedRegion region : regions )
+		{
+			final int[] classes = region.classArray();
+			int owner = classes.length > 1 ? -1 : -2;
+
+			for ( final int c : classes )
+				if ( translations[ c ] == null )
+					owner = -2;
+
+			// the owner of all corners, -2 if they differ or are not unique
+			for ( int corner = 0; corner < ( 1 << n ) && owner != -2; ++corner )
+			{
+				int closest = -2;
+				double min = Double.MAX_VALUE;
+
+				for ( final int c : classes )
+				{
+					for ( int d = 0; d < n; ++d )
+						p[ d ] = ( ( corner & ( 1 << d ) ) == 0 ? region.get( d ).min() : region.get( d ).max() ) + offset[ d ] - translations[ c ][ d ];
+
+					final double distance = getDistance( c, p );
+
+					if ( distance < min )
+					{
+						min = distance;
+						closest = c;
+					}
+					else if ( distance == min )
+					{
+						closest = -2;
+					}
+				}
+
+				if ( owner == -1 )
+					owner = closest;
+				else if ( owner != closest )
+					owner = -2;
+			}
+
+			if ( owner < 0 )
+			{
+				assigned.add( region );
+			}
+			else
+			{
+				final ClassifiedRegion owned = new ClassifiedRegion( n );
+
+				for ( int d = 0; d < n; ++d )
+					owned.set( new Interval( region.get( d ).min(), region.get( d ).max() ), d );
+
+				owned.addClass( owner );
+				assigned.add( owned );
+			}
+		}
+
+		return assigned;
+	}
+}
@@ -0,0 +1,300 @@
+package mpicbg.stitching.fusion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Computes a resolution pyramid while the fused image is written. Every block is passed on to the
+ * writer of the full resolution and is at the same time averaged 2x2(x2) into its quarter (eighth)
+ * of the block of the next coarser level. Once all blocks that contribute to a coarser block have
+ * arrived, it is written as well and averaged into the next level, so each level is computed from
+ * the finer blocks while they are still in memory instead of reading the fused image again.
+ *
+ * The blocks of all levels have the same size and are aligned to the same grid, as it is the case for
+ * {@link StreamingFusion}. As the size of the fused image is known, every coarser block is allocated
+ * with its final size and is written as soon as its last finer block arrives. A coarser block is held
+ * in memory until then, so the blocks should arrive in Z-order (see {@link StreamingFusion#getBlockOrder(int[])}),
+ * which keeps at most one unfinished block per level.
+ */
+public class PyramidBlockWriter implements BlockWriter
+{
+	final BlockWriter[] writers;
+	final int[] blockSize;
+
+	// the size of the image and the number of blocks, for each level
+	final long[][] levelSize;
+	final long[][] numBlocks;
+
+	// the coarser blocks that still wait for finer blocks, for each level
+	final ArrayList< LinkedHashMap< String, Parent > > parents = new ArrayList< LinkedHashMap< String, Parent > >();
+
+	/**
+	 * @param writers - the writer of each level, writers[ 0 ] receives the full resolution, writers[ 1 ] 2x downsampled, ...
+	 * @param blockSize - the size of the blocks, it has to be even
+	 * @param size - the size of the fused image at full resolution
+	 */
+	public PyramidBlockWriter( final List< ? extends BlockWriter > writers, final int[] blockSize, final int[] size )
+	{
+		for ( final int s : blockSize )
+			if ( s % 2 != 0 )
+				throw new IllegalArgumentException( "The block size has to be even for a pyramid: " + s );
+
+		this.writers = writers.toArray( new BlockWriter[ writers.size() ] );
+		this.blockSize = blockSize.clone();
+
+		final int n = size.length;
+		this.levelSize = new long[ writers.size() ][ n ];
+		this.numBlocks = new long[ writers.size() ][ n ];
+
+		for ( int level = 0; level < writers.size(); ++level )
+		{
+			for ( int d = 0; d < n; ++d )
+			{
+				// an odd size is rounded up by the downsampling
+				levelSize[ level ][ d ] = level == 0 ? size[ d ] : ( levelSize[ level - 1 ][ d ] + 1 ) / 2;
+				numBlocks[ level ][ d ] = ( levelSize[ level ][ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			}
+
+			parents.add( new LinkedHashMap< String, Parent >() );
+		}
+	}
+
+	@Override
+	public synchronized < T extends RealType< T > & NativeType< T > > void write( final Img< T > block, final long[] min, final int t, final int c ) throws IOException
+	{
+		writers[ 0 ].write( block, min, t, c );
+		addToParent( 1, block, min, t, c );
+	}
+
+	/**
+	 * Writes all coarser blocks that are not complete, which only happens if not all blocks were written,
+	 * and closes all writers
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		// writing a level adds to the next one, so they are flushed from fine to coarse
+		for ( int level = 1; level < writers.length; ++level )
+		{
+			final ArrayList< Parent > remaining = new ArrayList< Parent >( parents.get( level ).values() );
+			parents.get( level ).clear();
+
+			for ( final Parent parent : remaining )
+				writeParent( level, parent );
+		}
+
+		for ( final BlockWriter writer : writers )
+			writer.close();
+	}
+
+	/**
+	 * @return - the number of coarser blocks that wait for finer blocks, i.e. that are held in memory
+	 */
+	public synchronized int numPendingBlocks()
+	{
+		int pending = 0;
+
+		for ( final LinkedHashMap< String, Parent > level : parents )
+			pending += level.size();
+
+		return pending;
+	}
+
+	/**
+	 * @return - the number of levels including the full resolution
+	 */
+	public int numLevels() { return writers.length; }
+
+	protected < T extends RealType< T > & NativeType< T > > void addToParent( final int level, final Img< T > block, final long[] min, final int t, final int c ) throws IOException
+	{
+		if ( level >= writers.length )
+			return;
+
+		final int n = min.length;
+		final long[] index = new long[ n ];
+		final long[] parentIndex = new long[ n ];
+
+		String key = t + "," + c;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			index[ d ] = min[ d ] / blockSize[ d ];
+			parentIndex[ d ] = index[ d ] / 2;
+			key += "," + parentIndex[ d ];
+		}
+
+		Parent parent = parents.get( level ).get( key );
+
+		if ( parent == null )
+		{
+			parent = new Parent( level, parentIndex, t, c );
+			parents.get( level ).put( key, parent );
+		}
+
+		parent.add( block, index );
+
+		if ( parent.isComplete() )
+		{
+			parents.get( level ).remove( key );
+			writeParent( level, parent );
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	protected < T extends RealType< T > & NativeType< T > > void writeParent( final int level, final Parent parent ) throws IOException
+	{
+		final Img< T > block = (Img< T >)parent.img;
+
+		writers[ level ].write( block, parent.min, parent.t, parent.c );
+		addToParent( level + 1, block, parent.min, parent.t, parent.c );
+	}
+
+	/**
+	 * Averages 2x2(x2) pixels in all dimensions, an odd size is rounded up and the last pixel is kept.
+	 *
+	 * @param img - the image
+	 * @return - the downsampled image created by the same factory
+	 */
+	public static < T extends RealType< T > > Img< T > downsample( final Img< T > img )
+	{
+		final int n = img.numDimensions();
+		final long[] size = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			size[ d ] = ( img.dimension( d ) + 1 ) / 2;
+
+		final Img< T > out = img.factory().create( size, img.firstElement().createVariable() );
+		downsample( img, out, new long[ n ] );
+
+		return out;
+	}
+
+	/**
+	 * Averages 2x2(x2) pixels of the input into the output at a certain offset
+	 */
+	protected static < S extends RealType< S >, T extends RealType< T > > void downsample( final Img< S > input, final Img< T > output, final long[] offset )
+	{
+		final int n = input.numDimensions();
+		final RandomAccess< S > in = input.randomAccess();
+		final RandomAccess< T > out = output.randomAccess();
+
+		final long[] size = new long[ n ];
+		final long[] pos = new long[ n ];
+		final long[] inPos = new long[ n ];
+		final int[] numNeighbors = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			size[ d ] = ( input.dimension( d ) + 1 ) / 2;
+
+		do
+		{
+			// the 2x2(x2) neighborhood, fewer at the border
+			int count = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				inPos[ d ] = pos[ d ] * 2;
+				numNeighbors[ d ] = inPos[ d ] + 1 < input.dimension( d ) ? 2 : 1;
+				count *= numNeighbors[ d ];
+			}
+
+			double sum = 0;
+
+			for ( int i = 0; i < count; ++i )
+			{
+				int j = i;
+				for ( int d = 0; d < n; ++d )
+				{
+					in.setPosition( inPos[ d ] + j % numNeighbors[ d ], d );
+					j /= numNeighbors[ d ];
+				}
+
+				sum += in.get().getRealDouble();
+			}
+
+			for ( int d = 0; d < n; ++d )
+				out.setPosition( offset[ d ] + pos[ d ], d );
+
+			out.get().setReal( sum / count );
+		}
+		while ( next( pos, size ) );
+	}
+
+	private static boolean next( final long[] pos, final long[] size )
+	{
+		for ( int d = 0; d < pos.length; ++d )
+		{
+			if ( pos[ d ] < size[ d ] - 1 )
+			{
+				++pos[ d ];
+				return true;
+			}
+
+			pos[ d ] = 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * A block of a coarser level that receives the downsampled finer blocks
+	 */
+	protected class Parent
+	{
+		final long[] min, size;
+		final int t, c;
+		final int n;
+
+		// how many finer blocks contribute to it
+		final int expected;
+		int received = 0;
+
+		Img< ? > img = null;
+
+		Parent( final int level, final long[] index, final int t, final int c )
+		{
+			this.t = t;
+			this.c = c;
+			this.n = index.length;
+			this.min = new long[ n ];
+			this.size = new long[ n ];
+
+			int expected = 1;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = index[ d ] * blockSize[ d ];
+				size[ d ] = Math.min( blockSize[ d ], levelSize[ level ][ d ] - min[ d ] );
+
+				// the last block of the finer level might not have a neighbor
+				if ( 2 * index[ d ] + 1 < numBlocks[ level - 1 ][ d ] )
+					expected *= 2;
+			}
+
+			this.expected = expected;
+		}
+
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		< T extends RealType< T > & NativeType< T > > void add( final Img< T > block, final long[] index )
+		{
+			final long[] offset = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				offset[ d ] = ( index[ d ] % 2 ) * blockSize[ d ] / 2;
+
+			if ( img == null )
+				img = block.factory().create( size, block.firstElement().createVariable() );
+
+			downsample( block, (Img)img, offset );
+			++received;
+		}
+
+		boolean isComplete() { return received == expected; }
+	}
+}
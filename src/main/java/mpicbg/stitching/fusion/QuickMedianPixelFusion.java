@@ -0,0 +1,157 @@
+package mpicbg.stitching.fusion;
+
+import java.util.Arrays;
+
+/**
+ * Median fusion on a reusable primitive array. Small numbers of values (the usual overlap
+ * of a few tiles) are sorted by insertion, larger ones partially ordered by quickselect,
+ * so there is no boxing and no allocation per pixel. Returns exactly the same values as
+ * {@link MedianPixelFusion}.
+ */
+public class QuickMedianPixelFusion implements PixelFusion
+{
+	/**
+	 * Up to this number of values insertion sort is faster than quickselect
+	 */
+	final static int maxInsertionSort = 8;
+
+	double[] values;
+	int numValues;
+	boolean hasNaN;
+
+	/**
+	 * @param maxOverlap - the maximal number of values per pixel, the array grows if it is exceeded
+	 */
+	public QuickMedianPixelFusion( final int maxOverlap )
+	{
+		values = new double[ Math.max( 1, maxOverlap ) ];
+		clear();
+	}
+
+	@Override
+	public void clear()
+	{
+		numValues = 0;
+		hasNaN = false;
+	}
+
+	@Override
+	public void addValue( final double value, final int imageId, final double[] localPosition )
+	{
+		if ( numValues == values.length )
+			values = Arrays.copyOf( values, values.length * 2 );
+
+		if ( Double.isNaN( value ) )
+			hasNaN = true;
+
+		values[ numValues++ ] = value;
+	}
+
+	@Override
+	public double getValue()
+	{
+		if ( numValues == 0 )
+			return 0;
+
+		// NaN has no order with respect to other values, sort like Double.compareTo() does
+		if ( hasNaN )
+		{
+			Arrays.sort( values, 0, numValues );
+			return numValues % 2 == 1 ? values[ numValues / 2 ] : ( values[ numValues/2 - 1 ] + values[ numValues/2 ] ) / 2.0;
+		}
+
+		return median( values, numValues );
+	}
+
+	@Override
+	public PixelFusion copy() { return new QuickMedianPixelFusion( values.length ); }
+
+	/**
+	 * Computes the median of the first n values, the order of the values is changed.
+	 * For an even n it is the mean of the two middle values.
+	 *
+	 * @param a - the values, must not contain NaN
+	 * @param n - how many values
+	 * @return - the median
+	 */
+	public static double median( final double[] a, final int n )
+	{
+		final int k = n / 2;
+
+		if ( n <= maxInsertionSort )
+		{
+			for ( int i = 1; i < n; ++i )
+			{
+				final double v = a[ i ];
+				int j = i - 1;
+
+				while ( j >= 0 && a[ j ] > v )
+				{
+					a[ j + 1 ] = a[ j ];
+					--j;
+				}
+
+				a[ j + 1 ] = v;
+			}
+
+			return n % 2 == 1 ? a[ k ] : ( a[ k - 1 ] + a[ k ] ) / 2.0;
+		}
+
+		select( a, n, k );
+
+		if ( n % 2 == 1 )
+			return a[ k ];
+
+		// all values left of k are smaller or equal, the lower middle one is their maximum
+		double lower = a[ 0 ];
+
+		for ( int i = 1; i < k; ++i )
+			if ( a[ i ] > lower )
+				lower = a[ i ];
+
+		return ( lower + a[ k ] ) / 2.0;
+	}
+
+	/**
+	 * Partially orders the first n values so that a[ k ] is the k-th smallest value,
+	 * all values before it are smaller or equal and all values after it larger or equal
+	 * (Wirth's variant of Hoare's quickselect).
+	 */
+	public static void select( final double[] a, final int n, final int k )
+	{
+		int left = 0;
+		int right = n - 1;
+
+		while ( left < right )
+		{
+			final double x = a[ k ];
+			int i = left;
+			int j = right;
+
+			do
+			{
+				while ( a[ i ] < x )
+					++i;
+
+				while ( x < a[ j ] )
+					--j;
+
+				if ( i <= j )
+				{
+					final double tmp = a[ i ];
+					a[ i ] = a[ j ];
+					a[ j ] = tmp;
+					++i;
+					--j;
+				}
+			}
+			while ( i <= j );
+
+			if ( j < k )
+				left = i;
+
+			if ( k < i )
+				right = j;
+		}
+	}
+}
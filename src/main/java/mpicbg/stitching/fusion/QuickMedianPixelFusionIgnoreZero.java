@@ -0,0 +1,19 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * Same as {@link QuickMedianPixelFusion}, but zero values do not contribute.
+ */
+public class QuickMedianPixelFusionIgnoreZero extends QuickMedianPixelFusion
+{
+	public QuickMedianPixelFusionIgnoreZero( final int maxOverlap ) { super( maxOverlap ); }
+
+	@Override
+	public void addValue( final double value, final int imageId, final double[] localPosition )
+	{
+		if ( value != 0.0 )
+			super.addValue( value, imageId, localPosition );
+	}
+
+	@Override
+	public PixelFusion copy() { return new QuickMedianPixelFusionIgnoreZero( values.length ); }
+}
@@ -0,0 +1,443 @@
+/**
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * An execption is the FFT implementation of Dave Hale which we use as a library,
+ * wich is released under the terms of the Common Public License - v1.0, which is
+ * available at http://www.eclipse.org/legal/cpl-v10.html
+ */
+
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Decomposes a set of possibly overlapping regions (one per tile) into
+ * non-overlapping {@link ClassifiedRegion}s, each classified by all tiles that
+ * cover it.
+ * <p>
+ * Every tile is checked against the regions that have already been placed.
+ * Instead of comparing it to all of them, the placed regions are kept in a
+ * uniform grid of buckets whose cells are about the size of a tile, so only the
+ * regions in the few cells a tile covers are candidates. As tiles of a grid
+ * only overlap with their neighbors, the decomposition time grows about
+ * linearly with the number of tiles.
+ * </p>
+ */
+public class RegionDecomposition {
+
+	/**
+	 * Decomposes the given tiles into non-overlapping regions using a spatial
+	 * index.
+	 *
+	 * @param rawTiles - one region per tile, classified by the index of the tile
+	 * @return all non-overlapping regions
+	 */
+	public static List<ClassifiedRegion> decompose(
+		final List<ClassifiedRegion> rawTiles)
+	{
+		return decompose(rawTiles, true);
+	}
+
+	/**
+	 * Decomposes the given tiles into non-overlapping regions.
+	 *
+	 * @param rawTiles - one region per tile, classified by the index of the tile
+	 * @param useSpatialIndex - if false, every tile is compared to every placed
+	 *          region (only useful for comparison)
+	 * @return all non-overlapping regions
+	 */
+	public static List<ClassifiedRegion> decompose(
+		final List<ClassifiedRegion> rawTiles, final boolean useSpatialIndex)
+	{
+		if (rawTiles.isEmpty()) {
+			return new ArrayList<ClassifiedRegion>();
+		}
+
+		final Stack<ClassifiedRegion> toPlace = new Stack<ClassifiedRegion>();
+		toPlace.addAll(rawTiles);
+
+		// Set of placed tiles. Goal is to move all of the known positions
+		// to this set, creating new regions as needed such that there is no
+		// overlap between regions.
+		final RegionIndex placedTiles =
+			useSpatialIndex ? new RegionIndex(rawTiles) : new RegionIndex(rawTiles
+				.get(0).size());
+
+		// Process each position. We need to look up an intersecting placed
+		// region, and if we find one, create a new set of regions, add them
+		// to the appropriate sets, and continue
+		while (!toPlace.isEmpty()) {
+			// Get the next tile to process
+			final ClassifiedRegion queryTile = toPlace.pop();
+			final ClassifiedRegion placedTile = placedTiles.findIntersecting(queryTile);
+
+			if (placedTile != null) {
+				// The query tile and placed tile are broken down into non-overlapping
+				// components which are placed in the appropriate lists, the two
+				// original regions are discarded
+				placedTiles.remove(placedTile);
+				splitOverlappingRegions(placedTiles, toPlace, queryTile, placedTile);
+			}
+			// No intersections found, so just place the tile and continue.
+			else {
+				placedTiles.add(queryTile);
+			}
+		}
+
+		return new ArrayList<ClassifiedRegion>(placedTiles.all());
+	}
+
+	/**
+	 * Takes two overlapping regions and deconstructs them into a set of non-overlapping regions.
+	 * Each resulting region gains the classification(s) of its parent(s). Parents are differentiated
+	 * by "query" and "placed" - where "placed" is assumed to come from the {@code placedTiles} set,
+	 * and thus will not overlap with any other tile in that set. The "query" tile is what we are
+	 * currently investigating for overlap, so any children of the query tile must be added back to
+	 * the set of tiles that will be used for further overlap checks.
+	 */
+	private static void splitOverlappingRegions(RegionIndex placedTiles,
+		Stack<ClassifiedRegion> rawTiles, ClassifiedRegion queryTile, ClassifiedRegion placedTile)
+	{
+		// Tiles are different but overlapping. So we need to identify the start and end points of
+		// all potential sub tiles, for each dimension.
+		@SuppressWarnings("unchecked")
+		List<Interval>[] allIntervals = new List[queryTile.size()];
+		for (int i=0; i<allIntervals.length; i++) {
+			List<Interval> intervals = new ArrayList<Interval>();
+			List<Integer> points = new ArrayList<Integer>();
+			points.add(queryTile.get(i).min());
+			points.add(queryTile.get(i).max());
+			points.add(placedTile.get(i).min());
+			points.add(placedTile.get(i).max());
+			// Which tiles the points belong to doesn't matter. We just need to make intervals of the adjacent points
+			Collections.sort(points);
+
+			if (points.get(0).equals(points.get(1))) {
+				// First two points are equal
+				if (points.get(2).equals(points.get(3))) {
+					// Last two points are equal. Intervals overlap exactly
+					intervals.add(new Interval(points.get(0), points.get(2)));
+				}
+				else if (points.get(1).equals(points.get(2))) {
+					// First three points are equal, but last one is different. Single point shares edge
+					intervals.add(new Interval(points.get(0)));
+					intervals.add(new Interval(points.get(0) + 1, points.get(3)));
+				}
+				else {
+					// Overlap at first point, other two are unique (partial overlap with shared edge)
+					intervals.add(new Interval(points.get(0), points.get(2)));
+					intervals.add(new Interval(points.get(2) + 1, points.get(3)));
+				}
+			}
+			else if (points.get(1).equals(points.get(2))) {
+				if (points.get(2).equals(points.get(3))) {
+					// Last three points are equal, first is different. Single point shares edge
+					intervals.add(new Interval(points.get(3)));
+					intervals.add(new Interval(points.get(0), points.get(3) - 1));
+				}
+				else {
+					// Mid 2 points are equal. Two distinct tiles share an edge.
+					intervals.add(new Interval(points.get(0), points.get(1)  - 1));
+					intervals.add(new Interval(points.get(1)));
+					intervals.add(new Interval(points.get(1) + 1, points.get(3)));
+				}
+			}
+			else if (points.get(2).equals(points.get(3))) {
+				// Last 2 points are equal, other two are unique (partial overlap with shared edge)
+				intervals.add(new Interval(points.get(0), points.get(1) - 1));
+				intervals.add(new Interval(points.get(1), points.get(3)));
+			}
+			else {
+				// Overlap, zero shared edges
+				intervals.add(new Interval(points.get(0), points.get(1) - 1));
+				intervals.add(new Interval(points.get(1), points.get(2)));
+				intervals.add(new Interval(points.get(2) + 1, points.get(3)));
+			}
+
+			allIntervals[i] = intervals;
+		}
+
+		// Now that we know our potential intervals, we need to enumerate a list of all regions constructable from those intervals
+		int[] pos = new int[allIntervals.length];
+
+		// Build and place all regions
+		buildAllRegions(allIntervals, pos, 0, queryTile, placedTile,
+			placedTiles, rawTiles);
+	}
+
+	/**
+	 * Recursive method to construct all possible {@link ClassifiedRegion}
+	 * combinations from an arbitrary number of {@link Interval} lists. One list
+	 * is required for each dimension of the final regions. Regions inside the
+	 * query tile go back to {@code rawTiles}, regions only inside the placed
+	 * tile are placed right away.
+	 */
+	private static void buildAllRegions(List<Interval>[] allIntervals,
+		int[] ivalIndices, int depth, ClassifiedRegion queryTile,
+		ClassifiedRegion placedTile, RegionIndex placedTiles,
+		Stack<ClassifiedRegion> rawTiles)
+	{
+		if (depth != ivalIndices.length) {
+			for (int i = 0; i < allIntervals[depth].size(); i++) {
+				buildAllRegions(allIntervals, ivalIndices, depth + 1, queryTile,
+					placedTile, placedTiles, rawTiles);
+				// increment the index at this position in the intervals array
+				ivalIndices[depth]++;
+			}
+			ivalIndices[depth] = 0;
+			return;
+		}
+
+		// Build a new region using the current specified indices
+		ClassifiedRegion region = new ClassifiedRegion(allIntervals.length);
+
+		boolean inQuery = true;
+		boolean inPlaced = true;
+		boolean validIval = true;
+		for (int i = 0; validIval && i < allIntervals.length; i++)
+		{
+			Interval newIval = new Interval(allIntervals[i].get(ivalIndices[i]));
+			Interval queryIval = queryTile.get(i);
+			Interval placedIval = placedTile.get(i);
+			region.set(newIval, i);
+			// Each sub-region must be fully contained in at least one parent,
+			// otherwise it is invalid.
+			inQuery =
+				inQuery && queryIval.contains(newIval.min()) == 0 &&
+					queryIval.contains(newIval.max()) == 0;
+			inPlaced =
+				inPlaced && placedIval.contains(newIval.min()) == 0 &&
+					placedIval.contains(newIval.max()) == 0;
+			validIval = inQuery || inPlaced;
+		}
+
+		if (validIval) {
+			if (inQuery) {
+				region.addAllClasses(queryTile);
+				rawTiles.push(region);
+			}
+			if (inPlaced) {
+				region.addAllClasses(placedTile);
+				if (!inQuery) {
+					placedTiles.add(region);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Uniform grid of buckets holding the placed regions. A region is stored in
+	 * every cell it touches. Only the first three dimensions are bucketed, which
+	 * covers all 2d and 3d datasets.
+	 */
+	static class RegionIndex {
+
+		private static final int MAX_INDEXED_DIMENSIONS = 3;
+		private static final int BITS_PER_DIMENSION = 21;
+
+		private final int n;
+		private final int[] origin;
+		private final int[] cellSize;
+		private final HashMap<Long, ArrayList<ClassifiedRegion>> cells =
+			new HashMap<Long, ArrayList<ClassifiedRegion>>();
+		private final Set<ClassifiedRegion> placed =
+			new LinkedHashSet<ClassifiedRegion>();
+
+		/**
+		 * Creates an index with one single cell, i.e. every lookup compares to
+		 * all placed regions.
+		 */
+		RegionIndex(final int numDimensions) {
+			n = Math.min(numDimensions, MAX_INDEXED_DIMENSIONS);
+			origin = new int[n];
+			cellSize = new int[n];
+			for (int d = 0; d < n; d++) {
+				cellSize[d] = Integer.MAX_VALUE;
+			}
+		}
+
+		/**
+		 * Creates an index whose cells have about the mean size of the given
+		 * tiles. All regions that are added later must lie within their bounds.
+		 */
+		RegionIndex(final List<ClassifiedRegion> tiles) {
+			n = Math.min(tiles.get(0).size(), MAX_INDEXED_DIMENSIONS);
+			origin = new int[n];
+			cellSize = new int[n];
+
+			for (int d = 0; d < n; d++) {
+				int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+				long sum = 0;
+
+				for (final ClassifiedRegion tile : tiles) {
+					min = Math.min(min, tile.get(d).min());
+					max = Math.max(max, tile.get(d).max());
+					sum += tile.get(d).max() - tile.get(d).min() + 1;
+				}
+
+				origin[d] = min;
+				cellSize[d] = (int) Math.max(1, sum / tiles.size());
+
+				// the cell coordinates have to fit into the key
+				final long extent = (long) max - min + 1;
+				while (extent / cellSize[d] >= (1 << BITS_PER_DIMENSION)) {
+					cellSize[d] *= 2;
+				}
+			}
+		}
+
+		/**
+		 * @return any placed region that intersects the query, or null
+		 */
+		ClassifiedRegion findIntersecting(final ClassifiedRegion query) {
+			final int[] min = new int[n];
+			final int[] max = new int[n];
+			cellRange(query, min, max);
+
+			final int[] cell = min.clone();
+			do {
+				final ArrayList<ClassifiedRegion> regions = cells.get(key(cell));
+				if (regions != null) {
+					for (final ClassifiedRegion r : regions) {
+						if (query.intersects(r)) {
+							return r;
+						}
+					}
+				}
+			}
+			while (nextCell(cell, min, max));
+
+			return null;
+		}
+
+		/**
+		 * @return all placed regions that intersect the query
+		 */
+		List<ClassifiedRegion> findAllIntersecting(final ClassifiedRegion query) {
+			final int[] min = new int[n];
+			final int[] max = new int[n];
+			cellRange(query, min, max);
+
+			// a region is stored in every cell it touches, so it can be found twice
+			final Set<ClassifiedRegion> found = new LinkedHashSet<ClassifiedRegion>();
+
+			final int[] cell = min.clone();
+			do {
+				final ArrayList<ClassifiedRegion> regions = cells.get(key(cell));
+				if (regions != null) {
+					for (final ClassifiedRegion r : regions) {
+						if (query.intersects(r)) {
+							found.add(r);
+						}
+					}
+				}
+			}
+			while (nextCell(cell, min, max));
+
+			return new ArrayList<ClassifiedRegion>(found);
+		}
+
+		void add(final ClassifiedRegion region) {
+			placed.add(region);
+
+			final int[] min = new int[n];
+			final int[] max = new int[n];
+			cellRange(region, min, max);
+
+			final int[] cell = min.clone();
+			do {
+				final Long key = key(cell);
+				ArrayList<ClassifiedRegion> regions = cells.get(key);
+				if (regions == null) {
+					regions = new ArrayList<ClassifiedRegion>(4);
+					cells.put(key, regions);
+				}
+				regions.add(region);
+			}
+			while (nextCell(cell, min, max));
+		}
+
+		void remove(final ClassifiedRegion region) {
+			placed.remove(region);
+
+			final int[] min = new int[n];
+			final int[] max = new int[n];
+			cellRange(region, min, max);
+
+			final int[] cell = min.clone();
+			do {
+				final Long key = key(cell);
+				final ArrayList<ClassifiedRegion> regions = cells.get(key);
+				if (regions != null) {
+					// NB: ClassifiedRegion has identity semantics
+					regions.remove(region);
+					if (regions.isEmpty()) {
+						cells.remove(key);
+					}
+				}
+			}
+			while (nextCell(cell, min, max));
+		}
+
+		/**
+		 * @return all placed regions in the order they were placed
+		 */
+		Set<ClassifiedRegion> all() {
+			return placed;
+		}
+
+		private void cellRange(final ClassifiedRegion r, final int[] min,
+			final int[] max)
+		{
+			for (int d = 0; d < n; d++) {
+				min[d] = cell(r.get(d).min(), d);
+				max[d] = cell(r.get(d).max(), d);
+			}
+		}
+
+		private int cell(final int position, final int d) {
+			if (cellSize[d] == Integer.MAX_VALUE) {
+				return 0;
+			}
+			return (int) Math.max(0, ((long) position - origin[d]) / cellSize[d]);
+		}
+
+		private Long key(final int[] cell) {
+			long key = 0;
+			for (int d = 0; d < n; d++) {
+				key = (key << BITS_PER_DIMENSION) | cell[d];
+			}
+			return key;
+		}
+
+		private static boolean nextCell(final int[] cell, final int[] min,
+			final int[] max)
+		{
+			for (int d = 0; d < cell.length; d++) {
+				if (cell[d] < max[d]) {
+					cell[d]++;
+					return true;
+				}
+				cell[d] = min[d];
+			}
+			return false;
+		}
+	}
+}
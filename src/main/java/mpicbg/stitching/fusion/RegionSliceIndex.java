@@ -0,0 +1,82 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the {@link ClassifiedRegion}s that cover a certain slice, i.e. whose interval in the
+ * last dimension contains it. The regions are sorted into buckets of consecutive slices, a bucket
+ * is about as deep as the regions are on average, so each region ends up in very few buckets and a
+ * lookup only has to check the regions of one bucket instead of all of them.
+ */
+public class RegionSliceIndex
+{
+	final int dim;
+	final int minSlice, bucketSize;
+	final ArrayList< ClassifiedRegion >[] buckets;
+
+	/**
+	 * @param regions - the regions, all must have the same dimensionality
+	 * @param dim - the dimension that is sliced (typically the last one)
+	 */
+	public RegionSliceIndex( final List< ClassifiedRegion > regions, final int dim )
+	{
+		this.dim = dim;
+
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		long depth = 0;
+
+		for ( final ClassifiedRegion r : regions )
+		{
+			min = Math.min( min, r.get( dim ).min() );
+			max = Math.max( max, r.get( dim ).max() );
+			depth += r.get( dim ).max() - r.get( dim ).min() + 1;
+		}
+
+		if ( regions.size() == 0 )
+			min = max = 0;
+
+		this.minSlice = min;
+		this.bucketSize = (int)Math.max( 1, depth / Math.max( 1, regions.size() ) );
+
+		// there are no generic arrays
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final ArrayList< ClassifiedRegion >[] buckets = new ArrayList[ ( max - min ) / bucketSize + 1 ];
+		this.buckets = buckets;
+
+		for ( int b = 0; b < buckets.length; ++b )
+			buckets[ b ] = new ArrayList< ClassifiedRegion >();
+
+		for ( final ClassifiedRegion r : regions )
+			for ( int b = bucket( r.get( dim ).min() ); b <= bucket( r.get( dim ).max() ); ++b )
+				buckets[ b ].add( r );
+	}
+
+	/**
+	 * @param slice - the slice in the coordinates of the regions
+	 * @return - all regions that cover the slice
+	 */
+	public List< ClassifiedRegion > getRegions( final int slice )
+	{
+		final ArrayList< ClassifiedRegion > regions = new ArrayList< ClassifiedRegion >();
+
+		if ( slice < minSlice )
+			return regions;
+
+		final int b = bucket( slice );
+
+		if ( b >= buckets.length )
+			return regions;
+
+		for ( final ClassifiedRegion r : buckets[ b ] )
+			if ( r.get( dim ).contains( slice ) == 0 )
+				regions.add( r );
+
+		return regions;
+	}
+
+	private int bucket( final int slice )
+	{
+		return ( slice - minSlice ) / bucketSize;
+	}
+}
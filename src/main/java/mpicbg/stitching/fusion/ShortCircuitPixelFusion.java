@@ -0,0 +1,20 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * A {@link PixelFusion} that may know its result before all values of a pixel were added, e.g. the
+ * maximum once a value reached the maximal value of the input type. The fusion loop
+ * (see {@link SpanKernel}) asks after each value if it is done and skips the remaining images.
+ */
+public interface ShortCircuitPixelFusion extends PixelFusion
+{
+	/**
+	 * @return - true if the values have to be added starting with the last image, e.g. if only the
+	 * last one counts; otherwise they are added in the order of the images
+	 */
+	boolean isReverseOrder();
+
+	/**
+	 * @return - true if no further value can change the result for the current pixel
+	 */
+	boolean isSaturated();
+}
@@ -0,0 +1,334 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Fuses {@link ClassifiedRegion}s row by row. Each region is walked as a sequence of contiguous
+ * spans along dimension 0, everything that does not change along a span (the output position in
+ * all other dimensions, the source positions of pure translations) is computed once per span.
+ * Inside a span only the x-coordinate of the output and of the source images is advanced.
+ *
+ * For images transformed by a {@link TranslationModel2D} or {@link TranslationModel3D} the offset
+ * is resolved once, and no model has to be inverted per pixel; all other models are still inverted
+ * for each pixel. The results are identical to inverting the model for every pixel.
+ *
+ * If the fusion is a {@link ShortCircuitPixelFusion}, the images are added in the order it requests
+ * and the remaining images of a pixel are neither transformed nor read once it is saturated.
+ *
+ * One instance is needed per thread, it holds the interpolators and the {@link PixelFusion}.
+ *
+ * @param <T> - the type of the output
+ */
+public class SpanKernel< T extends RealType< T > >
+{
+	/**
+	 * If {@link #create(ArrayList, Img, PixelFusion, ArrayList, double[][], double[])} may return an {@link ArraySpanKernel}
+	 */
+	public static boolean useArrayKernel = true;
+
+	final int numDimensions;
+	final int[] images;
+
+	final RealRandomAccess< ? extends RealType< ? > >[] in;
+	final InvertibleBoundable[] transform;
+	final double[][] translation;
+	final double[] offset;
+	final PixelFusion fusion;
+	RandomAccess< T > out;
+
+	// if each pixel is taken from one image, which is determined before reading
+	final OwnershipPixelFusion ownership;
+
+	// if the remaining images of a pixel can be skipped, and in which order the images are added
+	final ShortCircuitPixelFusion shortCircuit;
+	final boolean reverse;
+
+	// global position of the current span, and the per image source positions
+	final double[] global;
+	final double[][] inPos;
+	final int[] pos;
+
+	/**
+	 * @param input - all input images, the index has to correspond to the classes of the regions
+	 * @param output - the output image, regions can have one more dimension than the output (see {@link #fuse(ClassifiedRegion, int)})
+	 * @param fusion - the fusion, it will be copied
+	 * @param models - the transformation of each input image
+	 * @param translations - the translation of each image if already known (see {@link FusionPlan#getTranslations()}), otherwise null
+	 * @param offset - global position of the first pixel of the output, its length defines the dimensionality of the regions
+	 */
+	public SpanKernel( final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final Img< T > output,
+			final PixelFusion fusion, final ArrayList< InvertibleBoundable > models, final double[][] translations, final double[] offset )
+	{
+		final int numImages = input.size();
+
+		// there are no generic arrays
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final RealRandomAccess< ? extends RealType< ? > >[] in = new RealRandomAccess[ numImages ];
+
+		this.numDimensions = offset.length;
+		this.images = new int[ numImages ];
+		this.in = in;
+		this.transform = new InvertibleBoundable[ numImages ];
+		this.translation = new double[ numImages ][];
+		this.offset = offset;
+		this.fusion = fusion.copy();
+		this.ownership = this.fusion instanceof OwnershipPixelFusion ? (OwnershipPixelFusion)this.fusion : null;
+		this.shortCircuit = this.fusion instanceof ShortCircuitPixelFusion ? (ShortCircuitPixelFusion)this.fusion : null;
+		this.reverse = shortCircuit != null && shortCircuit.isReverseOrder();
+		this.out = output.randomAccess();
+
+		this.global = new double[ numDimensions ];
+		this.inPos = new double[ numImages ][ numDimensions ];
+		this.pos = new int[ numDimensions ];
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			in[ i ] = input.get( i ).createInterpolator();
+			transform[ i ] = models.get( i );
+			translation[ i ] = translations == null ? getTranslation( transform[ i ], numDimensions ) : translations[ i ];
+		}
+	}
+
+	/**
+	 * Creates the fastest kernel for the input and output, an {@link ArraySpanKernel} if they are
+	 * supported (see {@link ArraySpanKernel#supports(ArrayList, Img)}), otherwise a {@link SpanKernel}.
+	 * The parameters are the same as for the constructor.
+	 */
+	public static < T extends RealType< T > > SpanKernel< T > create( final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final Img< T > output,
+			final PixelFusion fusion, final ArrayList< InvertibleBoundable > models, final double[][] translations, final double[] offset )
+	{
+		if ( useArrayKernel && ArraySpanKernel.supports( input, output ) )
+			return new ArraySpanKernel< T >( input, output, fusion, models, translations, offset );
+		else
+			return new SpanKernel< T >( input, output, fusion, models, translations, offset );
+	}
+
+	/**
+	 * Directs the output into another image of the same dimensionality, e.g. the next slice
+	 */
+	public void setOutput( final Img< T > output )
+	{
+		this.out = output.randomAccess();
+	}
+
+	/**
+	 * Fuses all pixels of one region into the output.
+	 *
+	 * @param r - the region in output coordinates
+	 * @param slice - if the region has more dimensions than the output, its last dimension is pinned to this slice,
+	 * otherwise it is ignored
+	 * @return - the number of pixels written
+	 */
+	public long fuse( final ClassifiedRegion r, final int slice ) throws NoninvertibleModelException
+	{
+		final int n = out.numDimensions();
+		final int[] classes = r.classArray();
+		final int numClasses = classes.length;
+
+		for ( int i = 0; i < numClasses; ++i )
+			images[ i ] = classes[ i ];
+
+		for ( int d = 0; d < n; ++d )
+			pos[ d ] = r.get( d ).min();
+
+		// the pinned slice does not change at all
+		if ( numDimensions > n )
+			global[ numDimensions - 1 ] = slice + offset[ numDimensions - 1 ];
+
+		final int x0 = r.get( 0 ).min();
+		final int x1 = r.get( 0 ).max();
+
+		long count = 0;
+
+		do
+		{
+			if ( ownership != null && numClasses > 1 )
+				fuseSpanOwned( x0, x1, numClasses, n );
+			else
+				fuseSpan( x0, x1, numClasses, n );
+			count += x1 - x0 + 1;
+		}
+		while ( nextSpan( r, n ) );
+
+		return count;
+	}
+
+	/**
+	 * Moves to the first pixel of the next span in all dimensions but x
+	 *
+	 * @return - false if there is no more span
+	 */
+	protected boolean nextSpan( final ClassifiedRegion r, final int n )
+	{
+		for ( int d = 1; d < n; ++d )
+		{
+			if ( pos[ d ] < r.get( d ).max() )
+			{
+				++pos[ d ];
+				return true;
+			}
+
+			pos[ d ] = r.get( d ).min();
+		}
+
+		return false;
+	}
+
+	protected void fuseSpan( final int x0, final int x1, final int numClasses, final int n ) throws NoninvertibleModelException
+	{
+		out.setPosition( x0, 0 );
+
+		for ( int d = 1; d < n; ++d )
+		{
+			out.setPosition( pos[ d ], d );
+			global[ d ] = pos[ d ] + offset[ d ];
+		}
+
+		// the position in all dimensions but x is constant along the span for translations
+		for ( int i = 0; i < numClasses; ++i )
+		{
+			final int image = images[ i ];
+			final double[] t = translation[ image ];
+
+			if ( t != null )
+			{
+				final double[] p = inPos[ image ];
+
+				for ( int d = 1; d < numDimensions; ++d )
+					p[ d ] = global[ d ] - t[ d ];
+
+				p[ 0 ] = ( x0 + offset[ 0 ] ) - t[ 0 ];
+
+				in[ image ].setPosition( p );
+			}
+		}
+
+		for ( int x = x0; x <= x1; ++x )
+		{
+			fusion.clear();
+
+			global[ 0 ] = x + offset[ 0 ];
+
+			for ( int k = 0; k < numClasses; ++k )
+			{
+				final int i = reverse ? numClasses - 1 - k : k;
+				final int image = images[ i ];
+				final double[] p = inPos[ image ];
+				final double[] t = translation[ image ];
+				final RealRandomAccess< ? extends RealType< ? > > ra = in[ image ];
+
+				if ( t != null )
+				{
+					p[ 0 ] = global[ 0 ] - t[ 0 ];
+					ra.setPosition( p[ 0 ], 0 );
+				}
+				else
+				{
+					for ( int d = 0; d < numDimensions; ++d )
+						p[ d ] = global[ d ];
+
+					transform[ image ].applyInverseInPlace( p );
+					ra.setPosition( p );
+				}
+
+				fusion.addValue( ra.get().getRealFloat(), image, p );
+
+				if ( shortCircuit != null && shortCircuit.isSaturated() )
+					break;
+			}
+
+			out.get().setReal( fusion.getValue() );
+
+			// do not move outside of the output
+			if ( x < x1 )
+				out.fwd( 0 );
+		}
+	}
+
+	/**
+	 * Fuses a span for the {@link OwnershipPixelFusion}, the source positions of all images are computed
+	 * but only the image owning the pixel is read.
+	 */
+	protected void fuseSpanOwned( final int x0, final int x1, final int numClasses, final int n ) throws NoninvertibleModelException
+	{
+		out.setPosition( x0, 0 );
+
+		for ( int d = 1; d < n; ++d )
+		{
+			out.setPosition( pos[ d ], d );
+			global[ d ] = pos[ d ] + offset[ d ];
+		}
+
+		for ( int x = x0; x <= x1; ++x )
+		{
+			global[ 0 ] = x + offset[ 0 ];
+
+			int owner = images[ 0 ];
+			double minDistance = Double.MAX_VALUE;
+
+			for ( int i = 0; i < numClasses; ++i )
+			{
+				final int image = images[ i ];
+				final double[] p = inPos[ image ];
+				final double[] t = translation[ image ];
+
+				if ( t != null )
+				{
+					for ( int d = 0; d < numDimensions; ++d )
+						p[ d ] = global[ d ] - t[ d ];
+				}
+				else
+				{
+					for ( int d = 0; d < numDimensions; ++d )
+						p[ d ] = global[ d ];
+
+					transform[ image ].applyInverseInPlace( p );
+				}
+
+				final double distance = ownership.getDistance( image, p );
+
+				if ( distance < minDistance )
+				{
+					minDistance = distance;
+					owner = image;
+				}
+			}
+
+			final RealRandomAccess< ? extends RealType< ? > > ra = in[ owner ];
+			ra.setPosition( inPos[ owner ] );
+
+			fusion.clear();
+			fusion.addValue( ra.get().getRealFloat(), owner, inPos[ owner ] );
+
+			out.get().setReal( fusion.getValue() );
+
+			// do not move outside of the output
+			if ( x < x1 )
+				out.fwd( 0 );
+		}
+	}
+
+	/**
+	 * @return - the translation vector if the model is a pure translation, otherwise null
+	 */
+	public static double[] getTranslation( final InvertibleBoundable model, final int numDimensions )
+	{
+		if ( model instanceof TranslationModel2D || model instanceof TranslationModel3D )
+		{
+			final double[] t = new double[ numDimensions ];
+			model.applyInPlace( t );
+			return t;
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,266 @@
+package mpicbg.stitching.fusion;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import mpicbg.models.InvertibleBoundable;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.imageplus.ImagePlusImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import stitching.utils.Log;
+
+/**
+ * Out-of-core fusion. The output is split into blocks that are fused one after the other,
+ * each block only loads the tiles that intersect with it through a {@link TileCache}. Finished
+ * blocks are handed to a {@link BlockWriter} right away, so the peak memory consumption is
+ * bounded by the size of the cache and of one block instead of the size of the dataset.
+ */
+public class StreamingFusion
+{
+	/**
+	 * The default size of a block in x, y (and z)
+	 */
+	public static int[] defaultBlockSize = new int[] { 1024, 1024, 64 };
+
+	/**
+	 * The default memory budget of the tile cache as fraction of the maximal heap size
+	 */
+	public static double defaultCacheFraction = 0.25;
+
+	/**
+	 * Fuses all channels and timepoints blockwise into the {@link BlockWriter}
+	 *
+	 * @param targetType - the type of the fused image
+	 * @param images - all input images
+	 * @param models - the transformation of each input image
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - if the tiles are interpolated
+	 * @param fusionType - see {@link Fusion#getPixelFusion(int, boolean, ArrayList)}
+	 * @param ignoreZeroValues - if zero values should not contribute to the fused pixel
+	 * @param blockSize - the size of the blocks in x, y (and z)
+	 * @param cacheBytes - the memory budget of the tile cache
+	 * @param writer - receives the fused blocks
+	 * @return - true if successful
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues,
+			final int[] blockSize, final long cacheBytes, final BlockWriter writer )
+	{
+		return fuse( targetType, images, models, dimensionality, subpixelResolution, fusionType, ignoreZeroValues, blockSize, cacheBytes, writer, null, null );
+	}
+
+	/**
+	 * Fuses a region of the fused image for all channels and timepoints blockwise into the {@link BlockWriter},
+	 * the blocks start at the first pixel of the region.
+	 *
+	 * @param regionMin - the first pixel of the region in the coordinates of the complete fused image, or null to fuse everything
+	 * @param regionMax - the last pixel of the region (inclusive), or null to fuse everything
+	 * @return - true if successful
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues,
+			final int[] blockSize, final long cacheBytes, final BlockWriter writer, final long[] regionMin, final long[] regionMax )
+	{
+		// the bounding box and the regions are the same for all channels and timepoints
+		final FusionPlan plan = Fusion.getPlan( images, models, dimensionality, subpixelResolution, regionMin, regionMax );
+
+		return fuse( targetType, images, plan, subpixelResolution, fusionType, ignoreZeroValues, blockSize, cacheBytes, writer );
+	}
+
+	/**
+	 * Fuses all channels and timepoints of a precomputed {@link FusionPlan} blockwise into the {@link BlockWriter},
+	 * e.g. if the writer needs to know the size of the fused image (see {@link PyramidBlockWriter}).
+	 *
+	 * @param images - all input images the plan was computed for
+	 * @param plan - the plan, see {@link Fusion#getPlan(ArrayList, ArrayList, int, boolean, long[], long[])}
+	 * @return - true if successful
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean fuse( final T targetType, final ArrayList< ImagePlus > images, final FusionPlan plan,
+			final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int[] blockSize, final long cacheBytes, final BlockWriter writer )
+	{
+		final int numTimePoints = images.get( 0 ).getNFrames();
+		final int numChannels = images.get( 0 ).getNChannels();
+		final int dimensionality = plan.numDimensions();
+		final int[] size = plan.getSize();
+
+		// the grid of blocks
+		final int[] numBlocks = new int[ dimensionality ];
+
+		for ( int d = 0; d < dimensionality; ++d )
+			numBlocks[ d ] = ( size[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		final ArrayList< int[] > order = getBlockOrder( numBlocks );
+		final int totalBlocks = order.size();
+
+		Log.info( "Streaming fusion of " + size[ 0 ] + "x" + size[ 1 ] + ( dimensionality == 3 ? "x" + size[ 2 ] : "" ) + "px in " +
+				totalBlocks + " blocks, tile cache " + cacheBytes / ( 1024 * 1024 ) + " MB" );
+
+		// only the tiles that contribute to a block are loaded
+		final TileCache cache = new TileCache( images, subpixelResolution, cacheBytes );
+		final ImgFactory< T > factory = new ImagePlusImgFactory< T >();
+
+		final int[] blockMin = new int[ dimensionality ];
+		final int[] blockMax = new int[ dimensionality ];
+
+		try
+		{
+			for ( int t = 1; t <= numTimePoints; ++t )
+			{
+				for ( int c = 1; c <= numChannels; ++c )
+				{
+					for ( int b = 0; b < totalBlocks; ++b )
+					{
+						IJ.showStatus( "Fusing time point: " + t + " of " + numTimePoints + ", " +
+								"channel: " + c + " of " + numChannels + ", block " + ( b + 1 ) + " of " + totalBlocks + "..." );
+						IJ.showProgress( (double)b / (double)totalBlocks );
+
+						final int[] block = order.get( b );
+
+						for ( int d = 0; d < dimensionality; ++d )
+						{
+							blockMin[ d ] = block[ d ] * blockSize[ d ];
+							blockMax[ d ] = Math.min( size[ d ], blockMin[ d ] + blockSize[ d ] ) - 1;
+						}
+
+						final Img< T > out = fuseBlock( factory, targetType, blockMin, blockMax, plan, cache, t, c, fusionType, ignoreZeroValues );
+
+						final long[] min = new long[ dimensionality ];
+						for ( int d = 0; d < dimensionality; ++d )
+							min[ d ] = blockMin[ d ];
+
+						writer.write( out, min, t, c );
+					}
+
+					// the next channel/timepoint will need other pixels
+					cache.clear();
+				}
+			}
+
+			writer.close();
+		}
+		catch ( IOException e )
+		{
+			Log.error( "Could not write fused block: " + e );
+			return false;
+		}
+
+		Log.info( "Tile cache: " + cache.getNumLoads() + " tiles loaded, " + cache.getNumHits() + " cache hits." );
+
+		IJ.showStatus( "Fusion complete." );
+		IJ.showProgress( 1.01 );
+
+		return true;
+	}
+
+	/**
+	 * Fuses one block of the output image.
+	 *
+	 * @param blockMin - the first pixel of the block in the fused image
+	 * @param blockMax - the last pixel of the block in the fused image
+	 * @param plan - the regions and models of the fused image
+	 * @param cache - holds the images the plan was originally computed for (see {@link FusionPlan#getImageIndices()})
+	 * @return - the fused block
+	 */
+	protected static < T extends RealType< T > & NativeType< T > > Img< T > fuseBlock( final ImgFactory< T > factory, final T targetType,
+			final int[] blockMin, final int[] blockMax, final FusionPlan plan, final TileCache cache, final int t, final int c,
+			final int fusionType, final boolean ignoreZeroValues )
+	{
+		final int n = blockMin.length;
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = blockMin[ d ];
+			max[ d ] = blockMax[ d ];
+		}
+
+		// only the regions and tiles that contribute to this block, in local coordinates of the block
+		final FusionPlan block = plan.crop( min, max );
+		final Img< T > out = factory.create( block.getSize(), targetType );
+
+		if ( block.numImages() == 0 )
+			return out;
+
+		// load the tiles, none of them may be evicted while loading the others
+		final int[] tiles = block.getImageIndices();
+		final Set< Long > inUse = new HashSet< Long >();
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > input = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+
+		for ( final int tile : tiles )
+			inUse.add( TileCache.key( tile, c, t ) );
+
+		for ( final int tile : tiles )
+			input.add( cache.get( tile, c, t, inUse ) );
+
+		final PixelFusion fusion = Fusion.getPixelFusion( fusionType, ignoreZeroValues, input, block.getMaxOverlap(), block.getOffset(), block.getTranslations() );
+
+		block.fuse( out, input, fusion, false );
+
+		return out;
+	}
+
+	/**
+	 * Lists the blocks of a grid in Z-order, i.e. the 2x2(x2) blocks that make up one block of the next coarser
+	 * grid follow each other, and so do the groups of each coarser grid. Neighboring blocks share their tiles
+	 * like in row order, and a {@link PyramidBlockWriter} only keeps one unfinished coarser block per level.
+	 *
+	 * @param numBlocks - the number of blocks in each dimension
+	 * @return - the position of each block in the grid
+	 */
+	public static ArrayList< int[] > getBlockOrder( final int[] numBlocks )
+	{
+		final int n = numBlocks.length;
+
+		// the bits of the block index in each dimension
+		final int[] bits = new int[ n ];
+		int totalBits = 0;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			while ( ( 1 << bits[ d ] ) < numBlocks[ d ] )
+				++bits[ d ];
+
+			totalBits += bits[ d ];
+		}
+
+		final ArrayList< int[] > order = new ArrayList< int[] >();
+
+		for ( long code = 0; code < ( 1l << totalBits ); ++code )
+		{
+			// the bits of the dimensions are interleaved from the lowest one on,
+			// a dimension with fewer blocks stops contributing once its bits are used up
+			final int[] block = new int[ n ];
+			boolean inside = true;
+
+			for ( int bit = 0, level = 0; bit < totalBits; ++level )
+				for ( int d = 0; d < n; ++d )
+					if ( level < bits[ d ] )
+						block[ d ] |= (int)( ( code >>> bit++ ) & 1 ) << level;
+
+			for ( int d = 0; d < n; ++d )
+				inside &= block[ d ] < numBlocks[ d ];
+
+			// the grid is padded to a power of two in each dimension
+			if ( inside )
+				order.add( block );
+		}
+
+		return order;
+	}
+
+	/**
+	 * @return - the default memory budget of the tile cache
+	 */
+	public static long defaultCacheBytes()
+	{
+		return (long)( Runtime.getRuntime().maxMemory() * defaultCacheFraction );
+	}
+}
@@ -0,0 +1,252 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+
+/**
+ * The same blending as {@link BlendingPixelFusion}, but the relative distance to the border of each
+ * translated image is looked up in precomputed per-image, per-axis tables instead of being computed
+ * for every pixel. The weight is a function of the product of these distances, so the cosine is only
+ * evaluated where more than one axis is blended (the corners of the tiles); where just one axis is
+ * blended the final weight comes from the table as well.
+ *
+ * A table entry is only used if the local position is bit-identical to the one it was computed for
+ * (it is the position {@link SpanKernel} creates for this output pixel), otherwise and for images that
+ * are not just translated the weight is computed as in {@link BlendingPixelFusion}. The result is
+ * therefore exactly the same.
+ *
+ * The tables are computed once and shared by all copies.
+ */
+public class TabulatedBlendingPixelFusion implements PixelFusion
+{
+	final long[][] dimensions;
+	final double percentScaling;
+	final double[] border;
+
+	// tables[ image ][ dim ], null for images that are not translated
+	final Table[][] tables;
+
+	final ArrayList< ? extends ImageInterpolation< ? > > images;
+	final double[] offset;
+	final double[][] translations;
+
+	double valueSum, weightSum;
+
+	/**
+	 * Instantiates the per-pixel blending
+	 *
+	 * @param images - all input images (the position in the list has to be the same as Id provided by addValue!)
+	 * @param offset - global position of the first pixel of the output
+	 * @param translations - the translation of each image, null for images that are not just translated (see {@link FusionPlan#getTranslations()})
+	 */
+	public TabulatedBlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > > images, final double[] offset, final double[][] translations )
+	{
+		this( images, offset, translations, BlendingPixelFusion.fractionBlended, null );
+	}
+
+	protected TabulatedBlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > > images, final double[] offset, final double[][] translations,
+			final double percentScaling, final Table[][] tables )
+	{
+		this.images = images;
+		this.offset = offset;
+		this.translations = translations;
+		this.percentScaling = percentScaling;
+
+		final int numDimensions = images.get( 0 ).getImg().numDimensions();
+		final int numImages = images.size();
+
+		this.dimensions = new long[ numImages ][ numDimensions ];
+
+		for ( int i = 0; i < numImages; ++i )
+			for ( int d = 0; d < numDimensions; ++d )
+				dimensions[ i ][ d ] = images.get( i ).getImg().dimension( d ) - 1;
+
+		this.border = new double[ numDimensions ];
+
+		if ( tables == null )
+		{
+			this.tables = new Table[ numImages ][];
+
+			for ( int i = 0; i < numImages; ++i )
+			{
+				if ( translations[ i ] == null )
+					continue;
+
+				this.tables[ i ] = new Table[ numDimensions ];
+
+				for ( int d = 0; d < numDimensions; ++d )
+					this.tables[ i ][ d ] = new Table( offset[ d ], translations[ i ][ d ], dimensions[ i ][ d ], border[ d ], percentScaling );
+			}
+		}
+		else
+		{
+			this.tables = tables;
+		}
+
+		// reset
+		clear();
+	}
+
+	@Override
+	public void clear() { valueSum = weightSum = 0; }
+
+	@Override
+	public void addValue( final double value, final int imageId, final double[] localPosition )
+	{
+		// we are always inside the image, so we do not want 0.0
+		final double weight = Math.max( 0.00001, computeWeight( imageId, localPosition ) );
+
+		weightSum += weight;
+		valueSum += value * weight;
+	}
+
+	@Override
+	public double getValue()
+	{
+		if ( weightSum == 0 )
+			return 0;
+		return ( valueSum / weightSum );
+	}
+
+	@Override
+	public PixelFusion copy() { return new TabulatedBlendingPixelFusion( images, offset, translations, percentScaling, tables ); }
+
+	/**
+	 * @return - the same as {@link BlendingPixelFusion#computeWeight(double[], long[], double[], double)}
+	 */
+	protected double computeWeight( final int imageId, final double[] location )
+	{
+		final Table[] table = tables[ imageId ];
+
+		if ( table == null )
+			return BlendingPixelFusion.computeWeight( location, dimensions[ imageId ], border, percentScaling );
+
+		// the product has to be computed in the same order as BlendingPixelFusion does
+		double minDistance = 1;
+		double weight = 1;
+		int numBlended = 0;
+
+		for ( int dim = 0; dim < location.length; ++dim )
+		{
+			final Table t = table[ dim ];
+			final int k = t.index( location[ dim ] );
+
+			if ( k == Table.INSIDE )
+				continue;
+
+			final double distance;
+
+			if ( k == Table.UNKNOWN )
+			{
+				distance = BlendingPixelFusion.computeDistance( location[ dim ], dimensions[ imageId ][ dim ], border[ dim ], percentScaling );
+
+				if ( distance < 1 && ++numBlended == 1 )
+					weight = BlendingPixelFusion.computeWeight( distance );
+			}
+			else
+			{
+				distance = t.distance[ k ];
+
+				if ( distance < 1 && ++numBlended == 1 )
+					weight = t.weight[ k ];
+			}
+
+			minDistance *= distance;
+		}
+
+		if ( numBlended > 1 )
+			return BlendingPixelFusion.computeWeight( minDistance );
+		else
+			return weight;
+	}
+
+	/**
+	 * The relative distance to the border and the resulting weight along one axis of one image, for
+	 * all positions SpanKernel creates. Only the blended areas at both ends are stored, in between the
+	 * distance is 1.
+	 */
+	protected static class Table
+	{
+		// the table has no entry, or the distance is 1
+		final static int UNKNOWN = -1, INSIDE = -2;
+
+		final double offset, translation;
+		final int first, n, lowEnd, highStart;
+
+		final double[] distance, weight;
+
+		Table( final double offset, final double translation, final long dimension, final double border, final double percentScaling )
+		{
+			this.offset = offset;
+			this.translation = translation;
+
+			// the first output coordinate in front of the image and the number of coordinates up to behind it
+			this.first = (int)Math.floor( translation - offset ) - 1;
+			this.n = (int)dimension + 4;
+
+			final double[] d = new double[ n ];
+
+			for ( int k = 0; k < n; ++k )
+				d[ k ] = BlendingPixelFusion.computeDistance( position( first + k ), dimension, border, percentScaling );
+
+			int lowEnd = 0;
+			while ( lowEnd < n && d[ lowEnd ] < 1 )
+				++lowEnd;
+
+			int highStart = n;
+			while ( highStart > lowEnd && d[ highStart - 1 ] < 1 )
+				--highStart;
+
+			// should not happen, but then everything is stored
+			for ( int k = lowEnd; k < highStart; ++k )
+				if ( d[ k ] != 1 )
+				{
+					lowEnd = highStart = n;
+					break;
+				}
+
+			this.lowEnd = lowEnd;
+			this.highStart = highStart;
+
+			this.distance = new double[ lowEnd + n - highStart ];
+			this.weight = new double[ distance.length ];
+
+			for ( int k = 0; k < n; ++k )
+			{
+				final int i = k < lowEnd ? k : k >= highStart ? lowEnd + k - highStart : -1;
+
+				if ( i >= 0 )
+				{
+					distance[ i ] = d[ k ];
+					weight[ i ] = BlendingPixelFusion.computeWeight( d[ k ] );
+				}
+			}
+		}
+
+		/**
+		 * The local position of an output coordinate, computed like {@link SpanKernel} does
+		 */
+		final double position( final int x )
+		{
+			return ( x + offset ) - translation;
+		}
+
+		/**
+		 * @return - the index into distance and weight, {@link #INSIDE} if the distance is 1
+		 * or {@link #UNKNOWN} if the position is not the one of an output pixel
+		 */
+		final int index( final double localPosition )
+		{
+			final int x = (int)Math.round( localPosition + translation - offset );
+			final int k = x - first;
+
+			if ( k < 0 || k >= n || position( x ) != localPosition )
+				return UNKNOWN;
+			else if ( k < lowEnd )
+				return k;
+			else if ( k >= highStart )
+				return lowEnd + k - highStart;
+			else
+				return INSIDE;
+		}
+	}
+}
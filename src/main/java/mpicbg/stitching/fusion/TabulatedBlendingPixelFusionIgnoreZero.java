@@ -0,0 +1,40 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+
+public class TabulatedBlendingPixelFusionIgnoreZero extends TabulatedBlendingPixelFusion
+{
+	/**
+	 * Instantiates the per-pixel blending
+	 * 
+	 * @param images - all input images (the position in the list has to be the same as Id provided by addValue!)
+	 * @param offset - global position of the first pixel of the output
+	 * @param translations - the translation of each image, null for images that are not just translated
+	 */
+	public TabulatedBlendingPixelFusionIgnoreZero( final ArrayList< ? extends ImageInterpolation< ? > > images, final double[] offset, final double[][] translations )
+	{
+		super( images, offset, translations );
+	}
+
+	protected TabulatedBlendingPixelFusionIgnoreZero( final ArrayList< ? extends ImageInterpolation< ? > > images, final double[] offset, final double[][] translations,
+			final double percentScaling, final Table[][] tables )
+	{
+		super( images, offset, translations, percentScaling, tables );
+	}
+
+	@Override
+	public void addValue( final double value, final int imageId, final double[] localPosition ) 
+	{
+		if ( value != 0.0 )
+		{
+			// we are always inside the image, so we do not want 0.0
+			final double weight = Math.max( 0.00001, computeWeight( imageId, localPosition ) );
+			
+			weightSum += weight;
+			valueSum += value * weight;
+		}
+	}
+
+	@Override
+	public PixelFusion copy() { return new TabulatedBlendingPixelFusionIgnoreZero( images, offset, translations, percentScaling, tables ); }
+}
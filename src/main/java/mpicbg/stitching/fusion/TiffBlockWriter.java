@@ -0,0 +1,82 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.imglib2.exception.ImgLibException;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Writes every fused block as an individual TIFF (stack) into a directory. The file name
+ * encodes timepoint, channel and the position of the block in the fused image, e.g.
+ * img_t1_c1_x2048_y1024_z0.tif
+ * 
+ * The blocks have to be {@link ImagePlusImg}s.
+ */
+public class TiffBlockWriter implements UpdatableBlockWriter
+{
+	final File directory;
+
+	public TiffBlockWriter( final File directory )
+	{
+		this.directory = directory;
+		directory.mkdirs();
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > void write( final Img< T > block, final long[] min, final int t, final int c ) throws IOException
+	{
+		final ImagePlus imp;
+
+		try
+		{
+			imp = ( (ImagePlusImg< ?, ? >)block ).getImagePlus();
+		}
+		catch ( ImgLibException e )
+		{
+			throw new IOException( "Block has no ImageJ type: " + e );
+		}
+
+		final File file = new File( directory, getFileName( min, t, c ) );
+		final FileSaver fs = new FileSaver( imp );
+
+		final boolean success;
+
+		if ( imp.getStackSize() > 1 )
+			success = fs.saveAsTiffStack( file.getAbsolutePath() );
+		else
+			success = fs.saveAsTiff( file.getAbsolutePath() );
+
+		if ( !success )
+			throw new IOException( "Could not write '" + file.getAbsolutePath() + "'" );
+	}
+
+	/**
+	 * The blocks of the coarser levels of a pyramid are in the subdirectories s1, s2, ... they would not be updated
+	 */
+	@Override
+	public void startUpdate( final long[] size ) throws IOException
+	{
+		if ( new File( directory, "s1" ).isDirectory() )
+			throw new IOException( "'" + directory.getAbsolutePath() + "' has a resolution pyramid, it can not be updated." );
+	}
+
+	@Override
+	public void close() {}
+
+	public static String getFileName( final long[] min, final int t, final int c )
+	{
+		String name = "img_t" + t + "_c" + c + "_x" + min[ 0 ] + "_y" + min[ 1 ];
+
+		if ( min.length > 2 )
+			name += "_z" + min[ 2 ];
+
+		return name + ".tif";
+	}
+}
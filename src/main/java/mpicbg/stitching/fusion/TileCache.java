@@ -0,0 +1,132 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import net.imglib2.type.numeric.RealType;
+import stitching.utils.Log;
+
+/**
+ * A least-recently-used cache of input tiles (one channel and timepoint of an {@link ImagePlus} each)
+ * that are loaded on demand for fusion. The cache evicts tiles once the sum of their sizes exceeds a
+ * byte budget, so that the amount of input data held in memory does not depend on the number of tiles.
+ *
+ * Note that evicting a tile only frees memory if the {@link ImagePlus} itself does not keep the pixels,
+ * i.e. the input images should be virtual.
+ */
+public class TileCache
+{
+	final List< ImagePlus > images;
+	final boolean subpixelResolution;
+	final long maxBytes;
+
+	final LinkedHashMap< Long, ImageInterpolation< ? extends RealType< ? > > > cache;
+	final LinkedHashMap< Long, Long > sizes;
+	long bytes = 0;
+	long loads = 0, hits = 0;
+
+	/**
+	 * @param images - all input images
+	 * @param subpixelResolution - if the tiles are converted to float and interpolated (see {@link Fusion#getImageInterpolation(ImagePlus, int, int, boolean)})
+	 * @param maxBytes - the memory budget for all cached tiles
+	 */
+	public TileCache( final List< ImagePlus > images, final boolean subpixelResolution, final long maxBytes )
+	{
+		this.images = images;
+		this.subpixelResolution = subpixelResolution;
+		this.maxBytes = maxBytes;
+
+		// access-ordered, the eldest entry is the least recently used one
+		this.cache = new LinkedHashMap< Long, ImageInterpolation< ? extends RealType< ? > > >( 16, 0.75f, true );
+		this.sizes = new LinkedHashMap< Long, Long >();
+	}
+
+	/**
+	 * Returns one channel and timepoint of a tile, loads it if it is not cached yet. If necessary,
+	 * least-recently-used tiles that are not part of the protected set are evicted.
+	 *
+	 * @param tile - the index of the tile
+	 * @param c - the channel (starting at 1)
+	 * @param t - the timepoint (starting at 1)
+	 * @param inUse - keys (see {@link #key(int, int, int)}) that must not be evicted, e.g. all tiles needed for the current block
+	 * @return - the tile
+	 */
+	public synchronized ImageInterpolation< ? extends RealType< ? > > get( final int tile, final int c, final int t, final Set< Long > inUse )
+	{
+		final Long key = key( tile, c, t );
+		ImageInterpolation< ? extends RealType< ? > > img = cache.get( key );
+
+		if ( img != null )
+		{
+			++hits;
+			return img;
+		}
+
+		final long size = bytesPerTile( images.get( tile ), subpixelResolution );
+		evict( maxBytes - size, inUse );
+
+		img = Fusion.getImageInterpolation( images.get( tile ), c, t, subpixelResolution );
+		++loads;
+
+		cache.put( key, img );
+		sizes.put( key, size );
+		bytes += size;
+
+		if ( bytes > maxBytes )
+			Log.debug( "Tile cache exceeds its budget (" + bytes / ( 1024 * 1024 ) + " of " + maxBytes / ( 1024 * 1024 ) + " MB), all tiles are in use by the current block." );
+
+		return img;
+	}
+
+	/**
+	 * Evicts least-recently-used tiles until at most maxUsedBytes are occupied, or only tiles in use are left
+	 */
+	protected void evict( final long maxUsedBytes, final Set< Long > inUse )
+	{
+		final Iterator< Entry< Long, ImageInterpolation< ? extends RealType< ? > > > > it = cache.entrySet().iterator();
+
+		while ( bytes > maxUsedBytes && it.hasNext() )
+		{
+			final Long key = it.next().getKey();
+
+			if ( inUse != null && inUse.contains( key ) )
+				continue;
+
+			it.remove();
+			bytes -= sizes.remove( key );
+		}
+	}
+
+	/**
+	 * Removes all tiles from the cache
+	 */
+	public synchronized void clear()
+	{
+		cache.clear();
+		sizes.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getCachedBytes() { return bytes; }
+	public synchronized long getNumLoads() { return loads; }
+	public synchronized long getNumHits() { return hits; }
+
+	public static Long key( final int tile, final int c, final int t )
+	{
+		return ( ( (long)t * 65536l + c ) << 32 ) + tile;
+	}
+
+	/**
+	 * @return - the memory needed to hold one channel and timepoint of an image for fusion
+	 */
+	public static long bytesPerTile( final ImagePlus imp, final boolean subpixelResolution )
+	{
+		final long bytesPerPixel = subpixelResolution ? 4 : Math.max( 1, imp.getBitDepth() / 8 );
+		return (long)imp.getWidth() * (long)imp.getHeight() * (long)imp.getNSlices() * bytesPerPixel;
+	}
+}
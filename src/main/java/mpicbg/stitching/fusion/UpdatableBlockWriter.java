@@ -0,0 +1,22 @@
+package mpicbg.stitching.fusion;
+
+import java.io.IOException;
+
+/**
+ * A {@link BlockWriter} that writes into an existing output and replaces single blocks of it, all blocks
+ * it does not get stay as they are. Only these writers can be used to update a fused image with
+ * {@link IncrementalFusion}, writers that create a new output (like {@link BigTiffBlockWriter}) would
+ * lose all blocks that are not fused again.
+ */
+public interface UpdatableBlockWriter extends BlockWriter
+{
+	/**
+	 * Called by {@link IncrementalFusion} before the first block, the blocks that are written
+	 * do not necessarily cover the fused image.
+	 *
+	 * @param size - the size of the complete fused image
+	 * @throws IOException - if the existing output can not be updated, e.g. because it has a resolution
+	 * pyramid whose coarser levels would not change with it
+	 */
+	public void startUpdate( final long[] size ) throws IOException;
+}
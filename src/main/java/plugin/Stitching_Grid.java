@@ -40,7 +40,16 @@ import mpicbg.stitching.ImageCollectionElement;
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.StitchingParameters;
 import mpicbg.stitching.TextFileAccess;
+import mpicbg.stitching.fusion.BigTiffBlockWriter;
+import mpicbg.stitching.fusion.BlockWriter;
+import mpicbg.stitching.fusion.FusedVirtualStack;
+import mpicbg.stitching.fusion.FusionMemoryPlanner;
+import mpicbg.stitching.fusion.FusionPlan;
 import mpicbg.stitching.fusion.Fusion;
+import mpicbg.stitching.fusion.N5BlockWriter;
+import mpicbg.stitching.fusion.PyramidBlockWriter;
+import mpicbg.stitching.fusion.StreamingFusion;
+import mpicbg.stitching.fusion.TiffBlockWriter;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -82,6 +91,9 @@ public class Stitching_Grid implements PlugIn
 	public static boolean defaultSubpixelAccuracy = false;
 	public static boolean defaultDownSample = false;
 	public static boolean defaultDisplayFusion = false;
+	public static boolean defaultFuseRegion = false;
+	// x, y, z, width, height, depth of the fused region, a size of 0 means all
+	public static int[] defaultRegion = new int[ 6 ];
 	public static boolean writeOnlyTileConfStatic = false;
 	
 	public static boolean defaultIgnoreCalibration = false;
@@ -104,9 +116,11 @@ public class Stitching_Grid implements PlugIn
 	
 	public static boolean defaultQuickFusion = true;
 	
-	public static String[] resultChoices = { "Fuse and display", "Write to disk" };
+	public static String[] resultChoices = { "Fuse and display", "Write to disk", "Write to disk blockwise (bounded memory)", "Write to disk as one BigTIFF (bounded memory)", "Write to disk as N5 chunks (bounded memory)", "Fuse on demand and display (virtual)" };
 	public static int defaultResult = 0;
+	public static boolean defaultChooseOutputByMemory = false;
 	public static String defaultOutputDirectory = "";
+	public static int defaultDownsampledLevels = 0;
 	
 	@Override
 	public void run( String arg0 ) 
@@ -197,9 +211,11 @@ public class Stitching_Grid implements PlugIn
 		gd.addCheckbox( "Subpixel_accuracy", defaultSubpixelAccuracy );
 		gd.addCheckbox( "Downsample_tiles", defaultDownSample);
 		gd.addCheckbox( "Display_fusion", defaultDisplayFusion);
+		gd.addCheckbox( "Fuse_only_a_region", defaultFuseRegion );
 		gd.addCheckbox( "Use_virtual_input_images (Slow! Even slower when combined with subpixel accuracy during fusion!)", defaultVirtualInput );
 		gd.addChoice( "Computation_parameters", CommonFunctions.cpuMemSelect, CommonFunctions.cpuMemSelect[ defaultMemorySpeedChoice ] );
 		gd.addChoice( "Image_output", resultChoices, resultChoices[ defaultResult ] );
+		gd.addCheckbox( "Choose_output_by_available_memory (write to disk if the fused image does not fit)", defaultChooseOutputByMemory );
 		gd.addMessage("");
 		gd.addMessage( "This Plugin is developed by Stephan Preibisch\n" + myURL);
 
@@ -326,9 +342,12 @@ public class Stitching_Grid implements PlugIn
 		params.subpixelAccuracy = defaultSubpixelAccuracy = gd.getNextBoolean();
 		final boolean downSample = params.downSample = defaultDownSample = gd.getNextBoolean();
 		params.displayFusion = defaultDisplayFusion = gd.getNextBoolean();
+		final boolean fuseRegion = defaultFuseRegion = gd.getNextBoolean();
 		params.virtual = defaultVirtualInput = gd.getNextBoolean();
 		params.cpuMemChoice = defaultMemorySpeedChoice = gd.getNextChoiceIndex();
 		params.outputVariant = defaultResult = gd.getNextChoiceIndex();
+		// not set in macros that do not know it, so that they keep their output
+		final boolean chooseOutputByMemory = defaultChooseOutputByMemory = gd.getNextBoolean();
 		
 		if ( params.virtual )
 		{
@@ -340,19 +359,21 @@ public class Stitching_Grid implements PlugIn
 			}
 		}
 		
-		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant == 1 )
+		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant >= 1 && params.outputVariant <= 4 )
 		{
 			if ( defaultOutputDirectory == null || defaultOutputDirectory.length() == 0 )
 				defaultOutputDirectory = defaultDirectory;
 			
 			final GenericDialogPlus gd2 = new GenericDialogPlus( "Select output directory" );
 			gd2.addDirectoryField( "Output_directory", defaultOutputDirectory, 60 );
+			gd2.addNumericField( "Downsampled_levels (2x, 4x, ...)", defaultDownsampledLevels, 0 );
 			gd2.showDialog();
 			
 			if ( gd2.wasCanceled() )
 				return;
 			
 			params.outputDirectory = defaultOutputDirectory = gd2.getNextString();
+			params.downsampledLevels = defaultDownsampledLevels = Math.max( 0, (int)Math.round( gd2.getNextNumber() ) );
 		}
 		else
 		{
@@ -416,6 +437,7 @@ public class Stitching_Grid implements PlugIn
 		
 		boolean is2d = false;
 		boolean is3d = false;
+		int bytesPerPixel = 1;
 		
 		for ( final ImageCollectionElement element : elements )
 		{
@@ -448,6 +470,7 @@ public class Stitching_Grid implements PlugIn
 			int lastNumTimePoints = numTimePoints;
 			numChannels = imp.getNChannels();
 			numTimePoints = imp.getNFrames();
+			bytesPerPixel = Math.max( bytesPerPixel, imp.getBytesPerPixel() );
 			
 			if ( imp.getNSlices() > 1 )
 			{
@@ -509,6 +532,42 @@ public class Stitching_Grid implements PlugIn
 			dimensionality = 3;
 		
 		params.dimensionality = dimensionality;
+		
+		// make sure the fused image fits into memory before spending time on the registration
+		if ( chooseOutputByMemory && params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant <= FusionMemoryPlanner.DISK )
+		{
+			final FusionMemoryPlanner planner = new FusionMemoryPlanner( elements, bytesPerPixel, numChannels, numTimePoints, params.subpixelAccuracy, params.virtual, params.downsampledLevels );
+			final int mode = planner.choose( params.outputVariant, FusionMemoryPlanner.getAvailableBytes() );
+			
+			if ( mode != params.outputVariant )
+			{
+				// the selected output does not write to disk, ask where the fused image should go
+				if ( params.outputDirectory == null )
+				{
+					if ( defaultOutputDirectory == null || defaultOutputDirectory.length() == 0 )
+						defaultOutputDirectory = directory;
+					
+					final GenericDialogPlus gd2 = new GenericDialogPlus( "Fused image does not fit into memory" );
+					gd2.addMessage( "The fused image does not fit into the available memory, it will be written to disk:\n" +
+							resultChoices[ mode ] + "\nCancel keeps '" + resultChoices[ params.outputVariant ] + "'." );
+					gd2.addDirectoryField( "Output_directory", defaultOutputDirectory, 60 );
+					gd2.showDialog();
+					
+					if ( !gd2.wasCanceled() )
+						params.outputDirectory = defaultOutputDirectory = gd2.getNextString();
+				}
+				
+				if ( params.outputDirectory == null )
+				{
+					Log.warn( "The fused image might not fit into memory, keeping the selected output." );
+				}
+				else
+				{
+					Log.info( "Writing the fused image to '" + new File( params.outputDirectory ).getAbsolutePath() + "' (uncheck 'Choose_output_by_available_memory' to keep the selected output)." );
+					params.outputVariant = mode;
+				}
+			}
+		}
     	
     	// write the initial tileconfiguration
     	if ( gridType != 6 )
@@ -574,6 +633,9 @@ public class Stitching_Grid implements PlugIn
 					models.add( (InvertibleBoundable)imt.getModel() );
 	
 			ImagePlus imp = null;
+
+			if ( fuseRegion && !queryFusionRegion( params, images, models ) )
+				return;
 			
 			// test if there is no overlap between any of the tiles
 			// if so fusion can be much faster
@@ -595,14 +657,85 @@ public class Stitching_Grid implements PlugIn
 					Log.info( "There is no overlap between any of the tiles, using faster fusion algorithm." );
 			}
 			
-			if ( is32bit )
-				imp = Fusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion );
-			else if ( is16bit )
-				imp = Fusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion );
-			else if ( is8bit )
-				imp = Fusion.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion );
+			if ( params.outputVariant == 5 )
+			{
+				// only the plan is computed, the planes are fused when they are displayed
+				if ( is32bit )
+					imp = FusedVirtualStack.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, params.fusionRegionMin, params.fusionRegionMax );
+				else if ( is16bit )
+					imp = FusedVirtualStack.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, params.fusionRegionMin, params.fusionRegionMax );
+				else if ( is8bit )
+					imp = FusedVirtualStack.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, params.fusionRegionMin, params.fusionRegionMax );
+				else
+					Log.error( "Unknown image type for fusion." );
+			}
+			else if ( params.outputVariant >= 2 )
+			{
+				if ( !params.virtual )
+					Log.info( "Blockwise fusion bounds the memory of the fused image, use virtual input images to also bound the memory of the input tiles." );
+
+				// the pyramid needs the size of the fused image, so the plan is computed here
+				final FusionPlan plan = Fusion.getPlan( images, models, params.dimensionality, params.subpixelAccuracy, params.fusionRegionMin, params.fusionRegionMax );
+				final BlockWriter writer;
+
+				// the levels of an N5 pyramid share their threads and the memory of the blocks waiting to be written
+				final N5BlockWriter.WriteQueue queue = params.outputVariant == 4 ?
+						new N5BlockWriter.WriteQueue( Runtime.getRuntime().availableProcessors(), N5BlockWriter.defaultQueueBytes() ) : null;
+
+				try
+				{
+					// one writer for each level of the pyramid, level 0 is the full resolution
+					final ArrayList< BlockWriter > levels = new ArrayList< BlockWriter >();
+
+					for ( int level = 0; level <= params.downsampledLevels; ++level )
+					{
+						if ( params.outputVariant == 4 )
+							levels.add( new N5BlockWriter( new File( params.outputDirectory, "img_fused.n5" ), StreamingFusion.defaultBlockSize,
+									N5BlockWriter.defaultCompression, queue, level, params.downsampledLevels + 1 ) );
+						else if ( params.outputVariant == 3 )
+							levels.add( new BigTiffBlockWriter( new File( params.outputDirectory, level == 0 ? "img_fused.tif" : "img_fused_s" + level + ".tif" ), StreamingFusion.defaultBlockSize ) );
+						else
+							levels.add( new TiffBlockWriter( level == 0 ? new File( params.outputDirectory ) : new File( params.outputDirectory, "s" + level ) ) );
+					}
+
+					if ( levels.size() == 1 )
+						writer = levels.get( 0 );
+					else
+						writer = new PyramidBlockWriter( levels, StreamingFusion.defaultBlockSize, plan.getSize() );
+				}
+				catch ( IOException e )
+				{
+					Log.error( "Could not create the output file: " + e );
+
+					if ( queue != null )
+						queue.shutdown();
+
+					return;
+				}
+
+				if ( is32bit )
+					StreamingFusion.fuse( new FloatType(), images, plan, params.subpixelAccuracy, params.fusionMethod, false, StreamingFusion.defaultBlockSize, StreamingFusion.defaultCacheBytes(), writer );
+				else if ( is16bit )
+					StreamingFusion.fuse( new UnsignedShortType(), images, plan, params.subpixelAccuracy, params.fusionMethod, false, StreamingFusion.defaultBlockSize, StreamingFusion.defaultCacheBytes(), writer );
+				else if ( is8bit )
+					StreamingFusion.fuse( new UnsignedByteType(), images, plan, params.subpixelAccuracy, params.fusionMethod, false, StreamingFusion.defaultBlockSize, StreamingFusion.defaultCacheBytes(), writer );
+				else
+					Log.error( "Unknown image type for fusion." );
+
+				if ( queue != null )
+					queue.shutdown();
+			}
 			else
-				Log.error( "Unknown image type for fusion." );
+			{
+				if ( is32bit )
+					imp = Fusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion, params.fusionRegionMin, params.fusionRegionMax, params.downsampledLevels );
+				else if ( is16bit )
+					imp = Fusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion, params.fusionRegionMin, params.fusionRegionMax, params.downsampledLevels );
+				else if ( is8bit )
+					imp = Fusion.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion, params.fusionRegionMin, params.fusionRegionMax, params.downsampledLevels );
+				else
+					Log.error( "Unknown image type for fusion." );
+			}
 			
 			Log.info( "Finished fusion (" + (System.currentTimeMillis() - time) + " ms)");
 			Log.info( "Finished ... (" + (System.currentTimeMillis() - startTime) + " ms)");
@@ -617,7 +750,16 @@ public class Stitching_Grid implements PlugIn
 				double[] offset = new double[dimensionality];
         Fusion.estimateBounds(offset, new int[dimensionality], images, models,
                 dimensionality);
-				generateRois(offset, optimized);
+				// a fused region starts at its first pixel
+				long[] regionSize = null;
+				if (params.fusionRegionMin != null) {
+					regionSize = new long[dimensionality];
+					for (int d = 0; d < dimensionality; d++) {
+						offset[d] += params.fusionRegionMin[d];
+						regionSize[d] = params.fusionRegionMax[d] - params.fusionRegionMin[d] + 1;
+					}
+				}
+				generateRois(offset, regionSize, optimized);
 				RoiManager rm = RoiManager.getInstance();
 
 				if (imp == null) {
@@ -645,12 +787,75 @@ public class Stitching_Grid implements PlugIn
     		element.close();
 	}
 
+	/**
+	 * Asks for the region of the fused image that is fused, the default is the complete fused image
+	 * 
+	 * @return - false if the dialog was canceled
+	 */
+	protected boolean queryFusionRegion( final StitchingParameters params, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models )
+	{
+		final int n = params.dimensionality;
+		final double[] offset = new double[ n ];
+		final int[] size = new int[ n ];
+
+		Fusion.estimateBounds( offset, size, images, models, n );
+
+		if ( params.subpixelAccuracy )
+			for ( int d = 0; d < n; ++d )
+				++size[ d ];
+
+		final String[] axes = { "x", "y", "z" };
+		final String[] sizes = { "width", "height", "depth" };
+
+		final GenericDialogPlus gd = new GenericDialogPlus( "Fuse only a region" );
+		gd.addMessage( "The fused image has " + size[ 0 ] + "x" + size[ 1 ] + ( n == 3 ? "x" + size[ 2 ] : "" ) + " pixels." );
+
+		for ( int d = 0; d < n; ++d )
+			gd.addNumericField( "Region_" + axes[ d ], Math.min( defaultRegion[ d ], size[ d ] - 1 ), 0 );
+
+		for ( int d = 0; d < n; ++d )
+			gd.addNumericField( "Region_" + sizes[ d ], defaultRegion[ d + 3 ] <= 0 ? size[ d ] : defaultRegion[ d + 3 ], 0 );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		params.fusionRegionMin = new long[ n ];
+		params.fusionRegionMax = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			defaultRegion[ d ] = (int)Math.round( gd.getNextNumber() );
+
+		for ( int d = 0; d < n; ++d )
+			defaultRegion[ d + 3 ] = (int)Math.round( gd.getNextNumber() );
+
+		for ( int d = 0; d < n; ++d )
+		{
+			params.fusionRegionMin[ d ] = defaultRegion[ d ];
+			params.fusionRegionMax[ d ] = defaultRegion[ d ] + defaultRegion[ d + 3 ] - 1;
+
+			if ( params.fusionRegionMax[ d ] < 0 || params.fusionRegionMin[ d ] >= size[ d ] || params.fusionRegionMax[ d ] < params.fusionRegionMin[ d ] )
+			{
+				Log.error( "The region does not intersect the fused image in " + axes[ d ] + "." );
+				return false;
+			}
+		}
+
+		return true;
+	}
+
 	/**
 	 * Generates a ROI for each tile in the list of optimized images. The
 	 * fusedImage is the resultant on which the ROIs will be drawn. The offset
 	 * is a global offset to 0,0 for the upper leftmost tile.
 	 */
-	protected void generateRois(double[] offsets, ArrayList<ImagePlusTimePoint> optimizedImages)
+	/**
+	 * @param offsets - the position of the first pixel of the fused image
+	 * @param regionSize - the size of the fused region, tiles outside of it get no roi, or null for everything
+	 * @param optimizedImages - the tiles
+	 */
+	protected void generateRois(double[] offsets, long[] regionSize, ArrayList<ImagePlusTimePoint> optimizedImages)
 	{
 		IJ.showStatus("Generating ROIs from image tiles...");
 
@@ -669,6 +874,16 @@ public class Stitching_Grid implements PlugIn
 			// Each element of optimizedImages is assumed, for a given zct, to be part
 			// of the same tile (slice)
 			ImagePlusTimePoint iptp = optimizedImages.get(i);
+
+			// compute the x,y coordinates within this slice
+			double[] coords = new double[iptp.getElement().getDimensionality()];
+			iptp.getModel().applyInPlace(coords);
+			for (int j=0; j<offsets.length; j++) {
+				coords[j] -= offsets[j];
+			}
+
+			if (regionSize != null && !intersectsRegion(coords, iptp.getImagePlus(), regionSize)) continue;
+
 			reader = initializeReader(reader, iptp.getElement().getFile().getAbsolutePath());
 			int sizeZ = reader.getSizeZ();
 			int sizeT = reader.getSizeT();
@@ -686,12 +901,6 @@ public class Stitching_Grid implements PlugIn
 			ImagePlus unfused = iptp.getImagePlus();
 			// ROI/ImageJ slice number
 			int slice = 1;
-			// compute the x,y coordinates within this slice
-			double[] coords = new double[iptp.getElement().getDimensionality()];
-			iptp.getModel().applyInPlace(coords);
-			for (int j=0; j<offsets.length; j++) {
-				coords[j] -= offsets[j];
-			}
 			int coordXOffset = (int) Math.floor(coords[0]);
 			int coordYOffset = (int) Math.floor(coords[1]);
 			for (int t = 0; t < sizeT; t++) {
@@ -754,6 +963,23 @@ public class Stitching_Grid implements PlugIn
 		Log.info("ROIs generated.");
 	}
 
+	/**
+	 * @param coords - the position of the tile relative to the first pixel of the region
+	 * @param imp - the tile
+	 * @param regionSize - the size of the region
+	 * @return - if any pixel of the tile is inside of the region
+	 */
+	protected static boolean intersectsRegion(double[] coords, ImagePlus imp, long[] regionSize)
+	{
+		final int[] tileSize = { imp.getWidth(), imp.getHeight(), imp.getNSlices() };
+
+		for (int d = 0; d < coords.length && d < regionSize.length; d++) {
+			if (coords[d] + tileSize[d] <= 0 || coords[d] >= regionSize[d]) return false;
+		}
+
+		return true;
+	}
+
 	/**
 	 * Initializes an {@link ImageReader} if the provided reader is null, or
 	 * does not match the given file id.
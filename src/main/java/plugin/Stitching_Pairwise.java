@@ -18,7 +18,9 @@ import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.Model;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
+import mpicbg.stitching.CollectionStitchingImgLib;
 import mpicbg.stitching.ComparePair;
+import mpicbg.stitching.FourierTransformCache;
 import mpicbg.stitching.GlobalOptimization;
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.PairWiseStitchingImgLib;
@@ -352,6 +354,9 @@ public class Stitching_Pairwise implements PlugIn
 			// get all that we have to compare
 			final Vector< ComparePair > pairs = getComparePairs( imp1, imp2, params.dimensionality, params.timeSelect );
 			
+			// reuse the Fourier transforms if a timepoint takes part in several pairs
+			final FourierTransformCache cache = CollectionStitchingImgLib.createFourierTransformCache( pairs, params, true );
+			
 			// compute all compare pairs
 			// compute all matchings
 			final AtomicInteger ai = new AtomicInteger(0);
@@ -382,7 +387,7 @@ public class Stitching_Pairwise implements PlugIn
 	                    		long start = System.currentTimeMillis();			
 
 	            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), 
-	            						pair.getImagePlus1().getRoi(), pair.getImagePlus2().getRoi(), pair.getTimePoint1(), pair.getTimePoint2(), params );			
+	            						pair.getImagePlus1().getRoi(), pair.getImagePlus2().getRoi(), pair.getTimePoint1(), pair.getTimePoint2(), params, cache );			
 
 	            				if ( params.dimensionality == 2 )
 	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
@@ -399,6 +404,12 @@ public class Stitching_Pairwise implements PlugIn
 	            });
 	        
 	        SimpleMultiThreading.startAndJoin( threads );
+	        
+	        if ( cache != null )
+	        {
+	        	cache.logStatistics();
+	        	cache.clear();
+	        }
 			
 	        // get the final positions of all tiles
 			final ArrayList< ImagePlusTimePoint > optimized = GlobalOptimization.optimize( pairs, pairs.get( 0 ).getTile1(), params );
@@ -441,12 +452,12 @@ public class Stitching_Pairwise implements PlugIn
 		images.add( imp1 );
 		images.add( imp2 );
 		
-		if ( params.fusionMethod < 6 )
+		if ( params.fusionMethod < 7 )
 		{
 			ImagePlus imp = Fusion.fuse( targetType, images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, null, false, params.ignoreZeroValuesFusion, params.displayFusion );
 			return imp;
 		}
-		else if ( params.fusionMethod == 6 ) // overlay
+		else if ( params.fusionMethod == 7 ) // overlay
 		{
 			// images are always the same, we just trigger different timepoints
 			final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > factory;
@@ -0,0 +1,265 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.stitching.fusion.BigTiffBlockWriter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests that the {@link BigTiffBlockWriter} writes a valid BigTIFF by reading
+ * the tiles of every directory back and comparing them to the blocks.
+ */
+public class BigTiffBlockWriterTest {
+
+	private static final int[] blockSize = { 16, 16 };
+
+	/**
+	 * Two channels of a float image whose size is not a multiple of the tile
+	 * size
+	 */
+	@Test
+	public void testFloatChannels() throws IOException {
+		final int width = 40, height = 21;
+		final List<Img<FloatType>> channels = new ArrayList<Img<FloatType>>();
+
+		for (int c = 0; c < 2; c++) {
+			channels.add(createImage(new FloatType(), width, height, c));
+		}
+
+		final File file = File.createTempFile("fused", ".tif");
+		file.deleteOnExit();
+
+		final BigTiffBlockWriter writer = new BigTiffBlockWriter(file, blockSize);
+
+		for (int c = 0; c < 2; c++) {
+			writeBlocks(writer, channels.get(c), c + 1);
+		}
+
+		writer.close();
+
+		final List<float[]> planes = read(file);
+
+		assertEquals(2, planes.size());
+
+		for (int c = 0; c < 2; c++) {
+			assertPlane(channels.get(c), planes.get(c));
+		}
+	}
+
+	@Test
+	public void testUnsignedShort() throws IOException {
+		final Img<UnsignedShortType> image =
+			createImage(new UnsignedShortType(), 32, 35, 0);
+
+		final File file = File.createTempFile("fused", ".tif");
+		file.deleteOnExit();
+
+		final BigTiffBlockWriter writer = new BigTiffBlockWriter(file, blockSize);
+		writeBlocks(writer, image, 1);
+		writer.close();
+
+		final List<float[]> planes = read(file);
+
+		assertEquals(1, planes.size());
+		assertPlane(image, planes.get(0));
+	}
+
+	/**
+	 * Writes the image as blocks of the tile size
+	 */
+	private static <T extends RealType<T> & NativeType<T>> void writeBlocks(
+		final BigTiffBlockWriter writer, final Img<T> image, final int c)
+		throws IOException
+	{
+		for (long y = 0; y < image.dimension(1); y += blockSize[1]) {
+			for (long x = 0; x < image.dimension(0); x += blockSize[0]) {
+				final long[] min = { x, y };
+				final long[] size =
+					{ Math.min(blockSize[0], image.dimension(0) - x),
+						Math.min(blockSize[1], image.dimension(1) - y) };
+
+				final Img<T> block =
+					image.factory().create(size, image.firstElement().createVariable());
+				final RandomAccess<T> in = image.randomAccess();
+				final Cursor<T> out = block.localizingCursor();
+
+				while (out.hasNext()) {
+					out.fwd();
+					in.setPosition(x + out.getLongPosition(0), 0);
+					in.setPosition(y + out.getLongPosition(1), 1);
+					out.get().set(in.get());
+				}
+
+				writer.write(block, min, 1, c);
+			}
+		}
+	}
+
+	private static <T extends RealType<T> & NativeType<T>> void assertPlane(
+		final Img<T> expected, final float[] plane)
+	{
+		final int width = (int) expected.dimension(0);
+		final Cursor<T> c = expected.localizingCursor();
+
+		assertEquals(expected.size(), plane.length);
+
+		while (c.hasNext()) {
+			c.fwd();
+			assertEquals(c.get().getRealFloat(), plane[c.getIntPosition(1) * width +
+				c.getIntPosition(0)], 0);
+		}
+	}
+
+	private static <T extends RealType<T> & NativeType<T>> Img<T> createImage(
+		final T type, final int width, final int height, final int seed)
+	{
+		final Img<T> img =
+			new ArrayImgFactory<T>().create(new long[] { width, height }, type);
+		final Cursor<T> c = img.localizingCursor();
+
+		while (c.hasNext()) {
+			c.fwd();
+			c.get().setReal((c.getIntPosition(0) * 7 + c.getIntPosition(1) * 13 +
+				seed * 101) % 251);
+		}
+
+		return img;
+	}
+
+	/**
+	 * A minimal BigTIFF reader for the files of the {@link BigTiffBlockWriter}:
+	 * little-endian, uncompressed, tiled, 8, 16 or 32 bit
+	 *
+	 * @return - the pixels of each directory
+	 */
+	private static List<float[]> read(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final List<float[]> planes = new ArrayList<float[]>();
+
+		try {
+			final ByteBuffer header = read(raf, 0, 16);
+
+			assertEquals('I', header.get());
+			assertEquals('I', header.get());
+			assertEquals(43, header.getShort());
+			assertEquals(8, header.getShort());
+			assertEquals(0, header.getShort());
+
+			long ifd = header.getLong();
+
+			while (ifd != 0) {
+				final long numEntries = read(raf, ifd, 8).getLong();
+				final ByteBuffer entries = read(raf, ifd + 8, (int) numEntries * 20 + 8);
+				final Map<Integer, long[]> tags = new HashMap<Integer, long[]>();
+
+				for (int i = 0; i < numEntries; i++) {
+					final int tag = entries.getShort() & 0xffff;
+					final int type = entries.getShort();
+					final long count = entries.getLong();
+					final long value;
+
+					if (type == 3) value = entries.getShort() & 0xffff;
+					else if (type == 4) value = entries.getInt() & 0xffffffffl;
+					else value = entries.getLong();
+
+					entries.position((i + 1) * 20);
+					tags.put(tag, new long[] { type, count, value });
+				}
+
+				ifd = entries.getLong();
+
+				assertEquals(1, tags.get(259)[2]);
+				assertTrue(tags.containsKey(322) && tags.containsKey(323));
+
+				planes.add(readPlane(raf, tags));
+			}
+		}
+		finally {
+			raf.close();
+		}
+
+		return planes;
+	}
+
+	private static float[] readPlane(final RandomAccessFile raf,
+		final Map<Integer, long[]> tags) throws IOException
+	{
+		final int width = (int) tags.get(256)[2];
+		final int height = (int) tags.get(257)[2];
+		final int bytesPerPixel = (int) tags.get(258)[2] / 8;
+		final boolean isFloat = tags.get(339)[2] == 3;
+		final int tileWidth = (int) tags.get(322)[2];
+		final int tileHeight = (int) tags.get(323)[2];
+		final int numTiles = (int) tags.get(324)[1];
+
+		final long[] offsets = new long[numTiles];
+
+		if (numTiles == 1) offsets[0] = tags.get(324)[2];
+		else {
+			final ByteBuffer b = read(raf, tags.get(324)[2], numTiles * 8);
+			for (int i = 0; i < numTiles; i++) {
+				offsets[i] = b.getLong();
+			}
+		}
+
+		final int tilesAcross = (width + tileWidth - 1) / tileWidth;
+		final float[] plane = new float[width * height];
+
+		for (int i = 0; i < numTiles; i++) {
+			final ByteBuffer tile =
+				read(raf, offsets[i], tileWidth * tileHeight * bytesPerPixel);
+			final int x0 = i % tilesAcross * tileWidth;
+			final int y0 = i / tilesAcross * tileHeight;
+
+			for (int y = 0; y < tileHeight; y++) {
+				for (int x = 0; x < tileWidth; x++) {
+					final float value;
+
+					if (isFloat) value = tile.getFloat();
+					else if (bytesPerPixel == 2) value = tile.getShort() & 0xffff;
+					else value = tile.get() & 0xff;
+
+					if (x0 + x < width && y0 + y < height) {
+						plane[(y0 + y) * width + x0 + x] = value;
+					}
+					else {
+						// the tiles are padded with zeros
+						assertEquals(0, value, 0);
+					}
+				}
+			}
+		}
+
+		return plane;
+	}
+
+	private static ByteBuffer read(final RandomAccessFile raf, final long pos,
+		final int size) throws IOException
+	{
+		final byte[] bytes = new byte[size];
+		raf.seek(pos);
+		raf.readFully(bytes);
+
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
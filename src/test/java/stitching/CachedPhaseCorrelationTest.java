@@ -0,0 +1,117 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+
+import mpicbg.stitching.CachedPhaseCorrelation;
+import mpicbg.stitching.FourierTransformCache;
+import mpicbg.stitching.PairWiseStitchingImgLib;
+import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.StitchingParameters;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link CachedPhaseCorrelation} finds the shift between crops of
+ * the same image, that the transform of a tile is reused for the next pair,
+ * and that it gives the same result as the ImgLib1 phase correlation.
+ */
+public class CachedPhaseCorrelationTest {
+
+	private static final int width = 80, height = 60;
+
+	@Test
+	public void testShiftAndReuse() {
+		final float[] image = TestImages.createImage(width, height, 40, 42);
+
+		final ImagePlus tile1 = crop(image, 0, 0, 50, 40);
+		final ImagePlus tile2 = crop(image, 30, 15, 50, 40);
+		final ImagePlus tile3 = crop(image, 20, 10, 50, 40);
+
+		final FourierTransformCache cache = new FourierTransformCache(1024 * 1024);
+
+		final PairWiseStitchingResult result12 =
+			CachedPhaseCorrelation.compute(tile1, tile2, null, null, 1, 1, 1, 1, 5,
+				false, cache);
+
+		assertEquals(30, result12.getOffset(0), 0);
+		assertEquals(15, result12.getOffset(1), 0);
+		assertTrue(result12.getCrossCorrelation() > 0.99);
+
+		final PairWiseStitchingResult result13 =
+			CachedPhaseCorrelation.compute(tile1, tile3, null, null, 1, 1, 1, 1, 5,
+				true, cache);
+
+		assertEquals(20, result13.getOffset(0), 0.1);
+		assertEquals(10, result13.getOffset(1), 0.1);
+
+		// the first tile was only transformed once
+		assertEquals(3, cache.getNumComputed());
+		assertEquals(1, cache.getNumHits());
+	}
+
+	@Test
+	public void testEviction() {
+		final float[] image = TestImages.createImage(width, height, 40, 42);
+		final ImagePlus tile1 = crop(image, 0, 0, 50, 40);
+		final ImagePlus tile2 = crop(image, 30, 15, 50, 40);
+
+		// too small for any transform, they are computed but not kept
+		final FourierTransformCache cache = new FourierTransformCache(16);
+
+		CachedPhaseCorrelation.compute(tile1, tile2, null, null, 1, 1, 1, 1, 5,
+			false, cache);
+		CachedPhaseCorrelation.compute(tile1, tile2, null, null, 1, 1, 1, 1, 5,
+			false, cache);
+
+		assertEquals(4, cache.getNumComputed());
+		assertEquals(0, cache.getNumHits());
+	}
+
+	/**
+	 * Compares the cached phase correlation with the ImgLib1 phase correlation
+	 * that is used without a cache, for positive and negative shifts, with and
+	 * without subpixel accuracy.
+	 */
+	@Test
+	public void testSameAsImgLib1() {
+		final float[] image = TestImages.createImage(width, height, 40, 42);
+		final int[][] pairs =
+			{ { 0, 0, 30, 15 }, { 0, 0, 20, 10 }, { 25, 12, 3, 4 } };
+
+		for (final boolean subpixel : new boolean[] { false, true }) {
+			final StitchingParameters params = new StitchingParameters();
+			params.checkPeaks = 5;
+			params.subpixelAccuracy = subpixel;
+			params.channel1 = params.channel2 = 1;
+
+			for (final int[] pair : pairs) {
+				final ImagePlus tile1 = crop(image, pair[0], pair[1], 50, 40);
+				final ImagePlus tile2 = crop(image, pair[2], pair[3], 50, 40);
+
+				final PairWiseStitchingResult expected =
+					PairWiseStitchingImgLib.stitchPairwise(tile1, tile2, null, null, 1,
+						1, params, null);
+				final PairWiseStitchingResult result =
+					PairWiseStitchingImgLib.stitchPairwise(tile1, tile2, null, null, 1,
+						1, params, new FourierTransformCache(1024 * 1024));
+
+				for (int d = 0; d < 2; d++) {
+					assertEquals(expected.getOffset(d), result.getOffset(d), 0.05);
+				}
+
+				assertEquals(expected.getCrossCorrelation(), result
+					.getCrossCorrelation(), 0.001);
+			}
+		}
+	}
+
+	private static ImagePlus crop(final float[] image, final int x0,
+		final int y0, final int w, final int h)
+	{
+		return new ImagePlus("", new FloatProcessor(w, h, TestImages.crop(image,
+			width, x0, y0, w, h)));
+	}
+}
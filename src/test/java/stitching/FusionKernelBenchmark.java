@@ -0,0 +1,170 @@
+package stitching;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.fusion.AveragePixelFusion;
+import mpicbg.stitching.fusion.FusionPlan;
+import mpicbg.stitching.fusion.ImageInterpolation;
+import mpicbg.stitching.fusion.PixelFusion;
+import mpicbg.stitching.fusion.SpanKernel;
+import mpicbg.stitching.fusion.TabulatedBlendingPixelFusion;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Compares the generic {@link SpanKernel} with the
+ * {@link mpicbg.stitching.fusion.ArraySpanKernel} that reads and writes the
+ * primitive arrays directly, for 8-bit, 16-bit and 32-bit grids fused without
+ * subpixel resolution. Run it as a Java application; it also checks that both
+ * kernels produce identical images.
+ */
+public class FusionKernelBenchmark {
+
+	static int numTiles = 6, tileSize = 1024, repetitions = 5;
+
+	public static void main(final String... args) {
+		System.out.println(numTiles + "x" + numTiles + " grid, " + tileSize +
+			"x" + tileSize + " px tiles, 10% overlap");
+		System.out.println("type\tfusion\tgeneric [ms]\tarrays [ms]\tspeedup");
+
+		benchmark(new UnsignedByteType());
+		benchmark(new UnsignedShortType());
+		benchmark(new FloatType());
+	}
+
+	private static <T extends RealType<T> & NativeType<T>> void benchmark(
+		final T type)
+	{
+		final Random rnd = new Random(4711);
+		final ArrayList<ImagePlus> imps = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+		final ArrayList<ImageInterpolation<T>> input =
+			new ArrayList<ImageInterpolation<T>>();
+
+		final int step = tileSize * 9 / 10;
+
+		for (int y = 0; y < numTiles; y++) {
+			for (int x = 0; x < numTiles; x++) {
+				final ImagePlus imp = new ImagePlus("", createProcessor(type, rnd));
+				final TranslationModel2D model = new TranslationModel2D();
+				model.set(x * step + rnd.nextInt(10), y * step + rnd.nextInt(10));
+
+				imps.add(imp);
+				models.add(model);
+				input.add(new ImageInterpolation<T>(wrap(type, imp),
+					new NearestNeighborInterpolatorFactory<T>(), false));
+			}
+		}
+
+		final FusionPlan plan = new FusionPlan(imps, models, 2, false);
+
+		final PixelFusion average = new AveragePixelFusion();
+		final PixelFusion blending =
+			new TabulatedBlendingPixelFusion(input, plan.getOffset(), plan
+				.getTranslations());
+
+		run(type, "average", plan, input, average);
+		run(type, "blending", plan, input, blending);
+	}
+
+	private static <T extends RealType<T> & NativeType<T>> void run(
+		final T type, final String name, final FusionPlan plan,
+		final ArrayList<ImageInterpolation<T>> input, final PixelFusion fusion)
+	{
+		final Img<T> generic =
+			new ImagePlusImgFactory<T>().create(plan.getSize(), type);
+		final Img<T> arrays =
+			new ImagePlusImgFactory<T>().create(plan.getSize(), type);
+
+		SpanKernel.useArrayKernel = false;
+		final double timeGeneric = time(plan, generic, input, fusion);
+
+		SpanKernel.useArrayKernel = true;
+		final double timeArrays = time(plan, arrays, input, fusion);
+
+		final Cursor<T> c1 = generic.cursor();
+		final Cursor<T> c2 = arrays.cursor();
+
+		while (c1.hasNext()) {
+			if (c1.next().getRealDouble() != c2.next().getRealDouble()) {
+				throw new IllegalStateException("Kernels differ for " +
+					type.getClass().getSimpleName() + ", " + name);
+			}
+		}
+
+		System.out.println(type.getClass().getSimpleName() + "\t" + name + "\t" +
+			String.format("%.1f", timeGeneric) + "\t\t" +
+			String.format("%.1f", timeArrays) + "\t\t" +
+			String.format("%.2f", timeGeneric / timeArrays));
+	}
+
+	/**
+	 * @return - the fastest of all repetitions in ms, after one warm up
+	 */
+	private static <T extends RealType<T>> double time(final FusionPlan plan,
+		final Img<T> output, final ArrayList<ImageInterpolation<T>> input,
+		final PixelFusion fusion)
+	{
+		plan.fuse(output, input, fusion, false);
+
+		double best = Double.MAX_VALUE;
+
+		for (int r = 0; r < repetitions; r++) {
+			final long t = System.nanoTime();
+			plan.fuse(output, input, fusion, false);
+			best = Math.min(best, (System.nanoTime() - t) / 1000000.0);
+		}
+
+		return best;
+	}
+
+	private static ImageProcessor createProcessor(final RealType<?> type,
+		final Random rnd)
+	{
+		final ImageProcessor ip;
+
+		if (type instanceof UnsignedByteType) ip =
+			new ByteProcessor(tileSize, tileSize);
+		else if (type instanceof UnsignedShortType) ip =
+			new ShortProcessor(tileSize, tileSize);
+		else ip = new FloatProcessor(tileSize, tileSize);
+
+		for (int i = 0; i < tileSize * tileSize; i++) {
+			ip.setf(i, rnd.nextInt(4096));
+		}
+
+		return ip;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T extends RealType<T> & NativeType<T>> Img<T> wrap(
+		final T type, final ImagePlus imp)
+	{
+		final Img img;
+
+		if (type instanceof UnsignedByteType) img = ImageJFunctions.wrapByte(imp);
+		else if (type instanceof UnsignedShortType) img =
+			ImageJFunctions.wrapShort(imp);
+		else img = ImageJFunctions.wrapFloat(imp);
+
+		return img;
+	}
+}
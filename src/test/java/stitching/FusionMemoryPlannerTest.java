@@ -0,0 +1,110 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import mpicbg.stitching.ImageCollectionElement;
+import mpicbg.stitching.fusion.FusionMemoryPlanner;
+import mpicbg.stitching.fusion.StreamingFusion;
+
+import org.junit.Test;
+
+/**
+ * Tests the estimates of the {@link FusionMemoryPlanner} and that it only
+ * falls back to modes that need less memory.
+ */
+public class FusionMemoryPlannerTest {
+
+	private static final long MB = 1024 * 1024;
+
+	@Test
+	public void testEstimate() {
+		// a 2x2 grid of 100x80 tiles with 10 pixels overlap -> 190x150
+		final FusionMemoryPlanner planner =
+			new FusionMemoryPlanner(grid(true), 1, 2, 1, false, false);
+
+		assertEquals(4 * 100 * 80 * 2, planner.getInputBytes());
+		assertEquals(190 * 150 * 2, planner.getFusedBytes());
+		assertEquals(190 * 150 * 2, planner.getOutputBytes(
+			FusionMemoryPlanner.IN_MEMORY));
+		assertEquals(190 * 150, planner.getOutputBytes(FusionMemoryPlanner.DISK));
+		assertEquals(0, planner.getWorkingSetBytes(FusionMemoryPlanner.DISK));
+
+		// subpixel accuracy converts all tiles of one channel to float
+		assertEquals(4 * 100 * 80 * 4, new FusionMemoryPlanner(grid(true), 1, 2,
+			1, true, false).getWorkingSetBytes(FusionMemoryPlanner.IN_MEMORY));
+	}
+
+	/**
+	 * The threads fuse one block together, the pyramid adds one block per
+	 * downsampled level
+	 */
+	@Test
+	public void testStreaming() {
+		final long cache = StreamingFusion.defaultCacheBytes();
+		final long block = StreamingFusion.defaultBlockSize[0] *
+			StreamingFusion.defaultBlockSize[1];
+
+		assertEquals(cache + block * 2, new FusionMemoryPlanner(grid(true), 2, 1,
+			1, false, false).getWorkingSetBytes(FusionMemoryPlanner.STREAMING));
+		assertEquals(cache + 3 * block * 2, new FusionMemoryPlanner(grid(true), 2,
+			1, 1, false, false, 2).getWorkingSetBytes(
+				FusionMemoryPlanner.STREAMING));
+	}
+
+	@Test
+	public void testUnknownLayout() {
+		// without positions the tiles are assumed to not overlap
+		final FusionMemoryPlanner planner =
+			new FusionMemoryPlanner(grid(false), 2, 1, 1, false, false);
+
+		assertEquals(4 * 100 * 80 * 2, planner.getFusedBytes());
+	}
+
+	@Test
+	public void testChoose() {
+		// four channels, only one slice of one channel is in memory when writing to disk
+		final FusionMemoryPlanner planner =
+			new FusionMemoryPlanner(grid(true), 1, 4, 1, false, false);
+
+		assertEquals(FusionMemoryPlanner.IN_MEMORY, planner.choose(
+			FusionMemoryPlanner.IN_MEMORY, 100 * MB));
+		assertEquals(FusionMemoryPlanner.DISK, planner.choose(
+			FusionMemoryPlanner.DISK, 100 * MB));
+
+		// the fused image does not fit, one slice does
+		assertEquals(FusionMemoryPlanner.DISK, planner.choose(
+			FusionMemoryPlanner.IN_MEMORY, 2 * 190 * 150 + 1000));
+
+		// nothing fits
+		assertEquals(FusionMemoryPlanner.STREAMING, planner.choose(
+			FusionMemoryPlanner.IN_MEMORY, 0));
+	}
+
+	private static ArrayList<ImageCollectionElement> grid(
+		final boolean positions)
+	{
+		final ArrayList<ImageCollectionElement> elements =
+			new ArrayList<ImageCollectionElement>();
+
+		for (int i = 0; i < 4; i++) {
+			final ImageCollectionElement element =
+				new ImageCollectionElement(new File("tile" + i + ".tif"), i);
+
+			element.setImagePlus(new ImagePlus("", new ByteProcessor(100, 80)));
+			element.setDimensionality(2);
+
+			if (positions) element.setOffset(new float[] { (i % 2) * 90,
+				(i / 2) * 70 });
+			else element.setOffset(new float[] { 0, 0 });
+
+			elements.add(element);
+		}
+
+		return elements;
+	}
+}
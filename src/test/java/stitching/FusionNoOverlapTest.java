@@ -0,0 +1,104 @@
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.fusion.Fusion;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests that fusing tiles without overlap by copying whole rows gives the same
+ * image as the pixelwise copy and as the fusion of each pixel, also if the
+ * tiles are placed at non-integer positions.
+ */
+public class FusionNoOverlapTest {
+
+	private static final int width = 50, height = 40;
+
+	@Test
+	public void testNonIntegerOffset() {
+		for (final double[] start : new double[][] { { 0.4, 0.3 }, { 10.6, -3.7 },
+			{ -7.5, 2.5 } })
+		{
+			final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+			final ArrayList<InvertibleBoundable> models = grid(images, start);
+
+			assertSame(images, models, null, null);
+
+			// a region of the fused image
+			assertSame(images, models, new long[] { 13, 7 }, new long[] { 81, 66 });
+		}
+	}
+
+	/**
+	 * Fuses the tiles with copying rows (the output has the type of the tiles),
+	 * pixelwise (the output is float) and with average fusion of each pixel
+	 */
+	private static void assertSame(final ArrayList<ImagePlus> images,
+		final ArrayList<InvertibleBoundable> models, final long[] min,
+		final long[] max)
+	{
+		final ImagePlus rows =
+			Fusion.fuse(new UnsignedByteType(), images, models, 2, false, 1, null,
+				true, false, false, min, max);
+		final ImagePlus pixels =
+			Fusion.fuse(new FloatType(), images, models, 2, false, 1, null, true,
+				false, false, min, max);
+		final ImagePlus fused =
+			Fusion.fuse(new UnsignedByteType(), images, models, 2, false, 1, null,
+				false, false, false, min, max);
+
+		assertEquals(fused.getWidth(), rows.getWidth());
+		assertEquals(fused.getHeight(), rows.getHeight());
+
+		final float[] expected = toFloat(fused);
+
+		assertArrayEquals(expected, toFloat(rows), 0);
+		assertArrayEquals(expected, toFloat(pixels), 0);
+	}
+
+	private static float[] toFloat(final ImagePlus imp) {
+		return (float[]) imp.getProcessor().convertToFloat().getPixels();
+	}
+
+	/**
+	 * A 3x2 grid of tiles that touch each other, starting at a non-integer
+	 * position
+	 */
+	private static ArrayList<InvertibleBoundable> grid(
+		final ArrayList<ImagePlus> images, final double[] start)
+	{
+		final Random rnd = new Random(11);
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+
+		for (int y = 0; y < 2; y++) {
+			for (int x = 0; x < 3; x++) {
+				final ByteProcessor ip = new ByteProcessor(width, height);
+
+				for (int i = 0; i < width * height; i++) {
+					ip.set(i, 1 + rnd.nextInt(255));
+				}
+
+				final TranslationModel2D model = new TranslationModel2D();
+				model.set(start[0] + x * width, start[1] + y * height);
+
+				images.add(new ImagePlus("", ip));
+				models.add(model);
+			}
+		}
+
+		return models;
+	}
+}
@@ -0,0 +1,135 @@
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.fusion.ClassifiedRegion;
+import mpicbg.stitching.fusion.FusionPlan;
+
+import org.junit.Test;
+
+/**
+ * Tests that a {@link FusionPlan} cropped to a region of the fused image
+ * describes exactly the same tiles for each pixel of the region as the
+ * complete plan.
+ */
+public class FusionPlanCropTest {
+
+	@Test
+	public void testCrop() {
+		final Random rnd = new Random(4711);
+		final FusionPlan plan = createGrid(rnd);
+		final int[] size = plan.getSize();
+
+		for (int i = 0; i < 20; i++) {
+			final long[] min = new long[2];
+			final long[] max = new long[2];
+
+			for (int d = 0; d < 2; d++) {
+				min[d] = rnd.nextInt(size[d]);
+				max[d] = min[d] + rnd.nextInt(size[d] / 2);
+			}
+
+			final FusionPlan cropped = plan.crop(min, max);
+
+			for (int d = 0; d < 2; d++) {
+				assertEquals(Math.min(max[d], size[d] - 1) - min[d] + 1, cropped
+					.getSize()[d]);
+				assertEquals(plan.getOffset()[d] + min[d], cropped.getOffset()[d], 0);
+			}
+
+			// only the tiles that contribute to the region are kept
+			final TreeSet<Integer> used = new TreeSet<Integer>();
+
+			for (int y = 0; y < cropped.getSize()[1]; y++) {
+				for (int x = 0; x < cropped.getSize()[0]; x++) {
+					final TreeSet<Integer> tiles = new TreeSet<Integer>();
+
+					for (final int tile : classesAt(cropped, x, y)) {
+						tiles.add(cropped.getImageIndices()[tile]);
+					}
+
+					assertEquals(classesAt(plan, (int) min[0] + x, (int) min[1] + y),
+						tiles);
+
+					used.addAll(tiles);
+				}
+			}
+
+			assertEquals(used.size(), cropped.numImages());
+		}
+	}
+
+	/**
+	 * Cropping a cropped plan refers to the images of the original plan.
+	 */
+	@Test
+	public void testCropTwice() {
+		final FusionPlan plan = createGrid(new Random(42));
+		final FusionPlan cropped =
+			plan.crop(new long[] { 50, 50 }, new long[] { 300, 200 });
+		final FusionPlan twice =
+			cropped.crop(new long[] { 100, 0 }, new long[] { 130, 20 });
+
+		assertArrayEquals(plan.crop(new long[] { 150, 50 },
+			new long[] { 180, 70 }).getImageIndices(), twice.getImageIndices());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCropOutside() {
+		final FusionPlan plan = createGrid(new Random(17));
+
+		plan.crop(new long[] { 0, plan.getSize()[1] }, new long[] { 10,
+			plan.getSize()[1] + 10 });
+	}
+
+	/**
+	 * A 4x3 grid of 100x80 tiles with some overlap and jitter
+	 */
+	private static FusionPlan createGrid(final Random rnd) {
+		final List<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+
+		for (int y = 0; y < 3; y++) {
+			for (int x = 0; x < 4; x++) {
+				final TranslationModel2D model = new TranslationModel2D();
+				model.set(x * 90 + rnd.nextInt(5), y * 70 + rnd.nextInt(5));
+
+				images.add(new ImagePlus("", new ByteProcessor(100, 80)));
+				models.add(model);
+			}
+		}
+
+		return new FusionPlan(images, models, 2, false);
+	}
+
+	/**
+	 * @return - the tiles of the region that contains the pixel
+	 */
+	private static TreeSet<Integer> classesAt(final FusionPlan plan, final int x,
+		final int y)
+	{
+		final TreeSet<Integer> classes = new TreeSet<Integer>();
+
+		for (final ClassifiedRegion region : plan.getRegions()) {
+			if (region.get(0).contains(x) == 0 && region.get(1).contains(y) == 0) {
+				for (final int c : region.classArray()) {
+					classes.add(c);
+				}
+			}
+		}
+
+		return classes;
+	}
+}
@@ -0,0 +1,44 @@
+package stitching;
+
+import mpicbg.stitching.fusion.FusionScheduler;
+import mpicbg.stitching.fusion.FusionScheduler.Worker;
+import mpicbg.stitching.fusion.FusionScheduler.WorkerFactory;
+
+import org.junit.Test;
+
+/**
+ * Tests that a failing unit of the {@link FusionScheduler} reaches the caller
+ * with one and with several workers.
+ */
+public class FusionSchedulerTest {
+
+	@Test(expected = IllegalStateException.class)
+	public void testFailureSeveralWorkers() {
+		new FusionScheduler(4).run(100, failAt(37));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFailureOneWorker() {
+		new FusionScheduler(1).run(100, failAt(37));
+	}
+
+	private static WorkerFactory failAt(final int failingUnit) {
+		return new WorkerFactory() {
+
+			@Override
+			public Worker createWorker(final int workerId) {
+				return new Worker() {
+
+					@Override
+					public long process(final int unit) {
+						if (unit == failingUnit) {
+							throw new IllegalStateException("unit " + unit);
+						}
+
+						return 1;
+					}
+				};
+			}
+		};
+	}
+}
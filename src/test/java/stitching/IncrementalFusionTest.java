@@ -0,0 +1,209 @@
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.fusion.FusionPlan;
+import mpicbg.stitching.fusion.IncrementalFusion;
+import mpicbg.stitching.fusion.StreamingFusion;
+import mpicbg.stitching.fusion.UpdatableBlockWriter;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link IncrementalFusion} finds the moved tiles and all blocks
+ * that they cover before and after they moved, and that updating a fused image
+ * gives the same result as fusing it again.
+ */
+public class IncrementalFusionTest {
+
+	private static final int[] blockSize = { 32, 32 };
+
+	@Test
+	public void testMovedTile() {
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> oldModels = grid(images, -1, 0, 0);
+		final ArrayList<InvertibleBoundable> newModels = grid(null, 5, 7, -3);
+
+		final FusionPlan oldPlan = new FusionPlan(images, oldModels, 2, false);
+		final FusionPlan newPlan = new FusionPlan(images, newModels, 2, false);
+
+		final boolean[] changed =
+			IncrementalFusion.getChangedTiles(oldPlan, newPlan);
+
+		for (int i = 0; i < changed.length; i++) {
+			assertEquals(i == 5, changed[i]);
+		}
+
+		final Set<Long> dirty = new HashSet<Long>();
+		for (final long b : IncrementalFusion.getDirtyBlocks(oldPlan, newPlan,
+			changed, blockSize))
+		{
+			dirty.add(b);
+		}
+
+		final int[] size = newPlan.getSize();
+		final int numBlocksX = (size[0] + blockSize[0] - 1) / blockSize[0];
+		final int numBlocksY = (size[1] + blockSize[1] - 1) / blockSize[1];
+
+		// every pixel of the old and new position of the tile is in a dirty block
+		for (final FusionPlan plan : new FusionPlan[] { oldPlan, newPlan }) {
+			final double[] min = new double[2];
+			plan.getModels().get(5).applyInPlace(min);
+
+			for (int y = 0; y < 80; y++) {
+				for (int x = 0; x < 100; x++) {
+					final long bx = Math.round(min[0] - plan.getOffset()[0] + x) / blockSize[0];
+					final long by = Math.round(min[1] - plan.getOffset()[1] + y) / blockSize[1];
+
+					assertTrue(dirty.contains(by * numBlocksX + bx));
+				}
+			}
+		}
+
+		// the first and the last block are far away
+		assertFalse(dirty.contains(0l));
+		assertFalse(dirty.contains((long) numBlocksX * numBlocksY - 1));
+		assertTrue(dirty.size() < numBlocksX * numBlocksY / 2);
+	}
+
+	@Test
+	public void testNothingChanged() {
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final FusionPlan plan =
+			new FusionPlan(images, grid(images, -1, 0, 0), 2, false);
+
+		final boolean[] changed = IncrementalFusion.getChangedTiles(plan, plan);
+
+		for (final boolean c : changed) {
+			assertFalse(c);
+		}
+
+		assertEquals(0, IncrementalFusion.getDirtyBlocks(plan, plan, changed,
+			blockSize).length);
+	}
+
+	/**
+	 * Fuses the old grid, updates it after moving a tile and compares it to a
+	 * complete fusion of the new grid, for linear blending and average.
+	 */
+	@Test
+	public void testIncrementalEqualsFullFusion() {
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> oldModels = grid(images, -1, 0, 0);
+		final ArrayList<InvertibleBoundable> newModels = grid(null, 5, 7, -3);
+
+		final Random rnd = new Random(42);
+		for (final ImagePlus imp : images) {
+			final byte[] pixels = (byte[]) imp.getProcessor().getPixels();
+			rnd.nextBytes(pixels);
+		}
+
+		for (final int fusionType : new int[] { 0, 1 }) {
+			final MemoryWriter updated = new MemoryWriter();
+			final MemoryWriter expected = new MemoryWriter();
+
+			assertTrue(StreamingFusion.fuse(new FloatType(), images, oldModels, 2,
+				false, fusionType, false, blockSize, Long.MAX_VALUE, updated));
+			assertTrue(IncrementalFusion.fuse(new FloatType(), images, oldModels,
+				newModels, 2, false, fusionType, false, blockSize, Long.MAX_VALUE,
+				updated));
+			assertTrue(StreamingFusion.fuse(new FloatType(), images, newModels, 2,
+				false, fusionType, false, blockSize, Long.MAX_VALUE, expected));
+
+			assertTrue(updated.numWritten > expected.blocks.size());
+			assertTrue(updated.numWritten < 2 * expected.blocks.size());
+			assertEquals(expected.blocks.keySet(), updated.blocks.keySet());
+			assertArrayEquals(new long[] { expected.size[0], expected.size[1] },
+				updated.updateSize);
+
+			for (final String key : expected.blocks.keySet()) {
+				assertArrayEquals(key, expected.blocks.get(key), updated.blocks.get(
+					key), 0.0001f);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the pixels of the last block written at every position
+	 */
+	private static class MemoryWriter implements UpdatableBlockWriter {
+
+		final Map<String, float[]> blocks = new HashMap<String, float[]>();
+		final long[] size = new long[2];
+		long[] updateSize = null;
+		int numWritten = 0;
+
+		@Override
+		public void startUpdate(final long[] size) {
+			updateSize = size.clone();
+		}
+
+		@Override
+		public <T extends RealType<T> & NativeType<T>> void write(
+			final Img<T> block, final long[] min, final int t, final int c)
+		{
+			final float[] pixels = new float[(int) block.size()];
+			final Cursor<T> cursor = block.cursor();
+
+			for (int i = 0; cursor.hasNext(); i++) {
+				pixels[i] = cursor.next().getRealFloat();
+			}
+
+			blocks.put(t + "," + c + "," + min[0] + "," + min[1], pixels);
+
+			for (int d = 0; d < 2; d++) {
+				size[d] = Math.max(size[d], min[d] + block.dimension(d));
+			}
+			numWritten++;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	/**
+	 * A 4x3 grid of 100x80 tiles, one of them can be moved
+	 */
+	private static ArrayList<InvertibleBoundable> grid(
+		final ArrayList<ImagePlus> images, final int moved, final int dx,
+		final int dy)
+	{
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+
+		for (int y = 0; y < 3; y++) {
+			for (int x = 0; x < 4; x++) {
+				final TranslationModel2D model = new TranslationModel2D();
+
+				if (models.size() == moved) model.set(x * 90 + dx, y * 70 + dy);
+				else model.set(x * 90, y * 70);
+
+				if (images != null) images.add(new ImagePlus("", new ByteProcessor(
+					100, 80)));
+				models.add(model);
+			}
+		}
+
+		return models;
+	}
+}
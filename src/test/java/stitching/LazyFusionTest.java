@@ -0,0 +1,106 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.fusion.FusedRandomAccessibleInterval;
+import mpicbg.stitching.fusion.LazyFusion;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+import org.junit.Test;
+
+/**
+ * Tests that the planes of the {@link LazyFusion} are fused once, even if
+ * several threads request them at the same time, and that they can not be
+ * changed through a {@link FusedRandomAccessibleInterval}.
+ */
+public class LazyFusionTest {
+
+	@Test
+	public void testReadOnly() {
+		final LazyFusion<UnsignedByteType> fusion = createFusion();
+		final RandomAccess<UnsignedByteType> ra =
+			new FusedRandomAccessibleInterval<UnsignedByteType>(fusion, 1, 1)
+				.randomAccess();
+
+		ra.setPosition(new long[] { 50, 40 });
+		final int value = ra.get().get();
+		ra.get().set(value + 1);
+
+		ra.setPosition(new long[] { 51, 40 });
+		ra.get();
+		ra.setPosition(new long[] { 50, 40 });
+
+		assertEquals(value, ra.get().get());
+		assertEquals(1, fusion.getNumFused());
+	}
+
+	@Test
+	public void testConcurrentRequests() throws InterruptedException {
+		final LazyFusion<UnsignedByteType> fusion = createFusion();
+		final ArrayList<Img<UnsignedByteType>> planes =
+			new ArrayList<Img<UnsignedByteType>>();
+		final Thread[] threads = new Thread[8];
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					final Img<UnsignedByteType> plane = fusion.getPlane(0, 1, 1);
+
+					synchronized (planes) {
+						planes.add(plane);
+					}
+				}
+			});
+			threads[i].start();
+		}
+
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(threads.length, planes.size());
+		assertEquals(1, fusion.getNumFused());
+
+		for (final Img<UnsignedByteType> plane : planes) {
+			assertSame(planes.get(0), plane);
+		}
+	}
+
+	/**
+	 * A 2x2 grid of 100x80 random tiles with 10 pixels overlap, fused with
+	 * linear blending
+	 */
+	private static LazyFusion<UnsignedByteType> createFusion() {
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+		final Random rnd = new Random(7);
+
+		for (int y = 0; y < 2; y++) {
+			for (int x = 0; x < 2; x++) {
+				final ByteProcessor ip = new ByteProcessor(100, 80);
+				rnd.nextBytes((byte[]) ip.getPixels());
+				images.add(new ImagePlus("", ip));
+
+				final TranslationModel2D model = new TranslationModel2D();
+				model.set(x * 90, y * 70);
+				models.add(model);
+			}
+		}
+
+		return new LazyFusion<UnsignedByteType>(new UnsignedByteType(), images,
+			models, 2, false, 0, false, null, null, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+}
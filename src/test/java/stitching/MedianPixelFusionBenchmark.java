@@ -0,0 +1,73 @@
+package stitching;
+
+import java.util.Random;
+
+import mpicbg.stitching.fusion.MedianPixelFusion;
+import mpicbg.stitching.fusion.PixelFusion;
+import mpicbg.stitching.fusion.QuickMedianPixelFusion;
+
+/**
+ * Compares the speed of {@link QuickMedianPixelFusion} and
+ * {@link MedianPixelFusion} for different numbers of overlapping tiles. Run it
+ * as a Java application.
+ */
+public class MedianPixelFusionBenchmark {
+
+	/** number of fused pixels per measurement */
+	static int numPixels = 2000000;
+
+	public static void main(final String... args) {
+		System.out.println("overlap\tMedianPixelFusion [ns/px]\tQuickMedianPixelFusion [ns/px]\tspeedup");
+
+		for (final int overlap : new int[] { 2, 3, 4, 6, 8, 12, 16, 32 }) {
+			// random 16 bit values
+			final Random rnd = new Random(overlap);
+			final double[] values = new double[1024 * overlap];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = rnd.nextInt(65536);
+			}
+
+			// warm up
+			run(new MedianPixelFusion(), values, overlap);
+			run(new QuickMedianPixelFusion(overlap), values, overlap);
+
+			final double median = run(new MedianPixelFusion(), values, overlap);
+			final double quick = run(new QuickMedianPixelFusion(overlap), values, overlap);
+
+			System.out.println(overlap + "\t" + String.format("%.1f", median) +
+				"\t\t\t\t" + String.format("%.1f", quick) + "\t\t\t\t" +
+				String.format("%.1fx", median / quick));
+		}
+	}
+
+	/**
+	 * @return the time per pixel in ns
+	 */
+	private static double run(final PixelFusion fusion, final double[] values,
+		final int overlap)
+	{
+		final int numSets = values.length / overlap;
+		double sum = 0;
+
+		final long t = System.nanoTime();
+
+		for (int i = 0; i < numPixels; i++) {
+			final int offset = (i % numSets) * overlap;
+
+			fusion.clear();
+			for (int j = 0; j < overlap; j++) {
+				fusion.addValue(values[offset + j], j, null);
+			}
+			sum += fusion.getValue();
+		}
+
+		final double time = (double) (System.nanoTime() - t) / numPixels;
+
+		// use the result so it is not optimized away
+		if (sum == Double.MIN_VALUE) {
+			System.out.println(sum);
+		}
+
+		return time;
+	}
+}
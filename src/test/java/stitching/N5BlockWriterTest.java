@@ -0,0 +1,370 @@
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import mpicbg.stitching.fusion.N5BlockWriter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests that the {@link N5BlockWriter} writes valid N5 datasets by reading
+ * the attributes and all chunks back and comparing them to the blocks.
+ */
+public class N5BlockWriterTest {
+
+	private static final int[] blockSize = { 8, 8, 4 };
+
+	/**
+	 * Two channels of a 3d float image whose size is not a multiple of the
+	 * chunk size, gzip-compressed
+	 */
+	@Test
+	public void testCompressedChannels() throws IOException {
+		final long[] size = { 20, 18, 5 };
+		final File root = createRoot();
+
+		final N5BlockWriter writer = new N5BlockWriter(root, blockSize, true, 2);
+		final Img<FloatType> channel1 = createImage(new FloatType(), size, 0);
+		final Img<FloatType> channel2 = createImage(new FloatType(), size, 1);
+
+		writeBlocks(writer, channel1, 1);
+		writeBlocks(writer, channel2, 2);
+		writer.close();
+
+		assertDataset(root, N5BlockWriter.getDatasetPath(1, 1, 0), channel1,
+			"float32", "gzip");
+		assertDataset(root, N5BlockWriter.getDatasetPath(1, 2, 0), channel2,
+			"float32", "gzip");
+
+		delete(root);
+	}
+
+	@Test
+	public void testRawUnsignedShort() throws IOException {
+		final long[] size = { 16, 9, 4 };
+		final File root = createRoot();
+
+		final N5BlockWriter writer = new N5BlockWriter(root, blockSize, false, 1);
+		final Img<UnsignedShortType> image =
+			createImage(new UnsignedShortType(), size, 0);
+
+		writeBlocks(writer, image, 1);
+		writer.close();
+
+		assertDataset(root, N5BlockWriter.getDatasetPath(1, 1, 0), image,
+			"uint16", "raw");
+
+		delete(root);
+	}
+
+	/**
+	 * Two levels share one queue whose budget is smaller than a block, so the
+	 * blocks are written one at a time
+	 */
+	@Test
+	public void testSharedQueue() throws IOException {
+		final long[] size = { 20, 18, 5 };
+		final File root = createRoot();
+
+		final N5BlockWriter.WriteQueue queue = new N5BlockWriter.WriteQueue(2, 1);
+		final N5BlockWriter level0 =
+			new N5BlockWriter(root, blockSize, true, queue, 0, 2);
+		final N5BlockWriter level1 =
+			new N5BlockWriter(root, blockSize, true, queue, 1, 2);
+		final Img<FloatType> image0 = createImage(new FloatType(), size, 0);
+		final Img<FloatType> image1 =
+			createImage(new FloatType(), new long[] { 10, 9, 3 }, 1);
+
+		writeBlocks(level0, image0, 1);
+		writeBlocks(level1, image1, 1);
+		level0.close();
+		level1.close();
+		queue.shutdown();
+
+		assertDataset(root, N5BlockWriter.getDatasetPath(1, 1, 0), image0,
+			"float32", "gzip");
+		assertDataset(root, N5BlockWriter.getDatasetPath(1, 1, 1), image1,
+			"float32", "gzip");
+
+		delete(root);
+	}
+
+	/**
+	 * Updating writes only the first block again, the dataset keeps its size and
+	 * the setup its attributes
+	 */
+	@Test
+	public void testUpdate() throws IOException {
+		final long[] size = { 20, 18, 5 };
+		final File root = createRoot();
+		final Img<FloatType> image = createImage(new FloatType(), size, 0);
+
+		final N5BlockWriter writer = new N5BlockWriter(root, blockSize, true, 1);
+		writeBlocks(writer, image, 1);
+		writer.close();
+
+		final File setup = new File(root, "setup0/attributes.json");
+		final String setupAttributes = readText(setup);
+		setup.setLastModified(0);
+
+		final Img<FloatType> block =
+			createImage(new FloatType(), new long[] { 8, 8, 4 }, 1);
+		copy(block, image);
+
+		final N5BlockWriter update = new N5BlockWriter(root, blockSize, true, 1);
+		update.startUpdate(size);
+		update.write(block, new long[3], 1, 1);
+		update.close();
+
+		assertDataset(root, N5BlockWriter.getDatasetPath(1, 1, 0), image,
+			"float32", "gzip");
+		assertEquals(setupAttributes, readText(setup));
+		assertEquals(0, setup.lastModified());
+
+		delete(root);
+	}
+
+	@Test(expected = IOException.class)
+	public void testUpdatePyramid() throws IOException {
+		final File root = createRoot();
+
+		try {
+			final N5BlockWriter.WriteQueue queue =
+				new N5BlockWriter.WriteQueue(1, Long.MAX_VALUE);
+			final N5BlockWriter level1 =
+				new N5BlockWriter(root, blockSize, true, queue, 1, 2);
+			writeBlocks(level1, createImage(new FloatType(), new long[] { 10, 9, 3 },
+				0), 1);
+			level1.close();
+			queue.shutdown();
+
+			new N5BlockWriter(root, blockSize, true, 1).startUpdate(new long[] { 20,
+				18, 5 });
+		}
+		finally {
+			delete(root);
+		}
+	}
+
+	/**
+	 * Copies the block into the origin of the image
+	 */
+	private static void copy(final Img<FloatType> block,
+		final Img<FloatType> image)
+	{
+		final Cursor<FloatType> c = block.localizingCursor();
+		final RandomAccess<FloatType> ra = image.randomAccess();
+
+		while (c.hasNext()) {
+			c.fwd();
+			ra.setPosition(c);
+			ra.get().set(c.get());
+		}
+	}
+
+	/**
+	 * Reads the attributes and every chunk of the dataset and compares it to the
+	 * expected image
+	 */
+	private static <T extends RealType<T> & NativeType<T>> void assertDataset(
+		final File root, final String dataset, final Img<T> expected,
+		final String dataType, final String compression) throws IOException
+	{
+		final int n = expected.numDimensions();
+		final String attributes = readText(new File(root, dataset +
+			"/attributes.json"));
+
+		final long[] dimensions = new long[n];
+		expected.dimensions(dimensions);
+
+		assertArrayEquals(dimensions, parseArray(attributes, "dimensions"));
+		assertArrayEquals(new long[] { blockSize[0], blockSize[1], blockSize[2] },
+			parseArray(attributes, "blockSize"));
+		assertTrue(attributes.contains("\"dataType\":\"" + dataType + "\""));
+		assertTrue(attributes.contains("\"type\":\"" + compression + "\""));
+
+		final RandomAccess<T> ra = expected.randomAccess();
+		final long[] position = new long[n];
+		int numPixels = 0;
+
+		for (int gz = 0; gz * blockSize[2] < dimensions[2]; gz++) {
+			for (int gy = 0; gy * blockSize[1] < dimensions[1]; gy++) {
+				for (int gx = 0; gx * blockSize[0] < dimensions[0]; gx++) {
+					final File chunk =
+						new File(root, dataset + "/" + gx + "/" + gy + "/" + gz);
+					final DataInputStream in =
+						new DataInputStream(new FileInputStream(chunk));
+
+					try {
+						assertEquals(0, in.readShort());
+						assertEquals(n, in.readShort());
+
+						final int[] chunkSize = new int[n];
+						for (int d = 0; d < n; d++) {
+							chunkSize[d] = in.readInt();
+						}
+
+						assertEquals(Math.min(blockSize[0], dimensions[0] - gx *
+							blockSize[0]), chunkSize[0]);
+						assertEquals(Math.min(blockSize[1], dimensions[1] - gy *
+							blockSize[1]), chunkSize[1]);
+						assertEquals(Math.min(blockSize[2], dimensions[2] - gz *
+							blockSize[2]), chunkSize[2]);
+
+						final InputStream data =
+							compression.equals("gzip") ? new GZIPInputStream(in) : in;
+						final DataInputStream pixels = new DataInputStream(data);
+
+						// x is the fastest dimension
+						for (int z = 0; z < chunkSize[2]; z++) {
+							for (int y = 0; y < chunkSize[1]; y++) {
+								for (int x = 0; x < chunkSize[0]; x++) {
+									position[0] = gx * blockSize[0] + x;
+									position[1] = gy * blockSize[1] + y;
+									position[2] = gz * blockSize[2] + z;
+									ra.setPosition(position);
+
+									final float value =
+										dataType.equals("float32") ? pixels.readFloat() : pixels
+											.readUnsignedShort();
+
+									assertEquals(ra.get().getRealFloat(), value, 0);
+									numPixels++;
+								}
+							}
+						}
+
+						assertEquals(-1, pixels.read());
+					}
+					finally {
+						in.close();
+					}
+				}
+			}
+		}
+
+		assertEquals(expected.size(), numPixels);
+	}
+
+	/**
+	 * Writes the image as blocks of the chunk size
+	 */
+	private static <T extends RealType<T> & NativeType<T>> void writeBlocks(
+		final N5BlockWriter writer, final Img<T> image, final int c)
+		throws IOException
+	{
+		final int n = image.numDimensions();
+		final long[] min = new long[n];
+		final long[] size = new long[n];
+
+		for (min[2] = 0; min[2] < image.dimension(2); min[2] += blockSize[2]) {
+			for (min[1] = 0; min[1] < image.dimension(1); min[1] += blockSize[1]) {
+				for (min[0] = 0; min[0] < image.dimension(0); min[0] += blockSize[0])
+				{
+					for (int d = 0; d < n; d++) {
+						size[d] = Math.min(blockSize[d], image.dimension(d) - min[d]);
+					}
+
+					final Img<T> block =
+						image.factory().create(size, image.firstElement()
+							.createVariable());
+					final RandomAccess<T> in = image.randomAccess();
+					final Cursor<T> out = block.localizingCursor();
+
+					while (out.hasNext()) {
+						out.fwd();
+
+						for (int d = 0; d < n; d++) {
+							in.setPosition(min[d] + out.getLongPosition(d), d);
+						}
+
+						out.get().set(in.get());
+					}
+
+					writer.write(block, min.clone(), 1, c);
+				}
+			}
+		}
+	}
+
+	private static <T extends RealType<T> & NativeType<T>> Img<T> createImage(
+		final T type, final long[] size, final int seed)
+	{
+		final Img<T> img = new ArrayImgFactory<T>().create(size, type);
+		final Cursor<T> c = img.localizingCursor();
+
+		while (c.hasNext()) {
+			c.fwd();
+			c.get().setReal((c.getIntPosition(0) * 7 + c.getIntPosition(1) * 13 +
+				c.getIntPosition(2) * 29 + seed * 101) % 251);
+		}
+
+		return img;
+	}
+
+	private static File createRoot() throws IOException {
+		final File root = File.createTempFile("fused", ".n5");
+		root.delete();
+
+		return root;
+	}
+
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	private static long[] parseArray(final String json, final String key) {
+		final Matcher m =
+			Pattern.compile("\"" + key + "\":\\[([0-9,]*)\\]").matcher(json);
+
+		assertTrue(m.find());
+
+		final String[] values = m.group(1).split(",");
+		final long[] array = new long[values.length];
+
+		for (int i = 0; i < values.length; i++) {
+			array[i] = Long.parseLong(values[i]);
+		}
+
+		return array;
+	}
+
+	private static String readText(final File file) throws IOException {
+		final Scanner scanner = new Scanner(file, "UTF-8");
+
+		try {
+			return scanner.useDelimiter("\\A").next();
+		}
+		finally {
+			scanner.close();
+		}
+	}
+}
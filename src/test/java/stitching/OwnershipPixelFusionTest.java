@@ -0,0 +1,101 @@
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mpicbg.stitching.fusion.ClassifiedRegion;
+import mpicbg.stitching.fusion.ImageInterpolation;
+import mpicbg.stitching.fusion.Interval;
+import mpicbg.stitching.fusion.OwnershipPixelFusion;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link OwnershipPixelFusion}: two 100x50 images, the second
+ * one is translated by 80 pixels in x, so the seam is at x = 89.5.
+ */
+public class OwnershipPixelFusionTest {
+
+	private static final double[][] translations = { { 0, 0 }, { 80, 0 } };
+	private static final double[] offset = { 0, 0 };
+
+	@Test
+	public void testClosestImage() {
+		final OwnershipPixelFusion fusion = createFusion();
+
+		// x = 85 in both images
+		fusion.clear();
+		fusion.addValue(1, 0, new double[] { 85, 10 });
+		fusion.addValue(2, 1, new double[] { 5, 10 });
+		assertEquals(1, fusion.getValue(), 0);
+
+		// x = 95, added in the other order
+		fusion.clear();
+		fusion.addValue(2, 1, new double[] { 15, 10 });
+		fusion.addValue(1, 0, new double[] { 95, 10 });
+		assertEquals(2, fusion.getValue(), 0);
+	}
+
+	@Test
+	public void testAssignOwners() {
+		final OwnershipPixelFusion fusion = createFusion();
+
+		final ClassifiedRegion left = region(80, 89, 0, 49, 0, 1);
+		final ClassifiedRegion right = region(90, 99, 0, 49, 0, 1);
+		final ClassifiedRegion mixed = region(80, 99, 0, 49, 0, 1);
+		final ClassifiedRegion single = region(0, 79, 0, 49, 0);
+
+		final List<ClassifiedRegion> assigned =
+			fusion.assignOwners(Arrays.asList(left, right, mixed, single), offset,
+				translations);
+
+		assertArrayEquals(new int[] { 0 }, assigned.get(0).classArray());
+		assertArrayEquals(new int[] { 1 }, assigned.get(1).classArray());
+		assertEquals(80, assigned.get(0).get(0).min());
+		assertEquals(89, assigned.get(0).get(0).max());
+
+		// the seam runs through it, each pixel is assigned by the kernel
+		assertSame(mixed, assigned.get(2));
+		assertSame(single, assigned.get(3));
+
+		// no translations, no assignment
+		final double[][] affine = { translations[0], null };
+		assertSame(left, fusion.assignOwners(Arrays.asList(left), offset, affine)
+			.get(0));
+	}
+
+	private static OwnershipPixelFusion createFusion() {
+		final ArrayList<ImageInterpolation<FloatType>> images =
+			new ArrayList<ImageInterpolation<FloatType>>();
+
+		for (int i = 0; i < 2; i++) {
+			images.add(new ImageInterpolation<FloatType>(
+				new ArrayImgFactory<FloatType>().create(new long[] { 100, 50 },
+					new FloatType()), new NearestNeighborInterpolatorFactory<FloatType>(),
+				false));
+		}
+
+		return new OwnershipPixelFusion(images);
+	}
+
+	private static ClassifiedRegion region(final int x0, final int x1,
+		final int y0, final int y1, final int... classes)
+	{
+		final ClassifiedRegion r =
+			new ClassifiedRegion(new Interval(x0, x1), new Interval(y0, y1));
+
+		for (final int c : classes) {
+			r.addClass(c);
+		}
+
+		return r;
+	}
+}
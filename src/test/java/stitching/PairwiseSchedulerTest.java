@@ -0,0 +1,173 @@
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mpicbg.stitching.FourierTransformCache;
+import mpicbg.stitching.PairwiseScheduler;
+
+import org.junit.Test;
+
+/**
+ * Tests that the {@link PairwiseScheduler} processes every pair exactly once,
+ * the most expensive ones first, within the memory budget.
+ */
+public class PairwiseSchedulerTest {
+
+	private static final double[] costs = { 1, 8, 3, 8, 5, 2 };
+
+	@Test
+	public void testLargestFirst() {
+		final List<Integer> processed =
+			Collections.synchronizedList(new ArrayList<Integer>());
+
+		new PairwiseScheduler(1).run(costs, new PairwiseScheduler.PairTask() {
+
+			@Override
+			public boolean process(final int pair) {
+				processed.add(pair);
+				return true;
+			}
+		});
+
+		assertEquals(6, processed.size());
+		assertEquals(1, (int) processed.get(0));
+		assertEquals(3, (int) processed.get(1));
+		assertEquals(4, (int) processed.get(2));
+		assertEquals(0, (int) processed.get(5));
+	}
+
+	@Test
+	public void testAllPairsOnce() {
+		final double[] manyCosts = new double[100];
+		for (int i = 0; i < manyCosts.length; i++) {
+			manyCosts[i] = i % 7;
+		}
+
+		final AtomicIntegerArray count = new AtomicIntegerArray(manyCosts.length);
+
+		final PairwiseScheduler.Statistics statistics =
+			new PairwiseScheduler(4).run(manyCosts, new PairwiseScheduler.PairTask() {
+
+				@Override
+				public boolean process(final int pair) {
+					count.incrementAndGet(pair);
+					return true;
+				}
+			});
+
+		for (int i = 0; i < manyCosts.length; i++) {
+			assertEquals(1, count.get(i));
+		}
+
+		int numPairs = 0;
+		for (int w = 0; w < statistics.numWorkers(); w++) {
+			numPairs += statistics.getNumPairs(w);
+		}
+
+		assertEquals(100, numPairs);
+		assertTrue(statistics.getImbalance() >= 1);
+	}
+
+	@Test
+	public void testMemoryBudget() {
+		// pair 1 is larger than the budget, it runs alone
+		final long[] bytes = { 10, 150, 60, 50, 40, 30 };
+		final AtomicLong used = new AtomicLong(), peak = new AtomicLong();
+		final AtomicIntegerArray count = new AtomicIntegerArray(bytes.length);
+
+		final PairwiseScheduler.Statistics statistics =
+			new PairwiseScheduler(4, 100).run(costs, bytes,
+				new PairwiseScheduler.PairTask() {
+
+					@Override
+					public boolean process(final int pair) {
+						final long u = used.addAndGet(bytes[pair]);
+
+						synchronized (peak) {
+							peak.set(Math.max(peak.get(), u));
+						}
+
+						count.incrementAndGet(pair);
+
+						try {
+							Thread.sleep(10);
+						}
+						catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+
+						used.addAndGet(-bytes[pair]);
+						return true;
+					}
+				});
+
+		for (int i = 0; i < bytes.length; i++) {
+			assertEquals(1, count.get(i));
+		}
+
+		assertEquals(150, peak.get());
+		assertEquals(150, statistics.getPeakBytes());
+	}
+
+	@Test
+	public void testFillWithSmallerPairs() {
+		// several of them fit at once, but never more than the budget
+		final long[] onlySmall = { 10, 5, 60, 50, 40, 30 };
+
+		final AtomicLong used = new AtomicLong(), peak = new AtomicLong();
+
+		new PairwiseScheduler(4, 100).run(costs, onlySmall,
+			new PairwiseScheduler.PairTask() {
+
+				@Override
+				public boolean process(final int pair) {
+					final long u = used.addAndGet(onlySmall[pair]);
+
+					synchronized (peak) {
+						peak.set(Math.max(peak.get(), u));
+					}
+
+					try {
+						Thread.sleep(10);
+					}
+					catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+
+					used.addAndGet(-onlySmall[pair]);
+					return true;
+				}
+			});
+
+		assertTrue(peak.get() <= 100);
+	}
+
+	@Test
+	public void testCacheBudget() {
+		assertTrue(PairwiseScheduler.getDefaultBudget(null) > 0);
+
+		// a cache that may fill the whole heap leaves nothing for the pairs
+		assertEquals(0, PairwiseScheduler.getDefaultBudget(new FourierTransformCache(
+			Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testHistogram() {
+		final long ms = 1000000;
+		final PairwiseScheduler.Statistics statistics =
+			new PairwiseScheduler.Statistics(10 * ms, new long[] { ms / 2, ms, 3 * ms,
+				3 * ms, 7 * ms }, new long[] { 10 * ms, 5 * ms }, new int[] { 3, 2 });
+
+		// < 1, 1-2, 2-4, 4-8 ms
+		assertArrayEquals(new int[] { 1, 1, 2, 1 }, statistics.getHistogram());
+		assertEquals(4.0 / 3.0, statistics.getImbalance(), 1e-9);
+	}
+}
@@ -0,0 +1,64 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import mpicbg.stitching.ParallelismPolicy;
+
+import org.junit.Test;
+
+/**
+ * Tests how the {@link ParallelismPolicy} splits the processors between pairs
+ * and Fourier transforms.
+ */
+public class ParallelismPolicyTest {
+
+	private static final double large = 1e9, small = 1e4;
+
+	@Test
+	public void testManySmallPairs() {
+		final double[] costs = new double[100];
+		Arrays.fill(costs, small);
+
+		final ParallelismPolicy policy = ParallelismPolicy.decide(costs, 16);
+
+		assertEquals(16, policy.getPairThreads());
+		assertEquals(1, policy.getFFTThreads());
+
+		// less pairs than processors
+		assertEquals(3, ParallelismPolicy.decide(new double[] { small, small,
+			small }, 16).getPairThreads());
+	}
+
+	@Test
+	public void testFewLargePairs() {
+		final ParallelismPolicy policy =
+			ParallelismPolicy.decide(new double[] { large, large }, 16);
+
+		assertEquals(2, policy.getPairThreads());
+		assertEquals(8, policy.getFFTThreads());
+	}
+
+	@Test
+	public void testOneDominatingPair() {
+		// the large pair takes longer than all others together
+		final ParallelismPolicy policy =
+			ParallelismPolicy.decide(new double[] { large, large / 10, large / 10,
+				large / 10, large / 10 }, 16);
+
+		assertEquals(1, policy.getPairThreads());
+		assertEquals(16, policy.getFFTThreads());
+	}
+
+	@Test
+	public void testSingleThreadedFFT() {
+		// large pairs that cannot be transformed multithreaded run in parallel
+		final ParallelismPolicy policy =
+			ParallelismPolicy.decide(new double[] { large, large / 10, large / 10,
+				large / 10, large / 10 }, 16, false);
+
+		assertEquals(5, policy.getPairThreads());
+		assertEquals(1, policy.getFFTThreads());
+	}
+}
@@ -0,0 +1,287 @@
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import mpicbg.stitching.fusion.BlockWriter;
+import mpicbg.stitching.fusion.PyramidBlockWriter;
+import mpicbg.stitching.fusion.StreamingFusion;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests that the {@link PyramidBlockWriter} writes every coarser block with its
+ * final size as soon as its last finer block arrives, and that the levels equal
+ * the downsampled fused image.
+ */
+public class PyramidBlockWriterTest {
+
+	private static final int[] blockSize = { 4, 4 };
+
+	/**
+	 * A size that is not a multiple of the block size, the blocks at the border
+	 * are smaller on every level.
+	 */
+	@Test
+	public void testBorder() throws Exception {
+		final Img<FloatType> image = createImage(10, 6);
+		final List<Recorder> levels = write(image, 3, true);
+
+		// 10x6 -> 5x3 -> 3x2
+		assertLevel(levels.get(0), image);
+		assertLevel(levels.get(1), PyramidBlockWriter.downsample(image));
+		assertLevel(levels.get(2), PyramidBlockWriter.downsample(PyramidBlockWriter
+			.downsample(image)));
+
+		assertEquals(2, levels.get(1).blocks.size());
+		assertEquals(1, levels.get(2).blocks.size());
+	}
+
+	/**
+	 * A size that is an exact multiple of the block size, all coarser blocks are
+	 * complete before the writer is closed.
+	 */
+	@Test
+	public void testMultipleOfBlockSize() throws Exception {
+		final Img<FloatType> image = createImage(16, 8);
+		final List<Recorder> levels = write(image, 3, true);
+
+		for (final Recorder level : levels) {
+			assertTrue(level.blocksBeforeClose == level.blocks.size());
+		}
+
+		assertLevel(levels.get(1), PyramidBlockWriter.downsample(image));
+		assertLevel(levels.get(2), PyramidBlockWriter.downsample(PyramidBlockWriter
+			.downsample(image)));
+	}
+
+	/**
+	 * Blocks in row order give the same pyramid, they just stay in memory longer.
+	 */
+	@Test
+	public void testRowOrder() throws Exception {
+		final Img<FloatType> image = createImage(20, 12);
+		final List<Recorder> levels = write(image, 2, false);
+
+		for (final Recorder level : levels) {
+			assertTrue(level.blocksBeforeClose == level.blocks.size());
+		}
+
+		assertLevel(levels.get(1), PyramidBlockWriter.downsample(image));
+	}
+
+	/**
+	 * The Z-order visits every block once, the 2x2 blocks of a coarser block
+	 * follow each other.
+	 */
+	@Test
+	public void testBlockOrder() {
+		final int[] numBlocks = { 5, 3 };
+		final ArrayList<int[]> order = StreamingFusion.getBlockOrder(numBlocks);
+
+		assertEquals(15, order.size());
+
+		final Set<String> visited = new HashSet<String>();
+		final Set<String> finished = new HashSet<String>();
+		String current = null;
+
+		for (final int[] block : order) {
+			assertTrue(block[0] < numBlocks[0] && block[1] < numBlocks[1]);
+			assertTrue(visited.add(block[0] + "," + block[1]));
+
+			// once another coarser block starts, the previous one does not come back
+			final String parent = block[0] / 2 + "," + block[1] / 2;
+
+			if (!parent.equals(current)) {
+				assertTrue(finished.add(parent));
+				current = parent;
+			}
+		}
+	}
+
+	/**
+	 * Writes the image blockwise into a pyramid and checks that at most one
+	 * coarser block per level waits for finer blocks if they arrive in Z-order
+	 */
+	private static List<Recorder> write(final Img<FloatType> image,
+		final int numLevels, final boolean zOrder) throws Exception
+	{
+		final int[] size = { (int) image.dimension(0), (int) image.dimension(1) };
+		final int[] numBlocks = new int[2];
+
+		for (int d = 0; d < 2; d++) {
+			numBlocks[d] = (size[d] + blockSize[d] - 1) / blockSize[d];
+		}
+
+		final List<Recorder> levels = new ArrayList<Recorder>();
+		for (int level = 0; level < numLevels; level++) {
+			levels.add(new Recorder());
+		}
+
+		final PyramidBlockWriter writer =
+			new PyramidBlockWriter(levels, blockSize, size);
+
+		final List<int[]> order;
+
+		if (zOrder) {
+			order = StreamingFusion.getBlockOrder(numBlocks);
+		}
+		else {
+			order = new ArrayList<int[]>();
+
+			for (int y = 0; y < numBlocks[1]; y++) {
+				for (int x = 0; x < numBlocks[0]; x++) {
+					order.add(new int[] { x, y });
+				}
+			}
+		}
+
+		for (final int[] block : order) {
+			final long[] min = new long[2];
+			final long[] max = new long[2];
+
+			for (int d = 0; d < 2; d++) {
+				min[d] = block[d] * blockSize[d];
+				max[d] = Math.min(size[d], min[d] + blockSize[d]) - 1;
+			}
+
+			writer.write(copy(image, min, max), min, 1, 1);
+
+			if (zOrder) {
+				assertTrue(writer.numPendingBlocks() <= numLevels - 1);
+			}
+		}
+
+		for (final Recorder level : levels) {
+			level.blocksBeforeClose = level.blocks.size();
+		}
+
+		writer.close();
+
+		for (final Recorder level : levels) {
+			assertTrue(level.closed);
+		}
+
+		return levels;
+	}
+
+	/**
+	 * Assembles the blocks of one level and compares them to the expected image,
+	 * the blocks must exactly cover it.
+	 */
+	private static void assertLevel(final Recorder level,
+		final Img<FloatType> expected)
+	{
+		final float[][] assembled =
+			new float[(int) expected.dimension(1)][(int) expected.dimension(0)];
+		final int[][] count =
+			new int[(int) expected.dimension(1)][(int) expected.dimension(0)];
+
+		for (int i = 0; i < level.blocks.size(); i++) {
+			final Img<FloatType> block = level.blocks.get(i);
+			final long[] min = level.mins.get(i);
+
+			assertEquals(0, min[0] % blockSize[0]);
+			assertEquals(0, min[1] % blockSize[1]);
+			assertTrue(block.dimension(0) <= blockSize[0]);
+			assertTrue(block.dimension(1) <= blockSize[1]);
+
+			final Cursor<FloatType> c = block.localizingCursor();
+
+			while (c.hasNext()) {
+				c.fwd();
+
+				final int x = (int) (min[0] + c.getLongPosition(0));
+				final int y = (int) (min[1] + c.getLongPosition(1));
+
+				assembled[y][x] = c.get().get();
+				count[y][x]++;
+			}
+		}
+
+		final RandomAccess<FloatType> ra = expected.randomAccess();
+
+		for (int y = 0; y < expected.dimension(1); y++) {
+			for (int x = 0; x < expected.dimension(0); x++) {
+				ra.setPosition(new int[] { x, y });
+
+				assertEquals(1, count[y][x]);
+				assertEquals(ra.get().get(), assembled[y][x], 0.0001);
+			}
+		}
+	}
+
+	private static Img<FloatType> createImage(final int width, final int height)
+	{
+		final Img<FloatType> img =
+			new ArrayImgFactory<FloatType>().create(new long[] { width, height },
+				new FloatType());
+		final Cursor<FloatType> c = img.localizingCursor();
+
+		while (c.hasNext()) {
+			c.fwd();
+			c.get().set(c.getIntPosition(0) * 3 + c.getIntPosition(1) * 17 % 11);
+		}
+
+		return img;
+	}
+
+	private static Img<FloatType> copy(final Img<FloatType> img,
+		final long[] min, final long[] max)
+	{
+		final long[] size = { max[0] - min[0] + 1, max[1] - min[1] + 1 };
+		final Img<FloatType> block =
+			img.factory().create(size, new FloatType());
+		final RandomAccess<FloatType> in = img.randomAccess();
+		final Cursor<FloatType> out = block.localizingCursor();
+
+		while (out.hasNext()) {
+			out.fwd();
+			in.setPosition(min[0] + out.getLongPosition(0), 0);
+			in.setPosition(min[1] + out.getLongPosition(1), 1);
+			out.get().set(in.get());
+		}
+
+		return block;
+	}
+
+	/**
+	 * Keeps all blocks of one level
+	 */
+	private static class Recorder implements BlockWriter {
+
+		final List<Img<FloatType>> blocks = new ArrayList<Img<FloatType>>();
+		final List<long[]> mins = new ArrayList<long[]>();
+		int blocksBeforeClose = -1;
+		boolean closed = false;
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T extends RealType<T> & NativeType<T>> void write(
+			final Img<T> block, final long[] min, final int t, final int c)
+		{
+			assertArrayEquals(new int[] { 1, 1 }, new int[] { t, c });
+
+			blocks.add((Img<FloatType>) (Object) block);
+			mins.add(min.clone());
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
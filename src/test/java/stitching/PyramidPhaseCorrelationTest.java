@@ -0,0 +1,96 @@
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import mpicbg.stitching.CachedPhaseCorrelation;
+import mpicbg.stitching.FourierTransformCache;
+import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.PyramidPhaseCorrelation;
+
+import org.junit.Test;
+
+/**
+ * Tests that the coarse-to-fine {@link PyramidPhaseCorrelation} finds the same
+ * shift as the full resolution phase correlation.
+ */
+public class PyramidPhaseCorrelationTest {
+
+	private static final int width = 600, height = 400;
+
+	@Test
+	public void testDownsample() {
+		final float[] image = { 1, 3, 5, 7, 9, 2, 4, 6, 8, 10 };
+
+		// the last column is ignored
+		assertArrayEquals(new float[] { 2.5f, 6.5f }, PyramidPhaseCorrelation
+			.downsample(image, new int[] { 5, 2 }, new int[] { 2, 2 }), 0);
+
+		assertArrayEquals(new int[] { 4, 1 }, PyramidPhaseCorrelation
+			.getDownsampling(new int[] { 400, 100 }, new int[] { 300, 200 }));
+	}
+
+	@Test
+	public void testSameAsFullResolution() {
+		final float[] image = TestImages.createImage(width, height, 300, 17);
+		final int[] size = { 400, 300 };
+
+		final float[] tile1 =
+			TestImages.crop(image, width, 0, 0, size[0], size[1]);
+		final float[] tile2 =
+			TestImages.crop(image, width, 137, 53, size[0], size[1]);
+
+		final PairWiseStitchingResult pyramid =
+			PyramidPhaseCorrelation.compute(tile1, size, tile2, size, 5, false);
+
+		assertNotNull(pyramid);
+		assertEquals(137, pyramid.getOffset(0), 0);
+		assertEquals(53, pyramid.getOffset(1), 0);
+
+		final int[] paddedSize = FourierTransformCache.getPaddedSize(size, size);
+		final float[] pcm =
+			CachedPhaseCorrelation.getPhaseCorrelationMatrix(FourierTransformCache
+				.computeSpectrum(tile1, size, paddedSize), FourierTransformCache
+				.computeSpectrum(tile2, size, paddedSize), paddedSize);
+		final PairWiseStitchingResult full =
+			CachedPhaseCorrelation.compute(tile1, size, tile2, size, pcm, paddedSize,
+				5, false);
+
+		assertArrayEquals(full.getOffset(), pyramid.getOffset(), 0);
+		assertEquals(full.getCrossCorrelation(), pyramid.getCrossCorrelation(),
+			1e-6);
+		assertTrue(pyramid.getCrossCorrelation() > 0.99);
+	}
+
+	/**
+	 * A refined shift whose cross correlation is lower than the coarse one by
+	 * more than the tolerance falls back to full resolution
+	 */
+	@Test
+	public void testRejectLowCorrelation() {
+		final float[] image = TestImages.createImage(width, height, 300, 17);
+		final int[] size = { 400, 300 };
+
+		final float[] tile1 =
+			TestImages.crop(image, width, 0, 0, size[0], size[1]);
+		final float[] tile2 =
+			TestImages.crop(image, width, 137, 53, size[0], size[1]);
+
+		final double maxCorrelationLoss =
+			PyramidPhaseCorrelation.maxCorrelationLoss;
+
+		try {
+			// no cross correlation is higher than the coarse one plus one
+			PyramidPhaseCorrelation.maxCorrelationLoss = -1;
+
+			assertNull(PyramidPhaseCorrelation.compute(tile1, size, tile2, size, 5,
+				false));
+		}
+		finally {
+			PyramidPhaseCorrelation.maxCorrelationLoss = maxCorrelationLoss;
+		}
+	}
+}
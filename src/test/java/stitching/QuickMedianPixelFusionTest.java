@@ -0,0 +1,90 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import mpicbg.stitching.fusion.MedianPixelFusion;
+import mpicbg.stitching.fusion.MedianPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.PixelFusion;
+import mpicbg.stitching.fusion.QuickMedianPixelFusion;
+import mpicbg.stitching.fusion.QuickMedianPixelFusionIgnoreZero;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link QuickMedianPixelFusion} computes the same values as
+ * {@link MedianPixelFusion}.
+ */
+public class QuickMedianPixelFusionTest {
+
+	/**
+	 * Random values, odd and even counts, small and large overlaps.
+	 */
+	@Test
+	public void testSameAsMedianPixelFusion() {
+		final Random rnd = new Random(123);
+
+		// start too small so that the array has to grow
+		final PixelFusion quick = new QuickMedianPixelFusion(2);
+		final PixelFusion median = new MedianPixelFusion();
+
+		for (int i = 0; i < 10000; i++) {
+			final int n = rnd.nextInt(40);
+			quick.clear();
+			median.clear();
+
+			for (int j = 0; j < n; j++) {
+				// few distinct values to get many duplicates
+				final double value = i % 2 == 0 ? rnd.nextInt(5) : rnd.nextGaussian() * 1000;
+				quick.addValue(value, j, null);
+				median.addValue(value, j, null);
+			}
+
+			assertEquals("n=" + n, median.getValue(), quick.getValue(), 0);
+		}
+	}
+
+	/**
+	 * Zero values must not contribute.
+	 */
+	@Test
+	public void testIgnoreZero() {
+		final Random rnd = new Random(321);
+
+		final PixelFusion quick = new QuickMedianPixelFusionIgnoreZero(8);
+		final PixelFusion median = new MedianPixelFusionIgnoreZero();
+
+		for (int i = 0; i < 10000; i++) {
+			final int n = rnd.nextInt(20);
+			quick.clear();
+			median.clear();
+
+			for (int j = 0; j < n; j++) {
+				final double value = rnd.nextInt(3);
+				quick.addValue(value, j, null);
+				median.addValue(value, j, null);
+			}
+
+			assertEquals("n=" + n, median.getValue(), quick.getValue(), 0);
+		}
+	}
+
+	/**
+	 * NaN is ordered like {@link Double#compareTo(Double)} does it.
+	 */
+	@Test
+	public void testNaN() {
+		final double[] values = { 3, Double.NaN, 1, 2, Double.NaN };
+
+		final PixelFusion quick = new QuickMedianPixelFusion(5);
+		final PixelFusion median = new MedianPixelFusion();
+
+		for (final double v : values) {
+			quick.addValue(v, 0, null);
+			median.addValue(v, 0, null);
+		}
+
+		assertEquals(median.getValue(), quick.getValue(), 0);
+	}
+}
@@ -0,0 +1,66 @@
+package stitching;
+
+import java.util.List;
+
+import mpicbg.stitching.fusion.ClassifiedRegion;
+import mpicbg.stitching.fusion.RegionDecomposition;
+
+/**
+ * Measures how the time of the {@link RegionDecomposition} grows with the
+ * number of tiles of 2d and 3d grids, with and without the spatial index. Run
+ * it as a Java application, the time per tile (and per resulting region) should
+ * stay about constant when the spatial index is used.
+ */
+public class RegionDecompositionBenchmark {
+
+	/**
+	 * decompositions with more regions than this are not repeated without the
+	 * index, it is quadratic in the number of regions
+	 */
+	static int maxBruteForceRegions = 25000;
+
+	private static final String HEADER =
+		"tiles\tregions\tindexed [ms]\tper tile [us]\tper region [us]\tbrute force [ms]";
+
+	public static void main(final String... args) {
+		System.out.println("2d grids, 1024x1024 px tiles, 10% overlap");
+		System.out.println(HEADER);
+
+		for (int size = 8; size <= 96; size *= 2) {
+			benchmark(new int[] { size, size }, new int[] { 1024, 1024 });
+			benchmark(new int[] { size + size / 2, size + size / 2 }, new int[] { 1024, 1024 });
+		}
+
+		System.out.println();
+		System.out.println("3d grids, 512x512x128 px tiles, 10% overlap");
+		System.out.println(HEADER);
+
+		for (int size = 4; size <= 12; size += 2) {
+			benchmark(new int[] { size, size, size / 2 }, new int[] { 512, 512, 128 });
+		}
+	}
+
+	private static void benchmark(final int[] numTiles, final int[] tileSize) {
+		final List<ClassifiedRegion> tiles =
+			RegionDecompositionTest.grid(numTiles, tileSize, 0.1, 10, 4711);
+
+		// warm up
+		RegionDecomposition.decompose(tiles, true);
+
+		long t = System.nanoTime();
+		final int numRegions = RegionDecomposition.decompose(tiles, true).size();
+		final double indexed = (System.nanoTime() - t) / 1000000.0;
+
+		String bruteForce = "-";
+		if (numRegions <= maxBruteForceRegions) {
+			t = System.nanoTime();
+			RegionDecomposition.decompose(tiles, false);
+			bruteForce = String.format("%.1f", (System.nanoTime() - t) / 1000000.0);
+		}
+
+		System.out.println(tiles.size() + "\t" + numRegions + "\t" +
+			String.format("%.1f", indexed) + "\t\t" +
+			String.format("%.1f", indexed * 1000 / tiles.size()) + "\t\t" +
+			String.format("%.2f", indexed * 1000 / numRegions) + "\t\t" + bruteForce);
+	}
+}
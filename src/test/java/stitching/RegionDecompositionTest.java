@@ -0,0 +1,183 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.stitching.fusion.ClassifiedRegion;
+import mpicbg.stitching.fusion.Interval;
+import mpicbg.stitching.fusion.RegionDecomposition;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link RegionDecomposition} class.
+ */
+public class RegionDecompositionTest {
+
+	/**
+	 * Every pixel of a jittered 2d grid must be covered by exactly one region,
+	 * which is classified by exactly the tiles that contain the pixel.
+	 */
+	@Test
+	public void testDecomposition2D() {
+		final List<ClassifiedRegion> tiles = grid(new int[] { 5, 4 }, new int[] { 20, 16 }, 0.2, 3, 42);
+
+		assertDecomposition(tiles, RegionDecomposition.decompose(tiles, true));
+	}
+
+	/**
+	 * Same as {@link #testDecomposition2D()} for a 3d grid.
+	 */
+	@Test
+	public void testDecomposition3D() {
+		final List<ClassifiedRegion> tiles = grid(new int[] { 3, 3, 3 }, new int[] { 10, 12, 8 }, 0.25, 2, 17);
+
+		assertDecomposition(tiles, RegionDecomposition.decompose(tiles, true));
+	}
+
+	/**
+	 * The spatial index must not change which pixels belong to which classes.
+	 */
+	@Test
+	public void testSameAsWithoutIndex() {
+		final List<ClassifiedRegion> tiles = grid(new int[] { 6, 6 }, new int[] { 15, 15 }, 0.3, 4, 7);
+
+		final List<ClassifiedRegion> indexed = RegionDecomposition.decompose(tiles, true);
+		final List<ClassifiedRegion> bruteForce = RegionDecomposition.decompose(tiles, false);
+
+		assertEquals(numPixels(bruteForce), numPixels(indexed));
+		assertDecomposition(tiles, indexed);
+		assertDecomposition(tiles, bruteForce);
+	}
+
+	/**
+	 * Creates a grid of tiles with the given overlap and a random jitter of
+	 * their positions.
+	 */
+	static List<ClassifiedRegion> grid(final int[] numTiles, final int[] tileSize,
+		final double overlap, final int jitter, final long seed)
+	{
+		final Random rnd = new Random(seed);
+		final int n = numTiles.length;
+		final List<ClassifiedRegion> tiles = new ArrayList<ClassifiedRegion>();
+		final int[] pos = new int[n];
+
+		int total = 1;
+		for (int d = 0; d < n; d++) {
+			total *= numTiles[d];
+		}
+
+		for (int i = 0; i < total; i++) {
+			int tmp = i;
+			final ClassifiedRegion tile = new ClassifiedRegion(n);
+
+			for (int d = 0; d < n; d++) {
+				pos[d] = tmp % numTiles[d];
+				tmp /= numTiles[d];
+
+				final int min =
+					(int) Math.round(pos[d] * tileSize[d] * (1 - overlap)) +
+						rnd.nextInt(2 * jitter + 1) - jitter;
+				tile.set(new Interval(min, min + tileSize[d] - 1), d);
+			}
+
+			tile.addClass(i);
+			tiles.add(tile);
+		}
+
+		return tiles;
+	}
+
+	private static void assertDecomposition(final List<ClassifiedRegion> tiles,
+		final List<ClassifiedRegion> regions)
+	{
+		final int n = tiles.get(0).size();
+		final int[] min = new int[n];
+		final int[] max = new int[n];
+
+		Arrays.fill(min, Integer.MAX_VALUE);
+		Arrays.fill(max, Integer.MIN_VALUE);
+
+		for (final ClassifiedRegion tile : tiles) {
+			for (int d = 0; d < n; d++) {
+				min[d] = Math.min(min[d], tile.get(d).min());
+				max[d] = Math.max(max[d], tile.get(d).max());
+			}
+		}
+
+		final int[] pos = min.clone();
+		boolean done = false;
+
+		while (!done) {
+			final List<Integer> expected = new ArrayList<Integer>();
+			for (final ClassifiedRegion tile : tiles) {
+				if (contains(tile, pos)) {
+					expected.add(tile.classArray()[0]);
+				}
+			}
+
+			ClassifiedRegion match = null;
+			for (final ClassifiedRegion r : regions) {
+				if (contains(r, pos)) {
+					assertTrue("Overlapping regions at " + Arrays.toString(pos), match == null);
+					match = r;
+				}
+			}
+
+			if (expected.isEmpty()) {
+				assertTrue("Region outside of all tiles at " + Arrays.toString(pos), match == null);
+			}
+			else {
+				assertTrue("Pixel not covered at " + Arrays.toString(pos), match != null);
+
+				final int[] classes = match.classArray().clone();
+				Arrays.sort(classes);
+
+				final int[] expectedClasses = new int[expected.size()];
+				for (int i = 0; i < expectedClasses.length; i++) {
+					expectedClasses[i] = expected.get(i);
+				}
+				Arrays.sort(expectedClasses);
+
+				assertTrue("Wrong classes at " + Arrays.toString(pos), Arrays.equals(expectedClasses, classes));
+			}
+
+			done = true;
+			for (int d = 0; d < n && done; d++) {
+				if (pos[d] < max[d]) {
+					pos[d]++;
+					done = false;
+				}
+				else {
+					pos[d] = min[d];
+				}
+			}
+		}
+	}
+
+	private static boolean contains(final ClassifiedRegion r, final int[] pos) {
+		for (int d = 0; d < pos.length; d++) {
+			if (r.get(d).contains(pos[d]) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long numPixels(final List<ClassifiedRegion> regions) {
+		long sum = 0;
+		for (final ClassifiedRegion r : regions) {
+			long size = 1;
+			for (int d = 0; d < r.size(); d++) {
+				size *= r.get(d).max() - r.get(d).min() + 1;
+			}
+			sum += size;
+		}
+		return sum;
+	}
+}
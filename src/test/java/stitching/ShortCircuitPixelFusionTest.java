@@ -0,0 +1,72 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import mpicbg.stitching.fusion.MaxPixelFusion;
+import mpicbg.stitching.fusion.MinPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.OverlapFusion;
+import mpicbg.stitching.fusion.ShortCircuitPixelFusion;
+
+import org.junit.Test;
+
+/**
+ * Tests that the {@link ShortCircuitPixelFusion}s only report saturation when
+ * no further value can change the result.
+ */
+public class ShortCircuitPixelFusionTest {
+
+	private static final double[] position = new double[2];
+
+	@Test
+	public void testMax() {
+		final ShortCircuitPixelFusion fusion = new MaxPixelFusion(255);
+
+		fusion.addValue(10, 0, position);
+		assertFalse(fusion.isSaturated());
+		fusion.addValue(255, 1, position);
+		assertTrue(fusion.isSaturated());
+		assertEquals(255, fusion.getValue(), 0);
+
+		// a copy has the same saturation, but no value yet
+		final ShortCircuitPixelFusion copy = (ShortCircuitPixelFusion) fusion.copy();
+		assertFalse(copy.isSaturated());
+		copy.addValue(255, 0, position);
+		assertTrue(copy.isSaturated());
+
+		fusion.clear();
+		assertFalse(fusion.isSaturated());
+	}
+
+	@Test
+	public void testMinIgnoreZero() {
+		final ShortCircuitPixelFusion fusion = new MinPixelFusionIgnoreZero(0);
+
+		// zeros are ignored, so the minimum never reaches 0
+		fusion.addValue(0, 0, position);
+		fusion.addValue(1, 1, position);
+		assertFalse(fusion.isSaturated());
+		assertEquals(1, fusion.getValue(), 0);
+	}
+
+	@Test
+	public void testOverlap() {
+		final double[] values = { 3, 7, 5 };
+
+		final OverlapFusion all = new OverlapFusion();
+		for (int i = 0; i < values.length; i++) {
+			all.addValue(values[i], i, position);
+		}
+
+		// added in reverse order, the first value is the result
+		final OverlapFusion shortCircuit = new OverlapFusion();
+		assertTrue(shortCircuit.isReverseOrder());
+
+		for (int i = values.length - 1; i >= 0 && !shortCircuit.isSaturated(); i--)
+		{
+			shortCircuit.addValue(values[i], i, position);
+		}
+
+		assertEquals(all.getValue(), shortCircuit.getValue(), 0);
+	}
+}
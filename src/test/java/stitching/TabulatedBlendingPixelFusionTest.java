@@ -0,0 +1,145 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.stitching.fusion.BlendingPixelFusion;
+import mpicbg.stitching.fusion.BlendingPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.ImageInterpolation;
+import mpicbg.stitching.fusion.PixelFusion;
+import mpicbg.stitching.fusion.TabulatedBlendingPixelFusion;
+import mpicbg.stitching.fusion.TabulatedBlendingPixelFusionIgnoreZero;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link TabulatedBlendingPixelFusion} computes exactly the same
+ * values as {@link BlendingPixelFusion}.
+ */
+public class TabulatedBlendingPixelFusionTest {
+
+	/**
+	 * Integer and subpixel translations, the local positions are computed like
+	 * the fusion does for every output pixel.
+	 */
+	@Test
+	public void testSameAsBlendingPixelFusion() {
+		final Random rnd = new Random(4711);
+
+		for (int i = 0; i < 20; i++) {
+			final long[][] dimensions = new long[3][];
+			final double[][] translations = new double[3][];
+			final double[] offset = new double[2];
+
+			for (int j = 0; j < dimensions.length; j++) {
+				dimensions[j] = new long[] { 20 + rnd.nextInt(100), 20 + rnd.nextInt(100) };
+				translations[j] = new double[2];
+
+				for (int d = 0; d < 2; d++) {
+					translations[j][d] = 60 * j + rnd.nextInt(20);
+					if (i % 2 == 1) translations[j][d] += rnd.nextDouble() - 0.5;
+					offset[d] = Math.min(offset[d], translations[j][d]);
+				}
+			}
+
+			final ArrayList<ImageInterpolation<FloatType>> images =
+				createImages(dimensions);
+
+			assertSame(new BlendingPixelFusion(images),
+				new TabulatedBlendingPixelFusion(images, offset, translations),
+				dimensions, offset, translations, rnd);
+			assertSame(new BlendingPixelFusionIgnoreZero(images),
+				new TabulatedBlendingPixelFusionIgnoreZero(images, offset, translations)
+					.copy(), dimensions, offset, translations, rnd);
+		}
+	}
+
+	/**
+	 * Positions that are not the ones of output pixels and images without
+	 * translation have no table.
+	 */
+	@Test
+	public void testWithoutTable() {
+		final Random rnd = new Random(42);
+		final long[][] dimensions = { { 50, 70 }, { 64, 64 } };
+		final double[][] translations = { { 0, 0 }, null };
+		final double[] offset = { 0, 0 };
+
+		final ArrayList<ImageInterpolation<FloatType>> images =
+			createImages(dimensions);
+
+		final PixelFusion blending = new BlendingPixelFusion(images);
+		final PixelFusion tabulated =
+			new TabulatedBlendingPixelFusion(images, offset, translations);
+
+		for (int k = 0; k < 10000; k++) {
+			final int image = rnd.nextInt(2);
+			final double[] p =
+				{ rnd.nextDouble() * dimensions[image][0] - 0.5,
+					rnd.nextDouble() * dimensions[image][1] - 0.5 };
+			final double value = 1 + rnd.nextInt(10);
+
+			assertEquals(fuse(blending, image, p, value), fuse(tabulated, image, p,
+				value), 0);
+		}
+	}
+
+	private static void assertSame(final PixelFusion expected,
+		final PixelFusion actual, final long[][] dimensions, final double[] offset,
+		final double[][] translations, final Random rnd)
+	{
+		for (int image = 0; image < dimensions.length; image++) {
+			final double[] t = translations[image];
+
+			// all output pixels covering the image and one more on each side
+			final int x0 = (int) Math.floor(t[0] - offset[0]) - 1;
+			final int y0 = (int) Math.floor(t[1] - offset[1]) - 1;
+
+			for (int y = y0; y <= y0 + dimensions[image][1] + 2; y++) {
+				for (int x = x0; x <= x0 + dimensions[image][0] + 2; x++) {
+					final double[] p =
+						{ (x + offset[0]) - t[0], (y + offset[1]) - t[1] };
+					final double value = rnd.nextInt(3) * 100;
+
+					assertEquals(fuse(expected, image, p, value), fuse(actual, image,
+						p, value), 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fuses the value with a fixed pixel of another image, so that the result
+	 * depends on the weight of the value
+	 */
+	private static double fuse(final PixelFusion fusion, final int image,
+		final double[] p, final double value)
+	{
+		final int other = (image + 1) % 2;
+
+		fusion.clear();
+		fusion.addValue(value, image, p);
+		fusion.addValue(7, other, new double[] { 15.5, 15.5 });
+		return fusion.getValue();
+	}
+
+	private static ArrayList<ImageInterpolation<FloatType>> createImages(
+		final long[][] dimensions)
+	{
+		final ArrayList<ImageInterpolation<FloatType>> images =
+			new ArrayList<ImageInterpolation<FloatType>>();
+
+		for (final long[] dim : dimensions) {
+			images.add(new ImageInterpolation<FloatType>(
+				new ArrayImgFactory<FloatType>().create(dim, new FloatType()),
+				new NearestNeighborInterpolatorFactory<FloatType>(), false));
+		}
+
+		return images;
+	}
+}
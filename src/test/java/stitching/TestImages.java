@@ -0,0 +1,63 @@
+package stitching;
+
+import java.util.Random;
+
+/**
+ * Synthetic images for the phase correlation tests, crops of the same image
+ * are tiles with a known shift.
+ */
+public class TestImages {
+
+	/**
+	 * Random blobs with some texture
+	 *
+	 * @param width - the width of the image
+	 * @param height - the height of the image
+	 * @param numBlobs - how many gaussian blobs are added
+	 * @param seed - the seed of the random positions, sizes and noise
+	 * @return - the pixels, x is the fastest dimension
+	 */
+	public static float[] createImage(final int width, final int height,
+		final int numBlobs, final long seed)
+	{
+		final Random rnd = new Random(seed);
+		final float[] image = new float[width * height];
+
+		for (int i = 0; i < numBlobs; i++) {
+			final int cx = rnd.nextInt(width);
+			final int cy = rnd.nextInt(height);
+			final double sigma = 2 + rnd.nextDouble() * 6;
+			final int r = (int) (3 * sigma);
+
+			for (int y = Math.max(0, cy - r); y < Math.min(height, cy + r); y++) {
+				for (int x = Math.max(0, cx - r); x < Math.min(width, cx + r); x++) {
+					final double d = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+					image[y * width + x] += 100 * Math.exp(-d / (2 * sigma * sigma));
+				}
+			}
+		}
+
+		for (int i = 0; i < image.length; i++) {
+			image[i] += 10 * rnd.nextFloat();
+		}
+
+		return image;
+	}
+
+	/**
+	 * @param image - the pixels of the image
+	 * @param width - the width of the image
+	 * @return - the pixels of the w x h rectangle starting at x0, y0
+	 */
+	public static float[] crop(final float[] image, final int width,
+		final int x0, final int y0, final int w, final int h)
+	{
+		final float[] pixels = new float[w * h];
+
+		for (int y = 0; y < h; y++) {
+			System.arraycopy(image, (y + y0) * width + x0, pixels, y * w, w);
+		}
+
+		return pixels;
+	}
+}